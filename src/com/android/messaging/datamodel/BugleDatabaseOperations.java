@@ -36,6 +36,7 @@ import com.android.messaging.datamodel.data.ConversationListItemData;
 import com.android.messaging.datamodel.data.MessageData;
 import com.android.messaging.datamodel.data.MessagePartData;
 import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.datamodel.media.MediaResourceManager;
 import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.ui.UIIntents;
 import com.android.messaging.util.Assert;
@@ -473,14 +474,28 @@ public class BugleDatabaseOperations {
         dbWrapper.beginTransaction();
         boolean conversationDeleted = false;
         boolean conversationMessagesDeleted = false;
+        final ArrayList<Uri> deletedMediaUris;
         try {
             // Delete existing messages
             if (cutoffTimestamp == Long.MAX_VALUE) {
+                deletedMediaUris = getPartContentUrisForMessages(dbWrapper,
+                        MessageColumns.CONVERSATION_ID + "=?", new String[] { conversationId });
                 // Delete parts and messages
                 dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE,
                         MessageColumns.CONVERSATION_ID + "=?", new String[] { conversationId });
                 conversationMessagesDeleted = true;
             } else {
+                // The messages prior to the cutoff and the draft are deleted below
+                deletedMediaUris = getPartContentUrisForMessages(dbWrapper,
+                        MessageColumns.CONVERSATION_ID + "=? AND ("
+                                + MessageColumns.RECEIVED_TIMESTAMP + "<=? OR "
+                                + MessageColumns.STATUS + "=?)",
+                        new String[] {
+                            conversationId,
+                            Long.toString(cutoffTimestamp),
+                            Integer.toString(MessageData.BUGLE_STATUS_OUTGOING_DRAFT)
+                        });
+
                 // Delete all messages prior to the cutoff
                 dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE,
                         MessageColumns.CONVERSATION_ID + "=? AND "
@@ -522,14 +537,28 @@ public class BugleDatabaseOperations {
                 final int count = dbWrapper.delete(DatabaseHelper.CONVERSATIONS_TABLE,
                         ConversationColumns._ID + "=?", new String[] { conversationId });
                 conversationDeleted = (count > 0);
+                if (conversationDeleted) {
+                    onConversationDeleted(conversationId);
+                }
             }
             dbWrapper.setTransactionSuccessful();
         } finally {
             dbWrapper.endTransaction();
         }
+        MediaResourceManager.get().onMediaDeleted(deletedMediaUris);
         return conversationDeleted;
     }
 
+    /**
+     * Forget the telephony threads that mapped to a deleted conversation
+     */
+    private static void onConversationDeleted(final String conversationId) {
+        final SyncManager syncManager = DataModel.get().getSyncManager();
+        if (syncManager != null) {
+            syncManager.getThreadInfoCache().invalidateConversation(conversationId);
+        }
+    }
+
     private static final String MAX_RECEIVED_TIMESTAMP =
             "MAX(" + MessageColumns.RECEIVED_TIMESTAMP + ")";
     /**
@@ -1218,6 +1247,7 @@ public class BugleDatabaseOperations {
             messagePart.updateMessageId(messageId);
             insertNewMessagePartInTransaction(dbWrapper, messagePart, message.getConversationId());
         }
+        MessageSearchIndex.indexMessage(dbWrapper, messageId, true /* isNewMessage */);
     }
 
     /**
@@ -1245,6 +1275,7 @@ public class BugleDatabaseOperations {
             final ContentValues values = new ContentValues();
             message.populate(values);
             updateMessageRowIfExists(dbWrapper, message.getMessageId(), values);
+            MessageSearchIndex.indexMessage(dbWrapper, messageId, false /* isNewMessage */);
         }
     }
 
@@ -1264,6 +1295,31 @@ public class BugleDatabaseOperations {
         updateMessageRowIfExists(dbWrapper, message.getMessageId(), values);
     }
 
+    /**
+     * Reads the content uris of the parts of the messages matching the selection, so that what
+     * the media disk cache keeps for them can be dropped once they are deleted.
+     */
+    @DoesNotRunOnMainThread
+    public static ArrayList<Uri> getPartContentUrisForMessages(final DatabaseWrapper dbWrapper,
+            final String messageSelection, final String[] selectionArgs) {
+        Assert.isNotMainThread();
+        final ArrayList<Uri> uris = new ArrayList<Uri>();
+        final Cursor cursor = dbWrapper.query(DatabaseHelper.PARTS_TABLE,
+                new String[] { PartColumns.CONTENT_URI },
+                PartColumns.CONTENT_URI + " IS NOT NULL AND " + PartColumns.MESSAGE_ID
+                        + " IN (SELECT " + MessageColumns._ID + " FROM "
+                        + DatabaseHelper.MESSAGES_TABLE + " WHERE " + messageSelection + ")",
+                selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                uris.add(Uri.parse(cursor.getString(0)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return uris;
+    }
+
     /**
      * Delete all parts for a message
      */
@@ -1283,14 +1339,17 @@ public class BugleDatabaseOperations {
     @DoesNotRunOnMainThread
     public static int deleteMessage(final DatabaseWrapper dbWrapper, final String messageId) {
         Assert.isNotMainThread();
+        ArrayList<Uri> deletedMediaUris = null;
+        int count = 0;
         dbWrapper.beginTransaction();
         try {
             // Read message to find out which conversation it is in
             final MessageData message = BugleDatabaseOperations.readMessage(dbWrapper, messageId);
 
-            int count = 0;
             if (message != null) {
                 final String conversationId = message.getConversationId();
+                deletedMediaUris = getPartContentUrisForMessages(dbWrapper,
+                        MessageColumns._ID + "=?", new String[] { messageId });
                 // Delete message
                 count = dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE,
                         MessageColumns._ID + "=?", new String[] { messageId });
@@ -1302,10 +1361,13 @@ public class BugleDatabaseOperations {
                 }
             }
             dbWrapper.setTransactionSuccessful();
-            return count;
         } finally {
             dbWrapper.endTransaction();
         }
+        if (deletedMediaUris != null) {
+            MediaResourceManager.get().onMediaDeleted(deletedMediaUris);
+        }
+        return count;
     }
 
     /**
@@ -1340,6 +1402,7 @@ public class BugleDatabaseOperations {
                         ConversationColumns._ID + "=?", new String[] { conversationId });
                 LogUtil.i(TAG,
                         "BugleDatabaseOperations: Deleted empty conversation " + conversationId);
+                onConversationDeleted(conversationId);
                 return true;
             } else {
                 return false;
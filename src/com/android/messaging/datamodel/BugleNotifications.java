@@ -122,6 +122,15 @@ public class BugleNotifications {
         }
     Assert.isNotMainThread();
 
+        if ((coverage & UPDATE_MESSAGES) != 0) {
+            // Keep the notification state up to date even when not notifying. Without a
+            // conversation we don't know what changed, so reload everything when next needed.
+            if (conversationId != null) {
+                MessageNotificationState.reloadConversation(conversationId);
+            } else {
+                MessageNotificationState.invalidateConversations();
+            }
+        }
         if (!shouldNotify()) {
             return;
         }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.sms.MmsSmsUtils;
+import com.android.messaging.util.ContactUtil;
+import com.android.messaging.util.LogUtil;
+
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * The contacts changed or deleted since a given time, indexed so that we can tell which
+ * participants they may affect.
+ *
+ * A participant is affected if it was matched to one of those contacts (its name, photo or
+ * numbers may have changed, or it may be gone), or if its destination is one of their phones
+ * or emails (it may now match a new or edited contact). Phones are indexed by caller id min
+ * match, so this may include a few participants whose contact didn't change; refreshing those
+ * is harmless.
+ */
+class ChangedContacts {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    private final HashSet<Long> mContactIds = new HashSet<Long>();
+    private final HashSet<String> mPhoneMinMatches = new HashSet<String>();
+    private final HashSet<String> mEmails = new HashSet<String>();
+
+    private ChangedContacts() {
+    }
+
+    /**
+     * Loads the contacts changed or deleted after the given time.
+     *
+     * @return the changed contacts, or null if contacts could not be queried, in which case the
+     *         caller can't tell which participants are affected
+     */
+    static ChangedContacts load(final Context context, final long sinceTimestamp) {
+        final ChangedContacts changes = new ChangedContacts();
+        try {
+            if (!changes.loadChangedDestinations(context, sinceTimestamp) ||
+                    !changes.loadDeletedContacts(context, sinceTimestamp)) {
+                return null;
+            }
+        } catch (final Exception exception) {
+            // It's possible for contact query to fail and we don't want that to crash our app.
+            LogUtil.e(TAG, "ChangedContacts: failed to query changed contacts", exception);
+            return null;
+        }
+        return changes;
+    }
+
+    private boolean loadChangedDestinations(final Context context, final long sinceTimestamp) {
+        final Cursor cursor = ContactUtil.getDestinationsChangedSince(context, sinceTimestamp)
+                .performSynchronousQuery();
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                mContactIds.add(
+                        cursor.getLong(ContactUtil.ChangedDestinationQuery.INDEX_CONTACT_ID));
+                final String destination =
+                        cursor.getString(ContactUtil.ChangedDestinationQuery.INDEX_DESTINATION);
+                if (TextUtils.isEmpty(destination)) {
+                    continue;
+                }
+                if (TextUtils.equals(Email.CONTENT_ITEM_TYPE,
+                        cursor.getString(ContactUtil.ChangedDestinationQuery.INDEX_MIMETYPE))) {
+                    mEmails.add(destination.toLowerCase(Locale.ROOT));
+                } else {
+                    mPhoneMinMatches.add(PhoneNumberUtils.toCallerIDMinMatch(destination));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return true;
+    }
+
+    private boolean loadDeletedContacts(final Context context, final long sinceTimestamp) {
+        final Cursor cursor = ContactUtil.getContactsDeletedSince(context, sinceTimestamp)
+                .performSynchronousQuery();
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                mContactIds.add(cursor.getLong(ContactUtil.DeletedContactQuery.INDEX_CONTACT_ID));
+            }
+        } finally {
+            cursor.close();
+        }
+        return true;
+    }
+
+    int getContactCount() {
+        return mContactIds.size();
+    }
+
+    /**
+     * Returns whether the participant's matching contact may be different now.
+     */
+    boolean affects(final ParticipantData participant) {
+        if (mContactIds.contains(participant.getContactId())) {
+            return true;
+        }
+        final String destination = participant.getNormalizedDestination();
+        if (TextUtils.isEmpty(destination)) {
+            return false;
+        }
+        if (MmsSmsUtils.isEmailAddress(destination)) {
+            return mEmails.contains(destination.toLowerCase(Locale.ROOT));
+        }
+        return mPhoneMinMatches.contains(PhoneNumberUtils.toCallerIDMinMatch(destination));
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.text.TextUtils;
+
+import com.android.messaging.util.LogUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Collects the uris whose data changed and delivers each of them once, so that observers (mostly
+ * cursor loaders re-running their queries) hear about a burst of writes once instead of once per
+ * write.
+ * <p>
+ * Changes made in a database transaction are kept aside per thread until the outermost
+ * transaction of the thread is committed, so that observers don't query before the changes are
+ * visible, and are dropped if it is rolled back. Other changes, and committed ones, are delivered
+ * after a short window. A uri is dropped if one of its ancestors is pending, since
+ * notifying the ancestor notifies its descendants too, and once too many children of a uri are
+ * pending they are replaced with it.
+ */
+class ContentChangeBatcher {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    // Changes made outside of a transaction are delivered this long after the first one
+    private static final long DELIVERY_DELAY_MS = 50;
+
+    // More pending children than this are replaced with their parent, e.g. the messages of more
+    // than that many conversations changing notifies the messages of all conversations instead
+    @VisibleForTesting
+    static final int MAX_PENDING_CHILDREN = 8;
+
+    interface ChangeListener {
+        /**
+         * Notifies the observers of the uri and of its descendants that their data changed.
+         */
+        void onChange(Uri uri);
+    }
+
+    private final ChangeListener mListener;
+    private final Handler mHandler;
+    private final Runnable mDeliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ContentChangeBatcher.this) {
+                mDeliveryScheduled = false;
+            }
+            deliverPendingChanges();
+        }
+    };
+
+    // Changes made in the current transaction of each thread, only accessed by that thread
+    private final ThreadLocal<PendingUris> mTransactionUris = new ThreadLocal<PendingUris>() {
+        @Override
+        protected PendingUris initialValue() {
+            return new PendingUris();
+        }
+    };
+
+    // Guarded by this
+    private final PendingUris mPendingUris = new PendingUris();
+    private boolean mDeliveryScheduled;
+    private int mRequestedCount;
+    private int mDeliveredCount;
+
+    ContentChangeBatcher(final ChangeListener listener, final Handler handler) {
+        mListener = listener;
+        mHandler = handler;
+    }
+
+    /**
+     * Queues a change of the uri.
+     * @param inTransaction true if the calling thread is in a database transaction, in which case
+     *        the change is held until it ends, see {@link #onTransactionEnded}
+     */
+    void notifyChange(final Uri uri, final boolean inTransaction) {
+        if (inTransaction) {
+            synchronized (this) {
+                mRequestedCount++;
+            }
+            mTransactionUris.get().add(uri);
+            return;
+        }
+        synchronized (this) {
+            mRequestedCount++;
+            mPendingUris.add(uri);
+        }
+        scheduleDelivery();
+    }
+
+    /**
+     * Called when the outermost transaction of the calling thread ended, to queue the changes
+     * made in it for delivery.
+     * @param committed false if the transaction was rolled back, in which case its changes are
+     *        dropped
+     */
+    void onTransactionEnded(final boolean committed) {
+        final PendingUris transactionUris = mTransactionUris.get();
+        if (transactionUris.isEmpty()) {
+            return;
+        }
+        if (!committed) {
+            transactionUris.clear();
+            return;
+        }
+        synchronized (this) {
+            for (final Uri uri : transactionUris) {
+                mPendingUris.add(uri);
+            }
+        }
+        transactionUris.clear();
+        scheduleDelivery();
+    }
+
+    private void scheduleDelivery() {
+        synchronized (this) {
+            if (mDeliveryScheduled) {
+                return;
+            }
+            mDeliveryScheduled = true;
+        }
+        mHandler.postDelayed(mDeliverRunnable, DELIVERY_DELAY_MS);
+    }
+
+    /**
+     * Delivers all the pending changes now.
+     */
+    void deliverPendingChanges() {
+        final List<Uri> uris;
+        synchronized (this) {
+            if (mPendingUris.isEmpty()) {
+                return;
+            }
+            uris = new ArrayList<>(mPendingUris);
+            mPendingUris.clear();
+            mDeliveredCount += uris.size();
+            if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                LogUtil.v(TAG, "ContentChangeBatcher: delivering " + uris.size()
+                        + " changes, " + mDeliveredCount + " of " + mRequestedCount
+                        + " requested so far");
+            }
+        }
+        for (final Uri uri : uris) {
+            mListener.onChange(uri);
+        }
+    }
+
+    synchronized int getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    synchronized int getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    @VisibleForTesting
+    synchronized List<Uri> getPendingUris() {
+        return new ArrayList<>(mPendingUris);
+    }
+
+    @VisibleForTesting
+    List<Uri> getTransactionUris() {
+        return new ArrayList<>(mTransactionUris.get());
+    }
+
+    /**
+     * Set of changed uris, without the ones an ancestor in the set covers.
+     */
+    private static class PendingUris extends LinkedHashSet<Uri> {
+        @Override
+        public boolean add(final Uri uri) {
+            final Iterator<Uri> iterator = iterator();
+            while (iterator.hasNext()) {
+                final Uri pendingUri = iterator.next();
+                if (isSelfOrAncestor(pendingUri, uri)) {
+                    return false;
+                } else if (isSelfOrAncestor(uri, pendingUri)) {
+                    iterator.remove();
+                }
+            }
+            super.add(uri);
+
+            final Uri parent = getParent(uri);
+            if (parent != null && countPendingChildren(parent) > MAX_PENDING_CHILDREN) {
+                // Replaces the children
+                add(parent);
+            }
+            return true;
+        }
+
+        private int countPendingChildren(final Uri parent) {
+            final int childSegmentCount = parent.getPathSegments().size() + 1;
+            int count = 0;
+            for (final Uri pendingUri : this) {
+                if (pendingUri.getPathSegments().size() == childSegmentCount &&
+                        isSelfOrAncestor(parent, pendingUri)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private static boolean isSelfOrAncestor(final Uri ancestor, final Uri uri) {
+        if (!TextUtils.equals(ancestor.getAuthority(), uri.getAuthority())) {
+            return false;
+        }
+        final List<String> ancestorSegments = ancestor.getPathSegments();
+        final List<String> segments = uri.getPathSegments();
+        return segments.size() >= ancestorSegments.size() &&
+                segments.subList(0, ancestorSegments.size()).equals(ancestorSegments);
+    }
+
+    private static Uri getParent(final Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty()) {
+            return null;
+        }
+        final Uri.Builder builder = new Uri.Builder()
+                .scheme(uri.getScheme())
+                .authority(uri.getAuthority());
+        for (final String segment : segments.subList(0, segments.size() - 1)) {
+            builder.appendPath(segment);
+        }
+        return builder.build();
+    }
+}
@@ -29,7 +29,7 @@ import java.util.Calendar;
 import com.android.messaging.Factory;
 import com.android.messaging.datamodel.action.ActionService;
 import com.android.messaging.datamodel.action.AutoDeleteOldConversationsAction;
-import com.android.messaging.receiver.AutoDeleteReceiver;
+import com.android.messaging.datamodel.action.BackfillSearchIndexAction;
 import com.android.messaging.datamodel.action.BackgroundWorker;
 import com.android.messaging.datamodel.action.FixupMessageStatusOnStartupAction;
 import com.android.messaging.datamodel.action.ProcessPendingMessagesAction;
@@ -57,6 +57,7 @@ import com.android.messaging.datamodel.data.SettingsData;
 import com.android.messaging.datamodel.data.SettingsData.SettingsDataListener;
 import com.android.messaging.datamodel.data.SubscriptionListData;
 import com.android.messaging.datamodel.data.VCardContactItemData;
+import com.android.messaging.receiver.AutoDeleteReceiver;
 import com.android.messaging.sms.MmsConfig;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
@@ -224,6 +225,7 @@ public class DataModelImpl extends DataModel {
         FixupMessageStatusOnStartupAction.fixupMessageStatus();
         ProcessPendingMessagesAction.processFirstPendingMessage();
         SyncManager.immediateSync();
+        BackfillSearchIndexAction.backfillIfNeeded();
         
         // Run auto-delete immediately on startup (in case we missed the scheduled time)
         AutoDeleteOldConversationsAction.scheduleAutoDelete();
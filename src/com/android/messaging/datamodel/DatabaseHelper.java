@@ -610,6 +610,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private DatabaseHelper(final Context context) {
         super(context, DATABASE_NAME, null, getDatabaseVersion(context), null);
         mApplicationContext = context;
+        // Let queries run on a pool of reader connections while the writer connection is busy
+        // with a long transaction (e.g. a sync batch), instead of waiting for it to commit.
+        setWriteAheadLoggingEnabled(true);
     }
 
     /**
@@ -698,6 +701,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * Drops all user-defined tables from the given database.
      */
     private static void dropAllTables(final SQLiteDatabase db) {
+        // Drop the search index first, as dropping the tables backing it would break it
+        db.execSQL("DROP TABLE IF EXISTS " + MessageSearchIndex.TABLE_NAME);
         final Cursor tableCursor =
                 db.query(PRIMARY_TABLE, PRIMARY_COLUMNS, "type='table'", null, null, null, null);
         if (tableCursor != null) {
@@ -817,6 +822,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             db.execSQL(sql);
         }
 
+        MessageSearchIndex.createIndex(db);
+
         // Enable foreign key constraints
         db.execSQL("PRAGMA foreign_keys=ON;");
 
@@ -21,6 +21,8 @@ import android.database.sqlite.SQLiteDatabase;
 import com.android.messaging.Factory;
 import com.android.messaging.datamodel.data.ConversationListItemData;
 import com.android.messaging.util.Assert;
+import com.android.messaging.util.BuglePrefs;
+import com.android.messaging.util.BuglePrefsKeys;
 import com.android.messaging.util.LogUtil;
 
 public class DatabaseUpgradeHelper {
@@ -52,6 +54,9 @@ public class DatabaseUpgradeHelper {
         if (currentVersion < 3) {
             currentVersion = upgradeToVersion3(db);
         }
+        if (currentVersion < 4) {
+            currentVersion = upgradeToVersion4(db);
+        }
         // Rebuild all the views
         final Context context = Factory.get().getApplicationContext();
         DatabaseHelper.dropAllViews(db);
@@ -81,6 +86,15 @@ public class DatabaseUpgradeHelper {
         return 3;
     }
 
+    private int upgradeToVersion4(final SQLiteDatabase db) {
+        MessageSearchIndex.createIndex(db);
+        // The existing messages are indexed in the background
+        BuglePrefs.getApplicationPrefs().putLong(
+                BuglePrefsKeys.SEARCH_INDEX_BACKFILL_BELOW_ID, Long.MAX_VALUE);
+        LogUtil.i(TAG, "Upgraded database to version 4");
+        return 4;
+    }
+
     /**
      * Checks db version correctness at the end of each milestone release. If target database
      * version lies beyond the version range that the current release may handle, we snap the
@@ -36,6 +36,8 @@ import com.android.messaging.util.UiUtils;
 
 import java.util.Locale;
 import java.util.Stack;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 public class DatabaseWrapper {
@@ -52,16 +54,32 @@ public class DatabaseWrapper {
     private final String mExplainQueryPlanRegexp;
     private static final int sTimingThreshold = 50;        // in milliseconds
 
+    // With write-ahead logging, queries made outside of a transaction run on the framework's pool
+    // of reader connections, which usually has 4 of them and can't be sized by apps. Let at most
+    // that many readers in at once, fewer on devices with fewer cores, so that we can tell the
+    // time a query waited for a reader apart from the time it took to run. A query never waits
+    // more than READER_WAIT_TIMEOUT_MS, after which it runs without a reader slot, so the gate
+    // can't hold up a thread indefinitely.
+    private static final int MAX_READER_COUNT = 4;
+    private static final int MIN_READER_COUNT = 2;
+    private static final long READER_WAIT_TIMEOUT_MS = 2000;
+    private static final long NO_READER = -1;
+    private final Semaphore mReaders;
+
     public static final int INDEX_INSERT_MESSAGE_PART = 0;
     public static final int INDEX_INSERT_MESSAGE = 1;
     public static final int INDEX_QUERY_CONVERSATIONS_LATEST_MESSAGE = 2;
     public static final int INDEX_QUERY_MESSAGES_LATEST_MESSAGE = 3;
+    public static final int INDEX_INDEX_MESSAGE_FOR_SEARCH = 4;
+    public static final int INDEX_UNINDEX_MESSAGE_FOR_SEARCH = 5;
 
     private final SparseArray<SQLiteStatement> mCompiledStatements;
 
     static class TransactionData {
         long time;
         boolean transactionSuccessful;
+        // A nested transaction was not successful, which rolls this one back as well
+        boolean nestedTransactionFailed;
     }
 
     // track transaction on a per thread basis
@@ -86,6 +104,8 @@ public class DatabaseWrapper {
         mDatabase = db;
         mContext = context;
         mCompiledStatements = new SparseArray<SQLiteStatement>();
+        mReaders = new Semaphore(Math.max(MIN_READER_COUNT,
+                Math.min(MAX_READER_COUNT, Runtime.getRuntime().availableProcessors())));
     }
 
     public SQLiteStatement getStatementInTransaction(final int index, final String statement) {
@@ -116,10 +136,86 @@ public class DatabaseWrapper {
         }
     }
 
+    /**
+     * Waits for a reader for a query, unless the calling thread is in a transaction, in which
+     * case the query runs on the writer connection.
+     * @return the time waited in ms, or NO_READER if the query doesn't need a reader
+     */
+    private long acquireReader() {
+        if (mDatabase.inTransaction() || !mDatabase.isWriteAheadLoggingEnabled()) {
+            // Without write-ahead logging all queries share a single connection anyway
+            return NO_READER;
+        }
+        final long t1 = System.currentTimeMillis();
+        boolean acquired = false;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                acquired = mReaders.tryAcquire(READER_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                break;
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        final long waitMillis = System.currentTimeMillis() - t1;
+        if (!acquired) {
+            LogUtil.w(TAG, "DatabaseWrapper: no reader after " + waitMillis
+                    + " ms, running query without one");
+            return NO_READER;
+        }
+        return waitMillis;
+    }
+
+    private void releaseReader(final long waitMillis) {
+        if (waitMillis != NO_READER) {
+            mReaders.release();
+        }
+    }
+
+    /**
+     * Runs a query right away, rather than when the cursor is first read, so that it runs while
+     * we hold the reader. The cursor keeps the count and the first window it filled, so this is
+     * work the caller would have done on first read anyway.
+     */
+    private static void runQuery(final Cursor cursor, final long waitMillis) {
+        if (waitMillis != NO_READER && cursor != null) {
+            cursor.getCount();
+        }
+    }
+
+    /**
+     * Logs the time a query took to run, and separately the time it waited for a reader, if
+     * together they exceed the threshold.
+     */
+    private static void printQueryTiming(final long t1, final long waitMillis, final String msg) {
+        final long readerWaitMillis = Math.max(0, waitMillis);
+        final long delta = System.currentTimeMillis() - t1;
+        if (delta + readerWaitMillis > sTimingThreshold) {
+            final int transactionDepth = sTransactionDepth.get().size();
+            LogUtil.v(LogUtil.BUGLE_DATABASE_PERF_TAG, String.format(Locale.US,
+                    sFormatStrings[Math.min(sFormatStrings.length - 1, transactionDepth)]
+                            + " after waiting %d ms for a reader",
+                    delta,
+                    msg,
+                    readerWaitMillis));
+        }
+    }
+
     public Context getContext() {
         return mContext;
     }
 
+    /**
+     * @return true if the calling thread is in a transaction started with
+     *         {@link #beginTransaction}
+     */
+    static boolean isInTransaction() {
+        return !sTransactionDepth.get().isEmpty();
+    }
+
     public void beginTransaction() {
         final long t1 = System.currentTimeMillis();
 
@@ -151,11 +247,21 @@ public class DatabaseWrapper {
             transactionStartTime = f.time;
             t1 = System.currentTimeMillis();
         }
+        boolean committed = f.transactionSuccessful && !f.nestedTransactionFailed;
         try {
             mDatabase.endTransaction();
         } catch (SQLiteFullException ex) {
             LogUtil.e(TAG, "Database full, unable to endTransaction", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
+            committed = false;
+        }
+        if (isInTransaction()) {
+            if (!committed) {
+                sTransactionDepth.get().peek().nestedTransactionFailed = true;
+            }
+        } else {
+            // Observers can see the changes made in the transaction once it is committed
+            MessagingContentProvider.onTransactionEnded(committed);
         }
         if (mLog) {
             printTiming(t1, String.format(Locale.US,
@@ -252,15 +358,23 @@ public class DatabaseWrapper {
         }
 
         maybePlayDebugNoise();
+        final long waitMillis = acquireReader();
         long t1 = 0;
         if (mLog) {
             t1 = System.currentTimeMillis();
         }
-        final Cursor cursor = mDatabase.query(searchTable, projection, selection, selectionArgs,
-                groupBy, having, orderBy, limit);
+        final Cursor cursor;
+        try {
+            cursor = mDatabase.query(searchTable, projection, selection, selectionArgs,
+                    groupBy, having, orderBy, limit);
+            runQuery(cursor, waitMillis);
+        } finally {
+            releaseReader(waitMillis);
+        }
         if (mLog) {
-            printTiming(
+            printQueryTiming(
                     t1,
+                    waitMillis,
                     String.format(Locale.US, "query %s with %s ==> %d",
                             searchTable, selection, cursor.getCount()));
         }
@@ -283,15 +397,23 @@ public class DatabaseWrapper {
                     groupBy, having, sortOrder, limit);
         }
         maybePlayDebugNoise();
+        final long waitMillis = acquireReader();
         long t1 = 0;
         if (mLog) {
             t1 = System.currentTimeMillis();
         }
-        final Cursor cursor = qb.query(mDatabase, projection, selection, queryArgs, groupBy,
-                having, sortOrder, limit);
+        final Cursor cursor;
+        try {
+            cursor = qb.query(mDatabase, projection, selection, queryArgs, groupBy,
+                    having, sortOrder, limit);
+            runQuery(cursor, waitMillis);
+        } finally {
+            releaseReader(waitMillis);
+        }
         if (mLog) {
-            printTiming(
+            printQueryTiming(
                     t1,
+                    waitMillis,
                     String.format(Locale.US, "query %s with %s ==> %d",
                             qb.getTables(), selection, cursor.getCount()));
         }
@@ -300,16 +422,22 @@ public class DatabaseWrapper {
 
     public long queryNumEntries(final String table, final String selection,
             final String[] selectionArgs) {
+        maybePlayDebugNoise();
+        final long waitMillis = acquireReader();
         long t1 = 0;
         if (mLog) {
             t1 = System.currentTimeMillis();
         }
-        maybePlayDebugNoise();
-        final long retval =
-                DatabaseUtils.queryNumEntries(mDatabase, table, selection, selectionArgs);
+        final long retval;
+        try {
+            retval = DatabaseUtils.queryNumEntries(mDatabase, table, selection, selectionArgs);
+        } finally {
+            releaseReader(waitMillis);
+        }
         if (mLog){
-            printTiming(
+            printQueryTiming(
                     t1,
+                    waitMillis,
                     String.format(Locale.US, "queryNumEntries %s with %s ==> %d", table,
                             selection, retval));
         }
@@ -320,15 +448,23 @@ public class DatabaseWrapper {
         if (mExplainQueryPlanRegexp != null) {
             explainQueryPlan(mDatabase, sql, args);
         }
+        maybePlayDebugNoise();
+        final long waitMillis = acquireReader();
         long t1 = 0;
         if (mLog) {
             t1 = System.currentTimeMillis();
         }
-        maybePlayDebugNoise();
-        final Cursor cursor = mDatabase.rawQuery(sql, args);
+        final Cursor cursor;
+        try {
+            cursor = mDatabase.rawQuery(sql, args);
+            runQuery(cursor, waitMillis);
+        } finally {
+            releaseReader(waitMillis);
+        }
         if (mLog) {
-            printTiming(
+            printQueryTiming(
                     t1,
+                    waitMillis,
                     String.format(Locale.US, "rawQuery %s ==> %d", sql, cursor.getCount()));
         }
         return cursor;
@@ -476,6 +612,30 @@ public class DatabaseWrapper {
         return rowsUpdated;
     }
 
+    /**
+     * Copies the changes in the write-ahead log into the database and truncates the log. Waits
+     * for the current writer and for readers still using older changes.
+     * @return whether the whole log was copied
+     */
+    public boolean checkpoint() {
+        long t1 = 0;
+        if (mLog) {
+            t1 = System.currentTimeMillis();
+        }
+        boolean complete = false;
+        final Cursor cursor = mDatabase.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+        try {
+            // The columns are: whether it was blocked, log pages, log pages copied
+            complete = cursor.moveToFirst() && cursor.getInt(0) == 0;
+        } finally {
+            cursor.close();
+        }
+        if (mLog) {
+            printTiming(t1, "checkpoint ==> " + (complete ? "complete" : "blocked"));
+        }
+        return complete;
+    }
+
     public SQLiteDatabase getDatabase() {
         return mDatabase;
     }
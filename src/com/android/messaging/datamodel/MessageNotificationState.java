@@ -56,10 +56,11 @@ import com.android.messaging.util.PendingIntentConstants;
 import com.android.messaging.util.UriUtil;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -74,8 +75,10 @@ import java.util.Map;
  * <p>
  * 3) {@link ConversationsList} - A list of {@link Conversation} and the total number of messages.
  * <p>
- * The {@link MessageNotificationState#createConversationsList()} function performs the query and
- * creates the data structure.
+ * The conversations are queried from the database the first time they're needed in the process, then
+ * kept up to date one conversation at a time as messages arrive in it ({@link #reloadConversation})
+ * or get seen ({@link #removeConversation}). {@link #createConversationsList()} creates the data
+ * structure from them.
  */
 public class MessageNotificationState {
     // Logging
@@ -405,24 +408,81 @@ public class MessageNotificationState {
         return firstNames;
     }
 
+    // Conversations with unseen messages to notify, keyed by conversation id. Guarded by
+    // sConversationsLock, which is held while querying so that a conversation seen meanwhile
+    // can't be put back with stale messages.
+    private static final Object sConversationsLock = new Object();
+    private static final Map<String, Conversation> sConversations = new HashMap<>();
+    // Participants' first names of the conversations in sConversations, see scanFirstNames()
+    private static final Map<String, HashMap<String, Integer>> sFirstNames = new HashMap<>();
+    private static boolean sConversationsLoaded;
+
+    private static void loadConversationsIfNeeded() {
+        if (!sConversationsLoaded) {
+            queryConversations(ConversationMessageData.getNotificationQuerySql(), null);
+            sConversationsLoaded = true;
+        }
+    }
+
     /**
-     * Performs a query on the database.
+     * Updates the notification messages of a conversation from the database, after messages
+     * arrived in it or changed.
      */
-    private static ConversationsList createConversationsList() {
-        // Map key is conversation id. We use LinkedHashMap to ensure that entries are iterated in
-        // the same order they were originally added. We scan unseen messages from newest to oldest,
-        // so the corresponding conversations are added in that order, too.
-        final Map<String, Conversation> conversations = new LinkedHashMap<>();
-        int messageCount = 0;
+    public static void reloadConversation(final String conversationId) {
+        synchronized (sConversationsLock) {
+            if (!sConversationsLoaded) {
+                // Loading all the conversations when first needed will cover this one
+                return;
+            }
+            sConversations.remove(conversationId);
+            queryConversations(ConversationMessageData.getConversationNotificationQuerySql(),
+                    new String[] { conversationId });
+            if (!sConversations.containsKey(conversationId)) {
+                sFirstNames.remove(conversationId);
+            }
+        }
+    }
 
+    /**
+     * Drops all the notification messages, so that they are loaded again from the database
+     * when next needed. Used when we can't tell which conversations changed, e.g. after
+     * participants' names or avatars changed.
+     */
+    public static void invalidateConversations() {
+        synchronized (sConversationsLock) {
+            sConversations.clear();
+            sFirstNames.clear();
+            sConversationsLoaded = false;
+        }
+    }
+
+    /**
+     * Drops the notification messages of a conversation once they have all been seen.
+     * @param conversationId the conversation whose messages were seen, or null if all messages
+     *        were seen
+     */
+    public static void removeConversation(final String conversationId) {
+        synchronized (sConversationsLock) {
+            if (conversationId == null) {
+                sConversations.clear();
+                sFirstNames.clear();
+            } else {
+                sConversations.remove(conversationId);
+                sFirstNames.remove(conversationId);
+            }
+        }
+    }
+
+    /**
+     * Performs a query on the database and adds the conversations found to sConversations.
+     */
+    private static void queryConversations(final String sql, final String[] selectionArgs) {
         Cursor convMessageCursor = null;
         try {
             final Context context = Factory.get().getApplicationContext();
             final DatabaseWrapper db = DataModel.get().getDatabase();
 
-            convMessageCursor = db.rawQuery(
-                    ConversationMessageData.getNotificationQuerySql(),
-                    null);
+            convMessageCursor = db.rawQuery(sql, selectionArgs);
 
             if (convMessageCursor != null && convMessageCursor.moveToFirst()) {
                 if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
@@ -431,10 +491,6 @@ public class MessageNotificationState {
                 final ConversationMessageData convMessageData =
                         new ConversationMessageData();
 
-                HashMap<String, Integer> firstNames = null;
-                String conversationIdForFirstNames = null;
-                String groupConversationName = null;
-
                 do {
                     convMessageData.bind(convMessageCursor);
 
@@ -458,7 +514,7 @@ public class MessageNotificationState {
                         text = context.getResources().getString(
                                 R.string.message_title_manual_download);
                     }
-                    Conversation conversation = conversations.get(convId);
+                    Conversation conversation = sConversations.get(convId);
                     final Uri avatarUri = AvatarUriUtil.createAvatarUri(
                             convMessageData.getSenderProfilePhotoUri(),
                             convMessageData.getSenderFullName(),
@@ -469,10 +525,9 @@ public class MessageNotificationState {
                                 ConversationListItemData.getExistingConversation(db, convId);
                         final int subId = BugleDatabaseOperations.getSelfSubscriptionId(db,
                                 convData.getSelfId());
-                        groupConversationName = convData.getName();
                         conversation = new Conversation(convId,
                                 convData.getIsGroup(),
-                                groupConversationName,
+                                convData.getName(),
                                 convData.getIncludeEmailAddress(),
                                 timestamp,
                                 convData.getSelfId(),
@@ -482,7 +537,7 @@ public class MessageNotificationState {
                                 subId,
                                 convData.getParticipantCount(),
                                 convMessageData.getIconUri());
-                        conversations.put(convId, conversation);
+                        sConversations.put(convId, conversation);
                     }
                     // Prepare the message line
                     if (conversation.mIsGroup) {
@@ -494,22 +549,21 @@ public class MessageNotificationState {
                         }
                     } else {
                         // don't recompute this if we don't need to
-                        if (!TextUtils.equals(conversationIdForFirstNames, convId)) {
+                        HashMap<String, Integer> firstNames = sFirstNames.get(convId);
+                        if (firstNames == null) {
                             firstNames = scanFirstNames(convId);
-                            conversationIdForFirstNames = convId;
+                            sFirstNames.put(convId, firstNames);
                         }
-                        if (firstNames != null) {
-                            final Integer count = firstNames.get(authorFirstName);
-                            if (count != null && count > 1) {
-                                authorFirstName = authorFullName;
-                            }
+                        final Integer count = firstNames.get(authorFirstName);
+                        if (count != null && count > 1) {
+                            authorFirstName = authorFullName;
                         }
 
                         if (authorFullName == null) {
-                            authorFullName = groupConversationName;
+                            authorFullName = conversation.mGroupConversationName;
                         }
                         if (authorFirstName == null) {
-                            authorFirstName = groupConversationName;
+                            authorFirstName = conversation.mGroupConversationName;
                         }
                     }
                     final String subjectText = MmsUtils.cleanseMmsSubject(
@@ -555,7 +609,6 @@ public class MessageNotificationState {
                             authorFullName, authorFirstName, text,
                             attachmentUri, attachmentType, isManualDownloadNeeded, avatarUri,
                             messageId, timestamp, contactUriString));
-                    messageCount++;
                     conversation.mTotalMessageCount++;
                 } while (convMessageCursor.moveToNext());
             }
@@ -564,11 +617,33 @@ public class MessageNotificationState {
                 convMessageCursor.close();
             }
         }
-        if (conversations.isEmpty()) {
-            return null;
-        } else {
-            return new ConversationsList(messageCount, new ArrayList<>(conversations.values()));
+    }
+
+    /**
+     * Creates the data structure from the conversations with unseen messages, querying them if
+     * they haven't been yet.
+     */
+    private static ConversationsList createConversationsList() {
+        final List<Conversation> conversations;
+        synchronized (sConversationsLock) {
+            loadConversationsIfNeeded();
+            if (sConversations.isEmpty()) {
+                return null;
+            }
+            conversations = new ArrayList<>(sConversations.values());
+        }
+        // Conversations with the newest messages first
+        Collections.sort(conversations, new Comparator<Conversation>() {
+            @Override
+            public int compare(final Conversation lhs, final Conversation rhs) {
+                return Long.compare(rhs.mReceivedTimestamp, lhs.mReceivedTimestamp);
+            }
+        });
+        int messageCount = 0;
+        for (final Conversation conversation : conversations) {
+            messageCount += conversation.mTotalMessageCount;
         }
+        return new ConversationsList(messageCount, conversations);
     }
 
     /**
@@ -620,8 +695,7 @@ public class MessageNotificationState {
     }
 
     /**
-     * Scans the database for messages that need to go into notifications.
-     * messages from one sender.
+     * Gathers the messages that need to go into notifications.
      * @return NotificationState for the notification created.
      */
     public static MessageNotificationState getNotificationState() {
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseHelper.PartColumns;
+import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
+import com.android.messaging.datamodel.data.MessageData;
+import com.android.messaging.sms.MmsUtils;
+import com.android.messaging.util.Assert;
+import com.android.messaging.util.LogUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.List;
+
+/**
+ * Full-text index of the messages, used for message search. Each message has one row in an FTS4
+ * table, whose docid is the message id, holding the text of its parts, its MMS subject and the
+ * name and destination of its sender.
+ *
+ * New messages are indexed once all their parts are stored, see {@link #indexMessage}, and
+ * triggers on the messages and parts tables keep the index up to date when they change. Messages
+ * whose sender was renamed are indexed again in the background by
+ * {@link com.android.messaging.datamodel.action.ReindexSenderMessagesAction}, and messages stored
+ * before the index was added are indexed in batches by
+ * {@link com.android.messaging.datamodel.action.BackfillSearchIndexAction}.
+ */
+public class MessageSearchIndex {
+    private static final String TAG = LogUtil.BUGLE_DATABASE_TAG;
+
+    static final String TABLE_NAME = "messages_search";
+
+    // Columns of the index
+    private static final String TEXT = "text";
+    private static final String SUBJECT = "subject";
+    private static final String SENDER = "sender";
+
+    /**
+     * Columns of the search results.
+     */
+    public static class Columns implements BaseColumns {
+        public static final String CONVERSATION_ID = MessageColumns.CONVERSATION_ID;
+        public static final String CONVERSATION_NAME = "conversation_name";
+        public static final String SENDER_FULL_NAME = "sender_full_name";
+        public static final String SENDER_DISPLAY_DESTINATION = "sender_display_destination";
+        public static final String RECEIVED_TIMESTAMP = MessageColumns.RECEIVED_TIMESTAMP;
+        /* Excerpt of the matching text, with the matches between SNIPPET_START and SNIPPET_END */
+        public static final String SNIPPET = "snippet";
+    }
+
+    private static final String[] PROJECTION = {
+        Columns._ID,
+        Columns.CONVERSATION_ID,
+        Columns.CONVERSATION_NAME,
+        Columns.SENDER_FULL_NAME,
+        Columns.SENDER_DISPLAY_DESTINATION,
+        Columns.RECEIVED_TIMESTAMP,
+        Columns.SNIPPET,
+    };
+
+    public static final String SNIPPET_START = "\u0002";
+    public static final String SNIPPET_END = "\u0003";
+    private static final String SNIPPET_ELLIPSIS = "…";
+    // Approximate number of words in a snippet
+    private static final int SNIPPET_TOKEN_COUNT = 12;
+
+    // unicode61 folds case and diacritics beyond ASCII, but isn't in every SQLite build
+    private static final String CREATE_TABLE_SQL = "CREATE VIRTUAL TABLE " + TABLE_NAME
+            + " USING fts4(" + TEXT + ", " + SUBJECT + ", " + SENDER + ", tokenize=unicode61)";
+    private static final String CREATE_TABLE_FALLBACK_SQL = "CREATE VIRTUAL TABLE " + TABLE_NAME
+            + " USING fts4(" + TEXT + ", " + SUBJECT + ", " + SENDER + ")";
+
+    /**
+     * Returns the SQL which removes the messages matching the given condition on the messages
+     * table, aliased m, from the index.
+     */
+    private static String getUnindexMessagesSql(final String messagesCondition) {
+        return "DELETE FROM " + TABLE_NAME + " WHERE docid IN (SELECT m." + MessageColumns._ID
+                + " FROM " + DatabaseHelper.MESSAGES_TABLE + " m WHERE " + messagesCondition
+                + ")";
+    }
+
+    /**
+     * Returns the SQL which adds the messages matching the given condition on the messages
+     * table, aliased m, to the index.
+     */
+    private static String getIndexMessagesSql(final String messagesCondition) {
+        return "INSERT INTO " + TABLE_NAME + "(docid, " + TEXT + ", " + SUBJECT + ", "
+                + SENDER + ") SELECT m." + MessageColumns._ID + ", "
+                + "(SELECT group_concat(p." + PartColumns.TEXT + ", ' ') FROM "
+                + DatabaseHelper.PARTS_TABLE + " p WHERE p." + PartColumns.MESSAGE_ID
+                + " = m." + MessageColumns._ID + "), "
+                + "m." + MessageColumns.MMS_SUBJECT + ", "
+                + "(SELECT ifnull(s." + ParticipantColumns.FULL_NAME + ", '') || ' ' || ifnull(s."
+                + ParticipantColumns.DISPLAY_DESTINATION + ", '') FROM "
+                + DatabaseHelper.PARTICIPANTS_TABLE + " s WHERE s." + ParticipantColumns._ID
+                + " = m." + MessageColumns.SENDER_PARTICIPANT_ID + ")"
+                + " FROM " + DatabaseHelper.MESSAGES_TABLE + " m WHERE " + messagesCondition;
+    }
+
+    private static String getTriggerSql(final String name, final String event,
+            final String... statements) {
+        return "CREATE TRIGGER " + name + " " + event + " FOR EACH ROW BEGIN "
+                + TextUtils.join("; ", statements) + "; END";
+    }
+
+    private static String[] getReindexMessagesSqls(final String messagesCondition) {
+        return new String[] {
+            getUnindexMessagesSql(messagesCondition), getIndexMessagesSql(messagesCondition)
+        };
+    }
+
+    // Parts are only inserted and deleted along with their message, which indexes them all at once
+    private static final String[] CREATE_TRIGGER_SQLS = new String[] {
+        getTriggerSql(DatabaseHelper.PARTS_TABLE + "_search_update_trigger",
+                "AFTER UPDATE OF " + PartColumns.TEXT + " ON " + DatabaseHelper.PARTS_TABLE,
+                getReindexMessagesSqls("m." + MessageColumns._ID + " = NEW."
+                        + PartColumns.MESSAGE_ID)),
+        getTriggerSql(DatabaseHelper.MESSAGES_TABLE + "_search_update_trigger",
+                "AFTER UPDATE OF " + MessageColumns.MMS_SUBJECT + ", "
+                        + MessageColumns.SENDER_PARTICIPANT_ID + " ON "
+                        + DatabaseHelper.MESSAGES_TABLE,
+                getReindexMessagesSqls("m." + MessageColumns._ID + " = NEW." + MessageColumns._ID)),
+        getTriggerSql(DatabaseHelper.MESSAGES_TABLE + "_search_delete_trigger",
+                "AFTER DELETE ON " + DatabaseHelper.MESSAGES_TABLE,
+                "DELETE FROM " + TABLE_NAME + " WHERE docid = OLD." + MessageColumns._ID),
+    };
+
+    // Compiled once per connection by indexMessage(), which runs for every stored message
+    private static final String INDEX_MESSAGE_SQL =
+            getIndexMessagesSql("m." + MessageColumns._ID + " = ?");
+    private static final String UNINDEX_MESSAGE_SQL =
+            "DELETE FROM " + TABLE_NAME + " WHERE docid = ?";
+
+    // Newest matching messages first, skipping drafts and deleted conversations
+    private static final String SEARCH_QUERY_SQL = "SELECT "
+            + "m." + MessageColumns._ID + " as " + Columns._ID + ", "
+            + "m." + MessageColumns.CONVERSATION_ID + " as " + Columns.CONVERSATION_ID + ", "
+            + "c." + ConversationColumns.NAME + " as " + Columns.CONVERSATION_NAME + ", "
+            + "s." + ParticipantColumns.FULL_NAME + " as " + Columns.SENDER_FULL_NAME + ", "
+            + "s." + ParticipantColumns.DISPLAY_DESTINATION + " as "
+            + Columns.SENDER_DISPLAY_DESTINATION + ", "
+            + "m." + MessageColumns.RECEIVED_TIMESTAMP + " as " + Columns.RECEIVED_TIMESTAMP + ", "
+            + "snippet(" + TABLE_NAME + ", '" + SNIPPET_START + "', '" + SNIPPET_END + "', '"
+            + SNIPPET_ELLIPSIS + "', -1, " + SNIPPET_TOKEN_COUNT + ") as " + Columns.SNIPPET
+            + " FROM " + TABLE_NAME
+            + " JOIN " + DatabaseHelper.MESSAGES_TABLE + " m ON (m." + MessageColumns._ID + " = "
+            + TABLE_NAME + ".docid)"
+            + " JOIN " + DatabaseHelper.CONVERSATIONS_TABLE + " c ON (c."
+            + ConversationColumns._ID + " = m." + MessageColumns.CONVERSATION_ID + ")"
+            + " LEFT JOIN " + DatabaseHelper.PARTICIPANTS_TABLE + " s ON (s."
+            + ParticipantColumns._ID + " = m." + MessageColumns.SENDER_PARTICIPANT_ID + ")"
+            + " WHERE " + TABLE_NAME + " MATCH ?"
+            + " AND m." + MessageColumns.STATUS + " != " + MessageData.BUGLE_STATUS_OUTGOING_DRAFT
+            + " AND c." + ConversationColumns.DELETED_STATUS + " = 0"
+            + " ORDER BY m." + MessageColumns.RECEIVED_TIMESTAMP + " DESC, m."
+            + MessageColumns._ID + " DESC"
+            + " LIMIT ? OFFSET ?";
+
+    /**
+     * Creates the index table and the triggers maintaining it.
+     */
+    static void createIndex(final SQLiteDatabase db) {
+        try {
+            db.execSQL(CREATE_TABLE_SQL);
+        } catch (final SQLiteException e) {
+            LogUtil.w(TAG, "MessageSearchIndex: unicode61 tokenizer not available", e);
+            db.execSQL(CREATE_TABLE_FALLBACK_SQL);
+        }
+        for (final String sql : CREATE_TRIGGER_SQLS) {
+            db.execSQL(sql);
+        }
+    }
+
+    /**
+     * Indexes a message, called once its parts are stored.
+     *
+     * @param isNewMessage true if the message was just inserted, and so isn't indexed yet
+     */
+    public static void indexMessage(final DatabaseWrapper db, final String messageId,
+            final boolean isNewMessage) {
+        Assert.isTrue(db.getDatabase().inTransaction());
+        if (!isNewMessage) {
+            final SQLiteStatement unindex = db.getStatementInTransaction(
+                    DatabaseWrapper.INDEX_UNINDEX_MESSAGE_FOR_SEARCH, UNINDEX_MESSAGE_SQL);
+            unindex.clearBindings();
+            unindex.bindString(1, messageId);
+            unindex.executeUpdateDelete();
+        }
+        final SQLiteStatement index = db.getStatementInTransaction(
+                DatabaseWrapper.INDEX_INDEX_MESSAGE_FOR_SEARCH, INDEX_MESSAGE_SQL);
+        index.clearBindings();
+        index.bindString(1, messageId);
+        index.executeInsert();
+    }
+
+    /**
+     * Indexes again the messages sent by the given participants, after their name or
+     * destination changed.
+     */
+    public static void reindexMessagesFromSenders(final DatabaseWrapper db,
+            final List<String> participantIds) {
+        for (int start = 0; start < participantIds.size(); start += MmsUtils.MAX_IDS_PER_QUERY) {
+            final int end = Math.min(start + MmsUtils.MAX_IDS_PER_QUERY, participantIds.size());
+            final String[] bindArgs =
+                    participantIds.subList(start, end).toArray(new String[end - start]);
+            final String condition = "m." + MessageColumns.SENDER_PARTICIPANT_ID + " IN "
+                    + MmsUtils.getSqlInOperand(bindArgs.length);
+            db.beginTransaction();
+            try {
+                for (final String sql : getReindexMessagesSqls(condition)) {
+                    db.execSQL(sql, bindArgs);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Indexes up to batchSize messages whose ids are below the given id, newest first.
+     *
+     * @return the id below which messages are left to index, or 0 if there are none
+     */
+    public static long indexMessagesBelow(final DatabaseWrapper db, final long belowId,
+            final int batchSize) {
+        Assert.isTrue(batchSize > 0);
+        db.beginTransaction();
+        try {
+            // Find the lowest id of the batch
+            long lowestId = 0;
+            final Cursor cursor = db.query(DatabaseHelper.MESSAGES_TABLE,
+                    new String[] { MessageColumns._ID },
+                    MessageColumns._ID + " < ?", new String[] { Long.toString(belowId) },
+                    null, null, MessageColumns._ID + " DESC",
+                    (batchSize - 1) + ", 1");
+            try {
+                if (cursor.moveToFirst()) {
+                    lowestId = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            // Triggers may already have indexed some of the messages
+            final String condition = "m." + MessageColumns._ID + " >= " + lowestId + " AND m."
+                    + MessageColumns._ID + " < " + belowId;
+            db.execSQL(getUnindexMessagesSql(condition));
+            db.execSQL(getIndexMessagesSql(condition));
+            db.setTransactionSuccessful();
+            return lowestId;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Searches the messages.
+     *
+     * @param query the words typed by the user
+     * @return the matching messages, newest first, with the {@link Columns}
+     */
+    public static Cursor search(final DatabaseWrapper db, final String query, final int limit,
+            final int offset) {
+        final String matchExpression = getMatchExpression(query);
+        if (matchExpression.isEmpty()) {
+            return new MatrixCursor(PROJECTION);
+        }
+        final String[] queryArgs = {
+            matchExpression, Integer.toString(limit), Integer.toString(offset)
+        };
+        return db.rawQuery(SEARCH_QUERY_SQL, queryArgs);
+    }
+
+    /**
+     * Turns what the user typed into an FTS query matching messages with words starting with
+     * each of the typed words, so that nothing typed is taken as query syntax.
+     */
+    @VisibleForTesting
+    static String getMatchExpression(final String query) {
+        final StringBuilder expression = new StringBuilder();
+        for (final String word : query.trim().split("\\s+")) {
+            final String quotedWord = word.replace("\"", "");
+            if (TextUtils.isEmpty(quotedWord)) {
+                continue;
+            }
+            if (expression.length() > 0) {
+                expression.append(' ');
+            }
+            expression.append('"').append(quotedWord).append("\"*");
+        }
+        return expression.toString();
+    }
+}
@@ -19,8 +19,11 @@ package com.android.messaging.datamodel;
 import android.telephony.SmsMessage;
 
 import com.android.messaging.sms.MmsConfig;
+import com.android.messaging.sms.SmsSegmentCounter;
 
 public class MessageTextStats {
+    // Recounts only what changed since the previous text, which is typically one keystroke away
+    private final SmsSegmentCounter mSegmentCounter = new SmsSegmentCounter();
     private boolean mMessageLengthRequiresMms;
     private int mMessageCount;
     private int mCodePointsRemainingInCurrentMessage;
@@ -42,7 +45,20 @@ public class MessageTextStats {
     }
 
     public void updateMessageTextStats(final int selfSubId, final String messageText) {
-        final int[] params = SmsMessage.calculateLength(messageText, false);
+        updateMessageTextStats(selfSubId, mSegmentCounter.calculateLength(messageText));
+    }
+
+    /**
+     * Updates the stats for a message text where the count characters at start replaced the
+     * before characters of the previous text, as reported by a TextWatcher.
+     */
+    public void updateMessageTextStats(final int selfSubId, final String messageText,
+            final int start, final int before, final int count) {
+        updateMessageTextStats(selfSubId,
+                mSegmentCounter.calculateLength(messageText, start, before, count));
+    }
+
+    private void updateMessageTextStats(final int selfSubId, final int[] params) {
         /* SmsMessage.calculateLength returns an int[4] with:
          *   int[0] being the number of SMS's required,
          *   int[1] the number of code points used,
@@ -39,6 +39,7 @@ import com.android.messaging.datamodel.data.ParticipantData;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.PhoneUtils;
+import com.android.messaging.util.ThreadUtil;
 import com.android.messaging.widget.BugleWidgetProvider;
 import com.android.messaging.widget.WidgetConversationProvider;
 import com.google.common.annotations.VisibleForTesting;
@@ -46,6 +47,7 @@ import com.google.common.annotations.VisibleForTesting;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
+import java.util.List;
 
 /**
  * A centralized provider for Uris exposed by Bugle.
@@ -95,6 +97,58 @@ public class MessagingContentProvider extends ContentProvider {
     public static final Uri DRAFT_IMAGES_URI = Uri.parse(CONTENT_AUTHORITY +
             DRAFT_IMAGES_QUERY);
 
+    // Message search query
+    private static final String SEARCH_QUERY = "search";
+
+    static final Uri SEARCH_URI = Uri.parse(CONTENT_AUTHORITY + SEARCH_QUERY);
+
+    // The notify methods below queue their uris here rather than notifying them right away, so
+    // that a burst of writes makes observers reload once.
+    private static final ContentChangeBatcher sChangeBatcher = new ContentChangeBatcher(
+            new ContentChangeBatcher.ChangeListener() {
+                @Override
+                public void onChange(final Uri uri) {
+                    deliverChange(uri);
+                }
+            }, ThreadUtil.getMainThreadHandler());
+
+    private static void notifyChange(final Uri uri) {
+        sChangeBatcher.notifyChange(uri, DatabaseWrapper.isInTransaction());
+    }
+
+    /**
+     * Queues the changes notified in the transaction for delivery, called when the outermost
+     * transaction of a thread ends.
+     * @param committed false if the transaction was rolled back
+     */
+    static void onTransactionEnded(final boolean committed) {
+        sChangeBatcher.onTransactionEnded(committed);
+    }
+
+    private static void deliverChange(final Uri uri) {
+        final Context context = Factory.get().getApplicationContext();
+        final ContentResolver cr = context.getContentResolver();
+        cr.notifyChange(uri, null);
+
+        final List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty()) {
+            // Notify any conversations widgets the conversation list has changed.
+            BugleWidgetProvider.notifyConversationListChanged(context);
+
+            // Notify all conversation widgets to update.
+            WidgetConversationProvider.notifyMessagesChanged(context, null /*conversationId*/);
+        } else if (CONVERSATIONS_URI.equals(uri)) {
+            // Notify the widget the conversation list changed
+            BugleWidgetProvider.notifyConversationListChanged(context);
+        } else if (CONVERSATION_MESSAGES_URI.equals(uri)) {
+            // The messages of many conversations changed at once
+            WidgetConversationProvider.notifyMessagesChanged(context, null /*conversationId*/);
+        } else if (sURIMatcher.match(uri) == CONVERSATION_MESSAGES_QUERY_CODE) {
+            // Notify the widget the messages changed
+            WidgetConversationProvider.notifyMessagesChanged(context, segments.get(2));
+        }
+    }
+
     /**
      * Notifies that <i>all</i> data exposed by the provider needs to be refreshed.
      * <p>
@@ -103,16 +157,7 @@ public class MessagingContentProvider extends ContentProvider {
      * different tables at once.
      */
     public static void notifyEverythingChanged() {
-        final Uri uri = Uri.parse(CONTENT_AUTHORITY);
-        final Context context = Factory.get().getApplicationContext();
-        final ContentResolver cr = context.getContentResolver();
-        cr.notifyChange(uri, null);
-
-        // Notify any conversations widgets the conversation list has changed.
-        BugleWidgetProvider.notifyConversationListChanged(context);
-
-        // Notify all conversation widgets to update.
-        WidgetConversationProvider.notifyMessagesChanged(context, null /*conversationId*/);
+        notifyChange(Uri.parse(CONTENT_AUTHORITY));
     }
 
     /**
@@ -125,19 +170,15 @@ public class MessagingContentProvider extends ContentProvider {
     }
 
     public static void notifyParticipantsChanged(final String conversationId) {
-        final Uri uri = buildConversationParticipantsUri(conversationId);
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(uri, null);
+        notifyChange(buildConversationParticipantsUri(conversationId));
     }
 
     public static void notifyAllMessagesChanged() {
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(CONVERSATION_MESSAGES_URI, null);
+        notifyChange(CONVERSATION_MESSAGES_URI);
     }
 
     public static void notifyAllParticipantsChanged() {
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(CONVERSATION_PARTICIPANTS_URI, null);
+        notifyChange(CONVERSATION_PARTICIPANTS_URI);
     }
 
     // Default value for unknown dimension of image
@@ -152,6 +193,7 @@ public class MessagingContentProvider extends ContentProvider {
     private static final int CONVERSATION_IMAGES_QUERY_CODE = 50;
     private static final int DRAFT_IMAGES_QUERY_CODE = 60;
     private static final int PARTICIPANTS_QUERY_CODE = 70;
+    private static final int SEARCH_QUERY_CODE = 80;
 
     // TODO: Move to a better structured URI namespace.
     private static final UriMatcher sURIMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -163,6 +205,7 @@ public class MessagingContentProvider extends ContentProvider {
         sURIMatcher.addURI(AUTHORITY, PARTICIPANTS_QUERY + "/conversation/*",
                 CONVERSATION_PARTICIPANTS_QUERY_CODE);
         sURIMatcher.addURI(AUTHORITY, PARTICIPANTS_QUERY, PARTICIPANTS_QUERY_CODE);
+        sURIMatcher.addURI(AUTHORITY, SEARCH_QUERY, SEARCH_QUERY_CODE);
         sURIMatcher.addURI(AUTHORITY, CONVERSATION_IMAGES_QUERY + "/*",
                 CONVERSATION_IMAGES_QUERY_CODE);
         sURIMatcher.addURI(AUTHORITY, DRAFT_IMAGES_QUERY + "/*",
@@ -178,15 +221,86 @@ public class MessagingContentProvider extends ContentProvider {
         return builder.build();
     }
 
+    // Query parameters for paged conversation messages queries. A page uri returns the newest
+    // messages in the conversation, or the ones right before a given (received_timestamp, _id)
+    // key; a since uri returns every message at or after such a key.
+    private static final String MESSAGES_PAGE_SIZE_PARAMETER = "page_size";
+    private static final String MESSAGES_BEFORE_TIMESTAMP_PARAMETER = "before_timestamp";
+    private static final String MESSAGES_BEFORE_ID_PARAMETER = "before_id";
+    private static final String MESSAGES_SINCE_TIMESTAMP_PARAMETER = "since_timestamp";
+    private static final String MESSAGES_SINCE_ID_PARAMETER = "since_id";
+
+    /**
+     * Build a messages uri that only returns the newest pageSize messages of a conversation.
+     */
+    public static Uri buildConversationMessagesPageUri(final String conversationId,
+            final int pageSize) {
+        final Uri.Builder builder = CONVERSATION_MESSAGES_URI.buildUpon();
+        builder.appendPath(conversationId);
+        builder.appendQueryParameter(MESSAGES_PAGE_SIZE_PARAMETER, String.valueOf(pageSize));
+        return builder.build();
+    }
+
+    /**
+     * Build a messages uri that only returns the pageSize messages of a conversation immediately
+     * older than the message with the given key, as returned by
+     * {@link ConversationMessageData#getConversationOlderMessagesQuerySql}.
+     */
+    public static Uri buildConversationOlderMessagesPageUri(final String conversationId,
+            final int pageSize, final long receivedTimestamp, final String messageId) {
+        final Uri.Builder builder = CONVERSATION_MESSAGES_URI.buildUpon();
+        builder.appendPath(conversationId);
+        builder.appendQueryParameter(MESSAGES_PAGE_SIZE_PARAMETER, String.valueOf(pageSize));
+        builder.appendQueryParameter(MESSAGES_BEFORE_TIMESTAMP_PARAMETER,
+                String.valueOf(receivedTimestamp));
+        builder.appendQueryParameter(MESSAGES_BEFORE_ID_PARAMETER, messageId);
+        return builder.build();
+    }
+
+    /**
+     * Build a messages uri that returns the messages of a conversation at or after the message
+     * with the given key, as returned by
+     * {@link ConversationMessageData#getConversationMessagesSinceQuerySql}.
+     */
+    public static Uri buildConversationMessagesSinceUri(final String conversationId,
+            final long receivedTimestamp, final String messageId) {
+        final Uri.Builder builder = CONVERSATION_MESSAGES_URI.buildUpon();
+        builder.appendPath(conversationId);
+        builder.appendQueryParameter(MESSAGES_SINCE_TIMESTAMP_PARAMETER,
+                String.valueOf(receivedTimestamp));
+        builder.appendQueryParameter(MESSAGES_SINCE_ID_PARAMETER, messageId);
+        return builder.build();
+    }
+
+    /**
+     * Returns the page size of a uri built by {@link #buildConversationMessagesPageUri} or
+     * {@link #buildConversationOlderMessagesPageUri}, or -1 for any other messages uri.
+     */
+    public static int getConversationMessagesPageSize(final Uri uri) {
+        final String pageSize = uri.getQueryParameter(MESSAGES_PAGE_SIZE_PARAMETER);
+        return pageSize == null ? -1 : Integer.parseInt(pageSize);
+    }
+
+    // Query parameters for message search queries
+    private static final String SEARCH_QUERY_PARAMETER = "q";
+    private static final String SEARCH_PAGE_SIZE_PARAMETER = "page_size";
+    private static final String SEARCH_OFFSET_PARAMETER = "offset";
+
+    /**
+     * Build a uri searching the messages for the given words. It returns pageSize messages,
+     * skipping the first offset ones, with the {@link MessageSearchIndex.Columns}.
+     */
+    public static Uri buildSearchUri(final String query, final int pageSize, final int offset) {
+        final Uri.Builder builder = SEARCH_URI.buildUpon();
+        builder.appendQueryParameter(SEARCH_QUERY_PARAMETER, query);
+        builder.appendQueryParameter(SEARCH_PAGE_SIZE_PARAMETER, String.valueOf(pageSize));
+        builder.appendQueryParameter(SEARCH_OFFSET_PARAMETER, String.valueOf(offset));
+        return builder.build();
+    }
+
     public static void notifyMessagesChanged(final String conversationId) {
-        final Uri uri = buildConversationMessagesUri(conversationId);
-        final Context context = Factory.get().getApplicationContext();
-        final ContentResolver cr = context.getContentResolver();
-        cr.notifyChange(uri, null);
+        notifyChange(buildConversationMessagesUri(conversationId));
         notifyConversationListChanged();
-
-        // Notify the widget the messages changed
-        WidgetConversationProvider.notifyMessagesChanged(context, conversationId);
     }
 
     /**
@@ -199,24 +313,16 @@ public class MessagingContentProvider extends ContentProvider {
     }
 
     public static void notifyConversationMetadataChanged(final String conversationId) {
-        final Uri uri = buildConversationMetadataUri(conversationId);
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(uri, null);
+        notifyChange(buildConversationMetadataUri(conversationId));
         notifyConversationListChanged();
     }
 
     public static void notifyPartsChanged() {
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(PARTS_URI, null);
+        notifyChange(PARTS_URI);
     }
 
     public static void notifyConversationListChanged() {
-        final Context context = Factory.get().getApplicationContext();
-        final ContentResolver cr = context.getContentResolver();
-        cr.notifyChange(CONVERSATIONS_URI, null);
-
-        // Notify the widget the conversation list changed
-        BugleWidgetProvider.notifyConversationListChanged(context);
+        notifyChange(CONVERSATIONS_URI);
     }
 
     /**
@@ -328,7 +434,8 @@ public class MessagingContentProvider extends ContentProvider {
                     // selection/sorting for this query.
 
                     if (selection == null && selectionArgs == null && sortOrder == null) {
-                        return queryConversationMessages(conversationId, uri);
+                        return queryConversationMessages(conversationId, uri,
+                                buildConversationMessagesUri(conversationId));
                     } else {
                         throw new IllegalArgumentException(
                                 "Cannot set selection or sort order with this query");
@@ -336,6 +443,14 @@ public class MessagingContentProvider extends ContentProvider {
                 } else {
                     throw new IllegalArgumentException("Malformed URI " + uri);
                 }
+            case SEARCH_QUERY_CODE:
+                // Like the conversation messages query, this one is a raw query
+                if (selection == null && selectionArgs == null && sortOrder == null) {
+                    return querySearch(uri);
+                } else {
+                    throw new IllegalArgumentException(
+                            "Cannot set selection or sort order with this query");
+                }
             case CONVERSATION_IMAGES_QUERY_CODE:
                 queryBuilder.setTables(ConversationImagePartsView.getViewName());
                 if (uri.getPathSegments().size() == 2) {
@@ -375,14 +490,58 @@ public class MessagingContentProvider extends ContentProvider {
         return cursor;
     }
 
-    private Cursor queryConversationMessages(final String conversationId, final Uri notifyUri) {
-        final String[] queryArgs = { conversationId };
-        final Cursor cursor = getDatabaseWrapper().rawQuery(
-                ConversationMessageData.getConversationMessagesQuerySql(), queryArgs);
+    private Cursor queryConversationMessages(final String conversationId, final Uri uri,
+            final Uri notifyUri) {
+        final int pageSize = getConversationMessagesPageSize(uri);
+        final String sinceTimestamp = uri.getQueryParameter(MESSAGES_SINCE_TIMESTAMP_PARAMETER);
+        final String beforeTimestamp = uri.getQueryParameter(MESSAGES_BEFORE_TIMESTAMP_PARAMETER);
+        final Cursor cursor;
+        if (pageSize > 0 && beforeTimestamp != null) {
+            final String beforeId = uri.getQueryParameter(MESSAGES_BEFORE_ID_PARAMETER);
+            if (beforeId == null) {
+                throw new IllegalArgumentException("Malformed URI " + uri);
+            }
+            final String[] queryArgs =
+                    { conversationId, beforeTimestamp, beforeTimestamp, beforeId };
+            cursor = getDatabaseWrapper().rawQuery(
+                    ConversationMessageData.getConversationOlderMessagesQuerySql(pageSize),
+                    queryArgs);
+        } else if (pageSize > 0) {
+            final String[] queryArgs = { conversationId };
+            cursor = getDatabaseWrapper().rawQuery(
+                    ConversationMessageData.getConversationNewestMessagesQuerySql(pageSize),
+                    queryArgs);
+        } else if (sinceTimestamp != null) {
+            final String sinceId = uri.getQueryParameter(MESSAGES_SINCE_ID_PARAMETER);
+            if (sinceId == null) {
+                throw new IllegalArgumentException("Malformed URI " + uri);
+            }
+            final String[] queryArgs = { conversationId, sinceTimestamp, sinceTimestamp, sinceId };
+            cursor = getDatabaseWrapper().rawQuery(
+                    ConversationMessageData.getConversationMessagesSinceQuerySql(), queryArgs);
+        } else {
+            final String[] queryArgs = { conversationId };
+            cursor = getDatabaseWrapper().rawQuery(
+                    ConversationMessageData.getConversationMessagesQuerySql(), queryArgs);
+        }
         cursor.setNotificationUri(getContext().getContentResolver(), notifyUri);
         return cursor;
     }
 
+    private Cursor querySearch(final Uri uri) {
+        final String query = uri.getQueryParameter(SEARCH_QUERY_PARAMETER);
+        final String pageSize = uri.getQueryParameter(SEARCH_PAGE_SIZE_PARAMETER);
+        final String offset = uri.getQueryParameter(SEARCH_OFFSET_PARAMETER);
+        if (query == null || pageSize == null || offset == null) {
+            throw new IllegalArgumentException("Malformed URI " + uri);
+        }
+        final Cursor cursor = MessageSearchIndex.search(getDatabaseWrapper(), query,
+                Integer.parseInt(pageSize), Integer.parseInt(offset));
+        // Every message change also notifies the conversation list
+        cursor.setNotificationUri(getContext().getContentResolver(), CONVERSATIONS_URI);
+        return cursor;
+    }
+
     @Override
     public String getType(final Uri uri) {
         final StringBuilder sb = new
@@ -458,6 +617,9 @@ public class MessagingContentProvider extends ContentProvider {
             defaultSmsApp = "None";
         }
         writer.println("Default SMS app: " + defaultSmsApp);
+        writer.println("Change notifications: " + sChangeBatcher.getDeliveredCount()
+                + " delivered of " + sChangeBatcher.getRequestedCount() + " requested");
+        PhoneUtils.dumpPhoneNumberCaches(writer);
         // Now dump logs
         LogUtil.dump(writer);
     }
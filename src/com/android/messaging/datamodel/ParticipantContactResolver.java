@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.sms.MmsSmsUtils;
+import com.android.messaging.util.ContactUtil;
+import com.android.messaging.util.LogUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+import androidx.collection.LongSparseArray;
+
+/**
+ * Resolves a batch of participant destinations against contacts with a handful of bulk queries,
+ * rather than one PhoneLookup/email lookup plus one first name lookup per participant.
+ *
+ * Phones are matched the way PhoneLookup does it: candidates share the caller id min match key
+ * and are then confirmed with a loose number comparison. Emails are matched case-insensitively.
+ * Only the default directory is covered, so callers should fall back to the per-destination
+ * lookup for participants that were previously matched to a work profile contact.
+ */
+class ParticipantContactResolver {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    /**
+     * A contact matching a destination, with the same fields a PhoneLookup row provides.
+     */
+    static class ContactMatch {
+        final long contactId;
+        final String displayName;
+        final String photoUri;
+        final String lookupKey;
+        final String destination;
+
+        private ContactMatch(final Cursor cursor) {
+            contactId = cursor.getLong(ContactUtil.INDEX_CONTACT_ID);
+            displayName = cursor.getString(ContactUtil.INDEX_DISPLAY_NAME);
+            photoUri = cursor.getString(ContactUtil.INDEX_PHOTO_URI);
+            lookupKey = cursor.getString(ContactUtil.INDEX_LOOKUP_KEY);
+            destination = cursor.getString(ContactUtil.INDEX_PHONE_EMAIL);
+        }
+    }
+
+    private final Context mContext;
+    // Phones keyed by caller id min match, emails keyed by lower-cased address
+    private final HashMap<String, List<ContactMatch>> mPhonesByMinMatch =
+            new HashMap<String, List<ContactMatch>>();
+    private final HashMap<String, List<ContactMatch>> mEmailsByAddress =
+            new HashMap<String, List<ContactMatch>>();
+    private final LongSparseArray<String> mFirstNames = new LongSparseArray<String>();
+
+    private ParticipantContactResolver(final Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Loads the contacts that may match any of the given participants.
+     *
+     * @return the resolver, or null if contacts could not be queried in bulk, in which case the
+     *         caller should fall back to looking up participants one by one
+     */
+    static ParticipantContactResolver load(final Context context,
+            final Collection<ParticipantData> participants) {
+        final ParticipantContactResolver resolver = new ParticipantContactResolver(context);
+        final HashSet<String> emails = new HashSet<String>();
+        boolean hasPhones = false;
+        for (final ParticipantData participant : participants) {
+            final String destination = participant.getNormalizedDestination();
+            if (TextUtils.isEmpty(destination)) {
+                continue;
+            }
+            if (MmsSmsUtils.isEmailAddress(destination)) {
+                emails.add(destination.toLowerCase(Locale.ROOT));
+            } else {
+                hasPhones = true;
+            }
+        }
+
+        try {
+            if (hasPhones && !resolver.loadPhones()) {
+                return null;
+            }
+            if (!resolver.loadEmails(new ArrayList<String>(emails))) {
+                return null;
+            }
+            resolver.loadFirstNames();
+        } catch (final Exception exception) {
+            // It's possible for contact query to fail and we don't want that to crash our app.
+            LogUtil.e(TAG, "ParticipantContactResolver: bulk contact lookup failed", exception);
+            return null;
+        }
+        return resolver;
+    }
+
+    private boolean loadPhones() {
+        final Cursor cursor = ContactUtil.getPhonesForBulkLookup(mContext)
+                .performSynchronousQuery();
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final ContactMatch match = new ContactMatch(cursor);
+                if (TextUtils.isEmpty(match.destination)) {
+                    continue;
+                }
+                addMatch(mPhonesByMinMatch, PhoneNumberUtils.toCallerIDMinMatch(match.destination),
+                        match);
+            }
+        } finally {
+            cursor.close();
+        }
+        return true;
+    }
+
+    private boolean loadEmails(final List<String> emails) {
+        for (int start = 0; start < emails.size(); start += ContactUtil.MAX_BULK_LOOKUP_ARGS) {
+            final List<String> batch = emails.subList(start,
+                    Math.min(emails.size(), start + ContactUtil.MAX_BULK_LOOKUP_ARGS));
+            final Cursor cursor = ContactUtil.lookupEmails(mContext, batch)
+                    .performSynchronousQuery();
+            if (cursor == null) {
+                return false;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    final ContactMatch match = new ContactMatch(cursor);
+                    if (!TextUtils.isEmpty(match.destination)) {
+                        addMatch(mEmailsByAddress, match.destination.toLowerCase(Locale.ROOT),
+                                match);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return true;
+    }
+
+    private void loadFirstNames() {
+        final HashSet<Long> contactIds = new HashSet<Long>();
+        for (final List<ContactMatch> matches : mPhonesByMinMatch.values()) {
+            for (final ContactMatch match : matches) {
+                contactIds.add(match.contactId);
+            }
+        }
+        for (final List<ContactMatch> matches : mEmailsByAddress.values()) {
+            for (final ContactMatch match : matches) {
+                contactIds.add(match.contactId);
+            }
+        }
+        // Work profile contacts have no structured name data for us to read
+        final List<Long> personalContactIds = new ArrayList<Long>(contactIds.size());
+        for (final Long contactId : contactIds) {
+            if (!ContactUtil.isEnterpriseContactId(contactId)) {
+                personalContactIds.add(contactId);
+            }
+        }
+
+        for (int start = 0; start < personalContactIds.size();
+                start += ContactUtil.MAX_BULK_LOOKUP_ARGS) {
+            final List<Long> batch = personalContactIds.subList(start,
+                    Math.min(personalContactIds.size(), start + ContactUtil.MAX_BULK_LOOKUP_ARGS));
+            final Cursor cursor = ContactUtil.lookupFirstNames(mContext, batch)
+                    .performSynchronousQuery();
+            if (cursor == null) {
+                // Same as lookupFirstName(), no name data just means no first names
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    final long contactId =
+                            cursor.getLong(ContactUtil.FirstNameQuery.INDEX_CONTACT_ID);
+                    // Like lookupFirstName(), the first row for a contact wins
+                    if (mFirstNames.indexOfKey(contactId) < 0) {
+                        mFirstNames.put(contactId,
+                                cursor.getString(ContactUtil.FirstNameQuery.INDEX_GIVEN_NAME));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private static void addMatch(final HashMap<String, List<ContactMatch>> map, final String key,
+            final ContactMatch match) {
+        List<ContactMatch> matches = map.get(key);
+        if (matches == null) {
+            matches = new ArrayList<ContactMatch>(1);
+            map.put(key, matches);
+        }
+        matches.add(match);
+    }
+
+    /**
+     * Returns the contacts matching a normalized destination, in the order the contacts provider
+     * returned them. The list is empty if no contact matches.
+     */
+    List<ContactMatch> getMatches(final String normalizedDestination) {
+        final List<ContactMatch> result = new ArrayList<ContactMatch>(1);
+        if (TextUtils.isEmpty(normalizedDestination)) {
+            return result;
+        }
+        if (MmsSmsUtils.isEmailAddress(normalizedDestination)) {
+            final List<ContactMatch> matches =
+                    mEmailsByAddress.get(normalizedDestination.toLowerCase(Locale.ROOT));
+            if (matches != null) {
+                result.addAll(matches);
+            }
+            return result;
+        }
+        final List<ContactMatch> candidates = mPhonesByMinMatch.get(
+                PhoneNumberUtils.toCallerIDMinMatch(normalizedDestination));
+        if (candidates != null) {
+            for (final ContactMatch candidate : candidates) {
+                if (PhoneNumberUtils.compare(mContext, candidate.destination,
+                        normalizedDestination)) {
+                    result.add(candidate);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the first name of a contact returned by {@link #getMatches}, or null if it has none.
+     */
+    String getFirstName(final long contactId) {
+        return mFirstNames.get(contactId);
+    }
+}
@@ -22,6 +22,7 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.graphics.Color;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.DeletedContacts;
 import android.telephony.SubscriptionInfo;
 import android.text.TextUtils;
 
@@ -29,10 +30,13 @@ import com.android.messaging.Factory;
 import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
 import com.android.messaging.datamodel.DatabaseHelper.ConversationParticipantsColumns;
 import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
+import com.android.messaging.datamodel.action.ReindexSenderMessagesAction;
 import com.android.messaging.datamodel.data.ParticipantData;
 import com.android.messaging.datamodel.data.ParticipantData.ParticipantsQuery;
 import com.android.messaging.ui.UIIntents;
 import com.android.messaging.util.Assert;
+import com.android.messaging.util.BuglePrefs;
+import com.android.messaging.util.BuglePrefsKeys;
 import com.android.messaging.util.ContactUtil;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
@@ -56,10 +60,13 @@ import androidx.collection.ArrayMap;
  *     1. name, photo_uri, matching contact_id of participants.
  *     2. generated_name of conversations.
  *
- * There are two kinds of participant refreshes,
- *     1. Full refresh, this is triggered at application start or activity resumes after contact
- *        change is detected.
- *     2. Partial refresh, this is triggered when a participant is added to a conversation. This
+ * There are three kinds of participant refreshes,
+ *     1. Changed contacts refresh, this is triggered at application start or activity resumes
+ *        after contact change is detected. Only participants of contacts changed since the last
+ *        refresh are refreshed, falling back to a full refresh when we can't tell which
+ *        contacts changed.
+ *     2. Full refresh, this refreshes every participant.
+ *     3. Partial refresh, this is triggered when a participant is added to a conversation. This
  *        normally happens during SMS sync.
  */
 @VisibleForTesting
@@ -81,6 +88,12 @@ public class ParticipantRefresh {
      */
     public static final int REFRESH_MODE_SELF_ONLY = 2;
 
+    /**
+     * Refresh all self participants, and participants whose matching contact may have changed
+     * since the last full or changed contacts refresh.
+     */
+    public static final int REFRESH_MODE_CHANGED_CONTACTS = 3;
+
     public static class ConversationParticipantsQuery {
         public static final String[] PROJECTION = new String[] {
             ConversationParticipantsColumns._ID,
@@ -102,7 +115,7 @@ public class ParticipantRefresh {
         public void run() {
             final boolean oldScheduled = sFullRefreshScheduled.getAndSet(false);
             Assert.isTrue(oldScheduled);
-            refreshParticipants(REFRESH_MODE_FULL);
+            refreshParticipants(REFRESH_MODE_CHANGED_CONTACTS);
         }
     };
     private static final Runnable sSelfOnlyRefreshRunnable = new Runnable() {
@@ -143,7 +156,9 @@ public class ParticipantRefresh {
             // TODO: Handle enterprise contacts post M once contacts provider supports it
             Factory.get().getApplicationContext().getContentResolver().registerContentObserver(
                     Phone.CONTENT_URI, true, this);
-            mContactChanged = true; // Force a full refresh on initialization.
+            // Force a refresh on initialization, contacts may have changed while we were not
+            // running.
+            mContactChanged = true;
         }
     }
 
@@ -206,11 +221,12 @@ public class ParticipantRefresh {
      * Refresh participants in Bugle.
      *
      * @param refreshMode the refresh mode desired. See {@link #REFRESH_MODE_FULL},
-     *        {@link #REFRESH_MODE_INCREMENTAL}, and {@link #REFRESH_MODE_SELF_ONLY}
+     *        {@link #REFRESH_MODE_INCREMENTAL}, {@link #REFRESH_MODE_SELF_ONLY}, and
+     *        {@link #REFRESH_MODE_CHANGED_CONTACTS}
      */
      @VisibleForTesting
-     static void refreshParticipants(final int refreshMode) {
-        Assert.inRange(refreshMode, REFRESH_MODE_FULL, REFRESH_MODE_SELF_ONLY);
+     static void refreshParticipants(int refreshMode) {
+        Assert.inRange(refreshMode, REFRESH_MODE_FULL, REFRESH_MODE_CHANGED_CONTACTS);
         if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
             switch (refreshMode) {
                 case REFRESH_MODE_FULL:
@@ -222,6 +238,9 @@ public class ParticipantRefresh {
                 case REFRESH_MODE_SELF_ONLY:
                     LogUtil.v(TAG, "Start self participant refresh");
                     break;
+                case REFRESH_MODE_CHANGED_CONTACTS:
+                    LogUtil.v(TAG, "Start changed contacts participant refresh");
+                    break;
             }
         }
 
@@ -232,64 +251,105 @@ public class ParticipantRefresh {
             return;
         }
 
-        if (refreshMode == REFRESH_MODE_FULL) {
+        final boolean tracksContactChanges = (refreshMode == REFRESH_MODE_FULL
+                || refreshMode == REFRESH_MODE_CHANGED_CONTACTS);
+        // Contacts changed once we've started are picked up by the next refresh.
+        final long refreshStartTime = System.currentTimeMillis();
+        if (tracksContactChanges) {
             // resetNeedFullRefresh right away so that we will skip duplicated full refresh
             // requests.
             resetNeedFullRefresh();
         }
 
-        if (refreshMode == REFRESH_MODE_FULL || refreshMode == REFRESH_MODE_SELF_ONLY) {
+        if (refreshMode != REFRESH_MODE_INCREMENTAL) {
             refreshSelfParticipantList();
         }
 
         final ArrayList<String> changedParticipants = new ArrayList<String>();
+        final DatabaseWrapper db = DataModel.get().getDatabase();
 
-        String selection = null;
-        String[] selectionArgs = null;
+        ArrayList<ParticipantData> participants = null;
+        if (refreshMode == REFRESH_MODE_CHANGED_CONTACTS) {
+            participants = getParticipantsForChangedContacts(db, refreshStartTime);
+            if (participants == null) {
+                LogUtil.i(TAG, "Can't tell which contacts changed, refreshing all participants");
+                refreshMode = REFRESH_MODE_FULL;
+            }
+        }
 
-        if (refreshMode == REFRESH_MODE_INCREMENTAL) {
-            // In case of incremental refresh, filter out participants that are already resolved.
-            selection = ParticipantColumns.CONTACT_ID + "=?";
-            selectionArgs = new String[] {
-                    String.valueOf(ParticipantData.PARTICIPANT_CONTACT_ID_NOT_RESOLVED) };
-        } else if (refreshMode == REFRESH_MODE_SELF_ONLY) {
-            // In case of self-only refresh, filter out non-self participants.
-            selection = SELF_PARTICIPANTS_CLAUSE;
-            selectionArgs = null;
+        if (participants == null) {
+            String selection = null;
+            String[] selectionArgs = null;
+
+            if (refreshMode == REFRESH_MODE_INCREMENTAL) {
+                // In case of incremental refresh, filter out participants that are already
+                // resolved.
+                selection = ParticipantColumns.CONTACT_ID + "=?";
+                selectionArgs = new String[] {
+                        String.valueOf(ParticipantData.PARTICIPANT_CONTACT_ID_NOT_RESOLVED) };
+            } else if (refreshMode == REFRESH_MODE_SELF_ONLY) {
+                // In case of self-only refresh, filter out non-self participants.
+                selection = SELF_PARTICIPANTS_CLAUSE;
+                selectionArgs = null;
+            }
+            participants = queryParticipants(db, selection, selectionArgs);
+        }
+
+        // A full refresh touches every participant, so resolve them all against contacts with a
+        // few bulk queries instead of a lookup per participant. Falls back to per-participant
+        // lookups if contacts can't be queried in bulk.
+        final ParticipantContactResolver resolver = (refreshMode == REFRESH_MODE_FULL) ?
+                ParticipantContactResolver.load(db.getContext(), participants) : null;
+
+        // Diff every participant against contacts in memory first, then write only the changed
+        // ones in a single transaction.
+        final ArrayList<ParticipantData> updatedParticipants = new ArrayList<ParticipantData>();
+        for (final ParticipantData participantData : participants) {
+            try {
+                final boolean updated;
+                if (resolver != null && !participantData.isSelf()
+                        && !ContactUtil.isEnterpriseContactId(participantData.getContactId())) {
+                    updated = refreshFromContacts(resolver, participantData);
+                } else {
+                    updated = refreshParticipant(db, participantData);
+                }
+                if (updated) {
+                    updatedParticipants.add(participantData);
+                }
+            } catch (final Exception exception) {
+                // Failure to refresh one participant shouldn't cancel the entire refresh.
+                // Log the failure so we know what's going on and resume the loop.
+                LogUtil.e(LogUtil.BUGLE_DATAMODEL_TAG, "ParticipantRefresh: Failed to " +
+                        "refresh participant", exception);
+            }
         }
 
-        final DatabaseWrapper db = DataModel.get().getDatabase();
-        Cursor cursor = null;
         boolean selfUpdated = false;
-        try {
-            cursor = db.query(DatabaseHelper.PARTICIPANTS_TABLE,
-                    ParticipantsQuery.PROJECTION, selection, selectionArgs, null, null, null);
-
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
+        if (updatedParticipants.size() > 0) {
+            db.beginTransaction();
+            try {
+                for (final ParticipantData participantData : updatedParticipants) {
                     try {
-                        final ParticipantData participantData =
-                                ParticipantData.getFromCursor(cursor);
-                        if (refreshParticipant(db, participantData)) {
-                            if (participantData.isSelf()) {
-                                selfUpdated = true;
-                            }
-                            updateParticipant(db, participantData);
-                            final String id = participantData.getId();
-                            changedParticipants.add(id);
+                        updateParticipant(db, participantData);
+                        if (participantData.isSelf()) {
+                            selfUpdated = true;
                         }
+                        changedParticipants.add(participantData.getId());
                     } catch (final Exception exception) {
                         // Failure to update one participant shouldn't cancel the entire refresh.
-                        // Log the failure so we know what's going on and resume the loop.
                         LogUtil.e(LogUtil.BUGLE_DATAMODEL_TAG, "ParticipantRefresh: Failed to " +
                                 "update participant", exception);
                     }
                 }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+        }
+
+        if (tracksContactChanges) {
+            BuglePrefs.getApplicationPrefs().putLong(BuglePrefsKeys.LAST_PARTICIPANT_REFRESH_TIME,
+                    refreshStartTime);
         }
 
         if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
@@ -299,6 +359,10 @@ public class ParticipantRefresh {
         // Refresh conversations for participants that are changed.
         if (changedParticipants.size() > 0) {
             BugleDatabaseOperations.refreshConversationsForParticipants(changedParticipants);
+            // Notifications show the participants' names and avatars
+            MessageNotificationState.invalidateConversations();
+            // Search matches messages by the name and destination of their sender
+            ReindexSenderMessagesAction.reindexSenderMessages(changedParticipants);
         }
         if (selfUpdated) {
             // Boom
@@ -312,6 +376,77 @@ public class ParticipantRefresh {
             + ParticipantData.OTHER_THAN_SELF_SUB_ID
             + " )";
 
+    private static final String NON_SELF_PARTICIPANTS_CLAUSE = ParticipantColumns.SUB_ID
+            + " = " + ParticipantData.OTHER_THAN_SELF_SUB_ID;
+
+    private static ArrayList<ParticipantData> queryParticipants(final DatabaseWrapper db,
+            final String selection, final String[] selectionArgs) {
+        final ArrayList<ParticipantData> participants = new ArrayList<ParticipantData>();
+        Cursor cursor = null;
+        try {
+            cursor = db.query(DatabaseHelper.PARTICIPANTS_TABLE,
+                    ParticipantsQuery.PROJECTION, selection, selectionArgs, null, null, null);
+
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    participants.add(ParticipantData.getFromCursor(cursor));
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return participants;
+    }
+
+    /**
+     * Get the participants to refresh for a changed contacts refresh: all self participants, and
+     * the participants that the contacts changed or deleted since the last refresh may affect.
+     *
+     * @return the participants, or null if we can't tell which contacts changed and need to
+     *         refresh all participants instead
+     */
+    private static ArrayList<ParticipantData> getParticipantsForChangedContacts(
+            final DatabaseWrapper db, final long now) {
+        final long lastRefreshTime = BuglePrefs.getApplicationPrefs().getLong(
+                BuglePrefsKeys.LAST_PARTICIPANT_REFRESH_TIME,
+                BuglePrefsKeys.LAST_PARTICIPANT_REFRESH_TIME_DEFAULT);
+        if (lastRefreshTime == BuglePrefsKeys.LAST_PARTICIPANT_REFRESH_TIME_DEFAULT
+                || lastRefreshTime > now
+                || now - lastRefreshTime > DeletedContacts.DAYS_KEPT_MILLISECONDS) {
+            // Never refreshed, clock was set back, or the contacts provider no longer remembers
+            // all contacts deleted since.
+            return null;
+        }
+
+        final ChangedContacts changedContacts =
+                ChangedContacts.load(db.getContext(), lastRefreshTime);
+        if (changedContacts == null) {
+            return null;
+        }
+
+        final ArrayList<ParticipantData> participants =
+                queryParticipants(db, SELF_PARTICIPANTS_CLAUSE, null);
+        final int selfCount = participants.size();
+        for (final ParticipantData participantData :
+                queryParticipants(db, NON_SELF_PARTICIPANTS_CLAUSE, null)) {
+            final long contactId = participantData.getContactId();
+            // Work profile contacts aren't tracked, and unresolved participants haven't been
+            // looked up at all, so always refresh those.
+            if (contactId == ParticipantData.PARTICIPANT_CONTACT_ID_NOT_RESOLVED
+                    || ContactUtil.isEnterpriseContactId(contactId)
+                    || changedContacts.affects(participantData)) {
+                participants.add(participantData);
+            }
+        }
+        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+            LogUtil.v(TAG, changedContacts.getContactCount() + " contacts changed, refreshing "
+                    + (participants.size() - selfCount) + " participants");
+        }
+        return participants;
+    }
+
     private static final Set<Integer> getExistingSubIds() {
         final DatabaseWrapper db = DataModel.get().getDatabase();
         final HashSet<Integer> existingSubIds = new HashSet<Integer>();
@@ -487,10 +622,6 @@ public class ParticipantRefresh {
             final ParticipantData participantData) {
         final String normalizedDestination = participantData.getNormalizedDestination();
         final long currentContactId = participantData.getContactId();
-        final String currentDisplayName = participantData.getFullName();
-        final String currentFirstName = participantData.getFirstName();
-        final String currentPhotoUri = participantData.getProfilePhotoUri();
-        final String currentContactDestination = participantData.getContactDestination();
 
         Cursor matchingContactCursor = null;
         long matchingContactId = -1;
@@ -499,7 +630,6 @@ public class ParticipantRefresh {
         String matchingPhotoUri = null;
         String matchingLookupKey = null;
         String matchingDestination = null;
-        boolean updated = false;
 
         if (TextUtils.isEmpty(normalizedDestination)) {
             // The normalized destination can be "" for the self id if we can't get it from the
@@ -519,9 +649,9 @@ public class ParticipantRefresh {
                     participantData.setFirstName(null);
                     participantData.setProfilePhotoUri(null);
                     participantData.setLookupKey(null);
-                    updated = true;
+                    return true;
                 }
-                return updated;
+                return false;
             }
 
             while (matchingContactCursor.moveToNext()) {
@@ -560,6 +690,69 @@ public class ParticipantRefresh {
             }
         }
 
+        return applyMatchingContact(participantData, matchingContactId, matchingDisplayName,
+                matchingFirstName, matchingPhotoUri, matchingLookupKey, matchingDestination);
+    }
+
+    /**
+     * Same as {@link #refreshFromContacts(DatabaseWrapper, ParticipantData)}, but with contacts
+     * already loaded in bulk by the resolver.
+     */
+    private static boolean refreshFromContacts(final ParticipantContactResolver resolver,
+            final ParticipantData participantData) {
+        final String normalizedDestination = participantData.getNormalizedDestination();
+        final long currentContactId = participantData.getContactId();
+
+        if (TextUtils.isEmpty(normalizedDestination)) {
+            return false;
+        }
+
+        final List<ParticipantContactResolver.ContactMatch> matches =
+                resolver.getMatches(normalizedDestination);
+        if (matches.isEmpty()) {
+            // If there is no match, mark the participant as contact not found.
+            if (currentContactId != ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND) {
+                participantData.setContactId(ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND);
+                participantData.setFullName(null);
+                participantData.setFirstName(null);
+                participantData.setProfilePhotoUri(null);
+                participantData.setLookupKey(null);
+                return true;
+            }
+            return false;
+        }
+
+        // Pick either the first contact or the contact with same id as previous matched contact id.
+        ParticipantContactResolver.ContactMatch matchingContact = matches.get(0);
+        if (currentContactId >= 0) {
+            for (final ParticipantContactResolver.ContactMatch match : matches) {
+                if (match.contactId == currentContactId) {
+                    matchingContact = match;
+                    break;
+                }
+            }
+        }
+
+        return applyMatchingContact(participantData, matchingContact.contactId,
+                matchingContact.displayName, resolver.getFirstName(matchingContact.contactId),
+                matchingContact.photoUri, matchingContact.lookupKey, matchingContact.destination);
+    }
+
+    /**
+     * Update the participant with the matching contact's fields if any of them changed.
+     * @return true if the ParticipantData was changed
+     */
+    private static boolean applyMatchingContact(final ParticipantData participantData,
+            final long matchingContactId, final String matchingDisplayName,
+            final String matchingFirstName, final String matchingPhotoUri,
+            final String matchingLookupKey, final String matchingDestination) {
+        final long currentContactId = participantData.getContactId();
+        final String currentDisplayName = participantData.getFullName();
+        final String currentFirstName = participantData.getFirstName();
+        final String currentPhotoUri = participantData.getProfilePhotoUri();
+        final String currentContactDestination = participantData.getContactDestination();
+        boolean updated = false;
+
         // Update participant only if something changed.
         final boolean isContactIdChanged = (matchingContactId != currentContactId);
         final boolean isDisplayNameChanged =
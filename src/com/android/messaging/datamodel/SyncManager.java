@@ -21,6 +21,8 @@ import android.content.pm.PackageManager;
 import android.database.ContentObserver;
 import android.net.Uri;
 import android.provider.Telephony;
+import android.text.TextUtils;
+import android.util.LruCache;
 
 import com.android.messaging.datamodel.action.SyncMessagesAction;
 import com.android.messaging.datamodel.data.ParticipantData;
@@ -35,8 +37,10 @@ import com.android.messaging.util.OsUtil;
 import com.android.messaging.util.PhoneUtils;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 import androidx.collection.LongSparseArray;
 
@@ -215,6 +219,11 @@ public class SyncManager {
         }
 
         mSyncInProgressTimestamp = startTimestamp;
+        if (full) {
+            // A full sync is how we recover from anything getting out of sync, so don't trust
+            // the threads we've cached either
+            mThreadInfoCache.clear();
+        }
 
         return true;
     }
@@ -369,6 +378,16 @@ public class SyncManager {
                         + mSyncOnChanges + "/" + mNotifyOnChanges);
             }
 
+            if (uri != null &&
+                    uri.toString().startsWith(Telephony.Threads.CONTENT_URI.toString())) {
+                // A thread changed, so it may have been deleted and its id reused
+                final String threadId = uri.getLastPathSegment();
+                if (!TextUtils.isEmpty(threadId) && TextUtils.isDigitsOnly(threadId)) {
+                    mThreadInfoCache.invalidateThread(Long.parseLong(threadId));
+                } else {
+                    mThreadInfoCache.clear();
+                }
+            }
             if (mSyncOnChanges) {
                 // If sync is already running this will do nothing - but at end of each sync
                 // action there is a check for recent messages that should catch new changes.
@@ -384,29 +403,97 @@ public class SyncManager {
         return mThreadInfoCache;
     }
 
+    /**
+     * Cache of the recipients and conversation of telephony threads. This is kept across sync
+     * batches and shared with the actions receiving messages, so the threads seen by one batch
+     * don't need to be looked up again by the next. Entries are dropped when the conversation
+     * they map to is deleted locally, when telephony reports a change to their thread, and when
+     * a full sync starts.
+     */
     public static class ThreadInfoCache {
+        // Enough for the threads of most users, or of a few sync batches
+        private static final int MAX_CACHED_THREADS = 1000;
+
         // Cache of thread->conversationId map
-        private final LongSparseArray<String> mThreadToConversationId =
-                new LongSparseArray<String>();
+        private final LruCache<Long, String> mThreadToConversationId =
+                new LruCache<Long, String>(MAX_CACHED_THREADS);
 
         // Cache of thread->recipients map
-        private final LongSparseArray<List<String>> mThreadToRecipients =
-                new LongSparseArray<List<String>>();
+        private final LruCache<Long, List<String>> mThreadToRecipients =
+                new LruCache<Long, List<String>>(MAX_CACHED_THREADS);
 
-        // Remember the conversation ids that need to be archived
+        // Remember the conversation ids that need to be archived in the current batch
         private final HashSet<String> mArchivedConversations = new HashSet<>();
 
-        // Remember the conversation ids that are deleted
-        private final HashSet<String> mDeletedConversations = new HashSet<>();
+        // Remember whether the conversations of the current batch are deleted
+        private final HashMap<String, Boolean> mConversationDeletedStatus = new HashMap<>();
+
+        // Hit and miss counts of the caches when the current batch started
+        private int mBatchStartConversationHits;
+        private int mBatchStartConversationMisses;
+        private int mBatchStartRecipientsHits;
+        private int mBatchStartRecipientsMisses;
 
         public synchronized void clear() {
             if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
                 LogUtil.d(TAG, "SyncManager: Cleared ThreadInfoCache");
             }
-            mThreadToConversationId.clear();
-            mThreadToRecipients.clear();
+            mThreadToConversationId.evictAll();
+            mThreadToRecipients.evictAll();
             mArchivedConversations.clear();
-            mDeletedConversations.clear();
+            mConversationDeletedStatus.clear();
+        }
+
+        /**
+         * Called at the start of each sync batch to forget the state of the previous batch
+         * (but not the threads it looked up) and start counting the hits of this batch
+         */
+        public synchronized void startBatch() {
+            mArchivedConversations.clear();
+            mConversationDeletedStatus.clear();
+            mBatchStartConversationHits = mThreadToConversationId.hitCount();
+            mBatchStartConversationMisses = mThreadToConversationId.missCount();
+            mBatchStartRecipientsHits = mThreadToRecipients.hitCount();
+            mBatchStartRecipientsMisses = mThreadToRecipients.missCount();
+        }
+
+        /**
+         * @return The hits and misses of the caches since the current batch started, for logging
+         */
+        public synchronized String getBatchStats() {
+            return "conversation hits/misses = "
+                    + (mThreadToConversationId.hitCount() - mBatchStartConversationHits) + "/"
+                    + (mThreadToConversationId.missCount() - mBatchStartConversationMisses)
+                    + ", recipients hits/misses = "
+                    + (mThreadToRecipients.hitCount() - mBatchStartRecipientsHits) + "/"
+                    + (mThreadToRecipients.missCount() - mBatchStartRecipientsMisses)
+                    + ", " + mThreadToConversationId.size() + " threads cached";
+        }
+
+        /**
+         * Forget the threads that map to a conversation that has been deleted locally, as their
+         * telephony threads are gone too and their ids may be reused
+         */
+        public synchronized void invalidateConversation(final String conversationId) {
+            for (final Map.Entry<Long, String> entry :
+                    mThreadToConversationId.snapshot().entrySet()) {
+                if (TextUtils.equals(entry.getValue(), conversationId)) {
+                    invalidateThread(entry.getKey());
+                }
+            }
+            mArchivedConversations.remove(conversationId);
+            mConversationDeletedStatus.remove(conversationId);
+        }
+
+        /**
+         * Forget a telephony thread that has changed
+         */
+        public synchronized void invalidateThread(final long threadId) {
+            if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                LogUtil.v(TAG, "SyncManager: Removing thread " + threadId + " from ThreadInfoCache");
+            }
+            mThreadToConversationId.remove(threadId);
+            mThreadToRecipients.remove(threadId);
         }
 
         public synchronized boolean isArchived(final String conversationId) {
@@ -414,7 +501,7 @@ public class SyncManager {
         }
 
         public synchronized boolean isDeleted(final String conversationId) {
-            return mDeletedConversations.contains(conversationId);
+            return Boolean.TRUE.equals(mConversationDeletedStatus.get(conversationId));
         }
 
         /**
@@ -432,49 +519,97 @@ public class SyncManager {
 
             // If we already have this conversation ID in our local map, just return it
             String conversationId = mThreadToConversationId.get(threadId);
-            if (conversationId != null) {
-                return conversationId;
+            if (conversationId == null) {
+                final List<String> recipients = getThreadRecipients(threadId);
+                final ArrayList<ParticipantData> participants =
+                        BugleDatabaseOperations.getConversationParticipantsFromRecipients(
+                                recipients, refSubId);
+
+                if (customization != null) {
+                    // There is user customization we need to recover
+                    conversationId = BugleDatabaseOperations.getOrCreateConversation(db,
+                            threadId, customization.isArchived(), participants,
+                            customization.isMuted(), customization.noVibrate(),
+                            customization.getNotificationSoundUri());
+                    if (customization.isArchived()) {
+                        mArchivedConversations.add(conversationId);
+                    }
+                } else {
+                    conversationId = BugleDatabaseOperations.getOrCreateConversation(db,
+                            threadId, false/*archived*/, participants, false/*noNotification*/,
+                            false/*noVibrate*/, null/*soundUri*/);
+                }
+
+                if (conversationId == null) {
+                    return null;
+                }
+                mThreadToConversationId.put(threadId, conversationId);
             }
 
-            final List<String> recipients = getThreadRecipients(threadId);
-            final ArrayList<ParticipantData> participants =
-                    BugleDatabaseOperations.getConversationParticipantsFromRecipients(recipients,
-                            refSubId);
+            // Check if the conversation is deleted and cache that status for this batch
+            if (!mConversationDeletedStatus.containsKey(conversationId)) {
+                mConversationDeletedStatus.put(conversationId,
+                        BugleDatabaseOperations.isConversationDeleted(db, conversationId));
+            }
+            return conversationId;
+        }
 
-            if (customization != null) {
-                // There is user customization we need to recover
-                conversationId = BugleDatabaseOperations.getOrCreateConversation(db, threadId,
-                        customization.isArchived(), participants, customization.isMuted(),
-                        customization.noVibrate(), customization.getNotificationSoundUri());
-                if (customization.isArchived()) {
-                    mArchivedConversations.add(conversationId);
-                }
-            } else {
+        /**
+         * Get or create the conversation of a received message's thread from its recipients in
+         * telephony
+         *
+         * @see BugleDatabaseOperations#getOrCreateConversationFromThreadId
+         */
+        public String getOrCreateConversationFromThreadId(final DatabaseWrapper db,
+                final long threadId, final boolean senderBlocked, final int refSubId) {
+            String conversationId = mThreadToConversationId.get(threadId);
+            if (conversationId == null) {
+                final ArrayList<ParticipantData> participants =
+                        BugleDatabaseOperations.getConversationParticipantsFromRecipients(
+                                getThreadRecipients(threadId), refSubId);
                 conversationId = BugleDatabaseOperations.getOrCreateConversation(db, threadId,
-                        false/*archived*/, participants, false/*noNotification*/,
+                        senderBlocked, participants, false/*noNotification*/,
                         false/*noVibrate*/, null/*soundUri*/);
+                putConversation(threadId, conversationId);
             }
+            return conversationId;
+        }
 
+        /**
+         * Get or create the conversation of a received message's thread from its sender, for
+         * when telephony may not know the recipients of the thread yet
+         *
+         * @see BugleDatabaseOperations#getOrCreateConversationFromRecipient
+         */
+        public String getOrCreateConversationFromRecipient(final DatabaseWrapper db,
+                final long threadId, final boolean senderBlocked,
+                final ParticipantData recipient) {
+            String conversationId = mThreadToConversationId.get(threadId);
+            if (conversationId == null) {
+                conversationId = BugleDatabaseOperations.getOrCreateConversationFromRecipient(db,
+                        threadId, senderBlocked, recipient);
+                putConversation(threadId, conversationId);
+            }
+            return conversationId;
+        }
+
+        private void putConversation(final long threadId, final String conversationId) {
             if (conversationId != null) {
                 mThreadToConversationId.put(threadId, conversationId);
-                // Check if the conversation is deleted and cache that status
-                if (BugleDatabaseOperations.isConversationDeleted(db, conversationId)) {
-                    mDeletedConversations.add(conversationId);
-                }
-                return conversationId;
             }
-
-            return null;
         }
 
-
         /**
          * Load the recipients of a thread from telephony provider. If we fail, use
          * a predefined unknown recipient. This should not return null.
          *
+         * The telephony query is made without holding the cache lock, so that the threads
+         * loading MMS during sync don't wait on each other. The recipients of a thread never
+         * change, so it doesn't matter which of two concurrent loads ends up cached.
+         *
          * @param threadId
          */
-        public synchronized List<String> getThreadRecipients(final long threadId) {
+        public List<String> getThreadRecipients(final long threadId) {
             List<String> recipients = mThreadToRecipients.get(threadId);
             if (recipients == null) {
                 recipients = MmsUtils.getRecipientsByThread(threadId);
@@ -27,6 +27,7 @@ import com.android.messaging.datamodel.action.ActionMonitor.ActionCompletedListe
 import com.android.messaging.datamodel.action.ActionMonitor.ActionExecutedListener;
 import com.android.messaging.util.LogUtil;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -88,8 +89,10 @@ public abstract class Action implements Parcelable {
      * Send queued actions to the background worker provided
      */
     public void sendBackgroundActions(final BackgroundWorker worker) {
-        worker.queueBackgroundWork(mBackgroundActions);
+        // The actions are handed over in process, so they mustn't see this list being cleared
+        final List<Action> backgroundActions = new ArrayList<Action>(mBackgroundActions);
         mBackgroundActions.clear();
+        worker.queueBackgroundWork(backgroundActions);
     }
 
     /**
@@ -120,6 +123,46 @@ public abstract class Action implements Parcelable {
         return null;
     }
 
+    /**
+     * Ordering key shared by all actions that don't override {@link #getOrderingKey}. These run
+     * one at a time in the order they were queued, as if the action service had a single thread.
+     */
+    protected static final String DEFAULT_ORDERING_KEY = "default";
+
+    /**
+     * Actions with the same ordering key have their {@link #executeAction},
+     * {@link #processBackgroundResponse} and {@link #processBackgroundFailure} run one at a time,
+     * in the order they were queued. The same goes for {@link #doBackgroundWork} on the background
+     * worker. Actions with different keys may run concurrently, so only override this for
+     * actions that are safe to run alongside everything outside their key.
+     * Must only depend on the action parameters, as it is called on the unparceled action.
+     */
+    protected String getOrderingKey() {
+        return DEFAULT_ORDERING_KEY;
+    }
+
+    /**
+     * Ordering key for actions handling incoming messages, so that they are processed in the
+     * order they arrived, but not behind unrelated actions such as a long sync.
+     */
+    protected static final String RECEIVE_ORDERING_KEY = "receive";
+
+    /**
+     * Ordering key for actions that only touch a single conversation.
+     */
+    protected static String getConversationOrderingKey(final String conversationId) {
+        return "conversation:" + conversationId;
+    }
+
+    /**
+     * Whether the user is waiting on this action, e.g. sending, receiving or reading messages.
+     * User facing actions run ahead of other actions that are ready to run, but never ahead of
+     * actions queued before them with the same ordering key.
+     */
+    protected boolean isUserFacing() {
+        return false;
+    }
+
     /**
      * Constructor
      */
@@ -280,8 +323,10 @@ public abstract class Action implements Parcelable {
      * to parcel Action member variables before they parcel their member variables).
      */
     public void writeActionToParcel(final Parcel parcel, final int flags) {
+        final int start = parcel.dataPosition();
         parcel.writeString(this.actionKey);
         parcel.writeBundle(this.actionParameters);
+        ActionParcelStats.recordParceled(this, parcel.dataPosition() - start);
     }
 
     /**
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.os.Process;
+
+import androidx.collection.SimpleArrayMap;
+
+import com.android.messaging.util.Assert;
+import com.android.messaging.util.LogUtil;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the work of the action service (or of the background worker) on a small pool of threads,
+ * while keeping the ordering that actions relied on when a single service thread ran them all:
+ * <ul>
+ *   <li>Work with the same ordering key runs one at a time, in the order it was queued.
+ *   <li>Work with different ordering keys may run concurrently.
+ *   <li>Among work that is ready to run, user facing work goes first, then the rest in the order
+ *       it was queued.
+ * </ul>
+ * See {@link Action#getOrderingKey} and {@link Action#isUserFacing}.
+ *
+ * The JobIntentService feeding an executor calls {@link #awaitIdleOrQueuedIntent} once it has
+ * handed work over, so that its job (and wake lock) stays alive while work is running, without
+ * holding up the intents queued behind it. Work that hands off to something completing later,
+ * e.g. an SMS waiting for its sent status, keeps the job alive until then with
+ * {@link #onAsyncWorkStarted} and {@link #onAsyncWorkFinished}.
+ */
+class ActionExecutor {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mPool;
+    private final Object mLock = new Object();
+
+    // Ordering keys with work running (or ready to run) in the pool, mapped to the work queued
+    // behind it
+    private final SimpleArrayMap<String, ArrayDeque<Work>> mBusyKeys =
+            new SimpleArrayMap<String, ArrayDeque<Work>>();
+    private long mNextSequence;
+    // Work queued that hasn't finished yet
+    private int mUnfinishedWorkCount;
+    // Work started by finished work that completes asynchronously
+    private int mAsyncWorkCount;
+    // Intents queued to the service feeding us that it hasn't handled yet
+    private int mQueuedIntentCount;
+    // Whether an intent queued to (or being handled by) the service feeding us will keep its job
+    // alive until we are idle
+    private boolean mKeepAliveQueued;
+
+    ActionExecutor(final String name, final int threadCount) {
+        mPool = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                // Same priority as the JobIntentService threads this replaces
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, name + " #" + mCount.incrementAndGet());
+                    }
+                });
+        mPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue work to run once all work queued before it with the same ordering key has finished.
+     */
+    void execute(final String orderingKey, final boolean userFacing, final Runnable runnable) {
+        Assert.notNull(orderingKey);
+        final Work work;
+        synchronized (mLock) {
+            work = new Work(orderingKey, userFacing, mNextSequence++, runnable);
+            mUnfinishedWorkCount++;
+            final ArrayDeque<Work> queuedForKey = mBusyKeys.get(orderingKey);
+            if (queuedForKey != null) {
+                queuedForKey.add(work);
+                return;
+            }
+            mBusyKeys.put(orderingKey, new ArrayDeque<Work>());
+        }
+        mPool.execute(work);
+    }
+
+    private void onWorkFinished(final Work work) {
+        final Work next;
+        synchronized (mLock) {
+            mUnfinishedWorkCount--;
+            final ArrayDeque<Work> queuedForKey = mBusyKeys.get(work.mOrderingKey);
+            next = queuedForKey.poll();
+            if (next == null) {
+                mBusyKeys.remove(work.mOrderingKey);
+            }
+            mLock.notifyAll();
+        }
+        if (next != null) {
+            mPool.execute(next);
+        }
+    }
+
+    /**
+     * Called by running work before it starts something that completes asynchronously, so that
+     * the service feeding this executor stays alive until {@link #onAsyncWorkFinished} is called.
+     */
+    void onAsyncWorkStarted() {
+        synchronized (mLock) {
+            mAsyncWorkCount++;
+        }
+    }
+
+    /**
+     * Called once asynchronous work started with {@link #onAsyncWorkStarted} has completed, from
+     * whichever thread that happens on.
+     */
+    void onAsyncWorkFinished() {
+        synchronized (mLock) {
+            Assert.isTrue(mAsyncWorkCount > 0);
+            mAsyncWorkCount--;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Called before an intent is queued to the service feeding this executor.
+     */
+    void onIntentQueued() {
+        synchronized (mLock) {
+            mQueuedIntentCount++;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Called when the service feeding this executor starts handling an intent.
+     */
+    void onIntentHandled() {
+        synchronized (mLock) {
+            // Intents redelivered after our process was restarted were never counted
+            if (mQueuedIntentCount > 0) {
+                mQueuedIntentCount--;
+            }
+        }
+    }
+
+    /**
+     * Called after queueing work handed over in process rather than through an intent to the
+     * service feeding this executor.
+     *
+     * @return true if the caller needs to queue an intent to the service, so that its job stays
+     *         alive until the work is done; false if a queued or running intent already does
+     */
+    boolean needsKeepAlive() {
+        synchronized (mLock) {
+            if (mKeepAliveQueued) {
+                return false;
+            }
+            mKeepAliveQueued = true;
+            return true;
+        }
+    }
+
+    /**
+     * Blocks until all queued work, and the asynchronous work it started, has finished, or the
+     * service feeding this executor has another intent to handle.
+     */
+    void awaitIdleOrQueuedIntent() {
+        synchronized (mLock) {
+            try {
+                while ((mUnfinishedWorkCount > 0 || mAsyncWorkCount > 0)
+                        && mQueuedIntentCount == 0) {
+                    try {
+                        mLock.wait();
+                    } catch (final InterruptedException e) {
+                        LogUtil.w(TAG, "ActionExecutor: interrupted waiting for work to finish");
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            } finally {
+                // Work queued from now on needs another intent to keep the service alive
+                mKeepAliveQueued = false;
+            }
+        }
+    }
+
+    private class Work implements Runnable, Comparable<Work> {
+        private final String mOrderingKey;
+        private final boolean mUserFacing;
+        private final long mSequence;
+        private final Runnable mRunnable;
+
+        Work(final String orderingKey, final boolean userFacing, final long sequence,
+                final Runnable runnable) {
+            mOrderingKey = orderingKey;
+            mUserFacing = userFacing;
+            mSequence = sequence;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mRunnable.run();
+            } finally {
+                onWorkFinished(this);
+            }
+        }
+
+        @Override
+        public int compareTo(final Work other) {
+            if (mUserFacing != other.mUserFacing) {
+                return mUserFacing ? -1 : 1;
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+}
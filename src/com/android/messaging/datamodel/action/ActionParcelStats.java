@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.os.Parcel;
+
+import androidx.collection.SimpleArrayMap;
+
+import java.io.PrintWriter;
+
+/**
+ * Counts, per action type, how often actions were parceled (and how many bytes that took)
+ * versus handed over between the action service and the background worker in process, which
+ * used to parcel the action on every hop.
+ */
+class ActionParcelStats {
+    private static class Counts {
+        long parcelCount;
+        long parcelBytes;
+        long inProcessCount;
+        // Size of the first action of this type handed over in process, measured only while
+        // none of its type has been parceled
+        int sampledBytes = -1;
+    }
+
+    private static final SimpleArrayMap<String, Counts> sCounts =
+            new SimpleArrayMap<String, Counts>();
+
+    private ActionParcelStats() {
+    }
+
+    private static Counts getCounts(final Action action) {
+        final String type = action.getClass().getSimpleName();
+        Counts counts = sCounts.get(type);
+        if (counts == null) {
+            counts = new Counts();
+            sCounts.put(type, counts);
+        }
+        return counts;
+    }
+
+    /**
+     * Record that an action was written to a parcel, as it was being written, so that measuring
+     * it doesn't parcel it again.
+     *
+     * @param bytes how many bytes the action took in the parcel
+     */
+    static void recordParceled(final Action action, final int bytes) {
+        synchronized (sCounts) {
+            final Counts counts = getCounts(action);
+            counts.parcelCount++;
+            counts.parcelBytes += bytes;
+        }
+    }
+
+    /**
+     * Record that an action (and its background work response, if any) was handed over in
+     * process, without being parceled.
+     */
+    static void recordInProcess(final Action action) {
+        final boolean needsSample;
+        synchronized (sCounts) {
+            final Counts counts = getCounts(action);
+            counts.inProcessCount++;
+            needsSample = counts.parcelCount == 0 && counts.sampledBytes < 0;
+            if (needsSample) {
+                counts.sampledBytes = 0;
+            }
+        }
+        if (needsSample) {
+            // Once per action type, so that bytes saved can be estimated for the many types that
+            // are never parceled any more
+            final Parcel parcel = Parcel.obtain();
+            final int bytes;
+            try {
+                parcel.writeString(action.actionKey);
+                parcel.writeBundle(action.actionParameters);
+                bytes = parcel.dataSize();
+            } finally {
+                parcel.recycle();
+            }
+            synchronized (sCounts) {
+                getCounts(action).sampledBytes = bytes;
+            }
+        }
+    }
+
+    static void dump(final PrintWriter writer) {
+        synchronized (sCounts) {
+            writer.println("Action parcel stats (type: parceled count/bytes, in process count,"
+                    + " bytes saved):");
+            long totalBytesSaved = 0;
+            for (int i = 0; i < sCounts.size(); i++) {
+                final Counts counts = sCounts.valueAt(i);
+                // Each in process handoff used to parcel the action once. Estimated from the
+                // average size of the same type of action when parceled, or from the sample
+                final long bytesSaved;
+                if (counts.parcelCount > 0) {
+                    bytesSaved = counts.inProcessCount * counts.parcelBytes / counts.parcelCount;
+                } else {
+                    bytesSaved = counts.inProcessCount * Math.max(counts.sampledBytes, 0);
+                }
+                totalBytesSaved += bytesSaved;
+                writer.println("  " + sCounts.keyAt(i) + ": " + counts.parcelCount + "/"
+                        + counts.parcelBytes + ", " + counts.inProcessCount + ", ~" + bytesSaved);
+            }
+            writer.println("  Total bytes saved: ~" + totalBytesSaved);
+        }
+    }
+}
@@ -32,6 +32,9 @@ import com.google.common.annotations.VisibleForTesting;
 
 import androidx.core.app.JobIntentService;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * ActionService used to perform background processing for data model
  */
@@ -44,21 +47,30 @@ public class ActionServiceImpl extends JobIntentService {
      */
     public static final int JOB_ID = 1000;
 
+    // Number of actions that can be processed concurrently, see Action#getOrderingKey
+    private static final int EXECUTOR_THREAD_COUNT = 4;
+
+    private static final ActionExecutor sExecutor =
+            new ActionExecutor("ActionService", EXECUTOR_THREAD_COUNT);
+
     public ActionServiceImpl() {
         super();
     }
 
     /**
-     * Start action by sending intent to the service
+     * Start action by handing it over to the service in process. The action itself is queued
+     * rather than a parceled copy of it.
      * @param action - action to start
      */
     protected static void startAction(final Action action) {
-        final Intent intent = makeIntent(OP_START_ACTION);
-        final Bundle actionBundle = new Bundle();
-        actionBundle.putParcelable(BUNDLE_ACTION, action);
-        intent.putExtra(EXTRA_ACTION_BUNDLE, actionBundle);
         action.markStart();
-        startServiceWithIntent(intent);
+        ActionParcelStats.recordInProcess(action);
+        executeInProcess(action, new Runnable() {
+            @Override
+            public void run() {
+                executeAction(action);
+            }
+        });
     }
 
     /**
@@ -72,6 +84,7 @@ public class ActionServiceImpl extends JobIntentService {
         final Intent intent = PendingActionReceiver.makeIntent(OP_START_ACTION);
         final Bundle actionBundle = new Bundle();
         actionBundle.putParcelable(BUNDLE_ACTION, action);
+        // Needs to survive our process dying before the alarm goes off, so is parceled
         intent.putExtra(EXTRA_ACTION_BUNDLE, actionBundle);
 
         PendingActionReceiver.scheduleAlarm(intent, requestCode, delayMs);
@@ -84,14 +97,13 @@ public class ActionServiceImpl extends JobIntentService {
      */
     protected static void handleResponseFromBackgroundWorker(final Action action,
             final Bundle response) {
-        final Intent intent = makeIntent(OP_RECEIVE_BACKGROUND_RESPONSE);
-
-        final Bundle actionBundle = new Bundle();
-        actionBundle.putParcelable(BUNDLE_ACTION, action);
-        intent.putExtra(EXTRA_ACTION_BUNDLE, actionBundle);
-        intent.putExtra(EXTRA_WORKER_RESPONSE, response);
-
-        startServiceWithIntent(intent);
+        ActionParcelStats.recordInProcess(action);
+        executeInProcess(action, new Runnable() {
+            @Override
+            public void run() {
+                processBackgroundResponse(action, response);
+            }
+        });
     }
 
     /**
@@ -100,23 +112,25 @@ public class ActionServiceImpl extends JobIntentService {
      */
     protected static void handleFailureFromBackgroundWorker(final Action action,
             final Exception exception) {
-        final Intent intent = makeIntent(OP_RECEIVE_BACKGROUND_FAILURE);
-
-        final Bundle actionBundle = new Bundle();
-        actionBundle.putParcelable(BUNDLE_ACTION, action);
-        intent.putExtra(EXTRA_ACTION_BUNDLE, actionBundle);
-        intent.putExtra(EXTRA_WORKER_EXCEPTION, exception);
-
-        startServiceWithIntent(intent);
+        ActionParcelStats.recordInProcess(action);
+        executeInProcess(action, new Runnable() {
+            @Override
+            public void run() {
+                processBackgroundFailure(action);
+            }
+        });
     }
 
     // ops
     @VisibleForTesting
     protected static final int OP_START_ACTION = 200;
+    // Only queued by older versions of the app, background work is now handed back in process
     @VisibleForTesting
     protected static final int OP_RECEIVE_BACKGROUND_RESPONSE = 201;
     @VisibleForTesting
     protected static final int OP_RECEIVE_BACKGROUND_FAILURE = 202;
+    @VisibleForTesting
+    protected static final int OP_KEEP_ALIVE = 203;
 
     // extras
     @VisibleForTesting
@@ -124,16 +138,12 @@ public class ActionServiceImpl extends JobIntentService {
     @VisibleForTesting
     protected static final String EXTRA_ACTION_BUNDLE = "datamodel_action_bundle";
     @VisibleForTesting
-    protected static final String EXTRA_WORKER_EXCEPTION = "worker_exception";
-    @VisibleForTesting
     protected static final String EXTRA_WORKER_RESPONSE = "worker_response";
     @VisibleForTesting
     protected static final String EXTRA_WORKER_UPDATE = "worker_update";
     @VisibleForTesting
     protected static final String BUNDLE_ACTION = "bundle_action";
 
-    private BackgroundWorker mBackgroundWorker;
-
     /**
      * Allocate an intent with a specific opcode.
      */
@@ -205,18 +215,14 @@ public class ActionServiceImpl extends JobIntentService {
                 PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
-    /**
-     * {@inheritDoc}
-     */
     @Override
-    public void onCreate() {
-        super.onCreate();
-        mBackgroundWorker = DataModel.get().getBackgroundWorkerForActionService();
+    public void onDestroy() {
+        super.onDestroy();
     }
 
     @Override
-    public void onDestroy() {
-        super.onDestroy();
+    protected void dump(final FileDescriptor fd, final PrintWriter writer, final String[] args) {
+        ActionParcelStats.dump(writer);
     }
 
     /**
@@ -226,6 +232,7 @@ public class ActionServiceImpl extends JobIntentService {
         final Context context = Factory.get().getApplicationContext();
         final int opcode = intent.getIntExtra(EXTRA_OP_CODE, 0);
         intent.setClass(context, ActionServiceImpl.class);
+        sExecutor.onIntentQueued();
         enqueueWork(context, intent);
     }
 
@@ -243,43 +250,96 @@ public class ActionServiceImpl extends JobIntentService {
             LogUtil.w(TAG, "ActionService.onHandleIntent: Called with null intent");
             return;
         }
+        sExecutor.onIntentHandled();
         final int opcode = intent.getIntExtra(EXTRA_OP_CODE, 0);
 
-        Action action;
-        final Bundle actionBundle = intent.getBundleExtra(EXTRA_ACTION_BUNDLE);
-        actionBundle.setClassLoader(getClassLoader());
         switch(opcode) {
             case OP_START_ACTION: {
-                action = (Action) actionBundle.getParcelable(BUNDLE_ACTION);
-                executeAction(action);
+                // Actions started from alarms and pending intents come parceled
+                final Action action = getParceledAction(intent);
+                execute(action, new Runnable() {
+                    @Override
+                    public void run() {
+                        executeAction(action);
+                    }
+                });
                 break;
             }
 
             case OP_RECEIVE_BACKGROUND_RESPONSE: {
-                action = (Action) actionBundle.getParcelable(BUNDLE_ACTION);
+                // Queued by an older version of the app before it was updated
+                final Action action = getParceledAction(intent);
                 final Bundle response = intent.getBundleExtra(EXTRA_WORKER_RESPONSE);
-                processBackgroundResponse(action, response);
+                execute(action, new Runnable() {
+                    @Override
+                    public void run() {
+                        processBackgroundResponse(action, response);
+                    }
+                });
                 break;
             }
 
             case OP_RECEIVE_BACKGROUND_FAILURE: {
-                action = (Action) actionBundle.getParcelable(BUNDLE_ACTION);
-                processBackgroundFailure(action);
+                // Queued by an older version of the app before it was updated
+                final Action action = getParceledAction(intent);
+                execute(action, new Runnable() {
+                    @Override
+                    public void run() {
+                        processBackgroundFailure(action);
+                    }
+                });
                 break;
             }
 
+            case OP_KEEP_ALIVE:
+                // The work was handed over in process
+                break;
+
             default:
                 throw new RuntimeException("Unrecognized opcode in ActionServiceImpl");
         }
 
-        action.sendBackgroundActions(mBackgroundWorker);
+        // Keep the job alive while actions are running, but hand over the next intent as soon as
+        // there is one so that it doesn't wait behind unrelated actions.
+        sExecutor.awaitIdleOrQueuedIntent();
+    }
+
+    private Action getParceledAction(final Intent intent) {
+        final Bundle actionBundle = intent.getBundleExtra(EXTRA_ACTION_BUNDLE);
+        actionBundle.setClassLoader(getClassLoader());
+        return (Action) actionBundle.getParcelable(BUNDLE_ACTION);
+    }
+
+    /**
+     * Queue action work on the executor, then send any background work it requested.
+     */
+    private static void execute(final Action action, final Runnable work) {
+        sExecutor.execute(action.getOrderingKey(), action.isUserFacing(), new Runnable() {
+            @Override
+            public void run() {
+                work.run();
+                action.sendBackgroundActions(
+                        DataModel.get().getBackgroundWorkerForActionService());
+            }
+        });
+    }
+
+    /**
+     * Queue action work handed over in process, making sure the service is running until it is
+     * done.
+     */
+    private static void executeInProcess(final Action action, final Runnable work) {
+        execute(action, work);
+        if (sExecutor.needsKeepAlive()) {
+            startServiceWithIntent(makeIntent(OP_KEEP_ALIVE));
+        }
     }
 
     private static final long EXECUTION_TIME_WARN_LIMIT_MS = 1000; // 1 second
     /**
-     * Local execution of action on ActionService thread
+     * Local execution of action on an ActionService executor thread
      */
-    private void executeAction(final Action action) {
+    private static void executeAction(final Action action) {
         action.markBeginExecute();
 
         final LoggingTimer timer = createLoggingTimer(action, "#executeAction");
@@ -293,9 +353,9 @@ public class ActionServiceImpl extends JobIntentService {
     }
 
     /**
-     * Process response on ActionService thread
+     * Process response on an ActionService executor thread
      */
-    private void processBackgroundResponse(final Action action, final Bundle response) {
+    private static void processBackgroundResponse(final Action action, final Bundle response) {
         final LoggingTimer timer = createLoggingTimer(action, "#processBackgroundResponse");
         timer.start();
 
@@ -305,9 +365,9 @@ public class ActionServiceImpl extends JobIntentService {
     }
 
     /**
-     * Process failure on ActionService thread
+     * Process failure on an ActionService executor thread
      */
-    private void processBackgroundFailure(final Action action) {
+    private static void processBackgroundFailure(final Action action) {
         final LoggingTimer timer = createLoggingTimer(action, "#processBackgroundFailure");
         timer.start();
 
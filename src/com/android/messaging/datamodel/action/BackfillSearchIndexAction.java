@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.android.messaging.datamodel.DataModel;
+import com.android.messaging.datamodel.MessageSearchIndex;
+import com.android.messaging.util.BuglePrefs;
+import com.android.messaging.util.BuglePrefsKeys;
+import com.android.messaging.util.LogUtil;
+
+/**
+ * Adds the messages stored before the search index existed to the index, newest first, one batch
+ * per background work request. Progress is saved after each batch, so that an interrupted
+ * backfill resumes where it stopped the next time the app starts.
+ */
+public class BackfillSearchIndexAction extends Action implements Parcelable {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    private static final int BATCH_SIZE = 500;
+
+    // Also used by ReindexSenderMessagesAction, which writes to the index too
+    static final String ORDERING_KEY = "search_index";
+
+    private static final String BUNDLE_KEY_MORE_TO_INDEX = "more_to_index";
+
+    /**
+     * Starts indexing the messages that aren't in the search index yet, if there are any.
+     */
+    public static void backfillIfNeeded() {
+        if (getBelowId() > 0) {
+            final BackfillSearchIndexAction action = new BackfillSearchIndexAction();
+            action.start();
+        }
+    }
+
+    private static long getBelowId() {
+        return BuglePrefs.getApplicationPrefs().getLong(
+                BuglePrefsKeys.SEARCH_INDEX_BACKFILL_BELOW_ID,
+                BuglePrefsKeys.SEARCH_INDEX_BACKFILL_BELOW_ID_DEFAULT);
+    }
+
+    private BackfillSearchIndexAction() {
+    }
+
+    @Override
+    protected String getOrderingKey() {
+        return ORDERING_KEY;
+    }
+
+    @Override
+    protected Object executeAction() {
+        requestBackgroundWork();
+        return null;
+    }
+
+    @Override
+    protected Bundle doBackgroundWork() {
+        final long belowId = getBelowId();
+        if (belowId <= 0) {
+            return null;
+        }
+        final long nextBelowId = MessageSearchIndex.indexMessagesBelow(
+                DataModel.get().getDatabase(), belowId, BATCH_SIZE);
+        BuglePrefs.getApplicationPrefs().putLong(
+                BuglePrefsKeys.SEARCH_INDEX_BACKFILL_BELOW_ID, nextBelowId);
+        if (nextBelowId <= 0) {
+            LogUtil.i(TAG, "BackfillSearchIndexAction: all messages indexed");
+        }
+
+        final Bundle response = new Bundle();
+        response.putBoolean(BUNDLE_KEY_MORE_TO_INDEX, nextBelowId > 0);
+        return response;
+    }
+
+    @Override
+    protected Object processBackgroundResponse(final Bundle response) {
+        if (response != null && response.getBoolean(BUNDLE_KEY_MORE_TO_INDEX)) {
+            requestBackgroundWork(new BackfillSearchIndexAction());
+        }
+        return null;
+    }
+
+    private BackfillSearchIndexAction(final Parcel in) {
+        super(in);
+    }
+
+    public static final Parcelable.Creator<BackfillSearchIndexAction> CREATOR
+            = new Parcelable.Creator<BackfillSearchIndexAction>() {
+        @Override
+        public BackfillSearchIndexAction createFromParcel(final Parcel in) {
+            return new BackfillSearchIndexAction(in);
+        }
+
+        @Override
+        public BackfillSearchIndexAction[] newArray(final int size) {
+            return new BackfillSearchIndexAction[size];
+        }
+    };
+
+    @Override
+    public void writeToParcel(final Parcel parcel, final int flags) {
+        writeActionToParcel(parcel, flags);
+    }
+}
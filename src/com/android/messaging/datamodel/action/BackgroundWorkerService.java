@@ -46,25 +46,50 @@ public class BackgroundWorkerService extends JobIntentService {
      */
     public static final int JOB_ID = 1001;
 
-    private final ActionService mHost;
+    // Number of actions whose background work can run concurrently
+    private static final int EXECUTOR_THREAD_COUNT = 3;
+
+    private static final ActionExecutor sExecutor =
+            new ActionExecutor("BackgroundWorker", EXECUTOR_THREAD_COUNT);
 
     public BackgroundWorkerService() {
         super();
-        mHost = DataModel.get().getActionService();
     }
 
     /**
-     * Queue a list of requests from action service to this worker
+     * Queue a list of requests from action service to this worker. The actions are handed over
+     * in process rather than parceled into intents.
      */
     public static void queueBackgroundWork(final List<Action> actions) {
         for (final Action action : actions) {
-            startServiceWithAction(action, 0);
+            ActionParcelStats.recordInProcess(action);
+            executeInProcess(action, 0);
         }
     }
 
+    /**
+     * Called by background work before it hands off to something completing asynchronously,
+     * e.g. an SMS waiting for its sent status, so that the service (and its wake lock) stays
+     * alive until {@link #onAsyncWorkFinished} is called. Must be called from the background work
+     * itself, while the service is still alive for it.
+     */
+    static void onAsyncWorkStarted() {
+        sExecutor.onAsyncWorkStarted();
+    }
+
+    /**
+     * Called once asynchronous work started with {@link #onAsyncWorkStarted} has completed. Safe
+     * to call from any thread, including synchronously from the background work that started it.
+     */
+    static void onAsyncWorkFinished() {
+        sExecutor.onAsyncWorkFinished();
+    }
+
     // ops
     @VisibleForTesting
     protected static final int OP_PROCESS_REQUEST = 400;
+    @VisibleForTesting
+    protected static final int OP_KEEP_ALIVE = 401;
 
     // extras
     @VisibleForTesting
@@ -75,14 +100,26 @@ public class BackgroundWorkerService extends JobIntentService {
     protected static final String EXTRA_ATTEMPT = "retry_attempt";
 
     /**
-     * Queue action intent to the BackgroundWorkerService.
+     * Queue background work for an action on the executor.
      */
-    private static void startServiceWithAction(final Action action,
-            final int retryCount) {
-        final Intent intent = new Intent();
-        intent.putExtra(EXTRA_ACTION, action);
-        intent.putExtra(EXTRA_ATTEMPT, retryCount);
-        startServiceWithIntent(OP_PROCESS_REQUEST, intent);
+    private static void execute(final Action action, final int attempt) {
+        sExecutor.execute(action.getOrderingKey(), action.isUserFacing(), new Runnable() {
+            @Override
+            public void run() {
+                doBackgroundWork(action, attempt);
+            }
+        });
+    }
+
+    /**
+     * Queue background work handed over in process, making sure the service is running until it
+     * is done.
+     */
+    private static void executeInProcess(final Action action, final int attempt) {
+        execute(action, attempt);
+        if (sExecutor.needsKeepAlive()) {
+            startServiceWithIntent(OP_KEEP_ALIVE, new Intent());
+        }
     }
 
     /**
@@ -94,6 +131,7 @@ public class BackgroundWorkerService extends JobIntentService {
         intent.setClass(context, BackgroundWorkerService.class);
         intent.putExtra(EXTRA_OP_CODE, opcode);
 
+        sExecutor.onIntentQueued();
         enqueueWork(context, intent);
     }
 
@@ -108,26 +146,36 @@ public class BackgroundWorkerService extends JobIntentService {
             LogUtil.w(TAG, "BackgroundWorkerService.onHandleIntent: Called with null intent");
             return;
         }
+        sExecutor.onIntentHandled();
         final int opcode = intent.getIntExtra(EXTRA_OP_CODE, 0);
 
         switch(opcode) {
             case OP_PROCESS_REQUEST: {
+                // Requests queued by an older version of the app before it was updated
                 final Action action = intent.getParcelableExtra(EXTRA_ACTION);
                 final int attempt = intent.getIntExtra(EXTRA_ATTEMPT, -1);
-                doBackgroundWork(action, attempt);
+                execute(action, attempt);
                 break;
             }
 
+            case OP_KEEP_ALIVE:
+                // The work was handed over in process
+                break;
+
             default:
                 LogUtil.w(TAG, "Unrecognized opcode in BackgroundWorkerService " + opcode);
                 throw new RuntimeException("Unrecognized opcode in BackgroundWorkerService");
         }
+
+        // Keep the job alive while background work is running, but hand over the next intent as
+        // soon as there is one.
+        sExecutor.awaitIdleOrQueuedIntent();
     }
 
     /**
-     * Local execution of background work for action on ActionService thread
+     * Local execution of background work for action on a BackgroundWorker executor thread
      */
-    private void doBackgroundWork(final Action action, final int attempt) {
+    private static void doBackgroundWork(final Action action, final int attempt) {
         action.markBackgroundWorkStarting();
         Bundle response = null;
         try {
@@ -139,7 +187,8 @@ public class BackgroundWorkerService extends JobIntentService {
 
             timer.stopAndLog();
             action.markBackgroundCompletionQueued();
-            mHost.handleResponseFromBackgroundWorker(action, response);
+            DataModel.get().getActionService()
+                    .handleResponseFromBackgroundWorker(action, response);
         } catch (final Exception exception) {
             final boolean retry = false;
             LogUtil.e(TAG, "Error in background worker", exception);
@@ -150,10 +199,11 @@ public class BackgroundWorkerService extends JobIntentService {
             }
             if (retry) {
                 action.markBackgroundWorkQueued();
-                startServiceWithAction(action, attempt + 1);
+                executeInProcess(action, attempt + 1);
             } else {
                 action.markBackgroundCompletionQueued();
-                mHost.handleFailureFromBackgroundWorker(action, exception);
+                DataModel.get().getActionService()
+                        .handleFailureFromBackgroundWorker(action, exception);
             }
         }
     }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.android.messaging.Factory;
+import com.android.messaging.datamodel.DataModel;
+import com.android.messaging.datamodel.DatabaseHelper;
+import com.android.messaging.util.LogUtil;
+
+import java.io.File;
+
+/**
+ * Copies the database's write-ahead log back into the database once large writes (a sync,
+ * deleting conversations) have grown it. SQLite already does this for every ~4MB of changes, but
+ * without shrinking the log file, and readers slow down as the log they have to look through
+ * gets longer.
+ */
+public class CheckpointDatabaseAction extends Action implements Parcelable {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    // Past this size, the log holds more than SQLite's automatic checkpoints leave behind
+    private static final long CHECKPOINT_LOG_SIZE_BYTES = 4 * 1024 * 1024;
+    private static final String WAL_FILE_SUFFIX = "-wal";
+
+    private static final String ORDERING_KEY = "checkpoint";
+
+    /**
+     * Checkpoints the database in the background if its write-ahead log has grown large.
+     */
+    public static void checkpointIfNeeded() {
+        final File log = Factory.get().getApplicationContext().getDatabasePath(
+                DatabaseHelper.DATABASE_NAME + WAL_FILE_SUFFIX);
+        if (log.length() >= CHECKPOINT_LOG_SIZE_BYTES) {
+            final CheckpointDatabaseAction action = new CheckpointDatabaseAction();
+            action.start();
+        }
+    }
+
+    private CheckpointDatabaseAction() {
+    }
+
+    @Override
+    protected String getOrderingKey() {
+        // Waits for the writer anyway, no need to also wait for unrelated actions
+        return ORDERING_KEY;
+    }
+
+    @Override
+    protected Object executeAction() {
+        if (!DataModel.get().getDatabase().checkpoint()) {
+            // Readers were still using older changes, we'll try again after the next large write
+            LogUtil.w(TAG, "CheckpointDatabaseAction: could not checkpoint the whole log");
+        }
+        return null;
+    }
+
+    private CheckpointDatabaseAction(final Parcel in) {
+        super(in);
+    }
+
+    public static final Parcelable.Creator<CheckpointDatabaseAction> CREATOR
+            = new Parcelable.Creator<CheckpointDatabaseAction>() {
+        @Override
+        public CheckpointDatabaseAction createFromParcel(final Parcel in) {
+            return new CheckpointDatabaseAction(in);
+        }
+
+        @Override
+        public CheckpointDatabaseAction[] newArray(final int size) {
+            return new CheckpointDatabaseAction[size];
+        }
+    };
+
+    @Override
+    public void writeToParcel(final Parcel parcel, final int flags) {
+        writeActionToParcel(parcel, flags);
+    }
+}
@@ -147,10 +147,14 @@ public class DeleteConversationAction extends Action implements Parcelable {
             BugleActionToasts.onConversationsDeleted(successCount);
         }
 
-        // Remove notifications if necessary
+        // Remove notifications if necessary. Messages newer than the cutoff are kept, and are
+        // notified again once the notification state is reloaded.
         BugleNotifications.update(null /* conversationId */,
                 BugleNotifications.UPDATE_MESSAGES);
 
+        if (successCount > 0) {
+            CheckpointDatabaseAction.checkpointIfNeeded();
+        }
         return null;
     }
 
@@ -25,6 +25,7 @@ import android.text.TextUtils;
 import com.android.messaging.datamodel.BugleDatabaseOperations;
 import com.android.messaging.datamodel.DataModel;
 import com.android.messaging.datamodel.DatabaseWrapper;
+import com.android.messaging.datamodel.MessageNotificationState;
 import com.android.messaging.datamodel.MessagingContentProvider;
 import com.android.messaging.datamodel.data.MessageData;
 import com.android.messaging.sms.MmsUtils;
@@ -78,6 +79,8 @@ public class DeleteMessageAction extends Action implements Parcelable {
                 MessagingContentProvider.notifyMessagesChanged(message.getConversationId());
                 // We may have changed the conversation list
                 MessagingContentProvider.notifyConversationListChanged();
+                // Stop notifying the message if it was unseen
+                MessageNotificationState.reloadConversation(message.getConversationId());
 
                 final Uri messageUri = message.getSmsMessageUri();
                 if (messageUri != null) {
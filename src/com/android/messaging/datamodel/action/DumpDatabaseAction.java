@@ -21,6 +21,7 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import com.android.messaging.Factory;
+import com.android.messaging.datamodel.DataModel;
 import com.android.messaging.datamodel.DatabaseHelper;
 import com.android.messaging.util.DebugUtils;
 import com.android.messaging.util.LogUtil;
@@ -55,6 +56,9 @@ public class DumpDatabaseAction extends Action implements Parcelable {
         BufferedOutputStream bos = null;
         BufferedInputStream bis = null;
 
+        // Changes still in the write-ahead log wouldn't be in the copy
+        DataModel.get().getDatabase().checkpoint();
+
         long originalSize = 0;
         final File inFile = context.getDatabasePath(dbName);
         if (inFile.exists() && inFile.isFile()) {
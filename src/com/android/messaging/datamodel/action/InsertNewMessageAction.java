@@ -455,6 +455,12 @@ public class InsertNewMessageAction extends Action implements Parcelable {
         return message;
     }
 
+    // Keeps the default ordering key, so it still runs after the draft writes queued before it
+    @Override
+    protected boolean isUserFacing() {
+        return true;
+    }
+
     private InsertNewMessageAction(final Parcel in) {
         super(in);
     }
@@ -26,6 +26,7 @@ import com.android.messaging.datamodel.DataModel;
 import com.android.messaging.datamodel.DatabaseHelper;
 import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
 import com.android.messaging.datamodel.DatabaseWrapper;
+import com.android.messaging.datamodel.MessageNotificationState;
 import com.android.messaging.datamodel.MessagingContentProvider;
 import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.util.LogUtil;
@@ -87,6 +88,7 @@ public class MarkAsReadAction extends Action implements Parcelable {
         } finally {
             db.endTransaction();
         }
+        MessageNotificationState.removeConversation(conversationId);
 
         // After marking messages as read, update the notifications. This will
         // clear the now stale notifications.
@@ -97,6 +99,16 @@ public class MarkAsReadAction extends Action implements Parcelable {
         return null;
     }
 
+    @Override
+    protected String getOrderingKey() {
+        return getConversationOrderingKey(actionParameters.getString(KEY_CONVERSATION_ID));
+    }
+
+    @Override
+    protected boolean isUserFacing() {
+        return true;
+    }
+
     private MarkAsReadAction(final Parcel in) {
         super(in);
     }
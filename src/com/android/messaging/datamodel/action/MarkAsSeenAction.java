@@ -26,6 +26,7 @@ import com.android.messaging.datamodel.DataModel;
 import com.android.messaging.datamodel.DatabaseHelper;
 import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
 import com.android.messaging.datamodel.DatabaseWrapper;
+import com.android.messaging.datamodel.MessageNotificationState;
 import com.android.messaging.datamodel.MessagingContentProvider;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.LogUtil;
@@ -98,6 +99,8 @@ public class MarkAsSeenAction extends Action implements Parcelable {
         } finally {
             db.endTransaction();
         }
+        MessageNotificationState.removeConversation(
+                hasSpecificConversation ? conversationId : null);
         // After marking messages as seen, update the notifications. This will
         // clear the now stale notifications.
         BugleNotifications.cancel(PendingIntentConstants.SMS_NOTIFICATION_ID, conversationId);
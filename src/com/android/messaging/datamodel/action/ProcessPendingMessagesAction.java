@@ -40,11 +40,16 @@ import com.android.messaging.util.ConnectivityUtil.ConnectivityListener;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.PhoneUtils;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+
 /**
  * Action used to lookup any messages in the pending send/download state and either fail them or
- * retry their action based on subscriptions. This action only initiates one retry at a time for
- * both sending/downloading. Further retries should be triggered by successful sending/downloading
- * of a message, network status change or exponential backoff timer.
+ * retry their action based on subscriptions. This action keeps up to
+ * {@link BugleGservicesKeys#MAX_MESSAGES_SENDING_PER_SUBSCRIPTION} messages sending at once, no
+ * more than one per conversation, and only initiates one download at a time. Further retries
+ * should be triggered by successful sending/downloading of a message, network status change or
+ * exponential backoff timer.
  */
 public class ProcessPendingMessagesAction extends Action implements Parcelable {
     private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
@@ -105,7 +110,10 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
             scheduleAlarm = true;
             LogUtil.w(TAG, "ProcessPendingMessagesAction: Action failed to queue; retrying");
         }
-        if (getHavePendingMessages(subId) || scheduleAlarm) {
+        // Messages still sending schedule more work once they are sent, failed or timed out, but
+        // a retry is registered anyway so that the queue can't stall
+        final boolean haveSendingMessages = failed && getHaveSendingMessages(subId);
+        if (getHavePendingMessages(subId) || scheduleAlarm || haveSendingMessages) {
             // Still have a pending message that needs to be queued for processing
             final ConnectivityListener listener = new ConnectivityListener() {
                 @Override
@@ -126,8 +134,10 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
                     }
                 }
             };
-            // Read and increment attempt number from shared prefs
-            final int retryAttempt = getNextRetry(subId);
+            // Read and increment attempt number from shared prefs. With messages still sending
+            // it's left alone, so that it only goes up once for all the messages failing
+            // together, e.g. in airplane mode
+            final int retryAttempt = haveSendingMessages ? getRetry(subId) : getNextRetry(subId);
             register(listener, retryAttempt, subId);
         } else {
             // No more pending messages (presumably the message that failed has expired) or it
@@ -194,6 +204,11 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
         prefs.putInt(BuglePrefsKeys.PROCESS_PENDING_MESSAGES_RETRY_COUNT, retryAttempt);
     }
 
+    private static int getRetry(final int subId) {
+        final BuglePrefs prefs = Factory.get().getSubscriptionPrefs(subId);
+        return Math.max(1, prefs.getInt(BuglePrefsKeys.PROCESS_PENDING_MESSAGES_RETRY_COUNT, 0));
+    }
+
     private static int getNextRetry(int subId) {
         final BuglePrefs prefs = Factory.get().getSubscriptionPrefs(subId);
         final int retryAttempt =
@@ -221,8 +236,8 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
             return false;
         }
 
-        final String toSendMessageId = findNextMessageToSend(db, now, selfId);
-        if (toSendMessageId != null) {
+        final ArrayList<String> toSendMessageIds = findMessagesToSend(db, now, selfId);
+        if (!toSendMessageIds.isEmpty()) {
             return true;
         } else {
             final String toDownloadMessageId = findNextMessageToDownload(db, now, selfId);
@@ -235,6 +250,28 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
         return false;
     }
 
+    /**
+     * Read from the DB and determine if there are any messages sending for the subscription
+     *
+     * @param subId the subId
+     * @return true if we have sending messages
+     */
+    private static boolean getHaveSendingMessages(final int subId) {
+        final DatabaseWrapper db = DataModel.get().getDatabase();
+        final String selfId = ParticipantData.getParticipantId(db, subId);
+        if (selfId == null) {
+            return false;
+        }
+        return db.queryNumEntries(DatabaseHelper.MESSAGES_TABLE,
+                DatabaseHelper.MessageColumns.STATUS + " IN (?, ?) AND "
+                + DatabaseHelper.MessageColumns.SELF_PARTICIPANT_ID + " =? ",
+                new String[] {
+                    Integer.toString(MessageData.BUGLE_STATUS_OUTGOING_SENDING),
+                    Integer.toString(MessageData.BUGLE_STATUS_OUTGOING_RESENDING),
+                    selfId}
+                ) > 0;
+    }
+
     /**
      * Queue any pending actions
      *
@@ -257,12 +294,14 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
             return false;
         }
 
-        // Will queue no more than one message to send plus one message to download
-        // This keeps outgoing messages "in order" but allow downloads to happen even if sending
-        // gets blocked until messages time out. Manual resend bumps messages to head of queue.
-        final String toSendMessageId = findNextMessageToSend(db, now, selfId);
+        // Will queue messages to send up to the sending window, no more than one per
+        // conversation, plus one message to download.
+        // This keeps outgoing messages of a conversation "in order" but allow other conversations
+        // and downloads to go ahead even if a conversation gets blocked until its messages time
+        // out. Manual resend bumps messages to head of queue.
+        final ArrayList<String> toSendMessageIds = findMessagesToSend(db, now, selfId);
         final String toDownloadMessageId = findNextMessageToDownload(db, now, selfId);
-        if (toSendMessageId != null) {
+        for (final String toSendMessageId : toSendMessageIds) {
             LogUtil.i(TAG, "ProcessPendingMessagesAction: Queueing message " + toSendMessageId
                     + " for sending");
             // This could queue nothing
@@ -283,7 +322,7 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
                 succeeded = false;
             }
         }
-        if (toSendMessageId == null && toDownloadMessageId == null) {
+        if (toSendMessageIds.isEmpty() && toDownloadMessageId == null) {
             LogUtil.i(TAG, "ProcessPendingMessagesAction: No messages to send or download");
         }
         return succeeded;
@@ -311,24 +350,38 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
         return null;
     }
 
-    private static String findNextMessageToSend(final DatabaseWrapper db, final long now,
-            final String selfId) {
-        String toSendMessageId = null;
+    private static ArrayList<String> findMessagesToSend(final DatabaseWrapper db,
+            final long now, final String selfId) {
+        final ArrayList<String> toSendMessageIds = new ArrayList<String>();
+        final int maxSendingCnt = Math.max(1, BugleGservices.get().getInt(
+                BugleGservicesKeys.MAX_MESSAGES_SENDING_PER_SUBSCRIPTION,
+                BugleGservicesKeys.MAX_MESSAGES_SENDING_PER_SUBSCRIPTION_DEFAULT));
+        // Conversations which already have a message sending or about to be sent, whose other
+        // messages have to wait for it
+        final HashSet<String> busyConversationIds = new HashSet<String>();
         Cursor cursor = null;
         int sendingCnt = 0;
         int pendingCnt = 0;
         int failedCnt = 0;
         db.beginTransaction();
         try {
-            // First check to see if we have any messages already sending
-            sendingCnt = (int) db.queryNumEntries(DatabaseHelper.MESSAGES_TABLE,
+            // First check to see which conversations have messages already sending
+            cursor = db.query(DatabaseHelper.MESSAGES_TABLE,
+                    new String[] { DatabaseHelper.MessageColumns.CONVERSATION_ID },
                     DatabaseHelper.MessageColumns.STATUS + " IN (?, ?) AND "
                     + DatabaseHelper.MessageColumns.SELF_PARTICIPANT_ID + " =? ",
                     new String[] {
                         Integer.toString(MessageData.BUGLE_STATUS_OUTGOING_SENDING),
                         Integer.toString(MessageData.BUGLE_STATUS_OUTGOING_RESENDING),
-                        selfId}
-                    );
+                        selfId},
+                    null,
+                    null,
+                    null);
+            sendingCnt = cursor.getCount();
+            while (cursor.moveToNext()) {
+                busyConversationIds.add(cursor.getString(0));
+            }
+            cursor.close();
 
             // Look for messages we could send
             cursor = db.query(DatabaseHelper.MESSAGES_TABLE,
@@ -368,13 +421,12 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
                     // Mark message as failed
                     BugleDatabaseOperations.updateMessageRow(db, message.getMessageId(), values);
                     MessagingContentProvider.notifyMessagesChanged(message.getConversationId());
-                } else {
-                    // If no messages currently sending
-                    if (sendingCnt == 0) {
-                        // Send this message
-                        toSendMessageId = message.getMessageId();
-                    }
+                } else if (sendingCnt + toSendMessageIds.size() >= maxSendingCnt) {
+                    // No room left to send this message
                     break;
+                } else if (busyConversationIds.add(message.getConversationId())) {
+                    // Send this message, the oldest one of its conversation
+                    toSendMessageIds.add(message.getMessageId());
                 }
             }
             db.setTransactionSuccessful();
@@ -389,10 +441,11 @@ public class ProcessPendingMessagesAction extends Action implements Parcelable {
             LogUtil.d(TAG, "ProcessPendingMessagesAction: "
                     + sendingCnt + " messages already sending, "
                     + pendingCnt + " messages to send, "
-                    + failedCnt + " failed messages");
+                    + failedCnt + " failed messages, "
+                    + toSendMessageIds.size() + " messages starting to send");
         }
 
-        return toSendMessageId;
+        return toSendMessageIds;
     }
 
     private static String findNextMessageToDownload(final DatabaseWrapper db, final long now,
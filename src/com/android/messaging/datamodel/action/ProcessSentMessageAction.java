@@ -96,6 +96,11 @@ public class ProcessSentMessageAction extends Action {
         action.start();
     }
 
+    /**
+     * Process the result of a message sent by us rather than the platform. Only starts an action,
+     * so it's safe to call from any thread, including the main thread and the thread that
+     * attempted the sending.
+     */
     public static void processMessageSentFastFailed(final String messageId,
             final Uri messageUri, final Uri updatedMessageUri, final int subId, final boolean isSms,
             final int status, final int rawStatus, final int resultCode) {
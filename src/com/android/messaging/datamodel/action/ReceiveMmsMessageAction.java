@@ -29,6 +29,7 @@ import com.android.messaging.datamodel.DataModelException;
 import com.android.messaging.datamodel.DatabaseWrapper;
 import com.android.messaging.datamodel.MessagingContentProvider;
 import com.android.messaging.datamodel.SyncManager;
+import com.android.messaging.datamodel.SyncManager.ThreadInfoCache;
 import com.android.messaging.datamodel.data.MessageData;
 import com.android.messaging.datamodel.data.ParticipantData;
 import com.android.messaging.mmslib.pdu.PduHeaders;
@@ -78,7 +79,8 @@ public class ReceiveMmsMessageAction extends Action implements Parcelable {
                 context, pushData, self.getSubId(), self.getNormalizedDestination());
 
         if (mms != null) {
-            final List<String> recipients = MmsUtils.getRecipientsByThread(mms.mThreadId);
+            final ThreadInfoCache threadInfoCache = syncManager.getThreadInfoCache();
+            final List<String> recipients = threadInfoCache.getThreadRecipients(mms.mThreadId);
             String from = MmsUtils.getMmsSender(recipients, mms.getUri());
             if (from == null) {
                 LogUtil.w(TAG, "Received an MMS without sender address; using unknown sender.");
@@ -90,7 +92,7 @@ public class ReceiveMmsMessageAction extends Action implements Parcelable {
                     db, rawSender.getNormalizedDestination());
             final boolean autoDownload = (!blocked && MmsUtils.allowMmsAutoRetrieve(subId));
             final String conversationId =
-                    BugleDatabaseOperations.getOrCreateConversationFromThreadId(db, mms.mThreadId,
+                    threadInfoCache.getOrCreateConversationFromThreadId(db, mms.mThreadId,
                             blocked, subId);
 
             final boolean messageInFocusedConversation =
@@ -172,6 +174,16 @@ public class ReceiveMmsMessageAction extends Action implements Parcelable {
         return null;
     }
 
+    @Override
+    protected String getOrderingKey() {
+        return RECEIVE_ORDERING_KEY;
+    }
+
+    @Override
+    protected boolean isUserFacing() {
+        return true;
+    }
+
     private ReceiveMmsMessageAction(final Parcel in) {
         super(in);
     }
@@ -86,7 +86,7 @@ public class ReceiveSmsMessageAction extends Action implements Parcelable {
         messageValues.put(Sms.THREAD_ID, threadId);
         final boolean blocked = BugleDatabaseOperations.isBlockedDestination(
                 db, rawSender.getNormalizedDestination());
-        final String conversationId = BugleDatabaseOperations.
+        final String conversationId = syncManager.getThreadInfoCache().
                 getOrCreateConversationFromRecipient(db, threadId, blocked, rawSender);
 
         final boolean messageInFocusedConversation =
@@ -181,6 +181,16 @@ public class ReceiveSmsMessageAction extends Action implements Parcelable {
         return message;
     }
 
+    @Override
+    protected String getOrderingKey() {
+        return RECEIVE_ORDERING_KEY;
+    }
+
+    @Override
+    protected boolean isUserFacing() {
+        return true;
+    }
+
     private ReceiveSmsMessageAction(final Parcel in) {
         super(in);
     }
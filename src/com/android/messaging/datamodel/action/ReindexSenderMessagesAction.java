@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.messaging.datamodel.action;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.android.messaging.datamodel.DataModel;
+import com.android.messaging.datamodel.MessageSearchIndex;
+
+import java.util.ArrayList;
+
+/**
+ * Indexes again the messages sent by participants whose name or destination changed, in the
+ * background rather than in the transaction updating the participants, since a sender may have
+ * sent many messages.
+ */
+public class ReindexSenderMessagesAction extends Action implements Parcelable {
+    private static final String KEY_PARTICIPANT_IDS = "participant_ids";
+
+    /**
+     * Starts indexing again the messages sent by the given participants.
+     */
+    public static void reindexSenderMessages(final ArrayList<String> participantIds) {
+        final ReindexSenderMessagesAction action = new ReindexSenderMessagesAction();
+        action.actionParameters.putStringArrayList(KEY_PARTICIPANT_IDS, participantIds);
+        action.start();
+    }
+
+    private ReindexSenderMessagesAction() {
+    }
+
+    @Override
+    protected String getOrderingKey() {
+        return BackfillSearchIndexAction.ORDERING_KEY;
+    }
+
+    @Override
+    protected Object executeAction() {
+        requestBackgroundWork();
+        return null;
+    }
+
+    @Override
+    protected Bundle doBackgroundWork() {
+        MessageSearchIndex.reindexMessagesFromSenders(DataModel.get().getDatabase(),
+                actionParameters.getStringArrayList(KEY_PARTICIPANT_IDS));
+        return null;
+    }
+
+    private ReindexSenderMessagesAction(final Parcel in) {
+        super(in);
+    }
+
+    public static final Parcelable.Creator<ReindexSenderMessagesAction> CREATOR
+            = new Parcelable.Creator<ReindexSenderMessagesAction>() {
+        @Override
+        public ReindexSenderMessagesAction createFromParcel(final Parcel in) {
+            return new ReindexSenderMessagesAction(in);
+        }
+
+        @Override
+        public ReindexSenderMessagesAction[] newArray(final int size) {
+            return new ReindexSenderMessagesAction[size];
+        }
+    };
+
+    @Override
+    public void writeToParcel(final Parcel parcel, final int flags) {
+        writeActionToParcel(parcel, flags);
+    }
+}
@@ -210,9 +210,27 @@ public class SendMessageAction extends Action implements Parcelable {
             final String messageText = message.getMessageText();
             final String smsServiceCenter = actionParameters.getString(KEY_SMS_SERVICE_CENTER);
             final boolean deliveryReportRequired = MmsUtils.isDeliveryReportRequired(subId);
-
-            status = MmsUtils.sendSmsMessage(recipient, messageText, messageUri, subId,
-                    smsServiceCenter, deliveryReportRequired);
+            final Uri smsMessageUri = messageUri;
+
+            // Async send, the worker thread isn't held until the sent status comes back, but the
+            // worker service is kept alive until then
+            BackgroundWorkerService.onAsyncWorkStarted();
+            MmsUtils.sendSmsMessage(recipient, messageText, messageUri, subId,
+                    smsServiceCenter, deliveryReportRequired, new MmsUtils.SmsSendCallback() {
+                        @Override
+                        public void onSmsSendCompleted(final int smsStatus) {
+                            // May run on any thread, see SmsSendCallback. Both calls below only
+                            // hand off to the action executors, which are thread safe.
+                            // Also schedules the next pending messages
+                            ProcessSentMessageAction.processMessageSentFastFailed(messageId,
+                                    smsMessageUri, null /* updatedMessageUri */, subId,
+                                    true /* isSms */, smsStatus,
+                                    MessageData.RAW_TELEPHONY_STATUS_UNDEFINED,
+                                    MessageData.UNKNOWN_RESULT_CODE);
+                            BackgroundWorkerService.onAsyncWorkFinished();
+                        }
+                    });
+            return null;
         } else {
             final Context context = Factory.get().getApplicationContext();
             final ArrayList<String> recipients =
@@ -428,6 +446,19 @@ public class SendMessageAction extends Action implements Parcelable {
         return updatedTelephony;
     }
 
+    @Override
+    protected String getOrderingKey() {
+        // Sends within a conversation stay in order, sends to other conversations needn't wait
+        final MessageData message = actionParameters.getParcelable(KEY_MESSAGE);
+        return (message != null) ? getConversationOrderingKey(message.getConversationId())
+                : DEFAULT_ORDERING_KEY;
+    }
+
+    @Override
+    protected boolean isUserFacing() {
+        return true;
+    }
+
     private SendMessageAction(final Parcel in) {
         super(in);
     }
@@ -40,6 +40,7 @@ import com.android.messaging.sms.DatabaseMessages.SmsMessage;
 import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.LogUtil;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Sets;
 
 import java.util.ArrayList;
@@ -65,15 +66,9 @@ class SyncCursorPair {
     private final String mRemoteMmsSelection;
 
     /**
-     * Check if SMS has been synchronized. We compare the counts of messages on both
+     * Check if SMS has been synchronized. We compare the digests of messages on both
      * sides and return true if they are equal.
      *
-     * Note that this may not be the most reliable way to tell if messages are in sync.
-     * For example, the local misses one message and has one obsolete message.
-     * However, we have background sms sync once a while, also some other events might
-     * trigger a full sync. So we will eventually catch up. And this should be rare to
-     * happen.
-     *
      * @return If sms is in sync with telephony sms/mms providers
      */
     static boolean allSynchronized(final DatabaseWrapper db) {
@@ -150,7 +145,7 @@ class SyncCursorPair {
             final int maxMessagesToUpdate, final ArrayList<SmsMessage> smsToAdd,
             final LongSparseArray<MmsMessage> mmsToAdd,
             final ArrayList<LocalDatabaseMessage> messagesToDelete,
-            final SyncManager.ThreadInfoCache threadInfoCache) {
+            final SyncManager.ThreadInfoCache threadInfoCache, final SyncMmsLoader mmsLoader) {
         // Set of local messages matched with the timestamp of a remote message
         final Set<DatabaseMessage> matchedLocalMessages = Sets.newHashSet();
         // Set of remote messages matched with the timestamp of a local message
@@ -188,7 +183,8 @@ class SyncCursorPair {
                             < remoteMessage.getTimestampInMillis())) {
                 // Found a remote message that is not in local db
                 // Add the remote message
-                saveMessageToAdd(smsToAdd, mmsToAdd, remoteMessage, threadInfoCache);
+                saveMessageToAdd(smsToAdd, mmsToAdd, remoteMessage, threadInfoCache,
+                        mmsLoader);
                 lastTimestampMillis = Math.min(lastTimestampMillis,
                         remoteMessage.getTimestampInMillis());
                 // Advance to next remote message
@@ -219,7 +215,8 @@ class SyncCursorPair {
                         // Delete local message
                         messagesToDelete.add((LocalDatabaseMessage) localMessage);
                         // Add remote message
-                        saveMessageToAdd(smsToAdd, mmsToAdd, remoteMessage, threadInfoCache);
+                        saveMessageToAdd(smsToAdd, mmsToAdd, remoteMessage, threadInfoCache,
+                                mmsLoader);
                     }
                     // Get next local and remote messages
                     localMessage = localMessagePeek;
@@ -265,7 +262,7 @@ class SyncCursorPair {
                     // Add messages remote only
                     for (final DatabaseMessage msg : Sets.difference(
                             matchedRemoteMessages, matchedLocalMessages)) {
-                        saveMessageToAdd(smsToAdd, mmsToAdd, msg, threadInfoCache);
+                        saveMessageToAdd(smsToAdd, mmsToAdd, msg, threadInfoCache, mmsLoader);
                     }
                 }
             }
@@ -598,49 +595,31 @@ class SyncCursorPair {
         return queryBuilder.toString();
     }
 
-    private static final String[] COUNT_PROJECTION = new String[] { "count()" };
-
-    private static int getCountFromCursor(final Cursor cursor) {
-        if (cursor != null && cursor.moveToFirst()) {
-            return cursor.getInt(0);
-        }
-        // We should only return a number if we were able to read it from the cursor.
-        // Otherwise, we throw an exception to cancel the sync.
-        String cursorDesc = "";
-        if (cursor == null) {
-            cursorDesc = "null";
-        } else if (cursor.getCount() == 0) {
-            cursorDesc = "empty";
-        }
-        throw new IllegalArgumentException("Cannot get count from " + cursorDesc + " cursor");
-    }
-
     private void saveMessageToAdd(final List<SmsMessage> smsToAdd,
             final LongSparseArray<MmsMessage> mmsToAdd, final DatabaseMessage message,
-            final ThreadInfoCache threadInfoCache) {
-        long threadId;
+            final ThreadInfoCache threadInfoCache, final SyncMmsLoader mmsLoader) {
         if (message.getProtocol() == MessageData.PROTOCOL_MMS) {
             final MmsMessage mms = (MmsMessage) message;
             mmsToAdd.append(mms.getId(), mms);
-            threadId = mms.mThreadId;
+            // Cache the lookup and canonicalization of the phone number outside of the
+            // transaction, and before the loader needs it to find the sender...
+            threadInfoCache.getThreadRecipients(mms.mThreadId);
+            mmsLoader.add(mms);
         } else {
             final SmsMessage sms = (SmsMessage) message;
             smsToAdd.add(sms);
-            threadId = sms.mThreadId;
+            // Cache the lookup and canonicalization of the phone number outside of the
+            // transaction...
+            threadInfoCache.getThreadRecipients(sms.mThreadId);
         }
-        // Cache the lookup and canonicalization of the phone number outside of the transaction...
-        threadInfoCache.getThreadRecipients(threadId);
     }
 
     /**
-     * Check if SMS has been synchronized. We compare the counts of messages on both
+     * Check if SMS has been synchronized. We compare the digests of messages on both
      * sides and return true if they are equal.
      *
-     * Note that this may not be the most reliable way to tell if messages are in sync.
-     * For example, the local misses one message and has one obsolete message.
-     * However, we have background sms sync once a while, also some other events might
-     * trigger a full sync. So we will eventually catch up. And this should be rare to
-     * happen.
+     * The digests cover the timestamp, uri and type of each message, so unlike comparing
+     * counts this also catches the local missing one message and having one obsolete message.
      *
      * @return If sms is in sync with telephony sms/mms providers
      */
@@ -648,58 +627,293 @@ class SyncCursorPair {
             final String[] localSelectionArgs, final String smsSelection,
             final String[] smsSelectionArgs, final String mmsSelection,
             final String[] mmsSelectionArgs) {
-        final Context context = Factory.get().getApplicationContext();
-        Cursor localCursor = null;
-        Cursor remoteSmsCursor = null;
-        Cursor remoteMmsCursor = null;
         try {
-            localCursor = db.query(
+            final RangeDigest localDigest = queryLocalDigest(db, localSelection,
+                    localSelectionArgs);
+            final RangeDigest remoteDigest = queryRemoteDigest(smsSelection, smsSelectionArgs,
+                    mmsSelection, mmsSelectionArgs);
+            final boolean isInSync = localDigest.matches(remoteDigest);
+            if (isInSync) {
+                if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                    LogUtil.d(TAG, "SyncCursorPair: Same local and remote messages; "
+                            + localDigest);
+                }
+            } else {
+                LogUtil.i(TAG, "SyncCursorPair: Not in sync; local messages " + localDigest
+                        + ", remote messages " + remoteDigest);
+            }
+            return isInSync;
+        } catch (final Exception e) {
+            LogUtil.e(TAG, "SyncCursorPair: failed to query local or remote message digests", e);
+            // If something is wrong in querying database, assume we are synced so
+            // we don't retry indefinitely
+        }
+        return true;
+    }
+
+    // Time ranges with at most this many messages on either side are scanned rather than
+    // bisected further
+    private static final int MAX_MESSAGES_TO_SCAN_WITHOUT_BISECTING = 100;
+
+    /**
+     * Find where the sync scan of the messages in a time range needs to start. Rather than
+     * scanning every message from the upper bound down to the first one that differs, we compare
+     * the digests of the messages on both sides for the newer half of the range, and keep
+     * bisecting whichever half differs until it holds few enough messages to scan. Finding one
+     * changed message in years of history then only takes a few dozen aggregate queries.
+     *
+     * @param lowerBound The inclusive lower bound of the time range, < 0 for no bound
+     * @param upperBound The exclusive upper bound of the time range
+     * @return The exclusive upper bound of the newest part of the time range whose messages
+     *         differ, SYNC_COMPLETE if all the messages in the range are in sync, or upperBound
+     *         if the digests can't be queried
+     */
+    static long getUnsynchronizedUpperBound(final DatabaseWrapper db, final long lowerBound,
+            final long upperBound) {
+        try {
+            return getUnsynchronizedUpperBound(new DatabaseRangeDigestQuery(db), lowerBound,
+                    upperBound);
+        } catch (final Exception e) {
+            LogUtil.e(TAG, "SyncCursorPair: failed to query local or remote message digests; "
+                    + "scanning all messages", e);
+            return upperBound;
+        }
+    }
+
+    @VisibleForTesting
+    static long getUnsynchronizedUpperBound(final RangeDigestQuery query, final long lowerBound,
+            final long upperBound) {
+        long from = lowerBound;
+        long to = upperBound;
+        RangeDigest localDigest = query.getLocalDigest(from, to);
+        RangeDigest remoteDigest = query.getRemoteDigest(from, to);
+        int rangesCompared = 1;
+        while (!localDigest.matches(remoteDigest)) {
+            // Only consider the part of the range that has messages
+            from = Math.max(from, Math.min(localDigest.getMinTimestamp(),
+                    remoteDigest.getMinTimestamp()));
+            to = Math.min(to, Math.max(localDigest.getMaxTimestamp(),
+                    remoteDigest.getMaxTimestamp()) + 1);
+            if (Math.max(localDigest.getCount(), remoteDigest.getCount())
+                    <= MAX_MESSAGES_TO_SCAN_WITHOUT_BISECTING || to - from <= 1) {
+                if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                    LogUtil.d(TAG, "SyncCursorPair: Messages from " + from + " to " + to
+                            + " not in sync (compared " + rangesCompared + " time ranges)");
+                }
+                return to;
+            }
+            final long middle = from + (to - from) / 2;
+            final RangeDigest newerLocalDigest = query.getLocalDigest(middle, to);
+            final RangeDigest newerRemoteDigest = query.getRemoteDigest(middle, to);
+            rangesCompared++;
+            if (newerLocalDigest.matches(newerRemoteDigest)) {
+                // The digests add up, so the older half is the one that differs, and its
+                // digests are what's left without the newer half
+                to = middle;
+                localDigest.remove(newerLocalDigest);
+                remoteDigest.remove(newerRemoteDigest);
+            } else {
+                from = middle;
+                localDigest = newerLocalDigest;
+                remoteDigest = newerRemoteDigest;
+            }
+        }
+        if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+            LogUtil.d(TAG, "SyncCursorPair: Messages from " + lowerBound + " to " + upperBound
+                    + " in sync (compared " + rangesCompared + " time ranges)");
+        }
+        return SYNC_COMPLETE;
+    }
+
+    /**
+     * Queries the digests of the local and remote messages in a time range
+     */
+    interface RangeDigestQuery {
+        /**
+         * @param from The inclusive lower bound, < 0 for no bound
+         * @param to The exclusive upper bound
+         * @return The digest of the local messages in the time range
+         */
+        public RangeDigest getLocalDigest(long from, long to);
+        /**
+         * @param from The inclusive lower bound, < 0 for no bound
+         * @param to The exclusive upper bound
+         * @return The digest of the remote SMS and MMS messages in the time range
+         */
+        public RangeDigest getRemoteDigest(long from, long to);
+    }
+
+    /**
+     * Digest of a set of messages: their count, time span and two sums of per message hashes of
+     * their timestamp, type and row id. Digests are computed with aggregate queries on both
+     * sides, so only a row of numbers is read, and they add up over adjacent time ranges.
+     */
+    static class RangeDigest {
+        private int mCount;
+        private long mMinTimestamp = Long.MAX_VALUE;
+        private long mMaxTimestamp = Long.MIN_VALUE;
+        private long mHashSum;
+        private long mMixedHashSum;
+
+        /**
+         * Add a message to the digest, the same way the digest queries do
+         *
+         * @param key The row id of the message in telephony, times two plus one for MMS
+         */
+        @VisibleForTesting
+        void add(final long timestampInMillis, final long key) {
+            mCount++;
+            mMinTimestamp = Math.min(mMinTimestamp, timestampInMillis);
+            mMaxTimestamp = Math.max(mMaxTimestamp, timestampInMillis);
+            mHashSum += (timestampInMillis * HASH_MULTIPLIER + key) % HASH_MODULUS;
+            mMixedHashSum += ((timestampInMillis % MIXED_HASH_TIMESTAMP_MODULUS)
+                    * MIXED_HASH_MULTIPLIER + key) % MIXED_HASH_MODULUS;
+        }
+
+        private void add(final Cursor cursor) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                // We should only return a digest if we were able to read it from the cursor.
+                // Otherwise, we throw an exception to cancel the sync.
+                final String cursorDesc = (cursor == null) ? "null" : "empty";
+                throw new IllegalArgumentException("Cannot get digest from " + cursorDesc
+                        + " cursor");
+            }
+            final int count = cursor.getInt(DIGEST_INDEX_COUNT);
+            if (count > 0) {
+                mCount += count;
+                mMinTimestamp = Math.min(mMinTimestamp, cursor.getLong(DIGEST_INDEX_MIN));
+                mMaxTimestamp = Math.max(mMaxTimestamp, cursor.getLong(DIGEST_INDEX_MAX));
+                mHashSum += cursor.getLong(DIGEST_INDEX_HASH_SUM);
+                mMixedHashSum += cursor.getLong(DIGEST_INDEX_MIXED_HASH_SUM);
+            }
+        }
+
+        /**
+         * Remove the messages of a digest of a newer time range within this one. The time span
+         * is left as is, as the time range is narrowed by the caller.
+         */
+        private void remove(final RangeDigest newer) {
+            mCount -= newer.mCount;
+            mHashSum -= newer.mHashSum;
+            mMixedHashSum -= newer.mMixedHashSum;
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        long getMinTimestamp() {
+            return mMinTimestamp;
+        }
+
+        long getMaxTimestamp() {
+            return mMaxTimestamp;
+        }
+
+        boolean matches(final RangeDigest other) {
+            return mCount == other.mCount && mHashSum == other.mHashSum &&
+                    mMixedHashSum == other.mMixedHashSum;
+        }
+
+        @Override
+        public String toString() {
+            return "(count = " + mCount + ", from " + mMinTimestamp + " to " + mMaxTimestamp
+                    + ", hashes = " + mHashSum + "/" + mMixedHashSum + ")";
+        }
+    }
+
+    // Both hashes stay below 2^31 per message, so their sums can't overflow
+    private static final long HASH_MULTIPLIER = 31;
+    private static final long HASH_MODULUS = 2147483629;
+    private static final long MIXED_HASH_TIMESTAMP_MODULUS = 1000003;
+    private static final long MIXED_HASH_MULTIPLIER = 1000033;
+    private static final long MIXED_HASH_MODULUS = 2147483647;
+
+    private static final int DIGEST_INDEX_COUNT = 0;
+    private static final int DIGEST_INDEX_MIN = 1;
+    private static final int DIGEST_INDEX_MAX = 2;
+    private static final int DIGEST_INDEX_HASH_SUM = 3;
+    private static final int DIGEST_INDEX_MIXED_HASH_SUM = 4;
+
+    // Local messages are keyed by the row id and type in their telephony uri, which is
+    // content://sms/<id> or content://mms/<id>. Any other form of uri won't match the remote
+    // message, as it doesn't when scanning.
+    private static final String[] LOCAL_DIGEST_PROJECTION = getDigestProjection(
+            MessageColumns.RECEIVED_TIMESTAMP,
+            String.format(Locale.US,
+                    "(CAST(substr(%s, 15) AS INTEGER) * 2 + (substr(%s, 11, 3) = 'mms'))",
+                    MessageColumns.SMS_MESSAGE_URI, MessageColumns.SMS_MESSAGE_URI));
+    private static final String[] SMS_DIGEST_PROJECTION = getDigestProjection(
+            "date", "(_id * 2)");
+    // MMS dates are in seconds
+    private static final String[] MMS_DIGEST_PROJECTION = getDigestProjection(
+            "(date * 1000)", "(_id * 2 + 1)");
+
+    private static String[] getDigestProjection(final String timestamp, final String key) {
+        final String hash = String.format(Locale.US, "(%s * %d + %s) %% %d",
+                timestamp, HASH_MULTIPLIER, key, HASH_MODULUS);
+        final String mixedHash = String.format(Locale.US, "((%s %% %d) * %d + %s) %% %d",
+                timestamp, MIXED_HASH_TIMESTAMP_MODULUS, MIXED_HASH_MULTIPLIER, key,
+                MIXED_HASH_MODULUS);
+        return new String[] {
+                "count()",
+                "min(" + timestamp + ")",
+                "max(" + timestamp + ")",
+                "sum(" + hash + ")",
+                "sum(" + mixedHash + ")",
+        };
+    }
+
+    private static RangeDigest queryLocalDigest(final DatabaseWrapper db,
+            final String selection, final String[] selectionArgs) {
+        Cursor cursor = null;
+        try {
+            cursor = db.query(
                     DatabaseHelper.MESSAGES_TABLE,
-                    COUNT_PROJECTION,
-                    localSelection,
-                    localSelectionArgs,
+                    LOCAL_DIGEST_PROJECTION,
+                    selection,
+                    selectionArgs,
                     null/*groupBy*/,
                     null/*having*/,
                     null/*orderBy*/);
-            final int localCount = getCountFromCursor(localCursor);
+            final RangeDigest digest = new RangeDigest();
+            digest.add(cursor);
+            return digest;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static RangeDigest queryRemoteDigest(final String smsSelection,
+            final String[] smsSelectionArgs, final String mmsSelection,
+            final String[] mmsSelectionArgs) {
+        final Context context = Factory.get().getApplicationContext();
+        Cursor remoteSmsCursor = null;
+        Cursor remoteMmsCursor = null;
+        try {
+            final RangeDigest digest = new RangeDigest();
             remoteSmsCursor = SqliteWrapper.query(
                     context,
                     context.getContentResolver(),
                     Sms.CONTENT_URI,
-                    COUNT_PROJECTION,
+                    SMS_DIGEST_PROJECTION,
                     smsSelection,
                     smsSelectionArgs,
                     null/*orderBy*/);
-            final int smsCount = getCountFromCursor(remoteSmsCursor);
+            digest.add(remoteSmsCursor);
             remoteMmsCursor = SqliteWrapper.query(
                     context,
                     context.getContentResolver(),
                     Mms.CONTENT_URI,
-                    COUNT_PROJECTION,
+                    MMS_DIGEST_PROJECTION,
                     mmsSelection,
                     mmsSelectionArgs,
                     null/*orderBy*/);
-            final int mmsCount = getCountFromCursor(remoteMmsCursor);
-            final int remoteCount = smsCount + mmsCount;
-            final boolean isInSync = (localCount == remoteCount);
-            if (isInSync) {
-                if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
-                    LogUtil.d(TAG, "SyncCursorPair: Same # of local and remote messages = "
-                            + localCount);
-                }
-            } else {
-                LogUtil.i(TAG, "SyncCursorPair: Not in sync; # local messages = " + localCount
-                        + ", # remote message = " + remoteCount);
-            }
-            return isInSync;
-        } catch (final Exception e) {
-            LogUtil.e(TAG, "SyncCursorPair: failed to query local or remote message counts", e);
-            // If something is wrong in querying database, assume we are synced so
-            // we don't retry indefinitely
+            digest.add(remoteMmsCursor);
+            return digest;
         } finally {
-            if (localCursor != null) {
-                localCursor.close();
-            }
             if (remoteSmsCursor != null) {
                 remoteSmsCursor.close();
             }
@@ -707,6 +921,29 @@ class SyncCursorPair {
                 remoteMmsCursor.close();
             }
         }
-        return true;
+    }
+
+    /**
+     * Queries the digests of time ranges with the same selections as the sync scan
+     */
+    private static class DatabaseRangeDigestQuery implements RangeDigestQuery {
+        private final DatabaseWrapper mDatabase;
+
+        DatabaseRangeDigestQuery(final DatabaseWrapper database) {
+            mDatabase = database;
+        }
+
+        @Override
+        public RangeDigest getLocalDigest(final long from, final long to) {
+            final SyncCursorPair range = new SyncCursorPair(from, to);
+            return queryLocalDigest(mDatabase, range.mLocalSelection, null);
+        }
+
+        @Override
+        public RangeDigest getRemoteDigest(final long from, final long to) {
+            final SyncCursorPair range = new SyncCursorPair(from, to);
+            return queryRemoteDigest(range.mRemoteSmsSelection, null,
+                    range.mRemoteMmsSelection, null);
+        }
     }
 }
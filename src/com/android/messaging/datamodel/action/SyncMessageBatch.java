@@ -18,10 +18,12 @@ package com.android.messaging.datamodel.action;
 
 import android.database.Cursor;
 import android.database.sqlite.SQLiteConstraintException;
+import android.net.Uri;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Sms;
 import android.text.TextUtils;
+import android.util.SparseArray;
 
 import com.android.messaging.datamodel.BugleDatabaseOperations;
 import com.android.messaging.datamodel.DataModel;
@@ -29,9 +31,11 @@ import com.android.messaging.datamodel.DatabaseHelper;
 import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
 import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
 import com.android.messaging.datamodel.DatabaseWrapper;
+import com.android.messaging.datamodel.MessageNotificationState;
 import com.android.messaging.datamodel.SyncManager.ThreadInfoCache;
 import com.android.messaging.datamodel.data.MessageData;
 import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.datamodel.media.MediaResourceManager;
 import com.android.messaging.mmslib.pdu.PduHeaders;
 import com.android.messaging.sms.DatabaseMessages.LocalDatabaseMessage;
 import com.android.messaging.sms.DatabaseMessages.MmsMessage;
@@ -42,6 +46,7 @@ import com.android.messaging.util.LogUtil;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -56,6 +61,10 @@ class SyncMessageBatch {
     private final HashSet<String> mConversationsToUpdate;
     // Cache of thread->conversationId map
     private final ThreadInfoCache mCache;
+    // Participant ids of self by subscription, for the messages of this batch
+    private final SparseArray<String> mSelfIds = new SparseArray<String>();
+    // Participant ids of the senders of this batch, by subscription and raw address
+    private final HashMap<String, String> mSenderIds = new HashMap<String, String>();
 
     // Set of SMS messages to add
     private final ArrayList<SmsMessage> mSmsToAdd;
@@ -78,6 +87,8 @@ class SyncMessageBatch {
     void updateLocalDatabase() {
         // Perform local database changes in one transaction
         final DatabaseWrapper db = DataModel.get().getDatabase();
+        final HashSet<String> conversationsWithDeletes = new HashSet<String>();
+        final ArrayList<Uri> deletedMediaUris = new ArrayList<Uri>();
         db.beginTransaction();
         try {
             // Store all the SMS messages
@@ -91,10 +102,13 @@ class SyncMessageBatch {
             // Keep track of conversations with messages deleted
             for (final LocalDatabaseMessage message : mMessagesToDelete) {
                 mConversationsToUpdate.add(message.getConversationId());
+                conversationsWithDeletes.add(message.getConversationId());
             }
             // Batch delete local messages
+            final String[] messageIdsToDelete = messageListToIds(mMessagesToDelete);
+            addPartContentUris(db, messageIdsToDelete, deletedMediaUris);
             batchDelete(db, DatabaseHelper.MESSAGES_TABLE, MessageColumns._ID,
-                    messageListToIds(mMessagesToDelete));
+                    messageIdsToDelete);
 
             for (final LocalDatabaseMessage message : mMessagesToDelete) {
                 if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
@@ -111,6 +125,12 @@ class SyncMessageBatch {
         } finally {
             db.endTransaction();
         }
+
+        // Deleted messages may have been unseen, stop notifying them
+        for (final String conversationId : conversationsWithDeletes) {
+            MessageNotificationState.reloadConversation(conversationId);
+        }
+        MediaResourceManager.get().onMediaDeleted(deletedMediaUris);
     }
 
     private static String[] messageListToIds(final List<LocalDatabaseMessage> messagesToDelete) {
@@ -155,14 +175,9 @@ class SyncMessageBatch {
                     + sms.mThreadId);
             return;
         }
-        final ParticipantData self = ParticipantData.getSelfParticipant(sms.getSubId());
-        final String selfId =
-                BugleDatabaseOperations.getOrCreateParticipantInTransaction(db, self);
-        final ParticipantData sender = isOutgoing ?
-                self :
-                ParticipantData.getFromRawPhoneBySimLocale(otherPhoneNumber, sms.getSubId());
+        final String selfId = getOrCreateSelfId(db, sms.getSubId());
         final String participantId = (isOutgoing ? selfId :
-                BugleDatabaseOperations.getOrCreateParticipantInTransaction(db, sender));
+                getOrCreateSenderId(db, otherPhoneNumber, sms.getSubId()));
 
         final int bugleStatus = bugleStatusForSms(isOutgoing, sms.mType, sms.mStatus);
 
@@ -196,6 +211,38 @@ class SyncMessageBatch {
         mConversationsToUpdate.add(conversationId);
     }
 
+    /**
+     * Get the participant id of self for a subscription, looking it up only for the first
+     * message of the batch that needs it
+     */
+    private String getOrCreateSelfId(final DatabaseWrapper db, final int subId) {
+        String selfId = mSelfIds.get(subId);
+        if (selfId == null) {
+            final ParticipantData self = ParticipantData.getSelfParticipant(subId);
+            selfId = BugleDatabaseOperations.getOrCreateParticipantInTransaction(db, self);
+            mSelfIds.put(subId, selfId);
+        }
+        return selfId;
+    }
+
+    /**
+     * Get the participant id of the sender of an incoming message. Most messages of a batch are
+     * from the few people the user talks to most, so the sender addresses are only canonicalized
+     * and looked up the first time the batch sees them.
+     */
+    private String getOrCreateSenderId(final DatabaseWrapper db, final String address,
+            final int subId) {
+        final String key = subId + ":" + address;
+        String senderId = mSenderIds.get(key);
+        if (senderId == null) {
+            final ParticipantData sender = ParticipantData.getFromRawPhoneBySimLocale(address,
+                    subId);
+            senderId = BugleDatabaseOperations.getOrCreateParticipantInTransaction(db, sender);
+            mSenderIds.put(key, senderId);
+        }
+        return senderId;
+    }
+
     public static int bugleStatusForSms(final boolean isOutgoing, final int type,
             final int status) {
         int bugleStatus = MessageData.BUGLE_STATUS_UNKNOWN;
@@ -249,13 +296,9 @@ class SyncMessageBatch {
                     + mms.mThreadId);
             return;
         }
-        final ParticipantData self = ParticipantData.getSelfParticipant(mms.getSubId());
-        final String selfId =
-                BugleDatabaseOperations.getOrCreateParticipantInTransaction(db, self);
-        final ParticipantData sender = isOutgoing ?
-                self : ParticipantData.getFromRawPhoneBySimLocale(senderId, mms.getSubId());
+        final String selfId = getOrCreateSelfId(db, mms.getSubId());
         final String participantId = (isOutgoing ? selfId :
-                BugleDatabaseOperations.getOrCreateParticipantInTransaction(db, sender));
+                getOrCreateSenderId(db, senderId, mms.getSubId()));
 
         final int bugleStatus = MmsUtils.bugleStatusForMms(isOutgoing, isNotification, mms.mType);
 
@@ -362,6 +405,20 @@ class SyncMessageBatch {
      * @param ids
      * @return Total number of deleted messages
      */
+    /**
+     * Adds the content uris of the parts of the messages to delete, in batches like
+     * {@link #batchDelete}.
+     */
+    private static void addPartContentUris(final DatabaseWrapper db, final String[] messageIds,
+            final List<Uri> uris) {
+        for (int start = 0; start < messageIds.length; start += MmsUtils.MAX_IDS_PER_QUERY) {
+            final int end = Math.min(start + MmsUtils.MAX_IDS_PER_QUERY, messageIds.length);
+            uris.addAll(BugleDatabaseOperations.getPartContentUrisForMessages(db,
+                    MessageColumns._ID + " IN " + MmsUtils.getSqlInOperand(end - start),
+                    Arrays.copyOfRange(messageIds, start, end)));
+        }
+    }
+
     private static int batchDelete(final DatabaseWrapper db, final String table,
             final String column, final String[] ids) {
         int totalDeleted = 0;
@@ -16,41 +16,30 @@
 
 package com.android.messaging.datamodel.action;
 
-import android.content.Context;
-import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.SystemClock;
-import android.provider.Telephony.Mms;
 import androidx.collection.LongSparseArray;
 
-import com.android.messaging.Factory;
 import com.android.messaging.datamodel.DataModel;
 import com.android.messaging.datamodel.DatabaseWrapper;
 import com.android.messaging.datamodel.MessagingContentProvider;
 import com.android.messaging.datamodel.SyncManager;
 import com.android.messaging.datamodel.SyncManager.ThreadInfoCache;
-import com.android.messaging.datamodel.data.ParticipantData;
-import com.android.messaging.mmslib.SqliteWrapper;
-import com.android.messaging.sms.DatabaseMessages;
 import com.android.messaging.sms.DatabaseMessages.LocalDatabaseMessage;
 import com.android.messaging.sms.DatabaseMessages.MmsMessage;
 import com.android.messaging.sms.DatabaseMessages.SmsMessage;
-import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.BugleGservices;
 import com.android.messaging.util.BugleGservicesKeys;
 import com.android.messaging.util.BuglePrefs;
 import com.android.messaging.util.BuglePrefsKeys;
-import com.android.messaging.util.ContentType;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
 
 import java.util.ArrayList;
-import java.util.List;
-import java.util.Locale;
 
 /**
  * Action used to sync messages from smsmms db to local database
@@ -207,6 +196,10 @@ public class SyncMessagesAction extends Action implements Parcelable {
                 BugleGservicesKeys.SMS_SYNC_BATCH_SIZE_MAX,
                 BugleGservicesKeys.SMS_SYNC_BATCH_SIZE_MAX_DEFAULT);
 
+        final boolean pipelined = bugleGservices.getBoolean(
+                BugleGservicesKeys.SMS_SYNC_PIPELINED_MMS_LOADING,
+                BugleGservicesKeys.SMS_SYNC_PIPELINED_MMS_LOADING_DEFAULT);
+
         // Cap sync size to GServices limits
         final int maxMessagesToUpdate = Math.max(smsSyncSubsequentBatchSizeMin,
                 Math.min(initialMaxMessagesToUpdate, smsSyncSubsequentBatchSizeMax));
@@ -222,9 +215,10 @@ public class SyncMessagesAction extends Action implements Parcelable {
         // Clear last change time so that we can work out if this batch is dirty when it completes
         final SyncManager syncManager = DataModel.get().getSyncManager();
 
-        // Clear the singleton cache that maps threads to recipients and to conversations.
+        // Start a new batch with the singleton cache that maps threads to recipients and to
+        // conversations, keeping the threads that previous batches looked up.
         final SyncManager.ThreadInfoCache cache = syncManager.getThreadInfoCache();
-        cache.clear();
+        cache.startBatch();
 
         // Sms messages to store
         final ArrayList<SmsMessage> smsToAdd = new ArrayList<SmsMessage>();
@@ -236,13 +230,23 @@ public class SyncMessagesAction extends Action implements Parcelable {
 
         long lastTimestampMillis = SYNC_FAILED;
         if (syncManager.isSyncing(upperBoundTimeMillis)) {
-            // Cursors
-            final SyncCursorPair cursors = new SyncCursorPair(lowerBoundTimeMillis,
-                    upperBoundTimeMillis);
-
-            // Actually compare the messages using cursor pair
-            lastTimestampMillis = syncCursorPair(db, cursors, smsToAdd, mmsToAdd,
-                    messagesToDelete, maxMessagesToScan, maxMessagesToUpdate, cache);
+            // Skip the newest messages that are already in sync
+            final long scanUpperBoundTimeMillis = SyncCursorPair.getUnsynchronizedUpperBound(
+                    db, lowerBoundTimeMillis, upperBoundTimeMillis);
+            if (scanUpperBoundTimeMillis == SyncCursorPair.SYNC_COMPLETE) {
+                LogUtil.i(TAG, "SyncMessagesAction: Messages from " + lowerBoundTimeMillis
+                        + " to " + upperBoundTimeMillis + " already in sync");
+                lastTimestampMillis = SyncCursorPair.SYNC_COMPLETE;
+            } else {
+                // Cursors
+                final SyncCursorPair cursors = new SyncCursorPair(lowerBoundTimeMillis,
+                        scanUpperBoundTimeMillis);
+
+                // Actually compare the messages using cursor pair
+                lastTimestampMillis = syncCursorPair(db, cursors, smsToAdd, mmsToAdd,
+                        messagesToDelete, maxMessagesToScan, maxMessagesToUpdate, cache,
+                        pipelined);
+            }
         }
         final Bundle response = new Bundle();
 
@@ -273,12 +277,13 @@ public class SyncMessagesAction extends Action implements Parcelable {
      * @param maxMessagesToScan max messages to scan for changes
      * @param maxMessagesToUpdate max messages to return for updates
      * @param cache cache for conversation id / thread id / recipient set mapping
+     * @param pipelined whether to load MMS parts and senders while the scan continues
      * @return timestamp of the oldest message seen during the sync scan
      */
     private long syncCursorPair(final DatabaseWrapper db, final SyncCursorPair cursors,
             final ArrayList<SmsMessage> smsToAdd, final LongSparseArray<MmsMessage> mmsToAdd,
             final ArrayList<LocalDatabaseMessage> messagesToDelete, final int maxMessagesToScan,
-            final int maxMessagesToUpdate, final ThreadInfoCache cache) {
+            final int maxMessagesToUpdate, final ThreadInfoCache cache, final boolean pipelined) {
         long lastTimestampMillis;
         final long startTimeMillis = SystemClock.elapsedRealtime();
 
@@ -287,6 +292,8 @@ public class SyncMessagesAction extends Action implements Parcelable {
         int remotePos = 0;
         int localTotal = 0;
         int remoteTotal = 0;
+        // Loads the parts and senders of the MMS messages the scan finds
+        final SyncMmsLoader mmsLoader = new SyncMmsLoader(cache, pipelined);
         // Scan through the messages on both sides and prepare messages for local message table
         // changes (including adding and deleting)
         try {
@@ -303,7 +310,7 @@ public class SyncMessagesAction extends Action implements Parcelable {
             }
 
             lastTimestampMillis = cursors.scan(maxMessagesToScan, maxMessagesToUpdate,
-                    smsToAdd, mmsToAdd, messagesToDelete, cache);
+                    smsToAdd, mmsToAdd, messagesToDelete, cache, mmsLoader);
 
             localPos = cursors.getLocalPosition();
             remotePos = cursors.getRemotePosition();
@@ -314,10 +321,8 @@ public class SyncMessagesAction extends Action implements Parcelable {
                         + remoteTotal + ")");
             }
 
-            // Batch loading the parts of the MMS messages in this batch
-            loadMmsParts(mmsToAdd);
-            // Lookup senders for incoming mms messages
-            setMmsSenders(mmsToAdd, cache);
+            // Finish loading the parts and senders of the MMS messages in this batch
+            mmsLoader.finish();
         } catch (final SQLiteException e) {
             LogUtil.e(TAG, "SyncMessagesAction: Database exception", e);
             // Let's abort
@@ -329,6 +334,7 @@ public class SyncMessagesAction extends Action implements Parcelable {
             LogUtil.wtf(TAG, "SyncMessagesAction: unexpected failure in scan", e);
             lastTimestampMillis = SYNC_FAILED;
         } finally {
+            mmsLoader.cancel();
             if (cursors != null) {
                 cursors.close();
             }
@@ -416,7 +422,8 @@ public class SyncMessagesAction extends Action implements Parcelable {
                     LogUtil.i(TAG, "SyncMessagesAction: Updated local database "
                             + "(took " + txnTimeMillis + " ms). Added "
                             + smsToAdd.size() + " SMS, added " + mmsToAdd.size() + " MMS, deleted "
-                            + messagesToDelete.size() + " messages.");
+                            + messagesToDelete.size() + " messages. Thread cache "
+                            + syncManager.getThreadInfoCache().getBatchStats());
 
                     // TODO: Investigate whether we can make this more fine-grained.
                     MessagingContentProvider.notifyEverythingChanged();
@@ -492,6 +499,7 @@ public class SyncMessagesAction extends Action implements Parcelable {
 
                         // All done, in sync
                         syncManager.complete();
+                        CheckpointDatabaseAction.checkpointIfNeeded();
                     }
                 }
                 // Either sync should be complete or we should have a follow up request
@@ -524,95 +532,6 @@ public class SyncMessagesAction extends Action implements Parcelable {
                         * smsSyncSubsequentBatchTimeLimitMillis);
     }
 
-    /**
-     * Batch loading MMS parts for the messages in current batch
-     */
-    private void loadMmsParts(final LongSparseArray<MmsMessage> mmses) {
-        final Context context = Factory.get().getApplicationContext();
-        final int totalIds = mmses.size();
-        for (int start = 0; start < totalIds; start += MmsUtils.MAX_IDS_PER_QUERY) {
-            final int end = Math.min(start + MmsUtils.MAX_IDS_PER_QUERY, totalIds); //excluding
-            final int count = end - start;
-            final String batchSelection = String.format(
-                    Locale.US,
-                    "%s != '%s' AND %s IN %s",
-                    Mms.Part.CONTENT_TYPE,
-                    ContentType.APP_SMIL,
-                    Mms.Part.MSG_ID,
-                    MmsUtils.getSqlInOperand(count));
-            final String[] batchSelectionArgs = new String[count];
-            for (int i = 0; i < count; i++) {
-                batchSelectionArgs[i] = Long.toString(mmses.valueAt(start + i).getId());
-            }
-            final Cursor cursor = SqliteWrapper.query(
-                    context,
-                    context.getContentResolver(),
-                    MmsUtils.MMS_PART_CONTENT_URI,
-                    DatabaseMessages.MmsPart.PROJECTION,
-                    batchSelection,
-                    batchSelectionArgs,
-                    null/*sortOrder*/);
-            if (cursor != null) {
-                try {
-                    while (cursor.moveToNext()) {
-                        // Delay loading the media content for parsing for efficiency
-                        // TODO: load the media and fill in the dimensions when
-                        // we actually display it
-                        final DatabaseMessages.MmsPart part =
-                                DatabaseMessages.MmsPart.get(cursor, false/*loadMedia*/);
-                        final DatabaseMessages.MmsMessage mms = mmses.get(part.mMessageId);
-                        if (mms != null) {
-                            mms.addPart(part);
-                        }
-                    }
-                } finally {
-                    cursor.close();
-                }
-            }
-        }
-    }
-
-    /**
-     * Batch loading MMS sender for the messages in current batch
-     */
-    private void setMmsSenders(final LongSparseArray<MmsMessage> mmses,
-            final ThreadInfoCache cache) {
-        // Store all the MMS messages
-        for (int i = 0; i < mmses.size(); i++) {
-            final MmsMessage mms = mmses.valueAt(i);
-
-            final boolean isOutgoing = mms.mType != Mms.MESSAGE_BOX_INBOX;
-            String senderId = null;
-            if (!isOutgoing) {
-                // We only need to find out sender phone number for received message
-                senderId = getMmsSender(mms, cache);
-                if (senderId == null) {
-                    LogUtil.w(TAG, "SyncMessagesAction: Could not find sender of incoming MMS "
-                            + "message " + mms.getUri() + "; using 'unknown sender' instead");
-                    senderId = ParticipantData.getUnknownSenderDestination();
-                }
-            }
-            mms.setSender(senderId);
-        }
-    }
-
-    /**
-     * Find out the sender of an MMS message
-     */
-    private String getMmsSender(final MmsMessage mms, final ThreadInfoCache cache) {
-        final List<String> recipients = cache.getThreadRecipients(mms.mThreadId);
-        Assert.notNull(recipients);
-        Assert.isTrue(recipients.size() > 0);
-
-        if (recipients.size() == 1
-                && recipients.get(0).equals(ParticipantData.getUnknownSenderDestination())) {
-            LogUtil.w(TAG, "SyncMessagesAction: MMS message " + mms.mUri + " has unknown sender "
-                    + "(thread id = " + mms.mThreadId + ")");
-        }
-
-        return MmsUtils.getMmsSender(recipients, mms.mUri);
-    }
-
     private SyncMessagesAction(final Parcel in) {
         super(in);
     }
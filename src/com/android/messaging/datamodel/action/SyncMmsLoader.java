@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Process;
+import android.provider.Telephony.Mms;
+
+import androidx.collection.LongSparseArray;
+
+import com.android.messaging.Factory;
+import com.android.messaging.datamodel.SyncManager.ThreadInfoCache;
+import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.mmslib.SqliteWrapper;
+import com.android.messaging.sms.DatabaseMessages;
+import com.android.messaging.sms.DatabaseMessages.MmsMessage;
+import com.android.messaging.sms.MmsUtils;
+import com.android.messaging.util.Assert;
+import com.android.messaging.util.ContentType;
+import com.android.messaging.util.LogUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the parts and senders of the MMS messages found by a sync scan.
+ *
+ * When pipelined, the scan hands over each MMS message as soon as it finds it. Every
+ * {@link MmsUtils#MAX_IDS_PER_QUERY} messages are loaded as one chunk on a loader thread while
+ * the scan carries on. Only a few chunks can wait for a loader thread; once they are all taken,
+ * the scan thread loads the next chunk itself, so a scan can't get far ahead of the loaders.
+ * When not pipelined, all messages are loaded by {@link #finish} on the calling thread.
+ */
+class SyncMmsLoader {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    private static final int LOADER_THREAD_COUNT = 2;
+    // Number of chunks that can wait for a loader thread
+    private static final int MAX_QUEUED_CHUNKS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ThreadPoolExecutor sLoaderPool;
+
+    private static synchronized ThreadPoolExecutor getLoaderPool() {
+        if (sLoaderPool == null) {
+            sLoaderPool = new ThreadPoolExecutor(LOADER_THREAD_COUNT, LOADER_THREAD_COUNT,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(MAX_QUEUED_CHUNKS),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    runnable.run();
+                                }
+                            }, "SyncMmsLoader #" + mCount.incrementAndGet());
+                        }
+                    },
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            sLoaderPool.allowCoreThreadTimeOut(true);
+        }
+        return sLoaderPool;
+    }
+
+    private final ThreadInfoCache mCache;
+    private final boolean mPipelined;
+    private final ThreadPoolExecutor mLoaderPool;
+    private final List<Future<?>> mPendingChunks = new ArrayList<Future<?>>();
+    private LongSparseArray<MmsMessage> mChunk = new LongSparseArray<MmsMessage>();
+
+    SyncMmsLoader(final ThreadInfoCache cache, final boolean pipelined) {
+        this(cache, pipelined, pipelined ? getLoaderPool() : null);
+    }
+
+    @VisibleForTesting
+    SyncMmsLoader(final ThreadInfoCache cache, final boolean pipelined,
+            final ThreadPoolExecutor loaderPool) {
+        mCache = cache;
+        mPipelined = pipelined;
+        mLoaderPool = loaderPool;
+    }
+
+    /**
+     * Called by the scan for each MMS message it is going to add.
+     */
+    void add(final MmsMessage mms) {
+        mChunk.append(mms.getId(), mms);
+        if (mPipelined && mChunk.size() >= MmsUtils.MAX_IDS_PER_QUERY) {
+            submitChunk();
+        }
+    }
+
+    private void submitChunk() {
+        final LongSparseArray<MmsMessage> chunk = mChunk;
+        mChunk = new LongSparseArray<MmsMessage>();
+        mPendingChunks.add(mLoaderPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                loadChunk(chunk);
+            }
+        }));
+    }
+
+    /**
+     * Loads the remaining messages and waits for all chunks to be loaded. An exception thrown
+     * while loading any chunk is rethrown here.
+     */
+    void finish() {
+        if (!mPipelined) {
+            loadChunk(mChunk);
+            mChunk = new LongSparseArray<MmsMessage>();
+            return;
+        }
+        // No point handing the last partial chunk over, we would just wait for it
+        final LongSparseArray<MmsMessage> lastChunk = mChunk;
+        mChunk = new LongSparseArray<MmsMessage>();
+        loadChunk(lastChunk);
+        try {
+            for (final Future<?> chunk : mPendingChunks) {
+                chunk.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted loading MMS messages", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            cancel();
+        }
+    }
+
+    /**
+     * Stops loading chunks that haven't started yet, e.g. after the scan failed.
+     */
+    void cancel() {
+        for (final Future<?> chunk : mPendingChunks) {
+            chunk.cancel(false /* mayInterruptIfRunning */);
+        }
+        mPendingChunks.clear();
+    }
+
+    @VisibleForTesting
+    void loadChunk(final LongSparseArray<MmsMessage> mmses) {
+        if (mmses.size() == 0) {
+            return;
+        }
+        loadMmsParts(mmses);
+        setMmsSenders(mmses);
+    }
+
+    /**
+     * Batch loading MMS parts for the given messages
+     */
+    private static void loadMmsParts(final LongSparseArray<MmsMessage> mmses) {
+        final Context context = Factory.get().getApplicationContext();
+        final int totalIds = mmses.size();
+        for (int start = 0; start < totalIds; start += MmsUtils.MAX_IDS_PER_QUERY) {
+            final int end = Math.min(start + MmsUtils.MAX_IDS_PER_QUERY, totalIds); //excluding
+            final int count = end - start;
+            final String batchSelection = String.format(
+                    Locale.US,
+                    "%s != '%s' AND %s IN %s",
+                    Mms.Part.CONTENT_TYPE,
+                    ContentType.APP_SMIL,
+                    Mms.Part.MSG_ID,
+                    MmsUtils.getSqlInOperand(count));
+            final String[] batchSelectionArgs = new String[count];
+            for (int i = 0; i < count; i++) {
+                batchSelectionArgs[i] = Long.toString(mmses.valueAt(start + i).getId());
+            }
+            final Cursor cursor = SqliteWrapper.query(
+                    context,
+                    context.getContentResolver(),
+                    MmsUtils.MMS_PART_CONTENT_URI,
+                    DatabaseMessages.MmsPart.PROJECTION,
+                    batchSelection,
+                    batchSelectionArgs,
+                    null/*sortOrder*/);
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        // Delay loading the media content for parsing for efficiency
+                        // TODO: load the media and fill in the dimensions when
+                        // we actually display it
+                        final DatabaseMessages.MmsPart part =
+                                DatabaseMessages.MmsPart.get(cursor, false/*loadMedia*/);
+                        final DatabaseMessages.MmsMessage mms = mmses.get(part.mMessageId);
+                        if (mms != null) {
+                            mms.addPart(part);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Batch loading MMS sender for the given messages
+     */
+    private void setMmsSenders(final LongSparseArray<MmsMessage> mmses) {
+        for (int i = 0; i < mmses.size(); i++) {
+            final MmsMessage mms = mmses.valueAt(i);
+
+            final boolean isOutgoing = mms.mType != Mms.MESSAGE_BOX_INBOX;
+            String senderId = null;
+            if (!isOutgoing) {
+                // We only need to find out sender phone number for received message
+                senderId = getMmsSender(mms);
+                if (senderId == null) {
+                    LogUtil.w(TAG, "SyncMessagesAction: Could not find sender of incoming MMS "
+                            + "message " + mms.getUri() + "; using 'unknown sender' instead");
+                    senderId = ParticipantData.getUnknownSenderDestination();
+                }
+            }
+            mms.setSender(senderId);
+        }
+    }
+
+    /**
+     * Find out the sender of an MMS message
+     */
+    private String getMmsSender(final MmsMessage mms) {
+        // The scan already looked up (and cached) the recipients of the message's thread
+        final List<String> recipients = mCache.getThreadRecipients(mms.mThreadId);
+        Assert.notNull(recipients);
+        Assert.isTrue(recipients.size() > 0);
+
+        if (recipients.size() == 1
+                && recipients.get(0).equals(ParticipantData.getUnknownSenderDestination())) {
+            LogUtil.w(TAG, "SyncMessagesAction: MMS message " + mms.mUri + " has unknown sender "
+                    + "(thread id = " + mms.mThreadId + ")");
+        }
+
+        return MmsUtils.getMmsSender(recipients, mms.mUri);
+    }
+}
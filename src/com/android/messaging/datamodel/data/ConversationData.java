@@ -47,6 +47,7 @@ import com.android.messaging.util.Assert;
 import com.android.messaging.util.Assert.RunsOnMainThread;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.PhoneUtils;
+import com.android.messaging.util.SafeAsyncTask;
 import com.android.messaging.widget.WidgetConversationProvider;
 
 import java.util.ArrayList;
@@ -66,6 +67,10 @@ public class ConversationData extends BindableData {
     private static final long LAST_MESSAGE_TIMESTAMP_NaN = -1;
     private static final int MESSAGE_COUNT_NaN = -1;
 
+    // Number of messages loaded when the conversation opens, and per page as the user scrolls
+    // back in time.
+    private static final int MESSAGES_PAGE_SIZE = 100;
+
     /**
      * Takes a conversation id and a list of message ids and computes the positions
      * for each message.
@@ -251,12 +256,15 @@ public class ConversationData extends BindableData {
             final String bindingId = args.getString(BINDING_ID);
             // Check if data still bound to the requesting ui element
             if (isBound(bindingId)) {
-                final Uri uri =
-                        MessagingContentProvider.buildConversationMessagesUri(mConversationId);
+                // Only the newest page is loaded up front. Once it arrives the loader is
+                // re-anchored at its oldest message, see onLoadFinish().
+                final Uri uri = MessagingContentProvider.buildConversationMessagesPageUri(
+                        mConversationId, MESSAGES_PAGE_SIZE);
                 loader = new BoundCursorLoader(bindingId, mContext, uri,
                         ConversationMessageData.getProjection(), null, null, null);
                 mLastMessageTimestamp = LAST_MESSAGE_TIMESTAMP_NaN;
                 mMessageCount = MESSAGE_COUNT_NaN;
+                mHasOlderMessages = false;
             } else {
                 LogUtil.w(TAG, "Creating messages loader after unbinding mConversationId = " +
                         mConversationId);
@@ -274,10 +282,23 @@ public class ConversationData extends BindableData {
                 ConversationMessageData newMessage = null;
                 boolean isSync = false;
                 Cursor data = null;
+                final ConversationMessagesPagingCursor oldPagingCursor = mPagingCursor;
+                mPagingCursor = null;
                 if (rawData != null) {
+                    // A page query tells us whether there is more history; a since query
+                    // covers the window we already had, so that answer doesn't change.
+                    final int pageSize =
+                            MessagingContentProvider.getConversationMessagesPageSize(
+                                    loader.getUri());
+                    if (pageSize > 0) {
+                        mHasOlderMessages = rawData.getCount() >= pageSize;
+                    }
+                    mPagingCursor = new ConversationMessagesPagingCursor(rawData);
+                    anchorMessagesLoader(loader, mPagingCursor);
+
                     // Note that the cursor is sorted DESC so here we reverse it.
                     // This is a performance issue (improvement) for large cursors.
-                    data = new ReversedCursor(rawData);
+                    data = new ReversedCursor(mPagingCursor);
 
                     final int messageCountOld = mMessageCount;
                     mMessageCount = data.getCount();
@@ -306,6 +327,9 @@ public class ConversationData extends BindableData {
 
                 mListeners.onConversationMessagesCursorUpdated(ConversationData.this, data,
                         newMessage, isSync);
+                if (oldPagingCursor != null) {
+                    oldPagingCursor.close();
+                }
             } else {
                 LogUtil.w(TAG, "Messages loader finished after unbinding mConversationId = " +
                         mConversationId);
@@ -322,6 +346,10 @@ public class ConversationData extends BindableData {
                         false);
                 mLastMessageTimestamp = LAST_MESSAGE_TIMESTAMP_NaN;
                 mMessageCount = MESSAGE_COUNT_NaN;
+                if (mPagingCursor != null) {
+                    mPagingCursor.close();
+                    mPagingCursor = null;
+                }
             } else {
                 LogUtil.w(TAG, "Messages loader reset after unbinding mConversationId = " +
                         mConversationId);
@@ -462,6 +490,9 @@ public class ConversationData extends BindableData {
     private long mLastMessageTimestamp = LAST_MESSAGE_TIMESTAMP_NaN;
     private int mMessageCount = MESSAGE_COUNT_NaN;
     private String mLastMessageId;
+    private ConversationMessagesPagingCursor mPagingCursor;
+    private boolean mHasOlderMessages;
+    private boolean mLoadingOlderMessages;
 
     public ConversationData(final Context context, final ConversationDataListener listener,
             final String conversationId) {
@@ -540,6 +571,92 @@ public class ConversationData extends BindableData {
         mLoaderManager.initLoader(SELF_PARTICIPANT_LOADER, args, mSelfParticipantLoaderCallbacks);
     }
 
+    /**
+     * Re-targets the messages loader at every message from the oldest one in the window onwards,
+     * so that reloads on content changes cover the same history (plus any new messages) without
+     * re-querying the rest of the thread.
+     */
+    private void anchorMessagesLoader(final BoundCursorLoader loader,
+            final ConversationMessagesPagingCursor pagingCursor) {
+        final String[] oldestKeyArgs = pagingCursor.getOldestMessageKeyArgs();
+        if (oldestKeyArgs != null) {
+            loader.setUri(MessagingContentProvider.buildConversationMessagesSinceUri(
+                    mConversationId, Long.parseLong(oldestKeyArgs[0]), oldestKeyArgs[2]));
+        }
+    }
+
+    /**
+     * Returns true if the conversation has messages older than the ones loaded so far.
+     */
+    public boolean hasOlderMessages() {
+        return mHasOlderMessages;
+    }
+
+    /**
+     * Extends the loaded window with the next page of older messages. The page is queried off
+     * the main thread and then reported as a message sync, so the list keeps its position
+     * relative to the bottom. Does nothing if a page is already loading.
+     */
+    @RunsOnMainThread
+    public void loadOlderMessages(final BindingBase<ConversationData> binding) {
+        Assert.isMainThread();
+        Assert.isTrue(binding.getData() == this);
+        final ConversationMessagesPagingCursor pagingCursor = mPagingCursor;
+        if (pagingCursor == null || !mHasOlderMessages || mLoadingOlderMessages) {
+            return;
+        }
+        final String[] oldestKeyArgs = pagingCursor.getOldestMessageKeyArgs();
+        if (oldestKeyArgs == null) {
+            return;
+        }
+        mLoadingOlderMessages = true;
+        final String bindingId = binding.getBindingId();
+        // Going through the provider gets the page the same change notifications as the window
+        final Uri uri = MessagingContentProvider.buildConversationOlderMessagesPageUri(
+                mConversationId, MESSAGES_PAGE_SIZE, Long.parseLong(oldestKeyArgs[0]),
+                oldestKeyArgs[2]);
+        new SafeAsyncTask<Void, Void, Cursor>() {
+            @Override
+            protected Cursor doInBackgroundTimed(final Void... params) {
+                final Cursor page = mContext.getContentResolver().query(uri,
+                        ConversationMessageData.getProjection(), null, null, null);
+                if (page != null) {
+                    // Fill the cursor window here rather than on the main thread
+                    page.getCount();
+                }
+                return page;
+            }
+
+            @Override
+            protected void onPostExecute(final Cursor page) {
+                mLoadingOlderMessages = false;
+                if (page == null) {
+                    return;
+                }
+                // Drop the page if we were unbound or the loader delivered a new window
+                // meanwhile; the next scroll will ask again from the new window.
+                if (!isBound(bindingId) || pagingCursor != mPagingCursor) {
+                    page.close();
+                    return;
+                }
+                mHasOlderMessages = page.getCount() >= MESSAGES_PAGE_SIZE;
+                if (page.getCount() == 0) {
+                    page.close();
+                    return;
+                }
+                mPagingCursor = pagingCursor.appendOlderPage(page);
+                final Loader<Cursor> loader =
+                        mLoaderManager.getLoader(CONVERSATION_MESSAGES_LOADER);
+                if (loader != null) {
+                    anchorMessagesLoader((BoundCursorLoader) loader, mPagingCursor);
+                }
+                mMessageCount = mPagingCursor.getCount();
+                mListeners.onConversationMessagesCursorUpdated(ConversationData.this,
+                        new ReversedCursor(mPagingCursor), null, true /* isSync */);
+            }
+        }.executeOnThreadPool();
+    }
+
     @Override
     protected void unregisterListeners() {
         mListeners.clear();
@@ -555,6 +672,10 @@ public class ConversationData extends BindableData {
             mLoaderManager.destroyLoader(SELF_PARTICIPANT_LOADER);
             mLoaderManager = null;
         }
+        if (mPagingCursor != null) {
+            mPagingCursor.close();
+            mPagingCursor = null;
+        }
     }
 
     /**
@@ -36,7 +36,7 @@ import com.android.messaging.util.Dates;
 import com.android.messaging.util.LogUtil;
 import com.google.common.annotations.VisibleForTesting;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -86,6 +86,58 @@ public class ConversationMessageData {
     public ConversationMessageData() {
     }
 
+    /**
+     * @return the id of the message the cursor is on, without binding to it
+     */
+    public static String getMessageId(final Cursor cursor) {
+        return cursor.getString(INDEX_MESSAGE_ID);
+    }
+
+    /**
+     * @return the concatenation of all text parts of the message the cursor is on, as returned
+     * by {@link #getText()}, reading only the part content types and texts
+     */
+    public static String getText(final Cursor cursor) {
+        final int partsCount = cursor.getInt(INDEX_PARTS_COUNT);
+        final String rawContentTypes = cursor.getString(INDEX_PARTS_CONTENT_TYPES);
+        final String rawTexts = cursor.getString(INDEX_PARTS_TEXTS);
+        if (partsCount == 1) {
+            return ContentType.isTextType(rawContentTypes) ? rawTexts : null;
+        }
+        final String[] contentTypes = splitQuotedString(rawContentTypes, partsCount);
+        final String[] texts = splitQuotedString(rawTexts, partsCount);
+        String firstTextPart = null;
+        boolean foundText = false;
+        StringBuilder sb = null;
+        String separator = null;
+        for (int i = 0; i < partsCount; i++) {
+            if (!ContentType.isTextType(contentTypes[i])) {
+                continue;
+            }
+            if (!foundText) {
+                firstTextPart = texts[i];
+                foundText = true;
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder();
+                if (!TextUtils.isEmpty(firstTextPart)) {
+                    sb.append(firstTextPart);
+                }
+                separator = BugleGservices.get().getString(
+                        BugleGservicesKeys.MMS_TEXT_CONCAT_SEPARATOR,
+                        BugleGservicesKeys.MMS_TEXT_CONCAT_SEPARATOR_DEFAULT);
+            }
+            if (!TextUtils.isEmpty(texts[i])) {
+                if (!TextUtils.isEmpty(separator) && sb.length() > 0) {
+                    sb.append(separator);
+                }
+                sb.append(texts[i]);
+            }
+        }
+        return sb == null ? firstTextPart : sb.toString();
+    }
+
     public void bind(final Cursor cursor) {
         mMessageId = cursor.getString(INDEX_MESSAGE_ID);
         mConversationId = cursor.getString(INDEX_CONVERSATION_ID);
@@ -160,31 +212,135 @@ public class ConversationMessageData {
         return true;
     }
 
-    private static final Character QUOTE_CHAR = '\'';
+    private static final char QUOTE_CHAR = '\'';
     private static final char DIVIDER = '|';
 
-    // statics to avoid unnecessary object allocation
-    private static final StringBuilder sUnquoteStringBuilder = new StringBuilder();
-    private static final ArrayList<String> sUnquoteResults = new ArrayList<String>();
+    // Splitting is done with locals only, so that messages bound on different threads (UI,
+    // notifications, widgets) don't contend for a lock.
 
-    // this lock is used to guard access to the above statics
-    private static final Object sUnquoteLock = new Object();
+    /**
+     * Reads the constituent strings of group-concated columns one at a time, so that all the
+     * part columns of a row can be split in a single pass. Only allocates a StringBuilder once a
+     * value contains escaped quotes.
+     */
+    private static final class ValueReader {
+        private StringBuilder mUnescaped;
+        // Where the value following the one last read starts
+        private int mNextPos;
+
+        private String readMissingValue(final int start) {
+            Assert.fail("Fewer values than parts in group-concated column");
+            mNextPos = start;
+            return "";
+        }
 
-    private static void addResult(final ArrayList<String> results, final StringBuilder value) {
-        if (value.length() > 0) {
-            results.add(value.toString());
-        } else {
-            results.add(EMPTY_STRING);
+        /**
+         * @return the unquoted value starting at start, up to the next divider
+         */
+        String readUnquoted(final String inputString, final int start) {
+            if (inputString == null || start > inputString.length()) {
+                return readMissingValue(start);
+            }
+            int dividerPos = inputString.indexOf(DIVIDER, start);
+            if (dividerPos < 0) {
+                dividerPos = inputString.length();
+            }
+            mNextPos = dividerPos + 1;
+            return inputString.substring(start, dividerPos);
+        }
+
+        /**
+         * @return the unescaped value of the quoted string starting at start, see
+         * {@link #splitQuotedString(String)}
+         */
+        String readQuoted(final String inputString, final int start) {
+            final int length = (inputString == null) ? 0 : inputString.length();
+            if (start >= length) {
+                return readMissingValue(start);
+            }
+            Assert.isTrue(QUOTE_CHAR == inputString.charAt(start));
+            final int valueStart = start + 1;
+            int segmentStart = valueStart;
+            boolean hasEscapedQuotes = false;
+            while (true) {
+                int quotePos = inputString.indexOf(QUOTE_CHAR, segmentStart);
+                if (quotePos < 0) {
+                    Assert.fail("Unterminated quoted string");
+                    quotePos = length;
+                }
+                if (quotePos < length - 1 && inputString.charAt(quotePos + 1) == QUOTE_CHAR) {
+                    if (mUnescaped == null) {
+                        mUnescaped = new StringBuilder(length);
+                    } else if (!hasEscapedQuotes) {
+                        mUnescaped.setLength(0);
+                    }
+                    // Keep the first quote and skip the second one
+                    mUnescaped.append(inputString, segmentStart, quotePos + 1);
+                    segmentStart = quotePos + 2;
+                    hasEscapedQuotes = true;
+                    continue;
+                }
+
+                final String value;
+                if (hasEscapedQuotes) {
+                    mUnescaped.append(inputString, segmentStart, quotePos);
+                    value = mUnescaped.toString();
+                } else {
+                    value = inputString.substring(valueStart, quotePos);
+                }
+                final int endPos = quotePos + 1;
+                Assert.isTrue(endPos >= length || inputString.charAt(endPos) == DIVIDER);
+                mNextPos = endPos + 1;  // skip the divider
+                return value;
+            }
+        }
+
+        int getNextPos() {
+            return mNextPos;
         }
     }
 
+    private static String[] addResult(String[] results, final int index, final String value) {
+        if (index == results.length) {
+            results = Arrays.copyOf(results, Math.max(1, index * 2));
+        }
+        results[index] = value;
+        return results;
+    }
+
+    private static String[] trimResults(final String[] results, final int count) {
+        return count == results.length ? results : Arrays.copyOf(results, count);
+    }
+
     @VisibleForTesting
     static String[] splitUnquotedString(final String inputString) {
+        return splitUnquotedString(inputString, 0);
+    }
+
+    /**
+     * Same as {@link #splitUnquotedString(String)}, sizing the result for the number of
+     * constituent strings the caller expects.
+     */
+    private static String[] splitUnquotedString(final String inputString,
+            final int expectedCount) {
         if (TextUtils.isEmpty(inputString)) {
             return new String[0];
         }
 
-        return inputString.split("\\" + DIVIDER);
+        final int length = inputString.length();
+        final ValueReader reader = new ValueReader();
+        String[] results = new String[expectedCount];
+        int count = 0;
+        int characterPos = 0;
+        while (characterPos <= length) {
+            results = addResult(results, count++, reader.readUnquoted(inputString, characterPos));
+            characterPos = reader.getNextPos();
+        }
+        // Drop trailing empty strings, like String.split() used to
+        while (count > 0 && results[count - 1].isEmpty()) {
+            count--;
+        }
+        return trimResults(results, count);
     }
 
     /**
@@ -200,52 +356,38 @@ public class ConversationMessageData {
      * I can't do it
      * foo
      *
-     * This is achieved by walking through the inputString, character by character,
-     * ignoring the outer quotes and the divider and replacing any pair of consecutive
-     * single quotes with a single single quote.
+     * This is achieved by walking through the inputString from quote to quote, taking each
+     * constituent string as a substring, and only copying it when it contains a pair of
+     * consecutive single quotes that need to be replaced with a single single quote.
      *
      * @param inputString
      * @return array of constituent strings
      */
     @VisibleForTesting
     static String[] splitQuotedString(final String inputString) {
+        return splitQuotedString(inputString, 0);
+    }
+
+    /**
+     * Same as {@link #splitQuotedString(String)}, sizing the result for the number of
+     * constituent strings the caller expects.
+     */
+    private static String[] splitQuotedString(final String inputString,
+            final int expectedCount) {
         if (TextUtils.isEmpty(inputString)) {
             return new String[0];
         }
 
-        // this method can be called from multiple threads but it uses a static
-        // string builder
-        synchronized (sUnquoteLock) {
-            final int length = inputString.length();
-            final ArrayList<String> results = sUnquoteResults;
-            results.clear();
-
-            int characterPos = -1;
-            while (++characterPos < length) {
-                final char mustBeQuote = inputString.charAt(characterPos);
-                Assert.isTrue(QUOTE_CHAR == mustBeQuote);
-                while (++characterPos < length) {
-                    final char currentChar = inputString.charAt(characterPos);
-                    if (currentChar == QUOTE_CHAR) {
-                        final char peekAhead = characterPos < length - 1
-                                ? inputString.charAt(characterPos + 1) : 0;
-
-                        if (peekAhead == QUOTE_CHAR) {
-                            characterPos += 1;  // skip the second quote
-                        } else {
-                            addResult(results, sUnquoteStringBuilder);
-                            sUnquoteStringBuilder.setLength(0);
-
-                            Assert.isTrue((peekAhead == DIVIDER) || (peekAhead == (char) 0));
-                            characterPos += 1;  // skip the divider
-                            break;
-                        }
-                    }
-                    sUnquoteStringBuilder.append(currentChar);
-                }
-            }
-            return results.toArray(new String[results.size()]);
+        final int length = inputString.length();
+        final ValueReader reader = new ValueReader();
+        String[] results = new String[expectedCount];
+        int count = 0;
+        int characterPos = 0;
+        while (characterPos < length) {
+            results = addResult(results, count++, reader.readQuoted(inputString, characterPos));
+            characterPos = reader.getNextPos();
         }
+        return trimResults(results, count);
     }
 
     static MessagePartData makePartData(
@@ -294,16 +436,37 @@ public class ConversationMessageData {
                     rawTexts,
                     messageId));
         } else {
-            unpackMessageParts(
-                    parts,
-                    splitUnquotedString(rawIds),
-                    splitQuotedString(rawContentTypes),
-                    splitQuotedString(rawContentUris),
-                    splitUnquotedString(rawWidths),
-                    splitUnquotedString(rawHeights),
-                    splitQuotedString(rawTexts),
-                    partsCount,
-                    messageId);
+            // One pass over the row, reading the value of every column for a part before moving
+            // on to the next part
+            final String[] ids = new String[partsCount];
+            final String[] contentTypes = new String[partsCount];
+            final String[] contentUris = new String[partsCount];
+            final String[] widths = new String[partsCount];
+            final String[] heights = new String[partsCount];
+            final String[] texts = new String[partsCount];
+            final ValueReader reader = new ValueReader();
+            int idPos = 0;
+            int contentTypePos = 0;
+            int contentUriPos = 0;
+            int widthPos = 0;
+            int heightPos = 0;
+            int textPos = 0;
+            for (int i = 0; i < partsCount; i++) {
+                ids[i] = reader.readUnquoted(rawIds, idPos);
+                idPos = reader.getNextPos();
+                contentTypes[i] = reader.readQuoted(rawContentTypes, contentTypePos);
+                contentTypePos = reader.getNextPos();
+                contentUris[i] = reader.readQuoted(rawContentUris, contentUriPos);
+                contentUriPos = reader.getNextPos();
+                widths[i] = reader.readUnquoted(rawWidths, widthPos);
+                widthPos = reader.getNextPos();
+                heights[i] = reader.readUnquoted(rawHeights, heightPos);
+                heightPos = reader.getNextPos();
+                texts[i] = reader.readQuoted(rawTexts, textPos);
+                textPos = reader.getNextPos();
+            }
+            unpackMessageParts(parts, ids, contentTypes, contentUris, widths, heights, texts,
+                    partsCount, messageId);
         }
         return parts;
     }
@@ -636,6 +799,60 @@ public class ConversationMessageData {
                 + CONVERSATION_MESSAGES_QUERY_SQL_GROUP_BY;
     }
 
+    /**
+     * Query for the newest page of messages in a conversation, taking the conversation id as its
+     * only argument. Rows are ordered by (received_timestamp, _id) DESC so that the page can be
+     * extended with {@link #getConversationOlderMessagesQuerySql}.
+     */
+    public static final String getConversationNewestMessagesQuerySql(final int pageSize) {
+        return CONVERSATION_MESSAGES_QUERY_SQL
+                + " AND "
+                // Inject the conversation id
+                + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.CONVERSATION_ID + "=?)"
+                + CONVERSATION_MESSAGES_KEYSET_QUERY_SQL_GROUP_BY
+                + " LIMIT " + pageSize;
+    }
+
+    /**
+     * Query for the page of messages immediately older than a given message. Arguments are the
+     * conversation id followed by {@link #getMessageKeyArgs} of the oldest message already held.
+     */
+    public static final String getConversationOlderMessagesQuerySql(final int pageSize) {
+        return CONVERSATION_MESSAGES_QUERY_SQL
+                + " AND "
+                // Inject the conversation id
+                + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.CONVERSATION_ID + "=?"
+                + " AND "
+                + CONVERSATION_MESSAGES_OLDER_THAN_KEY_SQL + ")"
+                + CONVERSATION_MESSAGES_KEYSET_QUERY_SQL_GROUP_BY
+                + " LIMIT " + pageSize;
+    }
+
+    /**
+     * Query for all messages at or after a given message, i.e. a window anchored at its oldest
+     * message that grows as new messages arrive. Arguments are the conversation id followed by
+     * {@link #getMessageKeyArgs} of the oldest message in the window.
+     */
+    public static final String getConversationMessagesSinceQuerySql() {
+        return CONVERSATION_MESSAGES_QUERY_SQL
+                + " AND "
+                // Inject the conversation id
+                + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.CONVERSATION_ID + "=?"
+                + " AND NOT "
+                + CONVERSATION_MESSAGES_OLDER_THAN_KEY_SQL + ")"
+                + CONVERSATION_MESSAGES_KEYSET_QUERY_SQL_GROUP_BY;
+    }
+
+    /**
+     * Builds the keyset arguments for the message at the cursor's current position, to be used
+     * after the conversation id with the older/since messages queries.
+     */
+    static String[] getMessageKeyArgs(final Cursor cursor) {
+        final String receivedTimestamp = String.valueOf(cursor.getLong(INDEX_RECEIVED_TIMESTAMP));
+        return new String[] {
+                receivedTimestamp, receivedTimestamp, cursor.getString(INDEX_MESSAGE_ID) };
+    }
+
     static final String getConversationMessageIdsQuerySql() {
         return CONVERSATION_MESSAGES_IDS_QUERY_SQL
                 + " AND "
@@ -656,6 +873,25 @@ public class ConversationMessageData {
                 + NOTIFICATION_QUERY_SQL_GROUP_BY;
     }
 
+    /**
+     * Same as {@link #getNotificationQuerySql()}, limited to the conversation whose id is the
+     * only argument.
+     */
+    public static final String getConversationNotificationQuerySql() {
+        return CONVERSATION_MESSAGES_QUERY_SQL
+                + " AND "
+                // Inject the conversation id
+                + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.CONVERSATION_ID + "=?"
+                + " AND "
+                + "(" + DatabaseHelper.MessageColumns.STATUS + " in ("
+                + MessageData.BUGLE_STATUS_INCOMING_COMPLETE + ", "
+                + MessageData.BUGLE_STATUS_INCOMING_YET_TO_MANUAL_DOWNLOAD + ")"
+                + " AND "
+                + DatabaseHelper.MessageColumns.SEEN + " = 0)"
+                + ")"
+                + NOTIFICATION_QUERY_SQL_GROUP_BY;
+    }
+
     public static final String getWearableQuerySql() {
         return CONVERSATION_MESSAGES_QUERY_SQL
                 + " AND "
@@ -709,8 +945,6 @@ public class ConversationMessageData {
     private static final String CONVERSATION_MESSAGE_VIEW_PARTS_COUNT =
             "count(" + DatabaseHelper.PARTS_TABLE + '.' + PartColumns._ID + ")";
 
-    private static final String EMPTY_STRING = "";
-
     private static final String CONVERSATION_MESSAGES_QUERY_PROJECTION_SQL =
             DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID
             + " as " + ConversationMessageViewColumns._ID + ", "
@@ -816,6 +1050,17 @@ public class ConversationMessageData {
           + " ORDER BY "
           + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP + " DESC";
 
+    // Paged variant of the above; _id breaks ties between messages received in the same
+    // millisecond so that (received_timestamp, _id) is a stable key to page from.
+    private static final String CONVERSATION_MESSAGES_KEYSET_QUERY_SQL_GROUP_BY =
+            CONVERSATION_MESSAGES_QUERY_SQL_GROUP_BY + ", "
+          + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID + " DESC";
+
+    private static final String CONVERSATION_MESSAGES_OLDER_THAN_KEY_SQL =
+            "(" + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP + "<?"
+          + " OR (" + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP
+          + "=? AND " + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID + "<?))";
+
     private static final String NOTIFICATION_QUERY_SQL_GROUP_BY =
             " GROUP BY " + DatabaseHelper.PARTS_TABLE + '.' + PartColumns.MESSAGE_ID
           + " ORDER BY "
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import com.android.messaging.util.Assert;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A window over the newest messages of a conversation, sorted DESC like the conversation
+ * messages query. The newest page comes from the messages loader and older pages are appended
+ * as the user scrolls back, so extending the window never re-reads rows we already hold.
+ *
+ * The newest page belongs to the loader, which closes it when it delivers new data; this cursor
+ * only closes the older pages it owns.
+ */
+class ConversationMessagesPagingCursor extends AbstractCursor {
+    private final Cursor mNewestPage;
+    private final List<Cursor> mOlderPages;
+    private final Cursor[] mPages;
+    private final int[] mPageStarts;
+    private final int mCount;
+    private Cursor mCurrentPage;
+
+    // Set once our older pages have been handed over to a longer window
+    private boolean mOlderPagesTransferred;
+
+    ConversationMessagesPagingCursor(final Cursor newestPage) {
+        this(newestPage, new ArrayList<Cursor>());
+    }
+
+    private ConversationMessagesPagingCursor(final Cursor newestPage,
+            final List<Cursor> olderPages) {
+        mNewestPage = newestPage;
+        mOlderPages = olderPages;
+        mPages = new Cursor[olderPages.size() + 1];
+        mPageStarts = new int[mPages.length];
+        mPages[0] = newestPage;
+        for (int i = 0; i < olderPages.size(); i++) {
+            mPages[i + 1] = olderPages.get(i);
+        }
+        int count = 0;
+        for (int i = 0; i < mPages.length; i++) {
+            mPageStarts[i] = count;
+            count += mPages[i].getCount();
+        }
+        mCount = count;
+    }
+
+    /**
+     * Returns a new cursor which is this window extended by a page of older messages. Ownership
+     * of the older pages moves to the returned cursor, so closing this one afterwards only
+     * releases it.
+     */
+    ConversationMessagesPagingCursor appendOlderPage(final Cursor olderPage) {
+        Assert.isTrue(!mOlderPagesTransferred);
+        final List<Cursor> olderPages = new ArrayList<Cursor>(mOlderPages);
+        olderPages.add(olderPage);
+        mOlderPagesTransferred = true;
+        return new ConversationMessagesPagingCursor(mNewestPage, olderPages);
+    }
+
+    /**
+     * Returns the keyset arguments of the oldest message in this window, or null if the window
+     * is empty.
+     */
+    String[] getOldestMessageKeyArgs() {
+        if (mCount == 0) {
+            return null;
+        }
+        final Cursor oldestPage = mPages[mPages.length - 1];
+        final int position = oldestPage.getPosition();
+        oldestPage.moveToPosition(oldestPage.getCount() - 1);
+        final String[] keyArgs = ConversationMessageData.getMessageKeyArgs(oldestPage);
+        oldestPage.moveToPosition(position);
+        return keyArgs;
+    }
+
+    @VisibleForTesting
+    int getPageCount() {
+        return mPages.length;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public boolean onMove(final int oldPosition, final int newPosition) {
+        int page = mPages.length - 1;
+        while (page > 0 && mPageStarts[page] > newPosition) {
+            page--;
+        }
+        mCurrentPage = mPages[page];
+        return mCurrentPage.moveToPosition(newPosition - mPageStarts[page]);
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mNewestPage.getColumnNames();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return mNewestPage.getColumnCount();
+    }
+
+    @Override
+    public int getColumnIndex(final String columnName) {
+        return mNewestPage.getColumnIndex(columnName);
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(final String columnName) {
+        return mNewestPage.getColumnIndexOrThrow(columnName);
+    }
+
+    @Override
+    public String getString(final int column) {
+        return mCurrentPage.getString(column);
+    }
+
+    @Override
+    public short getShort(final int column) {
+        return mCurrentPage.getShort(column);
+    }
+
+    @Override
+    public int getInt(final int column) {
+        return mCurrentPage.getInt(column);
+    }
+
+    @Override
+    public long getLong(final int column) {
+        return mCurrentPage.getLong(column);
+    }
+
+    @Override
+    public float getFloat(final int column) {
+        return mCurrentPage.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(final int column) {
+        return mCurrentPage.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(final int column) {
+        return mCurrentPage.getBlob(column);
+    }
+
+    @Override
+    public int getType(final int column) {
+        return mCurrentPage.getType(column);
+    }
+
+    @Override
+    public boolean isNull(final int column) {
+        return mCurrentPage.isNull(column);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (!mOlderPagesTransferred) {
+            for (final Cursor page : mOlderPages) {
+                page.close();
+            }
+            mOlderPagesTransferred = true;
+        }
+    }
+}
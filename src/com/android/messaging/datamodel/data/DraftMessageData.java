@@ -269,6 +269,18 @@ public class DraftMessageData extends BindableData implements ReadDraftDataActio
         setMessageText(messageText, false);
     }
 
+    /**
+     * Sets the message text after an edit where the count characters at start replaced the
+     * before characters of the previous text, as reported by a TextWatcher, so that only those
+     * characters are recounted for the message length.
+     */
+    public void setMessageText(final String messageText, final int start, final int before,
+            final int count) {
+        mMessageText = messageText;
+        mMessageTextStats.updateMessageTextStats(getSelfSubId(), mMessageText, start, before,
+                count);
+    }
+
     public void setMessageSubject(final String subject) {
         setMessageSubject(subject, false);
     }
@@ -18,6 +18,9 @@ package com.android.messaging.datamodel.media;
 import com.android.messaging.datamodel.binding.BindableOnceData;
 import com.android.messaging.datamodel.media.MediaResourceManager.MediaResourceLoadListener;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * The {@link MediaRequest} interface is threading-model-oblivious, allowing the implementations to
  * be processed synchronously or asynchronously.
@@ -28,6 +31,8 @@ public abstract class BindableMediaRequest<T extends RefCountedMediaResource>
         extends BindableOnceData
         implements MediaRequest<T>, MediaResourceLoadListener<T> {
     private MediaResourceLoadListener<T> mListener;
+    // Run once this request is unbound, guarded by itself
+    private final List<Runnable> mOnUnboundListeners = new ArrayList<Runnable>();
 
     public BindableMediaRequest(final MediaResourceLoadListener<T> listener) {
         mListener = listener;
@@ -56,6 +61,30 @@ public abstract class BindableMediaRequest<T extends RefCountedMediaResource>
         }
     }
 
+    /**
+     * Adds a listener to run once this request is unbound, e.g. to stop loading media for it.
+     * Listeners added after the request was unbound are never run.
+     */
+    void addOnUnboundListener(final Runnable listener) {
+        synchronized (mOnUnboundListeners) {
+            mOnUnboundListeners.add(listener);
+        }
+    }
+
+    @Override
+    public void unbind(final String bindingId) {
+        super.unbind(bindingId);
+        // Only now does isBound() return false
+        final Runnable[] listeners;
+        synchronized (mOnUnboundListeners) {
+            listeners = mOnUnboundListeners.toArray(new Runnable[mOnUnboundListeners.size()]);
+            mOnUnboundListeners.clear();
+        }
+        for (final Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
     @Override
     protected void unregisterListeners() {
         mListener = null;
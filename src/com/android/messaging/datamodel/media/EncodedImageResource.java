@@ -23,6 +23,7 @@ import android.graphics.drawable.Drawable;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
@@ -40,6 +41,9 @@ import java.util.List;
  * be consumed by the UI.
  */
 public class EncodedImageResource extends ImageResource {
+    // The orientation stored ahead of the image bytes in the disk cache
+    private static final int DISK_CACHE_HEADER_SIZE = 4;
+
     private final byte[] mImageBytes;
 
     public EncodedImageResource(String key, byte[] imageBytes, int orientation) {
@@ -47,6 +51,35 @@ public class EncodedImageResource extends ImageResource {
         mImageBytes = imageBytes;
     }
 
+    /**
+     * Creates a resource from the bytes stored in {@link MediaDiskCache} by
+     * {@link #getDiskCacheBytes()}, or returns null if they aren't valid.
+     */
+    static EncodedImageResource fromDiskCacheBytes(final String key, final byte[] bytes) {
+        if (bytes.length <= DISK_CACHE_HEADER_SIZE) {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final int orientation = buffer.getInt();
+        return new EncodedImageResource(key,
+                Arrays.copyOfRange(bytes, DISK_CACHE_HEADER_SIZE, bytes.length), orientation);
+    }
+
+    /**
+     * Gets the bytes to store in {@link MediaDiskCache}: the orientation followed by the image.
+     */
+    byte[] getDiskCacheBytes() {
+        acquireLock();
+        try {
+            return ByteBuffer.allocate(DISK_CACHE_HEADER_SIZE + mImageBytes.length)
+                    .putInt(getOrientation())
+                    .put(mImageBytes)
+                    .array();
+        } finally {
+            releaseLock();
+        }
+    }
+
     @Override
     @DoesNotRunOnMainThread
     public Bitmap getBitmap() {
@@ -37,6 +37,8 @@ public class MediaCache<T extends RefCountedMediaResource> extends LruCache<Stri
     private final int mId;
     // Descriptive name given to the cache for debugging purposes.
     private final String mName;
+    // Number of requests that shared the load of an identical request already in flight.
+    private int mCoalescedCount;
 
     // Convenience constructor that uses the default cache size.
     public MediaCache(final int id, final String name) {
@@ -71,17 +73,35 @@ public class MediaCache<T extends RefCountedMediaResource> extends LruCache<Stri
             if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
                 LogUtil.v(TAG, "cache hit in mediaCache @ " + getName() +
                         ", total cache hit = " + hitCount() +
-                        ", total cache miss = " + missCount());
+                        ", total cache miss = " + missCount() +
+                        ", total coalesced = " + coalescedCount());
             }
             ret.addRef();
         } else if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
             LogUtil.v(TAG, "cache miss in mediaCache @ " + getName() +
                     ", total cache hit = " + hitCount() +
-                    ", total cache miss = " + missCount());
+                    ", total cache miss = " + missCount() +
+                    ", total coalesced = " + coalescedCount());
         }
         return ret;
     }
 
+    /**
+     * Records a request for a resource of this cache that didn't need its own load, because an
+     * identical request was already loading the resource.
+     */
+    public synchronized void onRequestCoalesced() {
+        mCoalescedCount++;
+    }
+
+    /**
+     * Returns the number of requests for resources of this cache that shared the load of an
+     * identical request, see {@link #onRequestCoalesced()}.
+     */
+    public synchronized int coalescedCount() {
+        return mCoalescedCount;
+    }
+
     /**
      * Add a media resource to this cache. Must use this method to add resource instead of put()
      * to ensure addRef() on the resource.
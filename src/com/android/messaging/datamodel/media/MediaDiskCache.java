@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.media;
+
+import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
+import com.android.messaging.util.LogUtil;
+import com.google.common.io.Files;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A size-bounded LRU cache of media bytes on disk, used as a second tier behind the in-memory
+ * {@link MediaCache}s so that media doesn't need to be loaded from its source again after it was
+ * evicted from memory or after a process restart.
+ *
+ * Each entry is stored in its own file, named after hashes of the media it was made from and of
+ * the media request key (keys can contain phone numbers), so that the entries of a media can be
+ * found (through an in-memory index by media) and removed once it is deleted. A journal of the
+ * entries added, read and removed lets the LRU order survive process restarts; it is replayed
+ * when the cache is opened and compacted once it grows much larger than the number of entries.
+ */
+public class MediaDiskCache {
+    private static final String TAG = LogUtil.BUGLE_IMAGE_TAG;
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_TEMP_FILE = "journal.tmp";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final char FILE_NAME_SEPARATOR = '_';
+
+    private static final String OP_PUT = "P";
+    private static final String OP_READ = "R";
+    private static final String OP_REMOVE = "D";
+
+    // Compact the journal once it has this many more lines than there are entries
+    private static final int MAX_REDUNDANT_JOURNAL_OPS = 2000;
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+    // Entry file names mapped to their sizes, in LRU order
+    private final LinkedHashMap<String, Long> mEntries =
+            new LinkedHashMap<String, Long>(16, 0.75f, true /* accessOrder */);
+    // Hashes of the media entries were made from, mapped to the file names of those entries, so
+    // that removing the entries of a media doesn't scan all entries
+    private final HashMap<String, Set<String>> mSourceEntries = new HashMap<String, Set<String>>();
+    private long mSizeBytes;
+    private int mJournalOpCount;
+    private Writer mJournalWriter;
+    private int mTempFileCount;
+
+    private MediaDiskCache(final File directory, final long maxSizeBytes) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Opens the cache stored in the given directory, creating it if needed.
+     *
+     * @return the cache, or null if it couldn't be opened
+     */
+    @DoesNotRunOnMainThread
+    public static MediaDiskCache open(final File directory, final long maxSizeBytes) {
+        final MediaDiskCache cache = new MediaDiskCache(directory, maxSizeBytes);
+        try {
+            cache.load();
+            return cache;
+        } catch (final IOException e) {
+            LogUtil.w(TAG, "MediaDiskCache: could not open cache in " + directory, e);
+            return null;
+        }
+    }
+
+    private synchronized void load() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+        final File journal = new File(mDirectory, JOURNAL_FILE);
+        if (journal.exists()) {
+            replayJournal(journal);
+        }
+
+        // Drop entries whose files are gone, and files (e.g. from interrupted writes) that no
+        // entry refers to
+        mSizeBytes = 0;
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            final File file = new File(mDirectory, entry.getKey());
+            if (file.length() != entry.getValue()) {
+                file.delete();
+                iterator.remove();
+            } else {
+                mSizeBytes += entry.getValue();
+                addToSourceEntries(entry.getKey());
+            }
+        }
+        final String[] fileNames = mDirectory.list();
+        if (fileNames != null) {
+            for (final String fileName : fileNames) {
+                if (!JOURNAL_FILE.equals(fileName) && !mEntries.containsKey(fileName)) {
+                    new File(mDirectory, fileName).delete();
+                }
+            }
+        }
+
+        rewriteJournal();
+        trimToSize();
+    }
+
+    private void replayJournal(final File journal) throws IOException {
+        final BufferedReader reader = new BufferedReader(new FileReader(journal));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(" ");
+                if (fields.length == 3 && OP_PUT.equals(fields[0])) {
+                    try {
+                        mEntries.put(fields[1], Long.parseLong(fields[2]));
+                    } catch (final NumberFormatException e) {
+                        // A partially written last line, ignore it
+                    }
+                } else if (fields.length == 2 && OP_READ.equals(fields[0])) {
+                    mEntries.get(fields[1]);
+                } else if (fields.length == 2 && OP_REMOVE.equals(fields[0])) {
+                    mEntries.remove(fields[1]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes a journal with just the current entries, in LRU order.
+     */
+    private void rewriteJournal() throws IOException {
+        if (mJournalWriter != null) {
+            mJournalWriter.close();
+            mJournalWriter = null;
+        }
+        final File tempJournal = new File(mDirectory, JOURNAL_TEMP_FILE);
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tempJournal), StandardCharsets.UTF_8));
+        try {
+            for (final Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(OP_PUT + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tempJournal.renameTo(new File(mDirectory, JOURNAL_FILE))) {
+            throw new IOException("Can't replace journal in " + mDirectory);
+        }
+        mJournalOpCount = mEntries.size();
+        mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(mDirectory, JOURNAL_FILE), true /* append */),
+                StandardCharsets.UTF_8));
+    }
+
+    private void appendToJournal(final String op, final String fileName, final long size) {
+        if (mJournalWriter == null) {
+            // Couldn't rewrite the journal earlier
+            return;
+        }
+        try {
+            if (OP_PUT.equals(op)) {
+                mJournalWriter.write(op + " " + fileName + " " + size + "\n");
+            } else {
+                mJournalWriter.write(op + " " + fileName + "\n");
+            }
+            mJournalWriter.flush();
+            mJournalOpCount++;
+            if (mJournalOpCount - mEntries.size() > MAX_REDUNDANT_JOURNAL_OPS) {
+                rewriteJournal();
+            }
+        } catch (final IOException e) {
+            // Only the LRU order (and possibly some entries) will be lost after a restart
+            LogUtil.w(TAG, "MediaDiskCache: could not update journal", e);
+        }
+    }
+
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        final List<String> evicted = new ArrayList<String>();
+        while (mSizeBytes > mMaxSizeBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            mSizeBytes -= entry.getValue();
+            evicted.add(entry.getKey());
+            iterator.remove();
+        }
+        for (final String fileName : evicted) {
+            removeFromSourceEntries(fileName);
+            new File(mDirectory, fileName).delete();
+            appendToJournal(OP_REMOVE, fileName, 0);
+        }
+    }
+
+    private void addToSourceEntries(final String fileName) {
+        final String sourceHash = getSourceHash(fileName);
+        Set<String> fileNames = mSourceEntries.get(sourceHash);
+        if (fileNames == null) {
+            fileNames = new HashSet<String>();
+            mSourceEntries.put(sourceHash, fileNames);
+        }
+        fileNames.add(fileName);
+    }
+
+    private void removeFromSourceEntries(final String fileName) {
+        final String sourceHash = getSourceHash(fileName);
+        final Set<String> fileNames = mSourceEntries.get(sourceHash);
+        if (fileNames != null && fileNames.remove(fileName) && fileNames.isEmpty()) {
+            mSourceEntries.remove(sourceHash);
+        }
+    }
+
+    /**
+     * Returns the bytes stored for the given media request key, or null if there are none.
+     * @param source the media the entry was made from, e.g. its uri
+     */
+    @DoesNotRunOnMainThread
+    public byte[] get(final String source, final String key) {
+        final String fileName = getFileName(source, key);
+        synchronized (this) {
+            if (mEntries.get(fileName) == null) {
+                return null;
+            }
+            appendToJournal(OP_READ, fileName, 0);
+        }
+        try {
+            return Files.toByteArray(new File(mDirectory, fileName));
+        } catch (final IOException e) {
+            // Most likely evicted since we looked it up
+            return null;
+        }
+    }
+
+    /**
+     * Stores the bytes for the given media request key, evicting the least recently used entries
+     * if the cache grows too large.
+     * @param source the media the entry was made from, e.g. its uri
+     */
+    @DoesNotRunOnMainThread
+    public void put(final String source, final String key, final byte[] data) {
+        if (data.length > mMaxSizeBytes) {
+            return;
+        }
+        final String fileName = getFileName(source, key);
+        final File tempFile;
+        synchronized (this) {
+            tempFile = new File(mDirectory, fileName + "." + (mTempFileCount++)
+                    + TEMP_FILE_SUFFIX);
+        }
+        try {
+            final FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        } catch (final IOException e) {
+            LogUtil.w(TAG, "MediaDiskCache: could not write entry", e);
+            tempFile.delete();
+            return;
+        }
+
+        synchronized (this) {
+            if (!tempFile.renameTo(new File(mDirectory, fileName))) {
+                LogUtil.w(TAG, "MediaDiskCache: could not commit entry");
+                tempFile.delete();
+                return;
+            }
+            final Long previousSize = mEntries.put(fileName, (long) data.length);
+            if (previousSize != null) {
+                mSizeBytes -= previousSize;
+            } else {
+                addToSourceEntries(fileName);
+            }
+            mSizeBytes += data.length;
+            appendToJournal(OP_PUT, fileName, data.length);
+            trimToSize();
+        }
+    }
+
+    /**
+     * Removes all the entries made from the given media, e.g. after it was deleted.
+     */
+    @DoesNotRunOnMainThread
+    public synchronized void remove(final String source) {
+        final Set<String> removed = mSourceEntries.remove(getHash(source));
+        if (removed == null) {
+            return;
+        }
+        for (final String fileName : removed) {
+            final Long size = mEntries.remove(fileName);
+            if (size != null) {
+                mSizeBytes -= size;
+            }
+            new File(mDirectory, fileName).delete();
+            appendToJournal(OP_REMOVE, fileName, 0);
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    @DoesNotRunOnMainThread
+    public synchronized void clear() {
+        for (final String fileName : mEntries.keySet()) {
+            new File(mDirectory, fileName).delete();
+        }
+        mEntries.clear();
+        mSourceEntries.clear();
+        mSizeBytes = 0;
+        try {
+            rewriteJournal();
+        } catch (final IOException e) {
+            LogUtil.w(TAG, "MediaDiskCache: could not clear journal", e);
+        }
+    }
+
+    public synchronized long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    private static String getFileName(final String source, final String key) {
+        return getHash(source) + FILE_NAME_SEPARATOR + getHash(key);
+    }
+
+    private static String getSourceHash(final String fileName) {
+        final int separatorPos = fileName.indexOf(FILE_NAME_SEPARATOR);
+        return separatorPos < 0 ? fileName : fileName.substring(0, separatorPos);
+    }
+
+    private static String getHash(final String value) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    value.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder hash = new StringBuilder(digest.length * 2);
+            for (final byte b : digest) {
+                hash.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hash.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hash.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            // SHA-1 is always available
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.media;
+
+import com.android.messaging.util.Assert.RunsOnAnyThread;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs async media loading tasks on a fixed pool of threads sized after the number of cores.
+ *
+ * Waiting tasks are ordered by priority, so that media shown on screen is loaded before media
+ * that is only prefetched, and then newest first: when scrolling quickly, the newest requests are
+ * the ones for what is on screen now. Tasks are taken off the queue with {@link #cancelIfObsolete}
+ * as soon as their owners stop needing them, and any that become obsolete too late for that are
+ * dropped instead of run when a thread picks them up.
+ */
+class MediaLoadingExecutor {
+    // Keep the number of threads bounded, each one may be holding a large bitmap
+    private static final int MIN_THREAD_COUNT = 2;
+    private static final int MAX_THREAD_COUNT = 10;
+
+    /**
+     * The owner of a queued task, which tells whether the task is still needed.
+     */
+    interface TaskOwner {
+        /**
+         * Whether the task isn't needed anymore. Called on any thread.
+         */
+        boolean isObsolete();
+
+        /**
+         * Called instead of running the task once it is obsolete, either on the thread that
+         * cancelled it or on the loading thread.
+         */
+        void onDropped();
+    }
+
+    /**
+     * A queued task, ordered by priority and then newest first.
+     */
+    static class Task implements Runnable, Comparable<Task> {
+        private final Runnable mRunnable;
+        private final TaskOwner mOwner;
+        private int mPriority;
+        private long mSequence;
+
+        private Task(final Runnable runnable, final TaskOwner owner, final int priority,
+                final long sequence) {
+            mRunnable = runnable;
+            mOwner = owner;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if (mOwner != null && mOwner.isObsolete()) {
+                mOwner.onDropped();
+                return;
+            }
+            mRunnable.run();
+        }
+
+        @Override
+        public int compareTo(final Task other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            return Long.compare(other.mSequence, mSequence);
+        }
+    }
+
+    private final PriorityBlockingQueue<Runnable> mQueue = new PriorityBlockingQueue<Runnable>();
+    private final ThreadPoolExecutor mPool;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    MediaLoadingExecutor() {
+        this(getDefaultThreadCount());
+    }
+
+    @VisibleForTesting
+    MediaLoadingExecutor(final int threadCount) {
+        mPool = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.SECONDS, mQueue,
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(runnable, "MediaLoading #" + mCount.incrementAndGet());
+                    }
+                });
+    }
+
+    @VisibleForTesting
+    static int getDefaultThreadCount() {
+        final int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(MIN_THREAD_COUNT, Math.min(MAX_THREAD_COUNT, cores + 1));
+    }
+
+    /**
+     * Queues a task with the given priority.
+     *
+     * @param owner the owner of the task, or null if the task can't become obsolete
+     * @return the queued task
+     */
+    @RunsOnAnyThread
+    Task execute(final Runnable runnable, final int priority, final TaskOwner owner) {
+        final Task task = new Task(runnable, owner, priority, mSequence.incrementAndGet());
+        mPool.execute(task);
+        return task;
+    }
+
+    /**
+     * Moves a task that is still waiting ahead of the waiting tasks with a lower priority.
+     */
+    @RunsOnAnyThread
+    void raisePriority(final Task task, final int priority) {
+        // The queue doesn't reorder tasks in place, so take it out and put it back in
+        if (task.mPriority < priority && mQueue.remove(task)) {
+            task.mPriority = priority;
+            task.mSequence = mSequence.incrementAndGet();
+            mQueue.offer(task);
+        }
+    }
+
+    /**
+     * Takes a task that is still waiting off the queue if its owner doesn't need it anymore.
+     *
+     * @return true if the task was dropped
+     */
+    @RunsOnAnyThread
+    boolean cancelIfObsolete(final Task task) {
+        if (task.mOwner != null && task.mOwner.isObsolete() && mQueue.remove(task)) {
+            task.mOwner.onDropped();
+            return true;
+        }
+        return false;
+    }
+
+    @VisibleForTesting
+    int getQueuedTaskCount() {
+        return mQueue.size();
+    }
+}
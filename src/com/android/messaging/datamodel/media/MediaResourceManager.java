@@ -15,15 +15,19 @@
  */
 package com.android.messaging.datamodel.media;
 
+import android.net.Uri;
 import android.os.AsyncTask;
 
 import com.android.messaging.Factory;
 import com.android.messaging.util.Assert;
+import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
 import com.android.messaging.util.Assert.RunsOnAnyThread;
 import com.android.messaging.util.LogUtil;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
@@ -31,8 +35,9 @@ import java.util.concurrent.ThreadFactory;
 
 /**
  * <p>Loads and maintains a set of in-memory LRU caches for different types of media resources.
- * Right now we don't utilize any disk cache as all media urls are expected to be resolved to
- * local content.<p/>
+ * All media urls are expected to be resolved to local content, but compressed images are also
+ * kept in a {@link MediaDiskCache} so that they don't need to be decoded and scaled down from the
+ * original content again after being evicted from memory, or after a process restart.<p/>
  *
  * <p>The MediaResourceManager takes media loading requests through one of two ways:</p>
  *
@@ -95,9 +100,19 @@ public class MediaResourceManager {
         void onMediaResourceLoadError(MediaRequest<T> request, Exception exception);
     }
 
+    /**
+     * Priority of a request for media that is shown on screen.
+     */
+    public static final int PRIORITY_VISIBLE = 1;
+
+    /**
+     * Priority of a request for media that may be shown later.
+     */
+    public static final int PRIORITY_PREFETCH = 0;
+
     // We use a fixed thread pool for handling media loading tasks. Using a cached thread pool
     // allows for unlimited thread creation which can lead to OOMs so we limit the threads here.
-    private static final Executor MEDIA_LOADING_EXECUTOR = Executors.newFixedThreadPool(10);
+    private static final MediaLoadingExecutor MEDIA_LOADING_EXECUTOR = new MediaLoadingExecutor();
 
     // A dedicated single thread executor for performing background task after loading the resource
     // on the media loading executor. This includes work such as encoding loaded media to be cached.
@@ -113,6 +128,39 @@ public class MediaResourceManager {
                 }
             });
 
+    private static final String DISK_CACHE_DIR = "media_cache";
+    private static final long DISK_CACHE_SIZE_BYTES = 1024 * 1024 * 20;  // 20MB
+
+    private MediaDiskCache mDiskCache;
+    private boolean mDiskCacheOpened;
+
+    // Async loads in progress, keyed by media request key. Identical requests made while a load
+    // is in progress wait for it instead of loading the same media again.
+    private final HashMap<String, InFlightLoad<?>> mInFlightLoads =
+            new HashMap<String, InFlightLoad<?>>();
+
+    /**
+     * An async load in progress, and the requests waiting for it.
+     */
+    private static class InFlightLoad<T extends RefCountedMediaResource> {
+        final List<BindableMediaRequest<T>> followers = new ArrayList<>();
+        // The queued loading task, if the load runs on MEDIA_LOADING_EXECUTOR
+        MediaLoadingExecutor.Task task;
+
+        /**
+         * Whether any waiting request still needs the media. Must hold the lock on
+         * mInFlightLoads.
+         */
+        boolean hasBoundFollowers() {
+            for (final BindableMediaRequest<T> follower : followers) {
+                if (follower.isBound()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     /**
      * Requests a media resource asynchronously. Upon completion of the media loading task,
      * the listener will be notified of success/failure iff it's still bound. A refcount on the
@@ -121,11 +169,25 @@ public class MediaResourceManager {
      * MediaRequest, RefCountedMediaResource, boolean)} callback.
      * @param mediaRequest the media request. May be either an
      * {@link AsyncMediaRequestWrapper} for listening for event callbacks, or a regular media
-     * request for fire-and-forget type of behavior.
+     * request for fire-and-forget type of behavior. Requests with listeners are loaded with
+     * {@link #PRIORITY_VISIBLE}, fire-and-forget requests with {@link #PRIORITY_PREFETCH}.
      */
     public <T extends RefCountedMediaResource> void requestMediaResourceAsync(
             final MediaRequest<T> mediaRequest) {
-        scheduleAsyncMediaRequest(mediaRequest, MEDIA_LOADING_EXECUTOR);
+        requestMediaResourceAsync(mediaRequest,
+                (mediaRequest instanceof BindableMediaRequest<?>) ?
+                        PRIORITY_VISIBLE : PRIORITY_PREFETCH);
+    }
+
+    /**
+     * Requests a media resource asynchronously with the given priority. Among the requests
+     * waiting to be loaded, the ones with a higher priority are loaded first, and then the most
+     * recent ones. Requests that are unbound while waiting are dropped.
+     * @param priority {@link #PRIORITY_VISIBLE} or {@link #PRIORITY_PREFETCH}
+     */
+    public <T extends RefCountedMediaResource> void requestMediaResourceAsync(
+            final MediaRequest<T> mediaRequest, final int priority) {
+        scheduleAsyncMediaRequest(mediaRequest, priority, null /* backgroundExecutor */);
     }
 
     /**
@@ -161,8 +223,11 @@ public class MediaResourceManager {
                     throws Exception {
         final List<MediaRequest<T>> chainedRequests = new ArrayList<>();
         T loadedResource = null;
-        // Try fetching from cache first.
-        final T cachedResource = loadMediaFromCache(mediaRequest);
+        // Try fetching from cache first, then from the disk cache.
+        T cachedResource = loadMediaFromCache(mediaRequest);
+        if (cachedResource == null) {
+            cachedResource = loadMediaFromDiskCache(mediaRequest);
+        }
         if (cachedResource != null) {
             if (cachedResource.isEncoded()) {
                 // The resource is encoded, issue a decoding request.
@@ -199,6 +264,84 @@ public class MediaResourceManager {
         return null;
     }
 
+    /**
+     * Looks up the compressed image that the request would cache in the disk cache. On a hit, the
+     * image is also pushed to the memory cache.
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends RefCountedMediaResource> T loadMediaFromDiskCache(
+            final MediaRequest<T> mediaRequest) {
+        if (mediaRequest.getRequestType() != MediaRequest.REQUEST_LOAD_MEDIA ||
+                !isDiskCacheable(mediaRequest)) {
+            return null;
+        }
+        final MediaDiskCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return null;
+        }
+        final String key = mediaRequest.getKey();
+        final byte[] bytes = diskCache.get(getDiskCacheSource(mediaRequest), key);
+        if (bytes == null) {
+            return null;
+        }
+        final T resource = (T) EncodedImageResource.fromDiskCacheBytes(key, bytes);
+        if (resource == null) {
+            return null;
+        }
+        // Same as a memory cache hit, the caller gets a ref
+        resource.addRef();
+        addResourceToMemoryCache(mediaRequest, resource);
+        return resource;
+    }
+
+    /**
+     * Whether the request compresses the media it loads, which is what we keep on disk.
+     */
+    private static boolean isDiskCacheable(final MediaRequest<?> mediaRequest) {
+        final MediaRequestDescriptor<?> descriptor = mediaRequest.getDescriptor();
+        return descriptor instanceof UriImageRequestDescriptor &&
+                ((UriImageRequestDescriptor) descriptor).allowCompression;
+    }
+
+    /**
+     * The media the request loads, which the entries it puts in the disk cache are made from.
+     */
+    private static String getDiskCacheSource(final MediaRequest<?> mediaRequest) {
+        return ((UriImageRequestDescriptor) mediaRequest.getDescriptor()).uri.toString();
+    }
+
+    /**
+     * Drops what the disk cache keeps for the given media, called once it is deleted so that
+     * it doesn't linger on disk nor show up if its uri is reused. Does nothing unless the disk
+     * cache was already opened by loading media, so that deleting messages doesn't pay for
+     * opening it; entries left behind are evicted like any other.
+     */
+    @DoesNotRunOnMainThread
+    public void onMediaDeleted(final List<Uri> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+        final MediaDiskCache diskCache;
+        synchronized (this) {
+            diskCache = mDiskCacheOpened ? mDiskCache : null;
+        }
+        if (diskCache != null) {
+            for (final Uri uri : uris) {
+                diskCache.remove(uri.toString());
+            }
+        }
+    }
+
+    private synchronized MediaDiskCache getDiskCache() {
+        if (!mDiskCacheOpened) {
+            mDiskCacheOpened = true;
+            mDiskCache = MediaDiskCache.open(new File(
+                    Factory.get().getApplicationContext().getCacheDir(), DISK_CACHE_DIR),
+                    DISK_CACHE_SIZE_BYTES);
+        }
+        return mDiskCache;
+    }
+
     private <T extends RefCountedMediaResource> T loadMediaFromRequest(
             final MediaRequest<T> mediaRequest, final List<MediaRequest<T>> chainedRequests)
                     throws Exception {
@@ -216,24 +359,38 @@ public class MediaResourceManager {
         // Don't cache the media request if it is defined as non-cacheable.
         if (resource.isCacheable()) {
             addResourceToMemoryCache(mediaRequest, resource);
+            if (mediaRequest.getRequestType() == MediaRequest.REQUEST_ENCODE_MEDIA &&
+                    resource instanceof EncodedImageResource) {
+                // Encoding runs on the background executor, so we can write to disk here.
+                addResourceToDiskCache(mediaRequest, (EncodedImageResource) resource);
+            }
         }
         return resource;
     }
 
     /**
-     * Schedule an async media request on the given <code>executor</code>.
+     * Schedule an async media request on the given <code>backgroundExecutor</code>, or with the
+     * given priority on the media loading executor.
      * @param mediaRequest the media request to be processed asynchronously. May be either an
      * {@link AsyncMediaRequestWrapper} for listening for event callbacks, or a regular media
      * request for fire-and-forget type of behavior.
+     * @param backgroundExecutor the executor to run the request on, or null for the media loading
+     * executor
      */
     private <T extends RefCountedMediaResource> void scheduleAsyncMediaRequest(
-            final MediaRequest<T> mediaRequest, final Executor executor) {
+            final MediaRequest<T> mediaRequest, final int priority,
+            final Executor backgroundExecutor) {
         final BindableMediaRequest<T> bindableRequest =
                 (mediaRequest instanceof BindableMediaRequest<?>) ?
                         (BindableMediaRequest<T>) mediaRequest : null;
         if (bindableRequest != null && !bindableRequest.isBound()) {
             return; // Request is obsolete
         }
+        final InFlightLoad<T> inFlightLoad =
+                startOrJoinInFlightLoad(mediaRequest, bindableRequest, priority);
+        if (inFlightLoad == null) {
+            return; // Waiting for an identical request already in flight
+        }
         // We don't use SafeAsyncTask here since it enforces the shared thread pool executor
         // whereas we want a dedicated thread pool executor.
         AsyncTask<Void, Void, MediaLoadingResult<T>> mediaLoadingTask =
@@ -243,7 +400,8 @@ public class MediaResourceManager {
             @Override
             protected MediaLoadingResult<T> doInBackground(Void... params) {
                 // Double check the request is still valid by the time we start processing it
-                if (bindableRequest != null && !bindableRequest.isBound()) {
+                if (bindableRequest != null && !bindableRequest.isBound() &&
+                        !hasBoundFollowers(inFlightLoad)) {
                     return null; // Request is obsolete
                 }
                 try {
@@ -256,6 +414,8 @@ public class MediaResourceManager {
 
             @Override
             protected void onPostExecute(final MediaLoadingResult<T> result) {
+                final List<BindableMediaRequest<T>> followers =
+                        finishInFlightLoad(mediaRequest, inFlightLoad);
                 if (result != null) {
                     Assert.isNull(mException);
                     Assert.isTrue(result.loadedResource.getRefCount() > 0);
@@ -264,6 +424,16 @@ public class MediaResourceManager {
                             bindableRequest.onMediaResourceLoaded(
                                     bindableRequest, result.loadedResource, result.fromCache);
                         }
+                        for (final BindableMediaRequest<T> follower : followers) {
+                            // Each request is guaranteed a ref for the duration of its callback
+                            result.loadedResource.addRef();
+                            try {
+                                follower.onMediaResourceLoaded(
+                                        follower, result.loadedResource, result.fromCache);
+                            } finally {
+                                result.loadedResource.release();
+                            }
+                        }
                     } finally {
                         result.loadedResource.release();
                         result.scheduleChainedRequests();
@@ -274,16 +444,150 @@ public class MediaResourceManager {
                     if (bindableRequest != null) {
                         bindableRequest.onMediaResourceLoadError(bindableRequest, mException);
                     }
+                    for (final BindableMediaRequest<T> follower : followers) {
+                        follower.onMediaResourceLoadError(follower, mException);
+                    }
                 } else {
                     Assert.isTrue(bindableRequest == null || !bindableRequest.isBound());
-                    if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
-                        LogUtil.v(TAG, "media request not processed, no longer bound; key=" +
-                                LogUtil.sanitizePII(mediaRequest.getKey()) /* key with phone# */);
-                    }
+                    onLoadNotProcessed(mediaRequest, followers, priority, backgroundExecutor);
                 }
             }
         };
-        mediaLoadingTask.executeOnExecutor(executor, (Void) null);
+        if (backgroundExecutor != null) {
+            mediaLoadingTask.executeOnExecutor(backgroundExecutor, (Void) null);
+            return;
+        }
+        final MediaLoadingExecutor.TaskOwner taskOwner = new MediaLoadingExecutor.TaskOwner() {
+            @Override
+            public boolean isObsolete() {
+                return bindableRequest != null && !bindableRequest.isBound() &&
+                        !hasBoundFollowers(inFlightLoad);
+            }
+
+            @Override
+            public void onDropped() {
+                onLoadNotProcessed(mediaRequest, finishInFlightLoad(mediaRequest, inFlightLoad),
+                        priority, null /* backgroundExecutor */);
+            }
+        };
+        mediaLoadingTask.executeOnExecutor(new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                synchronized (mInFlightLoads) {
+                    inFlightLoad.task =
+                            MEDIA_LOADING_EXECUTOR.execute(runnable, priority, taskOwner);
+                }
+            }
+        }, (Void) null);
+        if (bindableRequest != null) {
+            cancelOnUnbound(bindableRequest, inFlightLoad);
+        }
+    }
+
+    /**
+     * Takes the load off the loading queue as soon as the request is unbound, unless other
+     * requests waiting for the same load still need it.
+     */
+    private <T extends RefCountedMediaResource> void cancelOnUnbound(
+            final BindableMediaRequest<T> request, final InFlightLoad<T> inFlightLoad) {
+        request.addOnUnboundListener(new Runnable() {
+            @Override
+            public void run() {
+                final MediaLoadingExecutor.Task task;
+                synchronized (mInFlightLoads) {
+                    task = inFlightLoad.task;
+                }
+                if (task != null) {
+                    MEDIA_LOADING_EXECUTOR.cancelIfObsolete(task);
+                }
+            }
+        });
+    }
+
+    /**
+     * Called when an async load was given up because its request was unbound.
+     */
+    private <T extends RefCountedMediaResource> void onLoadNotProcessed(
+            final MediaRequest<T> mediaRequest, final List<BindableMediaRequest<T>> followers,
+            final int priority, final Executor backgroundExecutor) {
+        // The requests that started waiting after we gave up on the load still need it, so
+        // load it for them.
+        for (final BindableMediaRequest<T> follower : followers) {
+            scheduleAsyncMediaRequest(follower, priority, backgroundExecutor);
+        }
+        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+            LogUtil.v(TAG, "media request not processed, no longer bound; key=" +
+                    LogUtil.sanitizePII(mediaRequest.getKey()) /* key with phone# */);
+        }
+    }
+
+    /**
+     * Registers an async load for the request, unless an identical load is in flight, in which
+     * case the request waits for that load instead.
+     *
+     * @return the load to run for the request, or null if it waits for another load
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends RefCountedMediaResource> InFlightLoad<T> startOrJoinInFlightLoad(
+            final MediaRequest<T> mediaRequest, final BindableMediaRequest<T> bindableRequest,
+            final int priority) {
+        final MediaCache<T> mediaCache = mediaRequest.getMediaCache();
+        if (mediaRequest.getRequestType() != MediaRequest.REQUEST_LOAD_MEDIA ||
+                mediaCache == null) {
+            // Only cacheable media are meant to be shared between requests.
+            return new InFlightLoad<T>();
+        }
+        synchronized (mInFlightLoads) {
+            final InFlightLoad<T> pendingLoad =
+                    (InFlightLoad<T>) mInFlightLoads.get(mediaRequest.getKey());
+            if (pendingLoad == null) {
+                final InFlightLoad<T> inFlightLoad = new InFlightLoad<T>();
+                mInFlightLoads.put(mediaRequest.getKey(), inFlightLoad);
+                return inFlightLoad;
+            }
+            // Fire-and-forget requests have nothing to be notified of, the pending load will
+            // cache the media for them.
+            if (bindableRequest != null) {
+                pendingLoad.followers.add(bindableRequest);
+                cancelOnUnbound(bindableRequest, pendingLoad);
+            }
+            if (pendingLoad.task != null) {
+                // Don't let the request wait behind loads with a lower priority
+                MEDIA_LOADING_EXECUTOR.raisePriority(pendingLoad.task, priority);
+            }
+        }
+        mediaCache.onRequestCoalesced();
+        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+            LogUtil.v(TAG, "media request coalesced with pending load; key=" +
+                    LogUtil.sanitizePII(mediaRequest.getKey()) /* key with phone# */);
+        }
+        return null;
+    }
+
+    @VisibleForTesting
+    static int getQueuedLoadCount() {
+        return MEDIA_LOADING_EXECUTOR.getQueuedTaskCount();
+    }
+
+    private boolean hasBoundFollowers(final InFlightLoad<?> inFlightLoad) {
+        synchronized (mInFlightLoads) {
+            return inFlightLoad.hasBoundFollowers();
+        }
+    }
+
+    /**
+     * Unregisters an async load once it is done.
+     *
+     * @return the requests that were waiting for the load
+     */
+    private <T extends RefCountedMediaResource> List<BindableMediaRequest<T>> finishInFlightLoad(
+            final MediaRequest<T> mediaRequest, final InFlightLoad<T> inFlightLoad) {
+        synchronized (mInFlightLoads) {
+            if (mInFlightLoads.get(mediaRequest.getKey()) == inFlightLoad) {
+                mInFlightLoads.remove(mediaRequest.getKey());
+            }
+            return new ArrayList<>(inFlightLoad.followers);
+        }
     }
 
     @VisibleForTesting
@@ -301,6 +605,15 @@ public class MediaResourceManager {
         }
     }
 
+    private void addResourceToDiskCache(final MediaRequest<?> mediaRequest,
+            final EncodedImageResource mediaResource) {
+        final MediaDiskCache diskCache = getDiskCache();
+        if (diskCache != null) {
+            diskCache.put(getDiskCacheSource(mediaRequest), mediaRequest.getKey(),
+                    mediaResource.getDiskCacheBytes());
+        }
+    }
+
     private class MediaLoadingResult<T extends RefCountedMediaResource> {
         public final T loadedResource;
         public final boolean fromCache;
@@ -318,7 +631,8 @@ public class MediaResourceManager {
          */
         public void scheduleChainedRequests() {
             for (final MediaRequest<T> mediaRequest : mChainedRequests) {
-                scheduleAsyncMediaRequest(mediaRequest, MEDIA_BACKGROUND_EXECUTOR);
+                scheduleAsyncMediaRequest(mediaRequest, PRIORITY_PREFETCH,
+                        MEDIA_BACKGROUND_EXECUTOR);
             }
         }
     }
@@ -19,6 +19,8 @@ package com.android.messaging.mmslib.pdu;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
 import androidx.collection.SimpleArrayMap;
 import android.text.TextUtils;
 
@@ -26,6 +28,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
 
 public class PduComposer {
@@ -84,11 +87,22 @@ public class PduComposer {
      */
     private static final int PDU_COMPOSER_BLOCK_SIZE = 1024;
 
+    /**
+     * Block size when copying part data to the output stream.
+     */
+    private static final int PDU_COMPOSER_STREAM_BLOCK_SIZE = 8 * 1024;
+
     /**
      * The output message.
      */
     protected ByteArrayOutputStream mMessage = null;
 
+    /**
+     * The stream the message is written to, if it's not made in memory. Only the headers are
+     * then buffered in mMessage, the part data goes straight to the stream.
+     */
+    private OutputStream mOutput = null;
+
     /**
      * The PDU.
      */
@@ -151,41 +165,88 @@ public class PduComposer {
      * the PDU is invalid.
      */
     public byte[] make() {
+        try {
+            if (makePdu() != PDU_COMPOSE_SUCCESS) {
+                return null;
+            }
+        } catch (final IOException e) {
+            // Only writing to an output stream can fail
+            return null;
+        }
+
+        return mMessage.toByteArray();
+    }
+
+    /**
+     * Make the message and write it to the given stream, as it's made. The part data is
+     * copied to the stream block by block, so the memory used doesn't grow with the size of the
+     * attachments. The stream is not closed.
+     *
+     * @param out the stream to write the message to
+     * @return the number of bytes written, or -1 if the PDU is invalid, in which case part of
+     * it may already have been written
+     * @throws IOException if writing to the stream fails
+     */
+    public long make(final OutputStream out) throws IOException {
+        mOutput = out;
+        try {
+            if (makePdu() != PDU_COMPOSE_SUCCESS) {
+                return -1;
+            }
+            flushMessage();
+            return mPosition;
+        } finally {
+            mOutput = null;
+        }
+    }
+
+    private int makePdu() throws IOException {
         // Get Message-type.
         final int type = mPdu.getMessageType();
 
         /* make the message */
         switch (type) {
             case PduHeaders.MESSAGE_TYPE_SEND_REQ:
-                if (makeSendReqPdu() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeSendReqPdu();
             case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
-                if (makeNotifyResp() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeNotifyResp();
             case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
-                if (makeAckInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeAckInd();
             case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
-                if (makeReadRecInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeReadRecInd();
             case PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND:
-                if (makeNotificationInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeNotificationInd();
             default:
-                return null;
+                return PDU_COMPOSE_FIELD_NOT_SUPPORTED;
         }
+    }
 
-        return mMessage.toByteArray();
+    /**
+     * Write what's buffered in mMessage to the output stream. Only used at the top level of the
+     * message, where mPosition then keeps counting the bytes written.
+     */
+    private void flushMessage() throws IOException {
+        mMessage.writeTo(mOutput);
+        mMessage.reset();
+    }
+
+    /**
+     * Append part data to the message, straight to the output stream if there is one.
+     */
+    private void appendData(final byte[] buf, final int pos, final int length)
+            throws IOException {
+        if (mOutput != null) {
+            if (mStack.stackSize != 0) {
+                throw new RuntimeException("BUG: Streaming data into a buffer");
+            }
+            if (mMessage.size() > 0) {
+                flushMessage();
+            }
+            mOutput.write(buf, pos, length);
+            mPosition = mPosition + length;
+        } else {
+            arraycopy(buf, pos, length);
+        }
     }
 
     /**
@@ -820,7 +881,7 @@ public class PduComposer {
     /**
      * Make Send.req.
      */
-    private int makeSendReqPdu() {
+    private int makeSendReqPdu() throws IOException {
         if (mMessage == null) {
             mMessage = new ByteArrayOutputStream();
             mPosition = 0;
@@ -904,7 +965,7 @@ public class PduComposer {
     /**
      * Make message body.
      */
-    private int makeMessageBody() {
+    private int makeMessageBody() throws IOException {
         // 1. add body informations
         mStack.newbuf();  // Switching buffer because we need to
 
@@ -1045,53 +1106,136 @@ public class PduComposer {
             // content
             final int headerLength = attachment.getLength();
 
-            int dataLength = 0; // Just for safety...
+            // The data length goes before the data, so it's found out first rather than by
+            // buffering the data
             final byte[] partData = part.getData();
-
+            AssetFileDescriptor dataFd = null;
+            long dataLength;
             if (partData != null) {
-                arraycopy(partData, 0, partData.length);
                 dataLength = partData.length;
             } else {
-                InputStream cr = null;
                 try {
-                    final byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
-                    cr = mResolver.openInputStream(part.getDataUri());
-                    int len = 0;
-                    while ((len = cr.read(buffer)) != -1) {
-                        mMessage.write(buffer, 0, len);
-                        mPosition += len;
-                        dataLength += len;
-                    }
+                    dataFd = mResolver.openAssetFileDescriptor(part.getDataUri(), "r");
                 } catch (final FileNotFoundException e) {
                     return PDU_COMPOSE_CONTENT_ERROR;
-                } catch (final IOException e) {
-                    return PDU_COMPOSE_CONTENT_ERROR;
                 } catch (final RuntimeException e) {
                     return PDU_COMPOSE_CONTENT_ERROR;
-                } finally {
-                    if (cr != null) {
-                        try {
-                            cr.close();
-                        } catch (final IOException e) {
-                            // Nothing to do
-                        }
-                    }
+                }
+                if (dataFd == null) {
+                    return PDU_COMPOSE_CONTENT_ERROR;
+                }
+                dataLength = dataFd.getLength();
+                if (dataLength == AssetFileDescriptor.UNKNOWN_LENGTH) {
+                    dataLength = readDataLength(part.getDataUri());
                 }
             }
 
-            if (dataLength != (attachment.getLength() - headerLength)) {
-                throw new RuntimeException("BUG: Length check failed");
-            }
+            try {
+                if (dataLength < 0) {
+                    return PDU_COMPOSE_CONTENT_ERROR;
+                }
 
-            mStack.pop();
-            appendUintvarInteger(headerLength);
-            appendUintvarInteger(dataLength);
-            mStack.copy();
+                mStack.pop();
+                appendUintvarInteger(headerLength);
+                appendUintvarInteger(dataLength);
+                mStack.copy();
+
+                if (partData != null) {
+                    appendData(partData, 0, partData.length);
+                } else if (appendData(dataFd, dataLength) != PDU_COMPOSE_SUCCESS) {
+                    return PDU_COMPOSE_CONTENT_ERROR;
+                }
+            } finally {
+                if (dataFd != null) {
+                    try {
+                        dataFd.close();
+                    } catch (final IOException e) {
+                        // Nothing to do
+                    }
+                }
+            }
         }
 
         return PDU_COMPOSE_SUCCESS;
     }
 
+    /**
+     * Append the data of a part, which must be as long as the given length.
+     */
+    private int appendData(final AssetFileDescriptor dataFd, final long dataLength)
+            throws IOException {
+        final byte[] buffer = new byte[mOutput != null ? PDU_COMPOSER_STREAM_BLOCK_SIZE
+                : PDU_COMPOSER_BLOCK_SIZE];
+        final InputStream cr;
+        try {
+            cr = dataFd.createInputStream();
+        } catch (final IOException e) {
+            return PDU_COMPOSE_CONTENT_ERROR;
+        }
+        long copiedLength = 0;
+        try {
+            while (true) {
+                final int len;
+                try {
+                    len = cr.read(buffer);
+                } catch (final IOException e) {
+                    return PDU_COMPOSE_CONTENT_ERROR;
+                }
+                if (len == -1) {
+                    break;
+                }
+                if (copiedLength + len > dataLength) {
+                    // The data grew since its length was written
+                    return PDU_COMPOSE_CONTENT_ERROR;
+                }
+                // Failing to write the message is left to the caller
+                appendData(buffer, 0, len);
+                copiedLength += len;
+            }
+        } finally {
+            try {
+                cr.close();
+            } catch (final IOException e) {
+                // Nothing to do
+            }
+        }
+        return (copiedLength == dataLength) ? PDU_COMPOSE_SUCCESS : PDU_COMPOSE_CONTENT_ERROR;
+    }
+
+    /**
+     * Find out the length of data whose content provider doesn't tell, by reading through it.
+     *
+     * @return the length of the data, or -1 if it can't be read
+     */
+    private long readDataLength(final Uri dataUri) {
+        InputStream cr = null;
+        try {
+            final byte[] buffer = new byte[PDU_COMPOSER_STREAM_BLOCK_SIZE];
+            cr = mResolver.openInputStream(dataUri);
+            if (cr == null) {
+                return -1;
+            }
+            long length = 0;
+            int len = 0;
+            while ((len = cr.read(buffer)) != -1) {
+                length += len;
+            }
+            return length;
+        } catch (final IOException e) {
+            return -1;
+        } catch (final RuntimeException e) {
+            return -1;
+        } finally {
+            if (cr != null) {
+                try {
+                    cr.close();
+                } catch (final IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
     /**
      * Record current message informations.
      */
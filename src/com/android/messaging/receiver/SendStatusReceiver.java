@@ -41,6 +41,8 @@ public class SendStatusReceiver extends BroadcastReceiver {
             "com.android.messaging.receiver.SendStatusReceiver.MESSAGE_SENT";
     public static final String MESSAGE_DELIVERED_ACTION =
             "com.android.messaging.receiver.SendStatusReceiver.MESSAGE_DELIVERED";
+    public static final String MESSAGE_SEND_TIMEOUT_ACTION =
+            "com.android.messaging.receiver.SendStatusReceiver.MESSAGE_SEND_TIMEOUT";
     public static final String MMS_SENT_ACTION =
             "com.android.messaging.receiver.SendStatusReceiver.MMS_SENT";
     public static final String MMS_DOWNLOADED_ACTION =
@@ -51,9 +53,11 @@ public class SendStatusReceiver extends BroadcastReceiver {
 
     public static final String EXTRA_PART_ID = "partId";
     public static final String EXTRA_SUB_ID = "subId";
+    public static final String EXTRA_SEND_ID = "sendId";
 
     public static final int NO_ERROR_CODE = -1;
     public static final int NO_PART_ID = -1;
+    public static final int NO_SEND_ID = -1;
 
     @Override
     public void onReceive(final Context context, final Intent intent) {
@@ -68,6 +72,9 @@ public class SendStatusReceiver extends BroadcastReceiver {
                     intent.getIntExtra(EXTRA_ERROR_CODE, NO_ERROR_CODE),
                     intent.getIntExtra(EXTRA_PART_ID, NO_PART_ID),
                     intent.getIntExtra(EXTRA_SUB_ID, ParticipantData.DEFAULT_SELF_SUB_ID));
+        } else if (MESSAGE_SEND_TIMEOUT_ACTION.equals(action)) {
+            SmsSender.onSendTimedOut(intent.getData(),
+                    intent.getIntExtra(EXTRA_SEND_ID, NO_SEND_ID));
         } else if (MMS_SENT_ACTION.equals(action)) {
             final Uri messageUri = intent.getData();
             ProcessSentMessageAction.processMmsSent(resultCode, messageUri,
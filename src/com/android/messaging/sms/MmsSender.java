@@ -180,17 +180,20 @@ public class MmsSender {
             // Ensure rawmms directory exists
             tempFile.getParentFile().mkdirs();
             writer = new FileOutputStream(tempFile);
-            final byte[] pduBytes = new PduComposer(context, pdu).make();
-            if (pduBytes == null) {
+            // Stream the PDU to the file rather than making it in memory first, which would take
+            // a couple of copies of every attachment
+            final long pduLength = new PduComposer(context, pdu).make(writer);
+            if (pduLength < 0) {
+                tempFile.delete();
                 throw new MmsFailureException(
                         MmsUtils.MMS_REQUEST_NO_RETRY, "Failed to compose PDU");
             }
-            if (pduBytes.length > MmsConfig.get(subId).getMaxMessageSize()) {
+            if (pduLength > MmsConfig.get(subId).getMaxMessageSize()) {
+                tempFile.delete();
                 throw new MmsFailureException(
                         MmsUtils.MMS_REQUEST_NO_RETRY,
                         MessageData.RAW_TELEPHONY_STATUS_MESSAGE_TOO_BIG);
             }
-            writer.write(pduBytes);
         } catch (final IOException e) {
             if (tempFile != null) {
                 tempFile.delete();
@@ -198,14 +201,6 @@ public class MmsSender {
             LogUtil.e(TAG, "Cannot create temporary file " + tempFile.getAbsolutePath(), e);
             throw new MmsFailureException(
                     MmsUtils.MMS_REQUEST_AUTO_RETRY, "Cannot create raw mms file");
-        } catch (final OutOfMemoryError e) {
-            if (tempFile != null) {
-                tempFile.delete();
-            }
-            LogUtil.e(TAG, "Out of memory in composing PDU", e);
-            throw new MmsFailureException(
-                    MmsUtils.MMS_REQUEST_MANUAL_RETRY,
-                    MessageData.RAW_TELEPHONY_STATUS_MESSAGE_TOO_BIG);
         } finally {
             if (writer != null) {
                 try {
@@ -2297,42 +2297,71 @@ public class MmsUtils {
         return prefs.getBoolean(deliveryReportKey, defaultValue);
     }
 
-    public static int sendSmsMessage(final String recipient, final String messageText,
+    /**
+     * Callback for the end of sending an SMS
+     */
+    public interface SmsSendCallback {
+        /**
+         * Called once the SMS is sent, failed or timed out. This may be on the main thread, on
+         * the thread sending a later SMS with the same request uri (which replaces this one), or
+         * synchronously on the thread calling {@link #sendSmsMessage} if the SMS couldn't be sent
+         * at all, so implementations must be safe to call from any thread.
+         *
+         * @param status the MMS_REQUEST_* status of the sending
+         */
+        void onSmsSendCompleted(int status);
+    }
+
+    /**
+     * Starts sending an SMS, without waiting for it to be sent
+     */
+    public static void sendSmsMessage(final String recipient, final String messageText,
             final Uri requestUri, final int subId,
-            final String smsServiceCenter, final boolean requireDeliveryReport) {
+            final String smsServiceCenter, final boolean requireDeliveryReport,
+            final SmsSendCallback callback) {
         final Context context = Factory.get().getApplicationContext();
-        int status = MMS_REQUEST_MANUAL_RETRY;
         try {
             // Send a single message
-            final SendResult result = SmsSender.sendMessage(
+            SmsSender.sendMessage(
                     context,
                     subId,
                     recipient,
                     messageText,
                     smsServiceCenter,
                     requireDeliveryReport,
-                    requestUri);
-            if (!result.hasPending()) {
-                // not timed out, check failures
-                final int failureLevel = result.getHighestFailureLevel();
-                switch (failureLevel) {
-                    case SendResult.FAILURE_LEVEL_NONE:
-                        status = MMS_REQUEST_SUCCEEDED;
-                        break;
-                    case SendResult.FAILURE_LEVEL_TEMPORARY:
-                        status = MMS_REQUEST_AUTO_RETRY;
-                        LogUtil.e(TAG, "MmsUtils: SMS temporary failure");
-                        break;
-                    case SendResult.FAILURE_LEVEL_PERMANENT:
-                        LogUtil.e(TAG, "MmsUtils: SMS permanent failure");
-                        break;
-                }
-            } else {
-                // Timed out
-                LogUtil.e(TAG, "MmsUtils: sending SMS timed out");
-            }
+                    requestUri,
+                    new SmsSender.SendCallback() {
+                        @Override
+                        public void onSendCompleted(final SendResult result) {
+                            callback.onSmsSendCompleted(getSmsSendStatus(result));
+                        }
+                    });
         } catch (final Exception e) {
             LogUtil.e(TAG, "MmsUtils: failed to send SMS " + e, e);
+            callback.onSmsSendCompleted(MMS_REQUEST_MANUAL_RETRY);
+        }
+    }
+
+    private static int getSmsSendStatus(final SendResult result) {
+        int status = MMS_REQUEST_MANUAL_RETRY;
+        if (!result.hasPending()) {
+            // not timed out, check failures
+            final int failureLevel = result.getHighestFailureLevel();
+            switch (failureLevel) {
+                case SendResult.FAILURE_LEVEL_NONE:
+                    status = MMS_REQUEST_SUCCEEDED;
+                    break;
+                case SendResult.FAILURE_LEVEL_TEMPORARY:
+                    status = MMS_REQUEST_AUTO_RETRY;
+                    LogUtil.e(TAG, "MmsUtils: SMS temporary failure");
+                    break;
+                case SendResult.FAILURE_LEVEL_PERMANENT:
+                    LogUtil.e(TAG, "MmsUtils: SMS permanent failure");
+                    break;
+            }
+        } else {
+            // Timed out
+            LogUtil.e(TAG, "MmsUtils: sending SMS timed out");
         }
         return status;
     }
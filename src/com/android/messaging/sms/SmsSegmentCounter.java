@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.sms;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.telephony.SmsMessage;
+import android.telephony.TelephonyManager;
+
+import com.android.messaging.Factory;
+import com.android.messaging.util.LogUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Computes the same lengths as {@link SmsMessage#calculateLength(CharSequence, boolean)} for a
+ * text being edited, without going over the whole text again after each edit.
+ * <p>
+ * Every character costs a fixed number of septets in the GSM 7-bit default alphabet (one, two
+ * through the extension table) or can't be encoded in it, so the counter keeps the totals for the
+ * current text and only recounts the characters that an edit replaced. This matches the
+ * framework when it uses the plain default alphabet.
+ * <p>
+ * On devices that enable national language shift tables, the framework picks the table pair
+ * that makes the text cheapest to send, and every pair other than the default one costs a
+ * language shift header. A text made of characters that take one septet in the default alphabet
+ * can't be sent any cheaper, so it is still counted here, and only texts with extension table
+ * characters or characters outside the default alphabet are counted by the framework. The
+ * framework also counts everything on devices that force 7-bit encoding, on CDMA, and for UCS-2
+ * texts that need more than one message, which it splits on character boundaries.
+ */
+public class SmsSegmentCounter {
+    private static final String TAG = LogUtil.BUGLE_TAG;
+
+    // The GSM 03.38 default alphabet, with the escape to the extension table at 0x1B, written as
+    // in the framework's table so that the same characters count as one septet
+    private static final String GSM_DEFAULT_ALPHABET =
+            "@\u00a3$\u00a5\u00e8\u00e9\u00f9\u00ec\u00f2\u00c7\n\u00d8\u00f8\r\u00c5\u00e5"
+            + "\u0394_\u03a6\u0393\u039b\u03a9\u03a0\u03a8\u03a3\u0398\u039e\uffff"
+            + "\u00c6\u00e6\u00df\u00c9"
+            + " !\"#\u00a4%&'()*+,-./0123456789:;<=>?"
+            + "\u00a1ABCDEFGHIJKLMNOPQRSTUVWXYZ\u00c4\u00d6\u00d1\u00dc\u00a7"
+            + "\u00bfabcdefghijklmnopqrstuvwxyz\u00e4\u00f6\u00f1\u00fc\u00e0";
+    // The characters of the GSM 03.38 extension table, each sent as the escape and one septet
+    private static final String GSM_EXTENSION_TABLE = "\f^{}\\[~]|\u20ac";
+    // Skipped by the framework when counting
+    private static final char GSM_EXTENDED_ESCAPE = 0x1B;
+
+    // Septets per character for the characters below LOOKUP_SIZE, the other ones are looked up
+    // in the tables
+    private static final int LOOKUP_SIZE = 0x400;
+    private static final int NOT_GSM = -1;
+    private static final byte[] sSeptets = new byte[LOOKUP_SIZE];
+
+    static {
+        for (int c = 0; c < LOOKUP_SIZE; c++) {
+            sSeptets[c] = (byte) lookUpSeptets((char) c);
+        }
+    }
+
+    // Whether the framework counts all texts on this device, and whether it enables national
+    // language shift tables, both loaded once
+    private static Boolean sIsCountedByFramework;
+    private static boolean sHasShiftTables;
+
+    // The text counted so far, and its totals
+    private String mText = "";
+    private int mSeptetCount;
+    private int mExtensionCount;
+    private int mNonGsmCount;
+
+    /**
+     * Returns the same as {@link SmsMessage#calculateLength(CharSequence, boolean)} without
+     * 7-bit only, updating the totals from the previous text passed in.
+     */
+    public int[] calculateLength(final String text) {
+        if (isCountedByFramework()) {
+            return SmsMessage.calculateLength(text, false);
+        }
+        updateCounts(text);
+        return getLength(text);
+    }
+
+    /**
+     * Same as {@link #calculateLength(String)} for a text where the count characters at start
+     * replaced the before characters of the previous text, as reported by
+     * {@link android.text.TextWatcher#onTextChanged}. Only those characters are recounted.
+     */
+    public int[] calculateLength(final String text, final int start, final int before,
+            final int count) {
+        if (isCountedByFramework()) {
+            return SmsMessage.calculateLength(text, false);
+        }
+        final int oldLength = mText.length();
+        if (start >= 0 && before >= 0 && count >= 0 && start + before <= oldLength &&
+                oldLength - before + count == text.length()) {
+            count(mText, start, start + before, -1);
+            count(text, start, start + count, 1);
+            mText = text;
+        } else {
+            // The edit isn't relative to the previous text, find what changed
+            updateCounts(text);
+        }
+        return getLength(text);
+    }
+
+    private int[] getLength(final String text) {
+        if (hasShiftTables() && (mExtensionCount > 0 || mNonGsmCount > 0)) {
+            // A national language table may encode the text more cheaply
+            return SmsMessage.calculateLength(text, false);
+        }
+
+        if (mNonGsmCount == 0) {
+            final int septets = mSeptetCount;
+            if (septets > SmsMessage.MAX_USER_DATA_SEPTETS) {
+                final int messageCount = (septets +
+                        (SmsMessage.MAX_USER_DATA_SEPTETS_WITH_HEADER - 1)) /
+                        SmsMessage.MAX_USER_DATA_SEPTETS_WITH_HEADER;
+                return new int[] { messageCount, septets,
+                        messageCount * SmsMessage.MAX_USER_DATA_SEPTETS_WITH_HEADER - septets,
+                        SmsMessage.ENCODING_7BIT };
+            }
+            return new int[] { 1, septets, SmsMessage.MAX_USER_DATA_SEPTETS - septets,
+                    SmsMessage.ENCODING_7BIT };
+        }
+
+        final int octets = text.length() * 2;
+        if (octets <= SmsMessage.MAX_USER_DATA_BYTES) {
+            return new int[] { 1, text.length(), (SmsMessage.MAX_USER_DATA_BYTES - octets) / 2,
+                    SmsMessage.ENCODING_16BIT };
+        }
+        return SmsMessage.calculateLength(text, false);
+    }
+
+    private void updateCounts(final String text) {
+        final String oldText = mText;
+        // Only the characters between the common prefix and suffix changed
+        final int oldLength = oldText.length();
+        final int newLength = text.length();
+        final int maxCommonLength = Math.min(oldLength, newLength);
+        int prefixLength = 0;
+        while (prefixLength < maxCommonLength &&
+                oldText.charAt(prefixLength) == text.charAt(prefixLength)) {
+            prefixLength++;
+        }
+        int suffixLength = 0;
+        while (suffixLength < maxCommonLength - prefixLength &&
+                oldText.charAt(oldLength - 1 - suffixLength) ==
+                        text.charAt(newLength - 1 - suffixLength)) {
+            suffixLength++;
+        }
+        count(oldText, prefixLength, oldLength - suffixLength, -1);
+        count(text, prefixLength, newLength - suffixLength, 1);
+        mText = text;
+    }
+
+    private void count(final String text, final int start, final int end, final int sign) {
+        for (int i = start; i < end; i++) {
+            final int septets = getSeptets(text.charAt(i));
+            if (septets == NOT_GSM) {
+                mNonGsmCount += sign;
+            } else {
+                mSeptetCount += sign * septets;
+                if (septets == 2) {
+                    mExtensionCount += sign;
+                }
+            }
+        }
+    }
+
+    private static int getSeptets(final char c) {
+        return (c < LOOKUP_SIZE) ? sSeptets[c] : lookUpSeptets(c);
+    }
+
+    private static int lookUpSeptets(final char c) {
+        if (c == GSM_EXTENDED_ESCAPE) {
+            return 0;
+        } else if (GSM_DEFAULT_ALPHABET.indexOf(c) >= 0) {
+            return 1;
+        } else if (GSM_EXTENSION_TABLE.indexOf(c) >= 0) {
+            return 2;
+        }
+        return NOT_GSM;
+    }
+
+    /**
+     * @return true if the framework counts all texts on this device, because it doesn't count
+     *         them with the GSM alphabet or because it translates them first
+     */
+    private static synchronized boolean isCountedByFramework() {
+        if (sIsCountedByFramework == null) {
+            final Context context = Factory.get().getApplicationContext();
+            final TelephonyManager telephonyManager =
+                    (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+            final boolean isCdma = telephonyManager != null &&
+                    telephonyManager.getPhoneType() == TelephonyManager.PHONE_TYPE_CDMA;
+            sIsCountedByFramework = isCdma ||
+                    getSystemBoolean("config_sms_force_7bit_encoding");
+            sHasShiftTables =
+                    getSystemIntArrayLength("config_sms_enabled_single_shift_tables") > 0 ||
+                    getSystemIntArrayLength("config_sms_enabled_locking_shift_tables") > 0;
+            if (sIsCountedByFramework) {
+                LogUtil.i(TAG, "SmsSegmentCounter: counting message lengths with the framework");
+            } else if (sHasShiftTables) {
+                LogUtil.i(TAG, "SmsSegmentCounter: counting messages that may use national "
+                        + "language tables with the framework");
+            }
+        }
+        return sIsCountedByFramework;
+    }
+
+    private static synchronized boolean hasShiftTables() {
+        return sHasShiftTables;
+    }
+
+    /**
+     * Makes the counter behave as on a device that enables national language shift tables or
+     * not, or as configured on this device again if null.
+     */
+    @VisibleForTesting
+    static synchronized void setHasShiftTablesForTesting(final Boolean hasShiftTables) {
+        sIsCountedByFramework = null;
+        isCountedByFramework();
+        if (hasShiftTables != null) {
+            sHasShiftTables = hasShiftTables;
+        }
+    }
+
+    @VisibleForTesting
+    static synchronized boolean isCountedByFrameworkForTesting() {
+        return isCountedByFramework();
+    }
+
+    private static boolean getSystemBoolean(final String name) {
+        final Resources resources = Resources.getSystem();
+        final int id = resources.getIdentifier(name, "bool", "android");
+        return id != 0 && resources.getBoolean(id);
+    }
+
+    private static int getSystemIntArrayLength(final String name) {
+        final Resources resources = Resources.getSystem();
+        final int id = resources.getIdentifier(name, "array", "android");
+        return (id != 0) ? resources.getIntArray(id).length : 0;
+    }
+}
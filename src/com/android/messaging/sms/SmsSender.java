@@ -17,6 +17,7 @@
 package com.android.messaging.sms;
 
 import android.app.Activity;
+import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
@@ -35,18 +36,22 @@ import com.android.messaging.util.BugleGservicesKeys;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.PhoneUtils;
 import com.android.messaging.util.UiUtils;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class that sends chat message via SMS.
  *
- * The interface emulates a blocking sending similar to making an HTTP request.
- * It calls the SmsManager to send a (potentially multipart) message and waits
- * on the sent status on each part. The waiting has a timeout so it won't wait
- * forever. Once the sent status of all parts received, the call returns.
+ * It calls the SmsManager to send a (potentially multipart) message and returns
+ * without waiting. The sent status of each part is matched to the pending message
+ * when it comes back, and once the sent status of all parts is received, or the
+ * sending times out, the callback given for the message is called. The timeout is
+ * an alarm that wakes the device up, so it also fires in deep sleep. No thread is
+ * kept waiting meanwhile, so several messages can be in flight at once.
  * A successful sending requires success status for all parts. Otherwise, we
  * pick the highest level of failure as the error for the whole message, which
  * is used to determine if we need to retry the sending.
@@ -57,13 +62,16 @@ public class SmsSender {
     public static final String EXTRA_PART_ID = "part_id";
 
     /*
-     * A map for pending sms messages. The key is the random request UUID.
+     * A map for pending sms messages. The key is the message uri used as request id.
      */
-    private static ConcurrentHashMap<Uri, SendResult> sPendingMessageMap =
-            new ConcurrentHashMap<Uri, SendResult>();
+    private static ConcurrentHashMap<Uri, PendingMessage> sPendingMessageMap =
+            new ConcurrentHashMap<Uri, PendingMessage>();
 
     private static final Random RANDOM = new Random();
 
+    // Tells the timeout of a message apart from the timeout of an earlier message it replaced
+    private static final AtomicInteger sNextSendId = new AtomicInteger();
+
     /**
      * Class that holds the sent status for all parts of a multipart message sending
      */
@@ -134,6 +142,109 @@ public class SmsSender {
         }
     }
 
+    /**
+     * Callback for the end of sending a message
+     */
+    public interface SendCallback {
+        /**
+         * Called once the sent status of all parts is received or the sending timed out, which
+         * happens on the main thread, or on the thread sending a later message with the same
+         * uri, which replaces this one and completes it as timed out. Implementations must
+         * therefore be safe to call from any thread.
+         *
+         * @param result the sent status, which still has pending parts if the sending timed out
+         */
+        void onSendCompleted(SendResult result);
+    }
+
+    /**
+     * A message in flight, completed by the sent status of its last part or by its timeout,
+     * whichever comes first
+     */
+    private static class PendingMessage {
+        private final Uri mRequestId;
+        private final int mSendId;
+        private final SendResult mResult;
+        private final SendCallback mCallback;
+
+        PendingMessage(final Uri requestId, final SendResult result,
+                final SendCallback callback) {
+            mRequestId = requestId;
+            mSendId = sNextSendId.incrementAndGet();
+            mResult = result;
+            mCallback = callback;
+        }
+
+        /**
+         * Calls the callback, unless the message was already completed
+         */
+        void complete() {
+            if (sPendingMessageMap.remove(mRequestId, this)) {
+                cancelTimeout(mRequestId);
+                if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                    LogUtil.v(TAG, "SmsSender: sending completed. requestId=" + mRequestId
+                            + " result=" + mResult);
+                }
+                mCallback.onSendCompleted(mResult);
+            }
+        }
+    }
+
+    /**
+     * Called when the send timeout alarm of a message goes off
+     *
+     * @param sendId the send id the alarm was scheduled for, so that an alarm already going off
+     *        for a replaced message doesn't time out the message replacing it
+     */
+    public static void onSendTimedOut(final Uri requestId, final int sendId) {
+        final PendingMessage pendingMessage =
+                (requestId != null) ? sPendingMessageMap.get(requestId) : null;
+        if (pendingMessage != null && pendingMessage.mSendId == sendId) {
+            LogUtil.e(TAG, "SmsSender: sending timed out. requestId=" + requestId
+                    + " result=" + pendingMessage.mResult);
+            pendingMessage.complete();
+        } else {
+            // The message was completed, or our process was restarted since it was sent, in
+            // which case it was marked failed on startup
+            LogUtil.w(TAG, "SmsSender: ignoring send timeout. requestId=" + requestId);
+        }
+    }
+
+    private static PendingIntent getTimeoutPendingIntent(final Context context,
+            final Uri requestId, final int sendId) {
+        final Intent intent = new Intent(SendStatusReceiver.MESSAGE_SEND_TIMEOUT_ACTION,
+                requestId, context, SendStatusReceiver.class);
+        intent.putExtra(SendStatusReceiver.EXTRA_SEND_ID, sendId);
+        // The extras don't tell pending intents apart, so this replaces the alarm of any earlier
+        // message with the same uri
+        return PendingIntent.getBroadcast(
+                context,
+                0 /*request code*/,
+                intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    private static void scheduleTimeout(final Context context, final Uri requestId,
+            final int sendId) {
+        final long smsSendTimeoutInMillis = BugleGservices.get().getLong(
+                BugleGservicesKeys.SMS_SEND_TIMEOUT_IN_MILLIS,
+                BugleGservicesKeys.SMS_SEND_TIMEOUT_IN_MILLIS_DEFAULT);
+        final AlarmManager alarmManager =
+                (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        // Allowed while idle so that doze doesn't hold the message in sending
+        alarmManager.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + smsSendTimeoutInMillis,
+                getTimeoutPendingIntent(context, requestId, sendId));
+    }
+
+    private static void cancelTimeout(final Uri requestId) {
+        final Context context = Factory.get().getApplicationContext();
+        final AlarmManager alarmManager =
+                (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(getTimeoutPendingIntent(context, requestId,
+                SendStatusReceiver.NO_SEND_ID));
+    }
+
     public static void setResult(final Uri requestId, final int resultCode,
             final int errorCode, final int partId, int subId) {
         if (resultCode != Activity.RESULT_OK) {
@@ -151,13 +262,15 @@ public class SmsSender {
             }
         }
         if (requestId != null) {
-            final SendResult result = sPendingMessageMap.get(requestId);
-            if (result != null) {
-                synchronized (result) {
-                    result.setPartResult(resultCode);
-                    if (!result.hasPending()) {
-                        result.notifyAll();
-                    }
+            final PendingMessage pendingMessage = sPendingMessageMap.get(requestId);
+            if (pendingMessage != null) {
+                final boolean hasPending;
+                synchronized (pendingMessage.mResult) {
+                    pendingMessage.mResult.setPartResult(resultCode);
+                    hasPending = pendingMessage.mResult.hasPending();
+                }
+                if (!hasPending) {
+                    pendingMessage.complete();
                 }
             } else {
                 LogUtil.e(TAG, "SmsSender: ignoring sent result. " + " requestId=" + requestId
@@ -176,10 +289,11 @@ public class SmsSender {
         }
     }
 
-    // This should be called from a RequestWriter queue thread
-    public static SendResult sendMessage(final Context context, final int subId, String dest,
+    // Returns once the message is handed to the SmsManager, the callback gets its sent status.
+    // This should be called from a background thread.
+    public static void sendMessage(final Context context, final int subId, String dest,
             String message, final String serviceCenter, final boolean requireDeliveryReport,
-            final Uri messageUri) throws SmsException {
+            final Uri messageUri, final SendCallback callback) throws SmsException {
         if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
             LogUtil.v(TAG, "SmsSender: sending message. " +
                     "dest=" + dest + " message=" + message +
@@ -214,37 +328,51 @@ public class SmsSender {
             throw new SmsException("SmsSender: fails to divide message");
         }
         // Prepare the send result, which collects the send status for each part
-        final SendResult pendingResult = new SendResult(messages.size());
-        sPendingMessageMap.put(messageUri, pendingResult);
+        final PendingMessage pendingMessage =
+                addPendingMessage(messageUri, messages.size(), callback);
+        scheduleTimeout(context, messageUri, pendingMessage.mSendId);
         // Actually send the sms
-        sendInternal(
-                context, subId, dest, messages, serviceCenter, requireDeliveryReport, messageUri);
-        // Wait for pending intent to come back
-        synchronized (pendingResult) {
-            final long smsSendTimeoutInMillis = BugleGservices.get().getLong(
-                    BugleGservicesKeys.SMS_SEND_TIMEOUT_IN_MILLIS,
-                    BugleGservicesKeys.SMS_SEND_TIMEOUT_IN_MILLIS_DEFAULT);
-            final long beginTime = SystemClock.elapsedRealtime();
-            long waitTime = smsSendTimeoutInMillis;
-            // We could possibly be woken up while still pending
-            // so make sure we wait the full timeout period unless
-            // we have the send results of all parts.
-            while (pendingResult.hasPending() && waitTime > 0) {
-                try {
-                    pendingResult.wait(waitTime);
-                } catch (final InterruptedException e) {
-                    LogUtil.e(TAG, "SmsSender: sending wait interrupted");
-                }
-                waitTime = smsSendTimeoutInMillis - (SystemClock.elapsedRealtime() - beginTime);
+        try {
+            sendInternal(context, subId, dest, messages, serviceCenter, requireDeliveryReport,
+                    messageUri);
+        } catch (final SmsException e) {
+            // Only report the failure if the callback hasn't been called for a part already sent
+            if (sPendingMessageMap.remove(messageUri, pendingMessage)) {
+                cancelTimeout(messageUri);
+                throw e;
             }
+            LogUtil.e(TAG, e.getMessage());
         }
-        // Either we timed out or have all the results (success or failure)
-        sPendingMessageMap.remove(messageUri);
-        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
-            LogUtil.v(TAG, "SmsSender: sending completed. " +
-                    "dest=" + dest + " message=" + message + " result=" + pendingResult);
+    }
+
+    /**
+     * Starts tracking the sent status of a message, completing any earlier message with the same
+     * uri as timed out on the calling thread
+     */
+    private static PendingMessage addPendingMessage(final Uri messageUri, final int partCount,
+            final SendCallback callback) {
+        final PendingMessage pendingMessage =
+                new PendingMessage(messageUri, new SendResult(partCount), callback);
+        final PendingMessage replacedMessage = sPendingMessageMap.get(messageUri);
+        if (replacedMessage != null) {
+            // Give up on the earlier sending, whose sent status can't be told apart any more
+            LogUtil.w(TAG, "SmsSender: message already pending. requestId=" + messageUri);
+            replacedMessage.complete();
         }
-        return pendingResult;
+        sPendingMessageMap.put(messageUri, pendingMessage);
+        return pendingMessage;
+    }
+
+    /**
+     * Starts tracking a message as {@link #sendMessage} does, without handing it to the
+     * SmsManager or scheduling its timeout alarm
+     *
+     * @return the send id to time the message out with
+     */
+    @VisibleForTesting
+    static int addPendingMessageForTesting(final Uri messageUri, final int partCount,
+            final SendCallback callback) {
+        return addPendingMessage(messageUri, partCount, callback).mSendId;
     }
 
     // Actually sending the message using SmsManager
@@ -105,8 +105,9 @@ public abstract class UIIntents {
 
     public static final String UI_INTENT_EXTRA_SELF_ID = "self_id";
 
-    // Message position to scroll to.
-    public static final String UI_INTENT_EXTRA_MESSAGE_POSITION = "message_position";
+    // Message position to scroll to, counted back from the newest message.
+    public static final String UI_INTENT_EXTRA_MESSAGE_POSITION_FROM_BOTTOM =
+            "message_position_from_bottom";
 
     public static final String ACTION_MESSAGE_READ = "com.android.messaging.action.MESSAGE_READ";
 
@@ -32,6 +32,7 @@ import com.android.ex.chips.RecipientAlternatesAdapter;
 import com.android.ex.chips.RecipientAlternatesAdapter.RecipientMatchCallback;
 import com.android.ex.chips.RecipientEntry;
 import com.android.messaging.R;
+import com.android.messaging.sms.MmsSmsUtils;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
 import com.android.messaging.util.BugleGservices;
@@ -79,6 +80,8 @@ public final class ContactRecipientAdapter extends BaseRecipientAdapter {
         super(context, preferredMaxResultCount, queryMode);
         setPhotoManager(new ContactRecipientPhotoManager(context, clivHost));
         mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        // Start building the contact search index before the user starts typing
+        ContactSearchIndex.get();
     }
 
     @Override
@@ -102,6 +105,9 @@ public final class ContactRecipientAdapter extends BaseRecipientAdapter {
         // Used to sort filtered contacts when it has combined results from email and phone.
         private final RecipientEntryComparator mComparator = new RecipientEntryComparator();
 
+        // The matches for the previous constraint, refined as the user keeps typing
+        private ContactSearchIndex.Matches mPreviousMatches;
+
         /**
          * Returns a cursor containing the filtered results in contacts given the search text,
          * and a boolean indicating whether the results are sorted.
@@ -111,20 +117,24 @@ public final class ContactRecipientAdapter extends BaseRecipientAdapter {
          * Some locales (e.g. JPN) expect email addresses to be auto-completed for MMS.
          * If this is the case, perform two queries on phone number followed by email and
          * return the merged results.
+         *
+         * @param queryPersonal false if the personal results come from the contact search index,
+         *        in which case only the work directory is queried
          */
         @DoesNotRunOnMainThread
-        private CursorResult getFilteredResultsCursor(final String searchText) {
+        private CursorResult getFilteredResultsCursor(final String searchText,
+                final boolean queryPersonal) {
             Assert.isNotMainThread();
-            if (BugleGservices.get().getBoolean(
-                    BugleGservicesKeys.ALWAYS_AUTOCOMPLETE_EMAIL_ADDRESS,
-                    BugleGservicesKeys.ALWAYS_AUTOCOMPLETE_EMAIL_ADDRESS_DEFAULT)) {
-
-                final Cursor personalFilterPhonesCursor = ContactUtil
-                        .filterPhones(getContext(), searchText).performSynchronousQuery();
-                final Cursor personalFilterEmailsCursor = ContactUtil
-                        .filterEmails(getContext(), searchText).performSynchronousQuery();
-                final Cursor personalCursor = new MergeCursor(
-                        new Cursor[]{personalFilterEmailsCursor, personalFilterPhonesCursor});
+            if (alwaysAutocompleteEmailAddress()) {
+                Cursor personalCursor = null;
+                if (queryPersonal) {
+                    final Cursor personalFilterPhonesCursor = ContactUtil
+                            .filterPhones(getContext(), searchText).performSynchronousQuery();
+                    final Cursor personalFilterEmailsCursor = ContactUtil
+                            .filterEmails(getContext(), searchText).performSynchronousQuery();
+                    personalCursor = new MergeCursor(
+                            new Cursor[]{personalFilterEmailsCursor, personalFilterPhonesCursor});
+                }
                 final CursorResult cursorResult =
                         new CursorResult(personalCursor, false /* sorted */);
 
@@ -138,8 +148,9 @@ public final class ContactRecipientAdapter extends BaseRecipientAdapter {
                 cursorResult.enterpriseCursor = enterpriseCursor;
                 return cursorResult;
             } else {
-                final Cursor personalFilterDestinationCursor = ContactUtil
-                        .filterDestination(getContext(), searchText).performSynchronousQuery();
+                final Cursor personalFilterDestinationCursor = queryPersonal ? ContactUtil
+                        .filterDestination(getContext(), searchText).performSynchronousQuery() :
+                        null;
                 final CursorResult cursorResult = new CursorResult(personalFilterDestinationCursor,
                         true);
 
@@ -151,6 +162,39 @@ public final class ContactRecipientAdapter extends BaseRecipientAdapter {
             }
         }
 
+        /**
+         * Returns the entries for the personal contacts matching the search text from the contact
+         * search index, in the same order as the personal cursor would give them.
+         */
+        private List<RecipientEntry> getIndexedEntries(final ContactSearchIndex index,
+                final String searchText) {
+            final boolean alwaysEmail = alwaysAutocompleteEmailAddress();
+            final boolean filterForEmail = ContactUtil.shouldFilterForEmail(searchText);
+            final boolean includeEmails = alwaysEmail || filterForEmail;
+            final boolean includePhones = alwaysEmail || !filterForEmail;
+            mPreviousMatches = index.search(searchText, includePhones, includeEmails,
+                    mPreviousMatches);
+
+            final List<RecipientEntry> entries = new ArrayList<>();
+            final HashSet<Long> existingContactIds = new HashSet<>();
+            for (final ContactSearchIndex.Destination destination :
+                    mPreviousMatches.getDestinations()) {
+                // Make sure there's only one first-level contact for every contact id.
+                final boolean isFirstLevel = existingContactIds.add(destination.getContactId());
+                entries.add(destination.createRecipientEntry(isFirstLevel));
+            }
+            if (includeEmails && includePhones) {
+                Collections.sort(entries, mComparator);
+            }
+            return entries;
+        }
+
+        private boolean alwaysAutocompleteEmailAddress() {
+            return BugleGservices.get().getBoolean(
+                    BugleGservicesKeys.ALWAYS_AUTOCOMPLETE_EMAIL_ADDRESS,
+                    BugleGservicesKeys.ALWAYS_AUTOCOMPLETE_EMAIL_ADDRESS_DEFAULT);
+        }
+
         @Override
         protected FilterResults performFiltering(final CharSequence constraint) {
             Assert.isNotMainThread();
@@ -167,7 +211,12 @@ public final class ContactRecipientAdapter extends BaseRecipientAdapter {
             // Query for auto-complete results, since performFiltering() is not done on the
             // main thread, perform the cursor loader queries directly.
 
-            final CursorResult cursorResult = getFilteredResultsCursor(searchText);
+            // Personal contacts are searched in memory once the index is built.
+            final ContactSearchIndex index = ContactSearchIndex.get();
+            final CursorResult cursorResult = getFilteredResultsCursor(searchText,
+                    index == null /* queryPersonal */);
+            final List<RecipientEntry> indexedEntries = (index == null) ? null :
+                    getIndexedEntries(index, searchText);
             final List<RecipientEntry> entries = new ArrayList<>();
 
             // First check if the constraint is a valid SMS destination. If so, add the
@@ -184,9 +233,15 @@ public final class ContactRecipientAdapter extends BaseRecipientAdapter {
                 if (cursorResult.personalCursor != null) {
                     workDirectoryHeaderPos = entries.size();
                     workDirectoryHeaderPos += cursorResult.personalCursor.getCount();
+                } else if (indexedEntries != null) {
+                    workDirectoryHeaderPos = entries.size() + indexedEntries.size();
                 }
             }
 
+            if (indexedEntries != null) {
+                entries.addAll(indexedEntries);
+            }
+
             final Cursor[] cursors = new Cursor[]{cursorResult.personalCursor,
                     cursorResult.enterpriseCursor};
             for (Cursor cursor : cursors) {
@@ -331,6 +386,10 @@ public final class ContactRecipientAdapter extends BaseRecipientAdapter {
      * For example, if a list of comma-delimited phone numbers are pasted into the edit box,
      * we want to be able to look up in the ContactUtil for exact matches and get contact
      * details such as name and photo thumbnail for the contact to display a better chip.
+     *
+     * All the addresses are first looked up with a few bulk queries on the default directory.
+     * Only the ones these don't match (e.g. numbers the contacts provider can't normalize, or
+     * work profile contacts) are then looked up one by one.
      */
     @Override
     public void getMatchingRecipients(final ArrayList<String> inAddresses,
@@ -343,27 +402,38 @@ public final class ContactRecipientAdapter extends BaseRecipientAdapter {
             addresses.add(tokens.length > 0 ? tokens[0].getAddress() : inAddresses.get(i));
         }
 
+        // Key each address the way the bulk lookups report matches: phones by their E164
+        // number, emails by their lower-cased address
+        final PhoneUtils phoneUtils = PhoneUtils.getDefault();
+        final Map<String, String> lookupKeys = new HashMap<String, String>();
+        final HashSet<String> phones = new HashSet<String>();
+        final HashSet<String> emails = new HashSet<String>();
+        for (final String address : addresses) {
+            if (MmsSmsUtils.isEmailAddress(address)) {
+                // Keyed the same way as the matches in lookupInBulk()
+                final String lookupKey = address.toLowerCase(Locale.ROOT);
+                lookupKeys.put(address, lookupKey);
+                emails.add(lookupKey);
+            } else {
+                final String e164Number = phoneUtils.getCanonicalBySimLocale(address);
+                lookupKeys.put(address, e164Number);
+                phones.add(e164Number);
+            }
+        }
+        final Map<String, RecipientEntry> entriesByLookupKey =
+                new HashMap<String, RecipientEntry>();
+        lookupInBulk(new ArrayList<String>(phones), false /* isEmail */, entriesByLookupKey);
+        lookupInBulk(new ArrayList<String>(emails), true /* isEmail */, entriesByLookupKey);
+
         final Map<String, RecipientEntry> recipientEntries =
                 new HashMap<String, RecipientEntry>();
-        // query for each address
         for (final String address : addresses) {
-            final Cursor cursor = ContactUtil.lookupDestination(getContext(), address)
-                    .performSynchronousQuery();
-            if (cursor != null) {
-                try {
-                    if (cursor.moveToNext()) {
-                        // There may be multiple matches to the same number, always take the
-                        // first match.
-                        // TODO: May need to consider if there's an existing conversation
-                        // that matches this particular contact and prioritize that contact.
-                        final RecipientEntry entry =
-                                ContactUtil.createRecipientEntryForPhoneQuery(cursor, true);
-                        recipientEntries.put(address, entry);
-                    }
-
-                } finally {
-                    cursor.close();
-                }
+            RecipientEntry entry = entriesByLookupKey.get(lookupKeys.get(address));
+            if (entry == null) {
+                entry = lookupDestination(address);
+            }
+            if (entry != null) {
+                recipientEntries.put(address, entry);
             }
         }
 
@@ -371,6 +441,58 @@ public final class ContactRecipientAdapter extends BaseRecipientAdapter {
         callback.matchesFound(recipientEntries);
     }
 
+    /**
+     * Looks up a batch of E164 phone numbers or lower-cased email addresses in the default
+     * directory, adding the first match for each of them to the given map.
+     */
+    private void lookupInBulk(final List<String> lookupKeys, final boolean isEmail,
+            final Map<String, RecipientEntry> entriesByLookupKey) {
+        for (int start = 0; start < lookupKeys.size(); start += ContactUtil.MAX_BULK_LOOKUP_ARGS) {
+            final List<String> batch = lookupKeys.subList(start,
+                    Math.min(lookupKeys.size(), start + ContactUtil.MAX_BULK_LOOKUP_ARGS));
+            final Cursor cursor = (isEmail ? ContactUtil.lookupEmails(getContext(), batch) :
+                    ContactUtil.lookupPhones(getContext(), batch)).performSynchronousQuery();
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    final String lookupKey = isEmail ?
+                            cursor.getString(ContactUtil.INDEX_PHONE_EMAIL)
+                                    .toLowerCase(Locale.ROOT) :
+                            cursor.getString(
+                                    ContactUtil.PhoneBulkLookupQuery.INDEX_NORMALIZED_NUMBER);
+                    // Same as lookupDestination(), the first match wins.
+                    if (lookupKey != null && !entriesByLookupKey.containsKey(lookupKey)) {
+                        entriesByLookupKey.put(lookupKey,
+                                ContactUtil.createRecipientEntryForPhoneQuery(cursor, true));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private RecipientEntry lookupDestination(final String address) {
+        final Cursor cursor = ContactUtil.lookupDestination(getContext(), address)
+                .performSynchronousQuery();
+        if (cursor != null) {
+            try {
+                if (cursor.moveToNext()) {
+                    // There may be multiple matches to the same number, always take the
+                    // first match.
+                    // TODO: May need to consider if there's an existing conversation
+                    // that matches this particular contact and prioritize that contact.
+                    return ContactUtil.createRecipientEntryForPhoneQuery(cursor, true);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return null;
+    }
+
     /**
      * We handle directory header here and then delegate the work of creating recipient views to
      * the {@link BaseRecipientAdapter}. Please notice that we need to fix the position
@@ -0,0 +1,551 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.ui.contact;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.DisplayNameSources;
+import android.text.TextUtils;
+
+import com.android.ex.chips.RecipientEntry;
+import com.android.messaging.Factory;
+import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
+import com.android.messaging.util.ContactUtil;
+import com.android.messaging.util.LogUtil;
+import com.android.messaging.util.SafeAsyncTask;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory index of the phones and emails in the default directory, to auto-complete
+ * recipients without querying the contacts provider for every character typed.
+ * <p>
+ * A query matches a destination when each of its words starts a word of the contact's name, when
+ * it starts the email address, or when its digits start one of the digit groups of the phone
+ * number, e.g. "555 12" matches "+1 555-123-4567". The name words, email addresses and digit
+ * groups are kept in sorted arrays, so the destinations with a token starting with a query word
+ * are found with a binary search. Extending a query can only narrow its matches, so a search
+ * refines the previous matches, which are few, instead of looking the query up again.
+ * <p>
+ * When contacts change, the index is rebuilt in the background while the current one keeps being
+ * used, and kept if none of the phones and emails it holds changed, e.g. when only how often a
+ * contact was used did. Until it is first built, callers should query the provider instead.
+ */
+final class ContactSearchIndex {
+    private static final String TAG = LogUtil.BUGLE_TAG;
+
+    private static final Pattern WORD_SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+    private static final Pattern NOT_DIGITS = Pattern.compile("\\D+");
+    private static final Pattern PHONE_NUMBER_QUERY =
+            Pattern.compile("[0-9+\\-(). ]*[0-9][0-9+\\-(). ]*");
+
+    /**
+     * A phone or email of a contact, with what it's matched on.
+     */
+    static class Destination {
+        private final long mContactId;
+        private final String mDisplayName;
+        private final String mPhotoThumbnailUri;
+        private final String mDestination;
+        private final int mDestinationType;
+        private final String mDestinationLabel;
+        private final String mLookupKey;
+
+        // Normalized words of the name, and of the address for emails
+        private final String[] mWords;
+        // Normalized email address, null for phones
+        private final String mAddress;
+        // For phones, the digits from each digit group to the end, e.g. "15551234567",
+        // "5551234567", "1234567" and "4567" for "+1 555-123-4567"
+        private final String[] mDigitSuffixes;
+
+        private Destination(final Cursor cursor, final boolean isEmail) {
+            mContactId = cursor.getLong(ContactUtil.INDEX_CONTACT_ID);
+            mDisplayName = cursor.getString(ContactUtil.INDEX_DISPLAY_NAME);
+            mPhotoThumbnailUri = cursor.getString(ContactUtil.INDEX_PHOTO_URI);
+            mDestination = cursor.getString(ContactUtil.INDEX_PHONE_EMAIL);
+            mDestinationType = cursor.getInt(ContactUtil.INDEX_PHONE_EMAIL_TYPE);
+            mDestinationLabel = cursor.getString(ContactUtil.INDEX_PHONE_EMAIL_LABEL);
+            mLookupKey = cursor.getString(ContactUtil.INDEX_LOOKUP_KEY);
+
+            final List<String> words = new ArrayList<String>();
+            addWords(words, mDisplayName);
+            if (isEmail) {
+                mAddress = normalize(mDestination);
+                addWords(words, mDestination);
+                mDigitSuffixes = new String[0];
+            } else {
+                mAddress = null;
+                final List<String> groups = getWords(NOT_DIGITS, mDestination);
+                mDigitSuffixes = new String[groups.size()];
+                String suffix = "";
+                for (int i = groups.size() - 1; i >= 0; i--) {
+                    suffix = groups.get(i) + suffix;
+                    mDigitSuffixes[i] = suffix;
+                }
+            }
+            mWords = words.toArray(new String[words.size()]);
+        }
+
+        private boolean matches(final Query query) {
+            if (query.mDigits != null) {
+                for (final String digitSuffix : mDigitSuffixes) {
+                    if (digitSuffix.startsWith(query.mDigits)) {
+                        return true;
+                    }
+                }
+            }
+            if (mAddress != null && mAddress.startsWith(query.mText)) {
+                return true;
+            }
+            if (query.mWords.isEmpty()) {
+                return false;
+            }
+            for (final String queryWord : query.mWords) {
+                if (!startsAnyWord(queryWord)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean startsAnyWord(final String queryWord) {
+            for (final String word : mWords) {
+                if (word.startsWith(queryWord)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long getContactId() {
+            return mContactId;
+        }
+
+        /**
+         * @return true if this is the same phone or email as the given one, with the same
+         *         contact details
+         */
+        private boolean isSameAs(final Destination other) {
+            return mContactId == other.mContactId &&
+                    mDestinationType == other.mDestinationType &&
+                    TextUtils.equals(mDisplayName, other.mDisplayName) &&
+                    TextUtils.equals(mPhotoThumbnailUri, other.mPhotoThumbnailUri) &&
+                    TextUtils.equals(mDestination, other.mDestination) &&
+                    TextUtils.equals(mDestinationLabel, other.mDestinationLabel) &&
+                    TextUtils.equals(mLookupKey, other.mLookupKey);
+        }
+
+        /**
+         * Creates the same entry as {@link ContactUtil#createRecipientEntryForPhoneQuery} would.
+         */
+        RecipientEntry createRecipientEntry(final boolean isFirstLevel) {
+            // PhoneQuery uses the contact id as the data id ("_id").
+            return ContactUtil.createRecipientEntry(mDisplayName,
+                    DisplayNameSources.STRUCTURED_NAME, mDestination, mDestinationType,
+                    mDestinationLabel, mContactId, mLookupKey, mContactId, mPhotoThumbnailUri,
+                    isFirstLevel);
+        }
+    }
+
+    /**
+     * The destinations matching a query, which can be passed to the search for a longer query to
+     * refine them.
+     */
+    static class Matches {
+        private final ContactSearchIndex mIndex;
+        private final String mQuery;
+        private final Query mParsedQuery;
+        private final boolean mIncludePhones;
+        private final boolean mIncludeEmails;
+        private final List<Destination> mDestinations;
+
+        private Matches(final ContactSearchIndex index, final String query,
+                final Query parsedQuery, final boolean includePhones, final boolean includeEmails,
+                final List<Destination> destinations) {
+            mIndex = index;
+            mQuery = query;
+            mParsedQuery = parsedQuery;
+            mIncludePhones = includePhones;
+            mIncludeEmails = includeEmails;
+            mDestinations = destinations;
+        }
+
+        /**
+         * @return the matching destinations, emails first, each kind in contact name order
+         */
+        List<Destination> getDestinations() {
+            return mDestinations;
+        }
+    }
+
+    private static class Query {
+        final String mText;
+        final List<String> mWords;
+        // The digits of the query if it looks like a phone number, null otherwise
+        final String mDigits;
+
+        Query(final String query) {
+            mText = normalize(query).trim();
+            mWords = getWords(WORD_SEPARATORS, mText);
+            mDigits = PHONE_NUMBER_QUERY.matcher(query).matches() ?
+                    NOT_DIGITS.matcher(query).replaceAll("") : null;
+        }
+
+        /**
+         * @return true if the matches of this query, which extends the previous one, are all
+         *         among the matches of the previous one. That's only the case if the previous
+         *         query matched the same way, e.g. "+" matches nothing by name or number but
+         *         "+1 555" does.
+         */
+        boolean canRefine(final Query previous) {
+            if (previous.mWords.isEmpty() && previous.mDigits == null) {
+                return false;
+            }
+            return (mWords.isEmpty() || !previous.mWords.isEmpty()) &&
+                    (mDigits == null || previous.mDigits != null);
+        }
+    }
+
+    /**
+     * Tokens sorted so that the ones starting with a prefix are next to each other and found with
+     * a binary search, each with the position of the destination it belongs to.
+     */
+    private static class TokenIndex {
+        private final String[] mTokens;
+        private final int[] mOwners;
+
+        TokenIndex(final List<String> tokens, final List<Integer> owners) {
+            final Integer[] order = new Integer[tokens.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(final Integer lhs, final Integer rhs) {
+                    return tokens.get(lhs).compareTo(tokens.get(rhs));
+                }
+            });
+            mTokens = new String[order.length];
+            mOwners = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                mTokens[i] = tokens.get(order[i]);
+                mOwners[i] = owners.get(order[i]);
+            }
+        }
+
+        /**
+         * Sets the positions of the destinations with a token starting with the prefix.
+         */
+        void addOwnersOfPrefix(final String prefix, final BitSet owners) {
+            // Find the first token not sorting before the prefix
+            int low = 0;
+            int high = mTokens.length;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (mTokens[middle].compareTo(prefix) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            for (int i = low; i < mTokens.length && mTokens[i].startsWith(prefix); i++) {
+                owners.set(mOwners[i]);
+            }
+        }
+    }
+
+    private static final Object sLock = new Object();
+    // Guarded by sLock
+    private static ContactSearchIndex sIndex;
+    private static boolean sBuilding;
+    private static int sContactsGeneration;
+    private static ContentObserver sContactsObserver;
+
+    // Emails first, then phones, each kind in contact name order
+    private final Destination[] mDestinations;
+    private final int mEmailCount;
+    // Words of the names, and of the addresses of emails
+    private final TokenIndex mWordIndex;
+    // Whole email addresses
+    private final TokenIndex mAddressIndex;
+    // Digit suffixes of phones
+    private final TokenIndex mDigitIndex;
+
+    @VisibleForTesting
+    ContactSearchIndex(final Cursor phones, final Cursor emails) {
+        final List<Destination> destinations = readDestinations(emails, true /* isEmail */);
+        mEmailCount = destinations.size();
+        destinations.addAll(readDestinations(phones, false /* isEmail */));
+        mDestinations = destinations.toArray(new Destination[destinations.size()]);
+
+        final List<String> words = new ArrayList<String>();
+        final List<Integer> wordOwners = new ArrayList<Integer>();
+        final List<String> addresses = new ArrayList<String>();
+        final List<Integer> addressOwners = new ArrayList<Integer>();
+        final List<String> digitSuffixes = new ArrayList<String>();
+        final List<Integer> digitSuffixOwners = new ArrayList<Integer>();
+        for (int i = 0; i < mDestinations.length; i++) {
+            final Destination destination = mDestinations[i];
+            for (final String word : destination.mWords) {
+                words.add(word);
+                wordOwners.add(i);
+            }
+            if (destination.mAddress != null) {
+                addresses.add(destination.mAddress);
+                addressOwners.add(i);
+            }
+            for (final String digitSuffix : destination.mDigitSuffixes) {
+                digitSuffixes.add(digitSuffix);
+                digitSuffixOwners.add(i);
+            }
+        }
+        mWordIndex = new TokenIndex(words, wordOwners);
+        mAddressIndex = new TokenIndex(addresses, addressOwners);
+        mDigitIndex = new TokenIndex(digitSuffixes, digitSuffixOwners);
+    }
+
+    /**
+     * @return true if this index holds the same phones and emails as the given one
+     */
+    @VisibleForTesting
+    boolean hasSameDestinations(final ContactSearchIndex other) {
+        if (mEmailCount != other.mEmailCount ||
+                mDestinations.length != other.mDestinations.length) {
+            return false;
+        }
+        for (int i = 0; i < mDestinations.length; i++) {
+            if (!mDestinations[i].isSameAs(other.mDestinations[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index if it's up to date with contacts, or null if it isn't, in which case it
+     *         starts being built in the background
+     */
+    static ContactSearchIndex get() {
+        synchronized (sLock) {
+            if (sIndex == null) {
+                startBuildLocked();
+            }
+            return sIndex;
+        }
+    }
+
+    // Must hold sLock
+    private static void startBuildLocked() {
+        if (!sBuilding && ContactUtil.hasReadContactsPermission()) {
+            sBuilding = true;
+            SafeAsyncTask.executeOnThreadPool(new Runnable() {
+                @Override
+                public void run() {
+                    build();
+                }
+            });
+        }
+    }
+
+    @DoesNotRunOnMainThread
+    private static void build() {
+        final int generation;
+        synchronized (sLock) {
+            if (sContactsObserver == null) {
+                sContactsObserver = new ContentObserver(null) {
+                    @Override
+                    public void onChange(final boolean selfChange) {
+                        synchronized (sLock) {
+                            sContactsGeneration++;
+                            // Keep using the current index until the new one is built. A build
+                            // in progress starts another one once it's done.
+                            if (sIndex != null) {
+                                startBuildLocked();
+                            }
+                        }
+                    }
+                };
+                Factory.get().getApplicationContext().getContentResolver()
+                        .registerContentObserver(ContactsContract.AUTHORITY_URI,
+                                true /* notifyForDescendants */, sContactsObserver);
+            }
+            generation = sContactsGeneration;
+        }
+
+        ContactSearchIndex index = null;
+        final Context context = Factory.get().getApplicationContext();
+        Cursor phones = null;
+        Cursor emails = null;
+        try {
+            final long startTime = System.currentTimeMillis();
+            phones = ContactUtil.getPhones(context).performSynchronousQuery();
+            emails = ContactUtil.getEmails(context).performSynchronousQuery();
+            if (phones != null && emails != null) {
+                index = new ContactSearchIndex(phones, emails);
+                if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                    LogUtil.d(TAG, "ContactSearchIndex: indexed "
+                            + (index.mDestinations.length - index.mEmailCount) + " phones and "
+                            + index.mEmailCount + " emails in "
+                            + (System.currentTimeMillis() - startTime) + "ms");
+                }
+            }
+        } catch (final Exception exception) {
+            // It's possible for contact query to fail and we don't want that to crash our app.
+            LogUtil.e(TAG, "ContactSearchIndex: failed to query contacts", exception);
+        } finally {
+            if (phones != null) {
+                phones.close();
+            }
+            if (emails != null) {
+                emails.close();
+            }
+        }
+
+        synchronized (sLock) {
+            sBuilding = false;
+            // Keep the current index, and the matches refined from it, if the contacts change
+            // was to something it doesn't hold
+            if (index != null && (sIndex == null || !sIndex.hasSameDestinations(index))) {
+                sIndex = index;
+            }
+            if (generation != sContactsGeneration) {
+                // Contacts that changed meanwhile may or may not be in it
+                startBuildLocked();
+            }
+        }
+    }
+
+    private static List<Destination> readDestinations(final Cursor cursor,
+            final boolean isEmail) {
+        if (cursor == null) {
+            return new ArrayList<Destination>();
+        }
+        final List<Destination> destinations = new ArrayList<Destination>(cursor.getCount());
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            if (!TextUtils.isEmpty(cursor.getString(ContactUtil.INDEX_PHONE_EMAIL))) {
+                destinations.add(new Destination(cursor, isEmail));
+            }
+        }
+        return destinations;
+    }
+
+    /**
+     * Finds the destinations matching the query.
+     * @param previous the matches of the previous search, refined if the query extends its query
+     */
+    Matches search(final String query, final boolean includePhones,
+            final boolean includeEmails, final Matches previous) {
+        final Query parsedQuery = new Query(query);
+        final List<Destination> destinations = new ArrayList<Destination>();
+        if (previous != null && previous.mIndex == this &&
+                previous.mIncludePhones == includePhones &&
+                previous.mIncludeEmails == includeEmails && query.startsWith(previous.mQuery) &&
+                parsedQuery.canRefine(previous.mParsedQuery)) {
+            addMatches(previous.mDestinations, parsedQuery, destinations);
+        } else {
+            final BitSet matches = findMatches(parsedQuery);
+            final int start = includeEmails ? 0 : mEmailCount;
+            final int end = includePhones ? mDestinations.length : mEmailCount;
+            for (int i = matches.nextSetBit(start); i >= 0 && i < end;
+                    i = matches.nextSetBit(i + 1)) {
+                destinations.add(mDestinations[i]);
+            }
+        }
+        return new Matches(this, query, parsedQuery, includePhones, includeEmails,
+                destinations);
+    }
+
+    /**
+     * Looks the query up in the token indexes, the same way {@link Destination#matches} checks a
+     * destination.
+     *
+     * @return the positions of the matching destinations
+     */
+    private BitSet findMatches(final Query query) {
+        final BitSet matches = new BitSet(mDestinations.length);
+        if (query.mText.isEmpty()) {
+            return matches;
+        }
+        if (query.mDigits != null) {
+            mDigitIndex.addOwnersOfPrefix(query.mDigits, matches);
+        }
+        mAddressIndex.addOwnersOfPrefix(query.mText, matches);
+        BitSet wordMatches = null;
+        for (final String queryWord : query.mWords) {
+            final BitSet owners = new BitSet(mDestinations.length);
+            mWordIndex.addOwnersOfPrefix(queryWord, owners);
+            if (wordMatches == null) {
+                wordMatches = owners;
+            } else {
+                wordMatches.and(owners);
+            }
+            if (wordMatches.isEmpty()) {
+                break;
+            }
+        }
+        if (wordMatches != null) {
+            matches.or(wordMatches);
+        }
+        return matches;
+    }
+
+    private static void addMatches(final List<Destination> candidates, final Query query,
+            final List<Destination> matches) {
+        if (query.mText.isEmpty()) {
+            return;
+        }
+        for (final Destination candidate : candidates) {
+            if (candidate.matches(query)) {
+                matches.add(candidate);
+            }
+        }
+    }
+
+    private static String normalize(final String text) {
+        final String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return DIACRITICS.matcher(decomposed).replaceAll("").toLowerCase(Locale.getDefault());
+    }
+
+    private static void addWords(final List<String> words, final String text) {
+        if (!TextUtils.isEmpty(text)) {
+            words.addAll(getWords(WORD_SEPARATORS, normalize(text)));
+        }
+    }
+
+    private static List<String> getWords(final Pattern separators, final String text) {
+        final List<String> words = new ArrayList<String>();
+        for (final String word : separators.split(text)) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+}
@@ -669,9 +669,16 @@ public class ComposeMessageView extends LinearLayout
     }
 
     private void updateVisualsOnDraftChanged(boolean hasAttachmentsChanged) {
-        final String messageText = mComposeEditText.getText().toString();
+        updateVisualsOnDraftChanged(hasAttachmentsChanged, true /* updateMessageText */);
+    }
+
+    private void updateVisualsOnDraftChanged(final boolean hasAttachmentsChanged,
+            final boolean updateMessageText) {
         final DraftMessageData draftMessageData = mBinding.getData();
-        draftMessageData.setMessageText(messageText);
+        if (updateMessageText) {
+            draftMessageData.setMessageText(mComposeEditText.getText().toString());
+        }
+        final String messageText = draftMessageData.getMessageText();
 
         final String subject = mComposeSubjectText.getText().toString();
         draftMessageData.setMessageSubject(subject);
@@ -913,7 +920,13 @@ public class ComposeMessageView extends LinearLayout
         }
 
         mBinding.ensureBound();
-        updateVisualsOnDraftChanged();
+        final boolean isMessageText = (s == mComposeEditText.getText());
+        if (isMessageText) {
+            // Let the draft recount the message length for the edited characters only
+            mBinding.getData().setMessageText(s.toString(), start, before, count);
+        }
+        updateVisualsOnDraftChanged(false /* hasAttachmentsChanged */,
+                !isMessageText /* updateMessageText */);
     }
 
     @Override
@@ -134,6 +134,9 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
 
     static final int REQUEST_CHOOSE_ATTACHMENTS = 2;
     private static final int JUMP_SCROLL_THRESHOLD = 15;
+    // Start loading the next page of older messages once the user scrolls within this many
+    // messages of the oldest one loaded.
+    private static final int LOAD_OLDER_MESSAGES_THRESHOLD = 20;
     // We animate the message from draft to message list, if we the message doesn't show up in the
     // list within this time limit, then we just do a fade in animation instead
     public static final int MESSAGE_ANIMATION_MAX_WAIT = 500;
@@ -269,9 +272,23 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
                     mConversationComposeDivider.animate().alpha(isScrolledToBottom() ? 0 : 1);
                     mWasScrolledToBottom = isScrolledToBottom();
                 }
+                maybeLoadOlderMessages();
             }
     };
 
+    private void maybeLoadOlderMessages() {
+        if (!mBinding.isBound() || !mBinding.getData().hasOlderMessages()) {
+            return;
+        }
+        final LinearLayoutManager layoutManager =
+                (LinearLayoutManager) mRecyclerView.getLayoutManager();
+        final int firstVisibleItemPosition = layoutManager.findFirstVisibleItemPosition();
+        if (firstVisibleItemPosition != RecyclerView.NO_POSITION
+                && firstVisibleItemPosition < LOAD_OLDER_MESSAGES_THRESHOLD) {
+            mBinding.getData().loadOlderMessages(mBinding);
+        }
+    }
+
     private final ActionMode.Callback mMessageActionModeCallback = new ActionMode.Callback() {
         @Override
         public boolean onCreateActionMode(final ActionMode actionMode, final Menu menu) {
@@ -469,7 +486,11 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
         mClearLocalDraft = true;
     }
 
-    private int getScrollToMessagePosition() {
+    /**
+     * @return the position from the bottom of the message a widget click asked to scroll to, or
+     *         -1 if there is none
+     */
+    private int getScrollToMessagePositionFromBottom() {
         final Activity activity = getActivity();
         if (activity == null) {
             return -1;
@@ -480,7 +501,7 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
             return -1;
         }
 
-        return intent.getIntExtra(UIIntents.UI_INTENT_EXTRA_MESSAGE_POSITION, -1);
+        return intent.getIntExtra(UIIntents.UI_INTENT_EXTRA_MESSAGE_POSITION_FROM_BOTTOM, -1);
     }
 
     private void clearScrollToMessagePosition() {
@@ -493,7 +514,7 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
         if (intent == null) {
             return;
         }
-        intent.putExtra(UIIntents.UI_INTENT_EXTRA_MESSAGE_POSITION, -1);
+        intent.putExtra(UIIntents.UI_INTENT_EXTRA_MESSAGE_POSITION_FROM_BOTTOM, -1);
     }
 
     private final Handler mHandler = new Handler();
@@ -923,8 +944,21 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
             mHost.onConversationMessagesUpdated(cursor.getCount());
 
             // Are we coming from a widget click where we're told to scroll to a particular item?
-            final int scrollToPos = getScrollToMessagePosition();
-            if (scrollToPos >= 0) {
+            final int messagePositionFromBottom = getScrollToMessagePositionFromBottom();
+            final int itemCount = mAdapter.getItemCount();
+            if (messagePositionFromBottom >= itemCount && data.hasOlderMessages()) {
+                // The message is older than the messages loaded so far. Page back until it is
+                // loaded; we get here again as each page arrives.
+                data.loadOlderMessages(mBinding);
+            } else if (messagePositionFromBottom >= 0) {
+                if (messagePositionFromBottom >= itemCount) {
+                    // The conversation has fewer messages than the widget showed, e.g. some
+                    // were deleted since, so settle for the oldest one
+                    LogUtil.w(LogUtil.BUGLE_TAG, "onConversationMessagesCursorUpdated: message "
+                            + messagePositionFromBottom + " from the bottom is past the oldest of "
+                            + itemCount + " messages, scrolling to the oldest");
+                }
+                final int scrollToPos = Math.max(itemCount - 1 - messagePositionFromBottom, 0);
                 if (LogUtil.isLoggable(LogUtil.BUGLE_TAG, LogUtil.VERBOSE)) {
                     LogUtil.v(LogUtil.BUGLE_TAG, "onConversationMessagesCursorUpdated " +
                             " scrollToPos: " + scrollToPos +
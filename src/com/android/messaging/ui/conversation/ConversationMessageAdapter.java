@@ -17,17 +17,21 @@ package com.android.messaging.ui.conversation;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.text.PrecomputedText;
+import android.text.TextUtils;
 import androidx.recyclerview.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
 import com.android.messaging.R;
+import com.android.messaging.datamodel.data.ConversationMessageData;
 import com.android.messaging.ui.AsyncImageView;
 import com.android.messaging.ui.CursorRecyclerAdapter;
 import com.android.messaging.ui.AsyncImageView.AsyncImageViewDelayLoader;
 import com.android.messaging.ui.conversation.ConversationMessageView.ConversationMessageViewHost;
 import com.android.messaging.util.Assert;
+import com.android.messaging.util.Trace;
 
 import java.util.HashSet;
 import java.util.List;
@@ -38,6 +42,9 @@ import java.util.List;
  */
 public class ConversationMessageAdapter extends
     CursorRecyclerAdapter<ConversationMessageAdapter.ConversationMessageViewHolder> {
+    // How many messages before and after a bound message get their text prepared for display in
+    // the background, as they are about to be scrolled to
+    private static final int TEXT_PREFETCH_DISTANCE = 5;
 
     private final ConversationMessageViewHost mHost;
     private final AsyncImageViewDelayLoader mImageViewDelayLoader;
@@ -66,6 +73,34 @@ public class ConversationMessageAdapter extends
         final ConversationMessageView conversationMessageView =
                 (ConversationMessageView) holder.mView;
         conversationMessageView.bind(cursor, mOneOnOne, mSelectedMessageId);
+        prefetchMessageTexts(cursor, conversationMessageView.getMessageTextMetricsParams());
+    }
+
+    /**
+     * Starts preparing the text of the messages around the one the cursor is on, for the given
+     * text metrics, so that they are ready by the time they are bound.
+     */
+    private void prefetchMessageTexts(final Cursor cursor, final PrecomputedText.Params params) {
+        Trace.beginSection("ConversationMessageAdapter.prefetchMessageTexts");
+        final MessageTextCache messageTextCache = MessageTextCache.get();
+        final int position = cursor.getPosition();
+        final int first = Math.max(0, position - TEXT_PREFETCH_DISTANCE);
+        final int last = Math.min(cursor.getCount() - 1, position + TEXT_PREFETCH_DISTANCE);
+        for (int i = first; i <= last; i++) {
+            if (i == position || !cursor.moveToPosition(i)) {
+                continue;
+            }
+            final String messageId = ConversationMessageData.getMessageId(cursor);
+            if (messageTextCache.contains(messageId)) {
+                continue;
+            }
+            final String text = ConversationMessageData.getText(cursor);
+            if (!TextUtils.isEmpty(text)) {
+                messageTextCache.prefetch(messageId, text, params);
+            }
+        }
+        cursor.moveToPosition(position);
+        Trace.endSection();
     }
 
     @Override
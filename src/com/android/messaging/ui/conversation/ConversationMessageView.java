@@ -21,12 +21,13 @@ import android.database.Cursor;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.text.PrecomputedText;
 import android.text.Spanned;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.text.format.Formatter;
+import android.text.method.LinkMovementMethod;
 import android.text.style.URLSpan;
-import android.text.util.Linkify;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.view.Gravity;
@@ -60,6 +61,7 @@ import com.android.messaging.ui.MultiAttachmentLayout.OnAttachmentClickListener;
 import com.android.messaging.ui.PersonItemView;
 import com.android.messaging.ui.UIIntents;
 import com.android.messaging.ui.VideoThumbnailView;
+import com.android.messaging.ui.conversation.MessageTextCache.LinkifiedText;
 import com.android.messaging.util.AccessibilityUtil;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.AvatarUriUtil;
@@ -67,6 +69,7 @@ import com.android.messaging.util.ContentType;
 import com.android.messaging.util.ImageUtils;
 import com.android.messaging.util.OsUtil;
 import com.android.messaging.util.PhoneUtils;
+import com.android.messaging.util.Trace;
 import com.android.messaging.util.UiUtils;
 import com.android.messaging.util.YouTubeUtil;
 
@@ -115,6 +118,25 @@ public class ConversationMessageView extends FrameLayout implements View.OnClick
     private boolean mOneOnOne;
     private ConversationMessageViewHost mHost;
 
+    // Shows the links of the message text once they have been found, if this view still shows
+    // the message without them
+    private final Runnable mOnMessageTextPrepared = new Runnable() {
+        @Override
+        public void run() {
+            final String text = mData.getText();
+            if (TextUtils.isEmpty(text) || mMessageTextHasLinks) {
+                return;
+            }
+            final LinkifiedText linkifiedText = MessageTextCache.get().getLinkifiedText(
+                    mData.getMessageId(), text, getMessageTextMetricsParams(), this);
+            if (linkifiedText != null && linkifiedText.hasLinks()) {
+                updateViewContent();
+                updateViewAppearance();
+                updateContentDescription();
+            }
+        }
+    };
+
     public ConversationMessageView(final Context context, final AttributeSet attrs) {
         super(context, attrs);
         // TODO: we should switch to using Binding and DataModel factory methods.
@@ -161,6 +183,7 @@ public class ConversationMessageView extends FrameLayout implements View.OnClick
 
     @Override
     protected void onMeasure(final int widthMeasureSpec, final int heightMeasureSpec) {
+        Trace.beginSection("ConversationMessageView.onMeasure");
         final int horizontalSpace = MeasureSpec.getSize(widthMeasureSpec);
         final int iconSize = getResources()
                 .getDimensionPixelSize(R.dimen.conversation_message_contact_icon_size);
@@ -186,6 +209,7 @@ public class ConversationMessageView extends FrameLayout implements View.OnClick
         final int maxHeight = Math.max(mContactIconView.getMeasuredHeight(),
                 mMessageBubble.getMeasuredHeight());
         setMeasuredDimension(horizontalSpace, maxHeight + getPaddingBottom() + getPaddingTop());
+        Trace.endSection();
     }
 
     @Override
@@ -243,6 +267,7 @@ public class ConversationMessageView extends FrameLayout implements View.OnClick
      */
     public void bind(final Cursor cursor,
             final boolean oneOnOne, final String selectedMessageId) {
+        Trace.beginSection("ConversationMessageView.bind");
         mOneOnOne = oneOnOne;
 
         // Update our UI model
@@ -256,6 +281,7 @@ public class ConversationMessageView extends FrameLayout implements View.OnClick
         updateViewAppearance();
 
         updateContentDescription();
+        Trace.endSection();
     }
 
     public void setHost(final ConversationMessageViewHost host) {
@@ -275,6 +301,13 @@ public class ConversationMessageView extends FrameLayout implements View.OnClick
         return mData;
     }
 
+    /**
+     * @return the text metrics of the message text, to precompute message texts for
+     */
+    PrecomputedText.Params getMessageTextMetricsParams() {
+        return mMessageTextView.getTextMetricsParams();
+    }
+
     /**
      * Returns whether we should show simplified visual style for the message view (i.e. hide the
      * avatar and bubble arrow, reduce padding).
@@ -651,10 +684,29 @@ public class ConversationMessageView extends FrameLayout implements View.OnClick
     private void updateMessageText() {
         final String text = mData.getText();
         if (!TextUtils.isEmpty(text)) {
-            mMessageTextView.setText(text);
             // Linkify phone numbers, web urls, emails, and map addresses to allow users to
-            // click on them and take the default intent.
-            mMessageTextHasLinks = Linkify.addLinks(mMessageTextView, Linkify.ALL);
+            // click on them and take the default intent. The links are found, and the text
+            // measured, in the background the first time the message is shown or is about to be.
+            final PrecomputedText.Params params = getMessageTextMetricsParams();
+            final LinkifiedText linkifiedText = MessageTextCache.get().getLinkifiedText(
+                    mData.getMessageId(), text, params, mOnMessageTextPrepared);
+            mMessageTextHasLinks = linkifiedText != null && linkifiedText.hasLinks();
+            // The view adds selection spans to selectable text, so that gets a copy rather than
+            // the precomputed text shared with other views.
+            final CharSequence preparedText = (linkifiedText == null) ? null :
+                    linkifiedText.getText(isSelected() ? null : params);
+            if (preparedText != null) {
+                mMessageTextView.setText(preparedText);
+            } else {
+                mMessageTextView.setText(text);
+            }
+            if (mMessageTextHasLinks) {
+                // Same as Linkify.addLinks() does for the view
+                if (!(mMessageTextView.getMovementMethod() instanceof LinkMovementMethod) &&
+                        mMessageTextView.getLinksClickable()) {
+                    mMessageTextView.setMovementMethod(LinkMovementMethod.getInstance());
+                }
+            }
             mMessageTextView.setVisibility(View.VISIBLE);
         } else {
             mMessageTextView.setVisibility(View.GONE);
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.ui.conversation;
+
+import android.text.PrecomputedText;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.util.Linkify;
+import android.util.LruCache;
+
+import com.android.messaging.util.Assert;
+import com.android.messaging.util.Assert.RunsOnMainThread;
+import com.android.messaging.util.SafeAsyncTask;
+import com.android.messaging.util.ThreadUtil;
+import com.android.messaging.util.Trace;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Caches the text of messages as shown in their bubbles, so that scrolling through a
+ * conversation doesn't do the expensive text work on the main thread every time a message is
+ * bound:
+ * <ul>
+ * <li>the phone numbers, web urls, emails and map addresses found by Linkify, turned into links,
+ * <li>the text measured for the style of the bubbles with {@link PrecomputedText}, which makes
+ * laying the text out in the bubble cheap whatever its width.
+ * </ul>
+ * <p>
+ * This is done once per message text, on a background thread, either when the message is first
+ * bound or when it's about to be. Until then the message is shown without links, and its text is
+ * measured when the bubble is.
+ */
+final class MessageTextCache {
+    // Enough for the messages around what's on screen in a couple of conversations
+    private static final int MAX_CACHED_MESSAGES = 500;
+
+    private static MessageTextCache sInstance;
+
+    /**
+     * The text of a message with its links.
+     */
+    static class LinkifiedText {
+        private final String mText;
+        private final Spanned mLinkifiedText;
+        private final boolean mHasLinks;
+        // The linkified text measured for the style it was requested for, null if it wasn't
+        private final PrecomputedText mPrecomputedText;
+
+        private LinkifiedText(final String text, final Spanned linkifiedText,
+                final boolean hasLinks, final PrecomputedText precomputedText) {
+            mText = text;
+            mLinkifiedText = linkifiedText;
+            mHasLinks = hasLinks;
+            mPrecomputedText = precomputedText;
+        }
+
+        /**
+         * @param params the text metrics of the view the text will be set on, or null if it
+         *        shouldn't be set as precomputed text, e.g. because it will be selectable
+         * @return the text with a URLSpan for each link, measured for the given text metrics if
+         *         it has been
+         */
+        CharSequence getText(final PrecomputedText.Params params) {
+            if (isPrecomputedFor(params)) {
+                return mPrecomputedText;
+            }
+            return mLinkifiedText;
+        }
+
+        boolean hasLinks() {
+            return mHasLinks;
+        }
+
+        private boolean isPrecomputedFor(final PrecomputedText.Params params) {
+            return params != null && mPrecomputedText != null &&
+                    mPrecomputedText.getParams().equals(params);
+        }
+
+        private boolean needsPrecomputing(final PrecomputedText.Params params) {
+            return params != null && !isPrecomputedFor(params);
+        }
+    }
+
+    // Keyed by message id, guarded by being only accessed on the main thread
+    private final LruCache<String, LinkifiedText> mCache =
+            new LruCache<String, LinkifiedText>(MAX_CACHED_MESSAGES);
+    // What to run once the text of a message has been prepared, for the messages whose text is
+    // being prepared
+    private final HashMap<String, ArrayList<Runnable>> mPendingCallbacks =
+            new HashMap<String, ArrayList<Runnable>>();
+
+    @RunsOnMainThread
+    static MessageTextCache get() {
+        Assert.isMainThread();
+        if (sInstance == null) {
+            sInstance = new MessageTextCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the message text with its links, or null if they haven't been found yet, in which
+     * case they start being found in the background. The text is also precomputed in the
+     * background for the given text metrics if it hasn't been.
+     *
+     * @param params the text metrics to precompute the text for
+     * @param onTextPrepared run on the main thread once the text has been prepared, which may be
+     *        after the caller moved on to another message
+     */
+    @RunsOnMainThread
+    LinkifiedText getLinkifiedText(final String messageId, final String text,
+            final PrecomputedText.Params params, final Runnable onTextPrepared) {
+        Assert.isMainThread();
+        final LinkifiedText linkifiedText = mCache.get(messageId);
+        if (linkifiedText != null && linkifiedText.mText.equals(text)) {
+            if (linkifiedText.needsPrecomputing(params)) {
+                // e.g. the font size changed
+                prepareText(messageId, text, params, onTextPrepared);
+            }
+            return linkifiedText;
+        }
+        prepareText(messageId, text, params, onTextPrepared);
+        return null;
+    }
+
+    /**
+     * Starts preparing the text of a message that's about to be shown, if it isn't ready.
+     */
+    @RunsOnMainThread
+    void prefetch(final String messageId, final String text,
+            final PrecomputedText.Params params) {
+        Assert.isMainThread();
+        final LinkifiedText linkifiedText = mCache.get(messageId);
+        if (linkifiedText == null || !linkifiedText.mText.equals(text) ||
+                linkifiedText.needsPrecomputing(params)) {
+            prepareText(messageId, text, params, null /* onTextPrepared */);
+        }
+    }
+
+    /**
+     * @return whether the text of the message is ready or being prepared
+     */
+    @RunsOnMainThread
+    boolean contains(final String messageId) {
+        Assert.isMainThread();
+        return mPendingCallbacks.containsKey(messageId) || mCache.get(messageId) != null;
+    }
+
+    private void prepareText(final String messageId, final String text,
+            final PrecomputedText.Params params, final Runnable onTextPrepared) {
+        ArrayList<Runnable> callbacks = mPendingCallbacks.get(messageId);
+        if (callbacks != null) {
+            if (onTextPrepared != null && !callbacks.contains(onTextPrepared)) {
+                callbacks.add(onTextPrepared);
+            }
+            return;
+        }
+        callbacks = new ArrayList<Runnable>(1);
+        if (onTextPrepared != null) {
+            callbacks.add(onTextPrepared);
+        }
+        mPendingCallbacks.put(messageId, callbacks);
+        SafeAsyncTask.executeOnThreadPool(new Runnable() {
+            @Override
+            public void run() {
+                final LinkifiedText result = prepareText(text, params);
+                ThreadUtil.getMainThreadHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCache.put(messageId, result);
+                        for (final Runnable callback : mPendingCallbacks.remove(messageId)) {
+                            callback.run();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private static LinkifiedText prepareText(final String text,
+            final PrecomputedText.Params params) {
+        Trace.beginSection("MessageTextCache.prepareText");
+        try {
+            final SpannableString spannable = new SpannableString(text);
+            final boolean hasLinks = Linkify.addLinks(spannable, Linkify.ALL);
+            final PrecomputedText precomputedText =
+                    (params != null) ? PrecomputedText.create(spannable, params) : null;
+            return new LinkifiedText(text, spannable, hasLinks, precomputedText);
+        } finally {
+            Trace.endSection();
+        }
+    }
+}
@@ -68,6 +68,14 @@ public final class BugleGservicesKeys {
     public static final String SMS_SEND_TIMEOUT_IN_MILLIS = "bugle_sms_send_timeout";
     public static final long SMS_SEND_TIMEOUT_IN_MILLIS_DEFAULT = 5 * 60 * 1000L;
 
+    /**
+     * Maximum number of outgoing messages sending at once for a subscription. Messages of the
+     * same conversation are still sent one after another.
+     */
+    public static final String MAX_MESSAGES_SENDING_PER_SUBSCRIPTION =
+            "bugle_max_messages_sending_per_subscription";
+    public static final int MAX_MESSAGES_SENDING_PER_SUBSCRIPTION_DEFAULT = 4;
+
     /**
      * Keys to control the SMS sync batch size. The batch size is defined by the number
      * of messages that incur local database change, e.g. importing messages and
@@ -100,6 +108,15 @@ public final class BugleGservicesKeys {
     public static final int SMS_SYNC_BATCH_MAX_MESSAGES_TO_SCAN_DEFAULT =
             SMS_SYNC_BATCH_SIZE_MAX_DEFAULT * 4;
 
+    /**
+     * Whether sync loads the parts and senders of MMS messages on worker threads while the scan
+     * continues, rather than after the scan of each batch.
+     * Default is {@value #SMS_SYNC_PIPELINED_MMS_LOADING_DEFAULT}.
+     */
+    public static final String SMS_SYNC_PIPELINED_MMS_LOADING =
+            "bugle_sms_sync_pipelined_mms_loading";
+    public static final boolean SMS_SYNC_PIPELINED_MMS_LOADING_DEFAULT = true;
+
     /**
      * Time in ms for sync to backoff from "now" to the latest message that will be sync'd.
      *
@@ -48,6 +48,24 @@ public final class BuglePrefsKeys {
     public static final long LAST_FULL_SYNC_TIME_DEFAULT
             = -1;
 
+    /**
+     * Time at which the last full or changed contacts participant refresh started (in millis).
+     * Participants of contacts changed after this are refreshed by the next one.
+     */
+    public static final String LAST_PARTICIPANT_REFRESH_TIME
+            = "last_participant_refresh_time_millis";
+    public static final long LAST_PARTICIPANT_REFRESH_TIME_DEFAULT
+            = -1;
+
+    /**
+     * Messages with ids below this one are still to be added to the search index, which didn't
+     * exist when they were stored. Nothing is left to add when it's 0 or less.
+     */
+    public static final String SEARCH_INDEX_BACKFILL_BELOW_ID
+            = "search_index_backfill_below_id";
+    public static final long SEARCH_INDEX_BACKFILL_BELOW_ID_DEFAULT
+            = 0;
+
     /**
      * Timestamp of the message for which we last did a message notification.
      */
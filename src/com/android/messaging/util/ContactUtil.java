@@ -25,6 +25,7 @@ import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.DeletedContacts;
 import android.provider.ContactsContract.Directory;
 import android.provider.ContactsContract.DisplayNameSources;
 import android.provider.ContactsContract.PhoneLookup;
@@ -40,6 +41,8 @@ import com.android.messaging.sms.MmsSmsUtils;
 import com.android.messaging.ui.contact.AddContactsConfirmationDialog;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.util.List;
+
 /**
  * Utility class including logic to list, filter, and lookup phone and emails in CP2.
  */
@@ -167,6 +170,78 @@ public class ContactUtil {
         };
     }
 
+    /**
+     * Constants for looking up the first names of many contacts at once.
+     */
+    public static class FirstNameQuery {
+        public static final String[] PROJECTION = new String[] {
+            StructuredName.CONTACT_ID,          // 0
+            StructuredName.GIVEN_NAME,          // 1
+        };
+
+        public static final int INDEX_CONTACT_ID = 0;
+        public static final int INDEX_GIVEN_NAME = 1;
+    }
+
+    /**
+     * Constants for looking up a batch of phone numbers. The columns are the ones of
+     * {@link PhoneQuery}, followed by the number as normalized by the contacts provider.
+     */
+    public static class PhoneBulkLookupQuery {
+        public static final String[] PROJECTION = new String[] {
+            Phone.CONTACT_ID,                   // 0
+            Phone.DISPLAY_NAME_PRIMARY,         // 1
+            Phone.PHOTO_THUMBNAIL_URI,          // 2
+            Phone.NUMBER,                       // 3
+            Phone.TYPE,                         // 4
+            Phone.LABEL,                        // 5
+            Phone.LOOKUP_KEY,                   // 6
+            Phone._ID,                          // 7
+            PhoneQuery.SORT_KEY,                // 8
+            Phone.NORMALIZED_NUMBER,            // 9
+        };
+
+        public static final int INDEX_NORMALIZED_NUMBER = 9;
+    }
+
+    /**
+     * Constants for listing the phones and emails of contacts changed since a given time.
+     */
+    public static class ChangedDestinationQuery {
+        public static final String[] PROJECTION = new String[] {
+            ContactsContract.Data.CONTACT_ID,   // 0
+            ContactsContract.Data.MIMETYPE,     // 1
+            ContactsContract.Data.DATA1,        // 2 Phone.NUMBER or Email.ADDRESS
+        };
+
+        public static final String SELECTION =
+                ContactsContract.Data.CONTACT_LAST_UPDATED_TIMESTAMP + ">? AND "
+                + ContactsContract.Data.MIMETYPE + " IN (?,?)";
+
+        public static final int INDEX_CONTACT_ID = 0;
+        public static final int INDEX_MIMETYPE = 1;
+        public static final int INDEX_DESTINATION = 2;
+    }
+
+    /**
+     * Constants for listing contacts deleted since a given time.
+     */
+    public static class DeletedContactQuery {
+        public static final String[] PROJECTION = new String[] {
+            DeletedContacts.CONTACT_ID,         // 0
+        };
+
+        public static final String SELECTION = DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">?";
+
+        public static final int INDEX_CONTACT_ID = 0;
+    }
+
+    /**
+     * Maximum number of arguments bound to a single IN (...) clause in bulk lookups. Keeps us
+     * well clear of SQLite's host parameter limit.
+     */
+    public static final int MAX_BULK_LOOKUP_ARGS = 500;
+
     public static final int INDEX_STRUCTURED_NAME_DISPLAY_NAME = 0;
     public static final int INDEX_STRUCTURED_NAME_GIVEN_NAME = 1;
     public static final int INDEX_STRUCTURED_NAME_FAMILY_NAME = 2;
@@ -238,6 +313,151 @@ public class ContactUtil {
                 PhoneQuery.SORT_KEY);
     }
 
+    /**
+     * Get a list of emails sorted by contact name, in the same column order as
+     * {@link PhoneQuery}. One contact may have multiple emails.
+     */
+    public static CursorQueryData getEmails(final Context context) {
+        if (!ContactUtil.hasReadContactsPermission()) {
+            return CursorQueryData.getEmptyQueryData();
+        }
+
+        final Uri uri = Email.CONTENT_URI.buildUpon().appendQueryParameter(
+                ContactsContract.DIRECTORY_PARAM_KEY, String.valueOf(Directory.DEFAULT))
+                .build();
+
+        return new CursorQueryData(context, uri, EmailQuery.PROJECTION, null, null,
+                EmailQuery.SORT_KEY);
+    }
+
+    /**
+     * Get every phone number in the default directory, in the same column order as
+     * {@link PhoneLookupQuery}. Used by callers that match many destinations at once, which is
+     * much cheaper than one {@link #lookupPhone} per destination.
+     */
+    public static CursorQueryData getPhonesForBulkLookup(final Context context) {
+        if (!ContactUtil.hasReadContactsPermission()) {
+            return CursorQueryData.getEmptyQueryData();
+        }
+
+        final Uri uri = Phone.CONTENT_URI.buildUpon().appendQueryParameter(
+                ContactsContract.DIRECTORY_PARAM_KEY, String.valueOf(Directory.DEFAULT))
+                .build();
+
+        return new CursorQueryData(context, uri, PhoneQuery.PROJECTION, null, null,
+                Phone.CONTACT_ID);
+    }
+
+    /**
+     * Lookup a batch of complete email addresses, in the same column order as
+     * {@link EmailQuery}. At most {@link #MAX_BULK_LOOKUP_ARGS} addresses may be passed.
+     */
+    public static CursorQueryData lookupEmails(final Context context, final List<String> emails) {
+        Assert.isTrue(emails.size() <= MAX_BULK_LOOKUP_ARGS);
+        if (!ContactUtil.hasReadContactsPermission() || emails.isEmpty()) {
+            return CursorQueryData.getEmptyQueryData();
+        }
+
+        final Uri uri = Email.CONTENT_URI.buildUpon().appendQueryParameter(
+                ContactsContract.DIRECTORY_PARAM_KEY, String.valueOf(Directory.DEFAULT))
+                .build();
+        final String selection = Email.ADDRESS + " COLLATE NOCASE IN ("
+                + makePlaceholders(emails.size()) + ")";
+
+        return new CursorQueryData(context, uri, EmailQuery.PROJECTION, selection,
+                emails.toArray(new String[emails.size()]), Email.CONTACT_ID);
+    }
+
+    /**
+     * Lookup a batch of phone numbers in E164 format, in the same column order as
+     * {@link PhoneBulkLookupQuery}. Unlike {@link #lookupPhone}, numbers only match the ones the
+     * contacts provider could normalize to the same E164 number, and only in the default
+     * directory. At most {@link #MAX_BULK_LOOKUP_ARGS} numbers may be passed.
+     */
+    public static CursorQueryData lookupPhones(final Context context,
+            final List<String> e164Numbers) {
+        Assert.isTrue(e164Numbers.size() <= MAX_BULK_LOOKUP_ARGS);
+        if (!ContactUtil.hasReadContactsPermission() || e164Numbers.isEmpty()) {
+            return CursorQueryData.getEmptyQueryData();
+        }
+
+        final Uri uri = Phone.CONTENT_URI.buildUpon().appendQueryParameter(
+                ContactsContract.DIRECTORY_PARAM_KEY, String.valueOf(Directory.DEFAULT))
+                .build();
+        final String selection = Phone.NORMALIZED_NUMBER + " IN ("
+                + makePlaceholders(e164Numbers.size()) + ")";
+
+        return new CursorQueryData(context, uri, PhoneBulkLookupQuery.PROJECTION, selection,
+                e164Numbers.toArray(new String[e164Numbers.size()]), Phone.CONTACT_ID);
+    }
+
+    /**
+     * Looks up the first names for a batch of contacts, with the same semantics as
+     * {@link #lookupFirstName}. At most {@link #MAX_BULK_LOOKUP_ARGS} contact ids may be passed.
+     */
+    public static CursorQueryData lookupFirstNames(final Context context,
+            final List<Long> contactIds) {
+        Assert.isTrue(contactIds.size() <= MAX_BULK_LOOKUP_ARGS);
+        if (!ContactUtil.hasReadContactsPermission() || contactIds.isEmpty()) {
+            return CursorQueryData.getEmptyQueryData();
+        }
+
+        final String[] selectionArgs = new String[contactIds.size() + 1];
+        selectionArgs[0] = StructuredName.CONTENT_ITEM_TYPE;
+        for (int i = 0; i < contactIds.size(); i++) {
+            selectionArgs[i + 1] = String.valueOf(contactIds.get(i));
+        }
+        final String selection = ContactsContract.Data.MIMETYPE + "=? AND "
+                + StructuredName.CONTACT_ID + " IN (" + makePlaceholders(contactIds.size())
+                + ") AND " + Contacts.DISPLAY_NAME_PRIMARY + "=" + StructuredName.DISPLAY_NAME;
+
+        return new CursorQueryData(context, ContactsContract.Data.CONTENT_URI,
+                FirstNameQuery.PROJECTION, selection, selectionArgs, null);
+    }
+
+    /**
+     * Get the phones and emails of every contact changed after the given time. Every phone and
+     * email of a changed contact is returned, not only the data rows that changed.
+     */
+    public static CursorQueryData getDestinationsChangedSince(final Context context,
+            final long timestamp) {
+        if (!ContactUtil.hasReadContactsPermission()) {
+            return CursorQueryData.getEmptyQueryData();
+        }
+
+        final String[] selectionArgs = new String[] {
+                String.valueOf(timestamp), Phone.CONTENT_ITEM_TYPE, Email.CONTENT_ITEM_TYPE };
+        return new CursorQueryData(context, ContactsContract.Data.CONTENT_URI,
+                ChangedDestinationQuery.PROJECTION, ChangedDestinationQuery.SELECTION,
+                selectionArgs, null);
+    }
+
+    /**
+     * Get the ids of contacts deleted after the given time. The contacts provider only keeps
+     * deletions for {@link DeletedContacts#DAYS_KEPT_MILLISECONDS}.
+     */
+    public static CursorQueryData getContactsDeletedSince(final Context context,
+            final long timestamp) {
+        if (!ContactUtil.hasReadContactsPermission()) {
+            return CursorQueryData.getEmptyQueryData();
+        }
+
+        return new CursorQueryData(context, DeletedContacts.CONTENT_URI,
+                DeletedContactQuery.PROJECTION, DeletedContactQuery.SELECTION,
+                new String[] { String.valueOf(timestamp) }, null);
+    }
+
+    private static String makePlaceholders(final int count) {
+        final StringBuilder placeholders = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                placeholders.append(',');
+            }
+            placeholders.append('?');
+        }
+        return placeholders.toString();
+    }
+
     /**
      * Lookup a destination (phone, email). Supplied destination should be a relatively complete
      * one for this to succeed. PhoneLookup / EmailLookup URI will apply some smartness to do a
@@ -255,7 +475,7 @@ public class ContactUtil {
     /**
      * Returns whether the search text indicates an email based search or a phone number based one.
      */
-    private static boolean shouldFilterForEmail(final String searchText) {
+    public static boolean shouldFilterForEmail(final String searchText) {
         return searchText != null && searchText.contains("@");
     }
 
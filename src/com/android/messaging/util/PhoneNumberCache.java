@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import android.util.LruCache;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bounded cache of the results of parsing or formatting phone numbers for a country, used by
+ * {@link PhoneUtils} to avoid going through PhoneNumberUtil again for the same numbers.
+ * <p>
+ * Each country gets its own LRU segment with its own lock, so threads working on numbers for
+ * different countries don't wait on each other, and the least recently used numbers of a
+ * country are evicted once its segment is full.
+ */
+final class PhoneNumberCache {
+    private static final String TAG = LogUtil.BUGLE_TAG;
+
+    // Segment used for numbers with no country
+    private static final String NO_COUNTRY = "";
+
+    private final String mName;
+    private final int mMaxSizePerCountry;
+    private final ConcurrentHashMap<String, LruCache<String, String>> mSegments =
+            new ConcurrentHashMap<String, LruCache<String, String>>();
+
+    /**
+     * @param name the name of the cache in logs
+     * @param maxSizePerCountry the maximum number of numbers cached for each country
+     */
+    PhoneNumberCache(final String name, final int maxSizePerCountry) {
+        mName = name;
+        mMaxSizePerCountry = maxSizePerCountry;
+    }
+
+    /**
+     * @return the cached result for the number in the country, or null if there is none
+     */
+    String get(final String country, final String number) {
+        return getSegment(country).get(number);
+    }
+
+    void put(final String country, final String number, final String result) {
+        getSegment(country).put(number, result);
+    }
+
+    private LruCache<String, String> getSegment(final String country) {
+        final String key = (country == null) ? NO_COUNTRY : country;
+        LruCache<String, String> segment = mSegments.get(key);
+        if (segment == null) {
+            segment = new LruCache<String, String>(mMaxSizePerCountry);
+            final LruCache<String, String> existingSegment = mSegments.putIfAbsent(key, segment);
+            if (existingSegment != null) {
+                segment = existingSegment;
+            } else if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                LogUtil.v(TAG, "PhoneNumberCache: " + mName + " caching numbers for country "
+                        + key);
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * @return the number of lookups that found a cached result, over all countries
+     */
+    int getHitCount() {
+        int hitCount = 0;
+        for (final LruCache<String, String> segment : mSegments.values()) {
+            hitCount += segment.hitCount();
+        }
+        return hitCount;
+    }
+
+    /**
+     * @return the number of lookups that didn't find a cached result, over all countries
+     */
+    int getMissCount() {
+        int missCount = 0;
+        for (final LruCache<String, String> segment : mSegments.values()) {
+            missCount += segment.missCount();
+        }
+        return missCount;
+    }
+
+    @VisibleForTesting
+    int size(final String country) {
+        return getSegment(country).size();
+    }
+
+    @Override
+    public String toString() {
+        return "PhoneNumberCache " + mName + ": " + mSegments.size() + " countries, "
+                + getHitCount() + " hits, " + getMissCount() + " misses";
+    }
+}
@@ -40,13 +40,12 @@ import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import com.google.i18n.phonenumbers.PhoneNumberUtil.PhoneNumberFormat;
 import com.google.i18n.phonenumbers.Phonenumber.PhoneNumber;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 
-import androidx.collection.ArrayMap;
-
 /**
  * This class abstracts away platform dependency of calling telephony related
  * platform APIs, mostly involving TelephonyManager, SubscriptionManager and
@@ -64,11 +63,17 @@ public class PhoneUtils {
 
     private static final List<SubscriptionInfo> EMPTY_SUBSCRIPTION_LIST = new ArrayList<>();
 
-    // The canonical phone number cache
-    // Each country gets its own cache. The following maps from ISO country code to
-    // the country's cache. Each cache maps from original phone number to canonicalized phone
-    private static final ArrayMap<String, ArrayMap<String, String>> sCanonicalPhoneNumberCache =
-            new ArrayMap<>();
+    // The maximum number of phone numbers each cache below keeps for a country
+    private static final int MAX_CACHED_NUMBERS_PER_COUNTRY = 1000;
+
+    // Caches, per ISO country code, from original phone number to the canonicalized phone
+    // number, the number formatted for display, and the digits of the national number
+    private static final PhoneNumberCache sCanonicalPhoneNumberCache =
+            new PhoneNumberCache("canonical", MAX_CACHED_NUMBERS_PER_COUNTRY);
+    private static final PhoneNumberCache sDisplayPhoneNumberCache =
+            new PhoneNumberCache("display", MAX_CACHED_NUMBERS_PER_COUNTRY);
+    private static final PhoneNumberCache sNationalDigitsCache =
+            new PhoneNumberCache("national digits", MAX_CACHED_NUMBERS_PER_COUNTRY);
 
     protected final Context mContext;
     protected final TelephonyManager mTelephonyManager;
@@ -380,6 +385,15 @@ public class PhoneUtils {
         return subId;
     }
 
+    /**
+     * Writes the hit and miss counts of the phone number caches to the specified PrintWriter.
+     */
+    public static void dumpPhoneNumberCaches(final PrintWriter writer) {
+        writer.println(sCanonicalPhoneNumberCache);
+        writer.println(sDisplayPhoneNumberCache);
+        writer.println(sNationalDigitsCache);
+    }
+
     /**
      * A convenient get() method that uses the default SIM. Use this when SIM is
      * not relevant, e.g. isDefaultSmsApp
@@ -445,36 +459,6 @@ public class PhoneUtils {
         return country;
     }
 
-    // Get or set the cache of canonicalized phone numbers for a specific country
-    private static ArrayMap<String, String> getOrAddCountryMapInCacheLocked(String country) {
-        if (country == null) {
-            country = "";
-        }
-        ArrayMap<String, String> countryMap = sCanonicalPhoneNumberCache.get(country);
-        if (countryMap == null) {
-            countryMap = new ArrayMap<>();
-            sCanonicalPhoneNumberCache.put(country, countryMap);
-        }
-        return countryMap;
-    }
-
-    // Get canonicalized phone number from cache
-    private static String getCanonicalFromCache(final String phoneText, String country) {
-        synchronized (sCanonicalPhoneNumberCache) {
-            final ArrayMap<String, String> countryMap = getOrAddCountryMapInCacheLocked(country);
-            return countryMap.get(phoneText);
-        }
-    }
-
-    // Put canonicalized phone number into cache
-    private static void putCanonicalToCache(final String phoneText, String country,
-            final String canonical) {
-        synchronized (sCanonicalPhoneNumberCache) {
-            final ArrayMap<String, String> countryMap = getOrAddCountryMapInCacheLocked(country);
-            countryMap.put(phoneText, canonical);
-        }
-    }
-
     /**
      * Utility method to parse user input number into standard E164 number.
      *
@@ -528,7 +512,7 @@ public class PhoneUtils {
     private String getCanonicalByCountry(final String phoneText, final String country) {
         Assert.notNull(phoneText);
 
-        String canonicalNumber = getCanonicalFromCache(phoneText, country);
+        String canonicalNumber = sCanonicalPhoneNumberCache.get(country, phoneText);
         if (canonicalNumber != null) {
             return canonicalNumber;
         }
@@ -538,7 +522,7 @@ public class PhoneUtils {
             // This is possible for short codes and other non-localizable numbers.
             canonicalNumber = phoneText;
         }
-        putCanonicalToCache(phoneText, country, canonicalNumber);
+        sCanonicalPhoneNumberCache.put(country, phoneText, canonicalNumber);
         return canonicalNumber;
     }
 
@@ -578,6 +562,15 @@ public class PhoneUtils {
             selfNumber = "";
         }
         final String country = getSimCountry();
+        String nationalDigits = sNationalDigitsCache.get(country, selfNumber);
+        if (nationalDigits == null) {
+            nationalDigits = getNationalDigits(selfNumber, country);
+            sNationalDigitsCache.put(country, selfNumber, nationalDigits);
+        }
+        return nationalDigits;
+    }
+
+    private static String getNationalDigits(final String selfNumber, final String country) {
         final PhoneNumberUtil phoneNumberUtil = PhoneNumberUtil.getInstance();
         try {
             final PhoneNumber phoneNumber = phoneNumberUtil.parse(selfNumber, country);
@@ -591,7 +584,6 @@ public class PhoneUtils {
                     + LogUtil.sanitizePII(selfNumber) + " for country " + country);
         }
         return selfNumber;
-
     }
 
     /**
@@ -603,13 +595,25 @@ public class PhoneUtils {
      * @return formatted number
      */
     public String formatForDisplay(final String phoneText) {
+        if (TextUtils.isEmpty(phoneText)) {
+            return phoneText;
+        }
+        final String systemCountry = getLocaleCountry();
+        String displayNumber = sDisplayPhoneNumberCache.get(systemCountry, phoneText);
+        if (displayNumber == null) {
+            displayNumber = formatNumberForDisplay(phoneText, systemCountry);
+            sDisplayPhoneNumberCache.put(systemCountry, phoneText, displayNumber);
+        }
+        return displayNumber;
+    }
+
+    private static String formatNumberForDisplay(final String phoneText,
+            final String systemCountry) {
         // Only format a valid number which length >=6
-        if (TextUtils.isEmpty(phoneText) ||
-                phoneText.replaceAll("\\D", "").length() < MINIMUM_PHONE_NUMBER_LENGTH_TO_FORMAT) {
+        if (phoneText.replaceAll("\\D", "").length() < MINIMUM_PHONE_NUMBER_LENGTH_TO_FORMAT) {
             return phoneText;
         }
         final PhoneNumberUtil phoneNumberUtil = PhoneNumberUtil.getInstance();
-        final String systemCountry = getLocaleCountry();
         final int systemCountryCode = phoneNumberUtil.getCountryCodeForRegion(systemCountry);
         try {
             final PhoneNumber parsedNumber = phoneNumberUtil.parse(phoneText, systemCountry);
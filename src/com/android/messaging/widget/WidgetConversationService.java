@@ -175,7 +175,10 @@ public class WidgetConversationService extends RemoteViewsService {
                             " MAX_ITEMS_TO_SHOW: " + MAX_ITEMS_TO_SHOW);
                 }
 
-                intent.putExtra(UIIntents.UI_INTENT_EXTRA_MESSAGE_POSITION, scrollToPosition);
+                // The conversation only loads its newest messages up front, so address the
+                // message from the bottom rather than by its position in the whole thread.
+                intent.putExtra(UIIntents.UI_INTENT_EXTRA_MESSAGE_POSITION_FROM_BOTTOM,
+                        cursorCount - 1 - scrollToPosition);
                 if (message.hasAttachments()) {
                     final List<MessagePartData> attachments = message.getAttachments();
                     for (MessagePartData part : attachments) {
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@SmallTest
+public class ContentChangeBatcherTest extends BugleTestCase {
+    private static final Uri ROOT = Uri.parse("content://authority/");
+    private static final Uri CONVERSATIONS = Uri.parse("content://authority/conversations");
+    private static final Uri MESSAGES = Uri.parse("content://authority/messages/conversation");
+
+    private final List<Uri> mDelivered = new ArrayList<>();
+    private ContentChangeBatcher mBatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBatcher = new ContentChangeBatcher(new ContentChangeBatcher.ChangeListener() {
+            @Override
+            public void onChange(final Uri uri) {
+                mDelivered.add(uri);
+            }
+        }, new Handler(Looper.getMainLooper()) {
+            @Override
+            public boolean sendMessageAtTime(final Message msg, final long uptimeMillis) {
+                // The tests deliver the changes themselves
+                return true;
+            }
+        });
+    }
+
+    private static Uri messages(final int conversationId) {
+        return MESSAGES.buildUpon().appendPath(String.valueOf(conversationId)).build();
+    }
+
+    public void testDedupesUntilDelivered() {
+        mBatcher.notifyChange(messages(1), true /* inTransaction */);
+        mBatcher.notifyChange(CONVERSATIONS, true /* inTransaction */);
+        mBatcher.notifyChange(messages(1), true /* inTransaction */);
+        mBatcher.notifyChange(CONVERSATIONS, true /* inTransaction */);
+        mBatcher.deliverPendingChanges();
+        assertTrue(mDelivered.isEmpty());
+
+        mBatcher.onTransactionEnded(true /* committed */);
+        mBatcher.deliverPendingChanges();
+        assertEquals(Arrays.asList(messages(1), CONVERSATIONS), mDelivered);
+        assertEquals(4, mBatcher.getRequestedCount());
+        assertEquals(2, mBatcher.getDeliveredCount());
+
+        mBatcher.deliverPendingChanges();
+        assertEquals(2, mDelivered.size());
+    }
+
+    public void testAncestorCoversDescendants() {
+        mBatcher.notifyChange(messages(1), true /* inTransaction */);
+        mBatcher.notifyChange(MESSAGES, true /* inTransaction */);
+        mBatcher.notifyChange(messages(2), true /* inTransaction */);
+        assertEquals(Arrays.asList(MESSAGES), mBatcher.getTransactionUris());
+
+        mBatcher.notifyChange(ROOT, true /* inTransaction */);
+        mBatcher.notifyChange(CONVERSATIONS, true /* inTransaction */);
+        assertEquals(Arrays.asList(ROOT), mBatcher.getTransactionUris());
+    }
+
+    public void testFoldsManyChildrenIntoParent() {
+        mBatcher.notifyChange(CONVERSATIONS, true /* inTransaction */);
+        for (int i = 1; i <= ContentChangeBatcher.MAX_PENDING_CHILDREN; i++) {
+            mBatcher.notifyChange(messages(i), true /* inTransaction */);
+        }
+        assertEquals(ContentChangeBatcher.MAX_PENDING_CHILDREN + 1,
+                mBatcher.getTransactionUris().size());
+
+        mBatcher.notifyChange(messages(ContentChangeBatcher.MAX_PENDING_CHILDREN + 1),
+                true /* inTransaction */);
+        assertEquals(Arrays.asList(CONVERSATIONS, MESSAGES), mBatcher.getTransactionUris());
+    }
+
+    public void testDropsRolledBackChanges() {
+        mBatcher.notifyChange(messages(1), true /* inTransaction */);
+        mBatcher.onTransactionEnded(false /* committed */);
+        assertTrue(mBatcher.getTransactionUris().isEmpty());
+        assertTrue(mBatcher.getPendingUris().isEmpty());
+        assertEquals(1, mBatcher.getRequestedCount());
+    }
+
+    public void testKeepsTransactionChangesPerThread() throws InterruptedException {
+        mBatcher.notifyChange(messages(1), true /* inTransaction */);
+
+        // Another thread ending its transaction doesn't deliver the changes of this one
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mBatcher.notifyChange(CONVERSATIONS, true /* inTransaction */);
+                mBatcher.onTransactionEnded(true /* committed */);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertEquals(Arrays.asList(CONVERSATIONS), mBatcher.getPendingUris());
+        assertEquals(Arrays.asList(messages(1)), mBatcher.getTransactionUris());
+
+        mBatcher.onTransactionEnded(true /* committed */);
+        assertEquals(Arrays.asList(CONVERSATIONS, messages(1)), mBatcher.getPendingUris());
+        assertTrue(mBatcher.getTransactionUris().isEmpty());
+    }
+}
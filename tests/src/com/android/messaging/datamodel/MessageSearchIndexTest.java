@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeContext;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseHelper.PartColumns;
+import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
+import com.android.messaging.datamodel.data.MessageData;
+
+import java.util.Arrays;
+
+@SmallTest
+public class MessageSearchIndexTest extends BugleTestCase {
+    private DatabaseWrapper mDb;
+    private long mConversationId;
+    private long mSenderId;
+    private long mTimestamp;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        final FakeContext context = new FakeContext(getTestContext());
+        FakeFactory.registerWithFakeContext(getTestContext(), context)
+                .withDataModel(new FakeDataModel(context));
+        mDb = DataModel.get().getDatabase();
+
+        final ContentValues conversation = new ContentValues();
+        conversation.put(ConversationColumns.NAME, "Friends");
+        mConversationId = mDb.insert(DatabaseHelper.CONVERSATIONS_TABLE, null, conversation);
+
+        final ContentValues sender = new ContentValues();
+        sender.put(ParticipantColumns.NORMALIZED_DESTINATION, "+15551234567");
+        sender.put(ParticipantColumns.DISPLAY_DESTINATION, "(555) 123-4567");
+        sender.put(ParticipantColumns.FULL_NAME, "Ada Lovelace");
+        mSenderId = mDb.insert(DatabaseHelper.PARTICIPANTS_TABLE, null, sender);
+    }
+
+    private long addMessage(final String text, final int status) {
+        final ContentValues message = new ContentValues();
+        message.put(MessageColumns.CONVERSATION_ID, mConversationId);
+        message.put(MessageColumns.SENDER_PARTICIPANT_ID, mSenderId);
+        message.put(MessageColumns.STATUS, status);
+        message.put(MessageColumns.RECEIVED_TIMESTAMP, ++mTimestamp);
+        mDb.beginTransaction();
+        try {
+            final long messageId = mDb.insert(DatabaseHelper.MESSAGES_TABLE, null, message);
+
+            final ContentValues part = new ContentValues();
+            part.put(PartColumns.MESSAGE_ID, messageId);
+            part.put(PartColumns.CONVERSATION_ID, mConversationId);
+            part.put(PartColumns.TEXT, text);
+            mDb.insert(DatabaseHelper.PARTS_TABLE, null, part);
+            MessageSearchIndex.indexMessage(mDb, Long.toString(messageId),
+                    true /* isNewMessage */);
+            mDb.setTransactionSuccessful();
+            return messageId;
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private long addMessage(final String text) {
+        return addMessage(text, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+    }
+
+    private long[] search(final String query, final int limit, final int offset) {
+        final Cursor cursor = MessageSearchIndex.search(mDb, query, limit, offset);
+        try {
+            final long[] messageIds = new long[cursor.getCount()];
+            final int idColumn = cursor.getColumnIndexOrThrow(MessageSearchIndex.Columns._ID);
+            while (cursor.moveToNext()) {
+                messageIds[cursor.getPosition()] = cursor.getLong(idColumn);
+            }
+            return messageIds;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void assertResults(final long[] actual, final long... expected) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i]);
+        }
+    }
+
+    public void testGetMatchExpression() {
+        assertEquals("\"see\"* \"you\"*", MessageSearchIndex.getMatchExpression(" see  you "));
+        // Query syntax is matched as words
+        assertEquals("\"a\"* \"OR\"* \"b\"*",
+                MessageSearchIndex.getMatchExpression("a OR \"b\""));
+        assertEquals("", MessageSearchIndex.getMatchExpression(" \" "));
+    }
+
+    public void testSearchesTextAndSenderNewestFirst() {
+        final long lunch = addMessage("Lunch tomorrow?");
+        final long dinner = addMessage("Dinner tonight");
+        final long lunchAgain = addMessage("Lunchtime works for me");
+        addMessage("lunch draft", MessageData.BUGLE_STATUS_OUTGOING_DRAFT);
+
+        assertResults(search("lunch", 10, 0), lunchAgain, lunch);
+        assertResults(search("dinner tonight", 10, 0), dinner);
+        assertResults(search("lovelace", 10, 0), lunchAgain, dinner, lunch);
+        assertResults(search("breakfast", 10, 0));
+        assertResults(search("\"", 10, 0));
+
+        // Paging
+        assertResults(search("ada", 2, 0), lunchAgain, dinner);
+        assertResults(search("ada", 2, 2), lunch);
+    }
+
+    public void testIndexesAllPartsOfMessage() {
+        final long messageId = addMessage("Photos from the trip");
+        final ContentValues part = new ContentValues();
+        part.put(PartColumns.MESSAGE_ID, messageId);
+        part.put(PartColumns.CONVERSATION_ID, mConversationId);
+        part.put(PartColumns.TEXT, "Second slide");
+        mDb.beginTransaction();
+        try {
+            mDb.insert(DatabaseHelper.PARTS_TABLE, null, part);
+            MessageSearchIndex.indexMessage(mDb, Long.toString(messageId),
+                    false /* isNewMessage */);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        assertResults(search("trip slide", 10, 0), messageId);
+    }
+
+    public void testTriggersKeepIndexUpToDate() {
+        final long messageId = addMessage("See you at the station");
+        assertResults(search("station", 10, 0), messageId);
+
+        final ContentValues values = new ContentValues();
+        values.put(PartColumns.TEXT, "See you at the airport");
+        mDb.update(DatabaseHelper.PARTS_TABLE, values,
+                PartColumns.MESSAGE_ID + "=" + messageId, null);
+        assertResults(search("station", 10, 0));
+        assertResults(search("airport", 10, 0), messageId);
+
+        values.clear();
+        values.put(ParticipantColumns.FULL_NAME, "Grace Hopper");
+        mDb.update(DatabaseHelper.PARTICIPANTS_TABLE, values,
+                ParticipantColumns._ID + "=" + mSenderId, null);
+        MessageSearchIndex.reindexMessagesFromSenders(mDb,
+                Arrays.asList(Long.toString(mSenderId)));
+        assertResults(search("lovelace", 10, 0));
+        assertResults(search("hopper", 10, 0), messageId);
+
+        mDb.delete(DatabaseHelper.MESSAGES_TABLE, MessageColumns._ID + "=" + messageId, null);
+        assertResults(search("airport", 10, 0));
+    }
+
+    public void testIndexMessagesBelowInBatches() {
+        final long first = addMessage("first hello");
+        final long second = addMessage("second hello");
+        final long third = addMessage("third hello");
+        // As if the messages were stored before the index existed
+        mDb.execSQL("DELETE FROM " + MessageSearchIndex.TABLE_NAME);
+        assertResults(search("hello", 10, 0));
+
+        long belowId = MessageSearchIndex.indexMessagesBelow(mDb, Long.MAX_VALUE, 2);
+        assertEquals(second, belowId);
+        assertResults(search("hello", 10, 0), third, second);
+
+        belowId = MessageSearchIndex.indexMessagesBelow(mDb, belowId, 2);
+        assertEquals(0, belowId);
+        assertResults(search("hello", 10, 0), third, second, first);
+    }
+}
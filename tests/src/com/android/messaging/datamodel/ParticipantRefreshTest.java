@@ -20,6 +20,8 @@ import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.text.TextUtils;
 
 import androidx.test.filters.SmallTest;
@@ -32,10 +34,15 @@ import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
 import com.android.messaging.datamodel.data.ParticipantData;
 import com.android.messaging.datamodel.data.ParticipantData.ParticipantsQuery;
 import com.android.messaging.ui.UIIntents;
+import com.android.messaging.util.BuglePrefs;
+import com.android.messaging.util.BuglePrefsKeys;
 import com.android.messaging.util.ContactUtil;
+import com.android.messaging.util.FakeBuglePrefs;
 
 import org.junit.Assert;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 
 /**
  * Utility class for testing ParticipantRefresh class for different scenarios.
@@ -76,6 +83,17 @@ public class ParticipantRefreshTest extends BugleTestCase {
         mFakeFactory.withProvider(uri, phoneLookup);
     }
 
+    /**
+     * Add some phones to the fake Phone content provider. This will be used for resolving all
+     * participants at once during a full participant refresh.
+     */
+    private void addBulkPhones(final Object[][] phones) {
+        final Uri uri = ContactUtil.getPhonesForBulkLookup(mContext).getUri();
+        final FakeContentProvider phoneProvider = new FakeContentProvider(mContext, uri, false);
+        phoneProvider.addOverrideData(uri, null, null, ContactUtil.PhoneQuery.PROJECTION, phones);
+        mFakeFactory.withProvider(uri, phoneProvider);
+    }
+
     /**
      * Add some participant to test database.
      */
@@ -282,4 +300,63 @@ public class ParticipantRefreshTest extends BugleTestCase {
         verifyParticipant("650-123-1233", ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND,
                 null, null);
     }
+
+    /**
+     * Verify that full refresh resolves participants from the bulk phone query.
+     */
+    public void testFullRefreshBulkMatch() {
+        addParticipant("650-123-1233", 1, "Joh", "content://photo/joh");
+        addParticipant("650-123-4567", 2, "Jane", "content://photo/jane");
+        addBulkPhones(new Object[][] {
+                { 1L, "John", "content://photo/john", "650-123-1233", null, null, null, 10L,
+                        null }
+        });
+
+        ParticipantRefresh.refreshParticipants(ParticipantRefresh.REFRESH_MODE_FULL);
+        verifyParticipant("650-123-1233", 1, "John", "content://photo/john");
+        verifyParticipant("650-123-4567", ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND,
+                null, null);
+    }
+
+    /**
+     * Verify that changed contacts refresh only refreshes participants of changed contacts.
+     */
+    public void testChangedContactsRefresh() {
+        addParticipant("650-123-1233", 1, "Joh", "content://photo/joh");
+        addParticipant("650-123-4567", 2, "Jane", "content://photo/jane");
+
+        final long lastRefreshTime = System.currentTimeMillis() - 1000;
+        final BuglePrefs prefs = Mockito.spy(new FakeBuglePrefs());
+        Mockito.doReturn(lastRefreshTime).when(prefs).getLong(
+                Mockito.eq(BuglePrefsKeys.LAST_PARTICIPANT_REFRESH_TIME), Mockito.anyLong());
+        mFakeFactory.withBuglePrefs(prefs);
+        final Uri changedUri = ContactUtil.getDestinationsChangedSince(mContext, lastRefreshTime)
+                .getUri();
+        final Uri deletedUri = ContactUtil.getContactsDeletedSince(mContext, lastRefreshTime)
+                .getUri();
+        final Uri lookupUri = ContactUtil.lookupPhone(mContext, "650-123-1233").getUri();
+        final FakeContentProvider contacts = new FakeContentProvider(mContext, changedUri, false);
+        contacts.addOverrideData(changedUri, ContactUtil.ChangedDestinationQuery.SELECTION,
+                lastRefreshTime + ";" + Phone.CONTENT_ITEM_TYPE + ";" + Email.CONTENT_ITEM_TYPE,
+                ContactUtil.ChangedDestinationQuery.PROJECTION, new Object[][] {
+                        { 1L, Phone.CONTENT_ITEM_TYPE, "650-123-1233" }
+                });
+        contacts.addOverrideData(deletedUri, ContactUtil.DeletedContactQuery.SELECTION,
+                String.valueOf(lastRefreshTime), ContactUtil.DeletedContactQuery.PROJECTION,
+                new Object[][] {});
+        contacts.addOverrideData(lookupUri, null, null, ContactUtil.PhoneLookupQuery.PROJECTION,
+                new Object[][] {
+                        { 1L, "John", "content://photo/john", "650-123-1233", null, null, null }
+                });
+        mFakeFactory.withProvider(changedUri, contacts);
+
+        ParticipantRefresh.refreshParticipants(ParticipantRefresh.REFRESH_MODE_CHANGED_CONTACTS);
+        verifyParticipant("650-123-1233", 1, "John", "content://photo/john");
+        // Jane's contact didn't change, so she wasn't looked up
+        verifyParticipant("650-123-4567", 2, "Jane", "content://photo/jane");
+        final ArgumentCaptor<Long> refreshTime = ArgumentCaptor.forClass(Long.class);
+        Mockito.verify(prefs).putLong(Mockito.eq(BuglePrefsKeys.LAST_PARTICIPANT_REFRESH_TIME),
+                refreshTime.capture());
+        assertTrue(refreshTime.getValue() > lastRefreshTime);
+    }
 }
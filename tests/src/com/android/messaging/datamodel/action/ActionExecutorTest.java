@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@SmallTest
+public class ActionExecutorTest extends BugleTestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final List<String> mRunOrder = Collections.synchronizedList(new ArrayList<String>());
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRunOrder.add(name);
+            }
+        };
+    }
+
+    public void testSameKeyRunsOneAtATimeInOrder() {
+        final ActionExecutor executor = new ActionExecutor("test", 3);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            final String name = String.valueOf(i);
+            expected.add(name);
+            executor.execute("key", false, new Runnable() {
+                @Override
+                public void run() {
+                    maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+                    mRunOrder.add(name);
+                    running.decrementAndGet();
+                }
+            });
+        }
+        executor.awaitIdleOrQueuedIntent();
+
+        assertEquals(expected, mRunOrder);
+        assertEquals(1, maxRunning.get());
+    }
+
+    public void testOtherKeysRunConcurrently() throws InterruptedException {
+        final ActionExecutor executor = new ActionExecutor("test", 2);
+        final CountDownLatch otherKeyRan = new CountDownLatch(1);
+        final CountDownLatch sawOtherKey = new CountDownLatch(1);
+        executor.execute("slow", false, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Only completes if "fast" can run while we are still running
+                    if (otherKeyRan.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                        sawOtherKey.countDown();
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        executor.execute("fast", false, new Runnable() {
+            @Override
+            public void run() {
+                otherKeyRan.countDown();
+            }
+        });
+
+        assertTrue(sawOtherKey.await(TIMEOUT_SECONDS * 2, TimeUnit.SECONDS));
+        executor.awaitIdleOrQueuedIntent();
+    }
+
+    public void testUserFacingRunsFirst() throws InterruptedException {
+        final ActionExecutor executor = new ActionExecutor("test", 1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        executor.execute("blocker", false, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                mRunOrder.add("blocker");
+            }
+        });
+        executor.execute("sync", false, record("sync"));
+        executor.execute("receive", true, record("receive"));
+        // Queued behind "sync" with the same key, so doesn't jump ahead of it
+        executor.execute("sync", true, record("sync-user-facing"));
+        blocked.countDown();
+        executor.awaitIdleOrQueuedIntent();
+
+        final List<String> expected = new ArrayList<String>();
+        expected.add("blocker");
+        expected.add("receive");
+        expected.add("sync");
+        expected.add("sync-user-facing");
+        assertEquals(expected, mRunOrder);
+    }
+
+    public void testQueuedIntentEndsWait() {
+        final ActionExecutor executor = new ActionExecutor("test", 1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        executor.execute("blocker", false, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        // The service has another intent to hand over, so it shouldn't wait for the blocker
+        executor.onIntentQueued();
+        executor.awaitIdleOrQueuedIntent();
+        assertEquals(1, blocked.getCount());
+
+        executor.onIntentHandled();
+        blocked.countDown();
+        executor.awaitIdleOrQueuedIntent();
+    }
+
+    public void testAsyncWorkKeepsWaiting() throws InterruptedException {
+        final ActionExecutor executor = new ActionExecutor("test", 1);
+        final CountDownLatch waited = new CountDownLatch(1);
+        executor.execute("send", false, new Runnable() {
+            @Override
+            public void run() {
+                executor.onAsyncWorkStarted();
+            }
+        });
+        final Thread service = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                executor.awaitIdleOrQueuedIntent();
+                waited.countDown();
+            }
+        });
+        service.start();
+        // The work has finished, but what it started hasn't
+        assertFalse(waited.await(200, TimeUnit.MILLISECONDS));
+
+        executor.onAsyncWorkFinished();
+        assertTrue(waited.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.datamodel.action.SyncCursorPair.RangeDigest;
+import com.android.messaging.datamodel.action.SyncCursorPair.RangeDigestQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+public class SyncCursorPairTest extends BugleTestCase {
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final long MESSAGE_COUNT = 2000;
+
+    // Timestamp and key of each message on both sides
+    private final List<long[]> mLocalMessages = new ArrayList<long[]>();
+    private final List<long[]> mRemoteMessages = new ArrayList<long[]>();
+    private int mQueryCount;
+
+    private final RangeDigestQuery mQuery = new RangeDigestQuery() {
+        @Override
+        public RangeDigest getLocalDigest(final long from, final long to) {
+            mQueryCount++;
+            return getDigest(mLocalMessages, from, to);
+        }
+
+        @Override
+        public RangeDigest getRemoteDigest(final long from, final long to) {
+            mQueryCount++;
+            return getDigest(mRemoteMessages, from, to);
+        }
+    };
+
+    private static RangeDigest getDigest(final List<long[]> messages, final long from,
+            final long to) {
+        final RangeDigest digest = new RangeDigest();
+        for (final long[] message : messages) {
+            if (message[0] >= from && message[0] < to) {
+                digest.add(message[0], message[1]);
+            }
+        }
+        return digest;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // A message a day, alternating SMS and MMS
+        for (long i = 0; i < MESSAGE_COUNT; i++) {
+            final long[] message = new long[] { (i + 1) * DAY_IN_MILLIS, i * 2 + (i % 2) };
+            mLocalMessages.add(message);
+            mRemoteMessages.add(message);
+        }
+    }
+
+    private long getUnsynchronizedUpperBound() {
+        return SyncCursorPair.getUnsynchronizedUpperBound(mQuery, -1L,
+                (MESSAGE_COUNT + 1) * DAY_IN_MILLIS);
+    }
+
+    public void testInSyncMessagesNeedNoScan() {
+        assertEquals(SyncCursorPair.SYNC_COMPLETE, getUnsynchronizedUpperBound());
+        assertEquals(2, mQueryCount);
+    }
+
+    public void testFindsOldMissingMessage() {
+        mLocalMessages.remove(10);
+        final long upperBound = getUnsynchronizedUpperBound();
+        // Only the messages around the missing one are left to scan
+        assertTrue(upperBound > 11 * DAY_IN_MILLIS);
+        assertTrue(upperBound <= 11 * DAY_IN_MILLIS + 200 * DAY_IN_MILLIS);
+        assertTrue(mQueryCount < 30);
+    }
+
+    public void testFindsMessageWithChangedUri() {
+        // Same number of messages and same timestamps, but one has another row id
+        mRemoteMessages.set(1500, new long[] { 1501 * DAY_IN_MILLIS, 123456 });
+        final long upperBound = getUnsynchronizedUpperBound();
+        assertTrue(upperBound > 1501 * DAY_IN_MILLIS);
+        assertTrue(upperBound <= 1501 * DAY_IN_MILLIS + 200 * DAY_IN_MILLIS);
+    }
+
+    public void testScansNewestDifference() {
+        mLocalMessages.remove(1990);
+        mLocalMessages.remove(10);
+        // The scan starts above the newer missing message, and reaches the older one later
+        final long upperBound = getUnsynchronizedUpperBound();
+        assertTrue(upperBound > 1991 * DAY_IN_MILLIS);
+        assertTrue(upperBound <= (MESSAGE_COUNT + 1) * DAY_IN_MILLIS);
+        final long nextUpperBound = SyncCursorPair.getUnsynchronizedUpperBound(mQuery, -1L,
+                1991 * DAY_IN_MILLIS);
+        assertTrue(nextUpperBound > 11 * DAY_IN_MILLIS);
+        assertTrue(nextUpperBound <= 11 * DAY_IN_MILLIS + 200 * DAY_IN_MILLIS);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+import android.provider.Telephony.Sms;
+
+import androidx.test.filters.MediumTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeContext;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.BugleDatabaseOperations;
+import com.android.messaging.datamodel.DataModel;
+import com.android.messaging.datamodel.DatabaseHelper;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseWrapper;
+import com.android.messaging.datamodel.FakeDataModel;
+import com.android.messaging.datamodel.SyncManager;
+import com.android.messaging.datamodel.SyncManager.ConversationCustomization;
+import com.android.messaging.datamodel.SyncManager.ThreadInfoCache;
+import com.android.messaging.datamodel.data.MessageData;
+import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.sms.DatabaseMessages.LocalDatabaseMessage;
+import com.android.messaging.sms.DatabaseMessages.MmsMessage;
+import com.android.messaging.sms.DatabaseMessages.SmsMessage;
+import com.android.messaging.util.LogUtil;
+
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+
+@MediumTest
+public class SyncMessageBatchTest extends BugleTestCase {
+    private static final String TAG = LogUtil.BUGLE_TAG;
+
+    private static final long THREAD_ID = 1234;
+    private static final String[] SENDERS = new String[] {
+        "6505550100", "6505550101", "6505550102",
+    };
+
+    private String mConversationId;
+
+    // Resolves all threads to the test conversation, without going to telephony
+    private final ThreadInfoCache mCache = new ThreadInfoCache() {
+        @Override
+        public synchronized String getOrCreateConversation(final DatabaseWrapper db,
+                final long threadId, final int refSubId,
+                final ConversationCustomization customization) {
+            return mConversationId;
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final FakeContext context = new FakeContext(getTestContext());
+        final FakeDataModel fakeDataModel = new FakeDataModel(context)
+                .withSyncManager(Mockito.mock(SyncManager.class));
+        FakeFactory.registerWithFakeContext(getTestContext(), context)
+                .withDataModel(fakeDataModel);
+        createConversation();
+    }
+
+    private void createConversation() {
+        final ArrayList<ParticipantData> participants = new ArrayList<ParticipantData>();
+        participants.add(ParticipantData.getFromRawPhoneBySystemLocale(SENDERS[0]));
+        mConversationId = BugleDatabaseOperations.getOrCreateConversation(
+                DataModel.get().getDatabase(), THREAD_ID, false /* archived */, participants,
+                false /* noNotification */, false /* noVibrate */, null /* soundUri */);
+    }
+
+    /**
+     * Drops everything stored so far, including the cached participant ids, so that the next
+     * import starts from the same state as the first one
+     */
+    private void resetDatabase() {
+        DatabaseHelper.rebuildTables(DataModel.get().getDatabase().getDatabase());
+        BugleDatabaseOperations.clearParticipantIdCache();
+        createConversation();
+    }
+
+    private static ArrayList<SmsMessage> createSms(final int firstRowId, final int count) {
+        final MatrixCursor cursor = new MatrixCursor(SmsMessage.getProjection());
+        for (int i = 0; i < count; i++) {
+            final long rowId = firstRowId + i;
+            cursor.addRow(new Object[] {
+                    rowId,
+                    Sms.MESSAGE_TYPE_INBOX,
+                    SENDERS[i % SENDERS.length],
+                    "Message " + rowId,
+                    1000000L + rowId * 1000 /* date */,
+                    THREAD_ID,
+                    Sms.STATUS_NONE,
+                    1 /* read */,
+                    1 /* seen */,
+                    1000000L + rowId * 1000 - 500 /* date sent */,
+                    ParticipantData.DEFAULT_SELF_SUB_ID,
+            });
+        }
+        final ArrayList<SmsMessage> messages = new ArrayList<SmsMessage>(count);
+        while (cursor.moveToNext()) {
+            messages.add(SmsMessage.get(cursor));
+        }
+        return messages;
+    }
+
+    private void storeInBatch(final ArrayList<SmsMessage> smsToAdd) {
+        new SyncMessageBatch(smsToAdd, new ArrayList<MmsMessage>(),
+                new ArrayList<LocalDatabaseMessage>(), mCache).updateLocalDatabase();
+    }
+
+    /**
+     * Stores the messages the way SyncMessageBatch used to, resolving the participants of every
+     * message from scratch
+     */
+    private void storeOneByOne(final ArrayList<SmsMessage> smsToAdd) {
+        final DatabaseWrapper db = DataModel.get().getDatabase();
+        db.beginTransaction();
+        try {
+            for (final SmsMessage sms : smsToAdd) {
+                final ParticipantData self = ParticipantData.getSelfParticipant(sms.getSubId());
+                final String selfId =
+                        BugleDatabaseOperations.getOrCreateParticipantInTransaction(db, self);
+                final ParticipantData sender =
+                        ParticipantData.getFromRawPhoneBySimLocale(sms.mAddress, sms.getSubId());
+                final String participantId =
+                        BugleDatabaseOperations.getOrCreateParticipantInTransaction(db, sender);
+                final MessageData message = MessageData.createSmsMessage(sms.mUri,
+                        participantId, selfId, mConversationId,
+                        MessageData.BUGLE_STATUS_INCOMING_COMPLETE, sms.mSeen, sms.mRead,
+                        sms.mTimestampSentInMillis, sms.mTimestampInMillis, sms.mBody);
+                BugleDatabaseOperations.insertNewMessageInTransaction(db, message);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static long queryLong(final String sql) {
+        final Cursor cursor = DataModel.get().getDatabase().rawQuery(sql, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testStoresSmsWithOneParticipantPerSender() {
+        storeInBatch(createSms(1, 10));
+
+        assertEquals(10, queryLong("SELECT COUNT(*) FROM " + DatabaseHelper.MESSAGES_TABLE));
+        assertEquals(SENDERS.length, queryLong("SELECT COUNT(DISTINCT "
+                + MessageColumns.SENDER_PARTICIPANT_ID + ") FROM "
+                + DatabaseHelper.MESSAGES_TABLE));
+        assertEquals(1, queryLong("SELECT COUNT(DISTINCT " + MessageColumns.SELF_PARTICIPANT_ID
+                + ") FROM " + DatabaseHelper.MESSAGES_TABLE));
+    }
+
+    public void testImportBenchmark() {
+        final int count = 1000;
+        final int iterations = 4;
+        final ArrayList<SmsMessage> smsToAdd = createSms(1, count);
+        long oneByOneMillis = 0;
+        long inBatchMillis = 0;
+        // Each import runs against a fresh database, and the order of the two alternates, so
+        // that neither benefits from the participants or pages the other one left behind
+        for (int i = 0; i < iterations; i++) {
+            final boolean oneByOneFirst = (i % 2 == 0);
+            for (int j = 0; j < 2; j++) {
+                resetDatabase();
+                final long start = SystemClock.elapsedRealtime();
+                if (oneByOneFirst == (j == 0)) {
+                    storeOneByOne(smsToAdd);
+                    oneByOneMillis += SystemClock.elapsedRealtime() - start;
+                } else {
+                    storeInBatch(smsToAdd);
+                    inBatchMillis += SystemClock.elapsedRealtime() - start;
+                }
+                assertEquals(count,
+                        queryLong("SELECT COUNT(*) FROM " + DatabaseHelper.MESSAGES_TABLE));
+            }
+        }
+        oneByOneMillis = Math.max(1, oneByOneMillis);
+        inBatchMillis = Math.max(1, inBatchMillis);
+
+        LogUtil.i(TAG, "SyncMessageBatchTest: importing " + count + " SMS ran at "
+                + (iterations * count * 1000 / oneByOneMillis)
+                + " rows/s resolving participants per message, "
+                + (iterations * count * 1000 / inBatchMillis) + " rows/s with SyncMessageBatch");
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.database.sqlite.SQLiteException;
+
+import androidx.collection.LongSparseArray;
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.datamodel.SyncManager.ThreadInfoCache;
+import com.android.messaging.sms.DatabaseMessages.MmsMessage;
+import com.android.messaging.sms.MmsUtils;
+
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class SyncMmsLoaderTest extends BugleTestCase {
+    private final List<Integer> mChunkSizes = new ArrayList<Integer>();
+    private final HashSet<Long> mLoadedIds = new HashSet<Long>();
+
+    private class RecordingLoader extends SyncMmsLoader {
+        RecordingLoader(final boolean pipelined) {
+            super(new ThreadInfoCache(), pipelined, pipelined ? new ThreadPoolExecutor(2, 2, 1,
+                    TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1),
+                    new ThreadPoolExecutor.CallerRunsPolicy()) : null);
+        }
+
+        @Override
+        void loadChunk(final LongSparseArray<MmsMessage> mmses) {
+            synchronized (SyncMmsLoaderTest.this) {
+                if (mmses.size() > 0) {
+                    mChunkSizes.add(mmses.size());
+                }
+                for (int i = 0; i < mmses.size(); i++) {
+                    mLoadedIds.add(mmses.keyAt(i));
+                }
+            }
+        }
+    }
+
+    private static MmsMessage makeMms(final long id) {
+        final MmsMessage mms = Mockito.mock(MmsMessage.class);
+        Mockito.when(mms.getId()).thenReturn(id);
+        return mms;
+    }
+
+    public void testPipelinedLoadsEveryMessageOnceInChunks() {
+        final int count = MmsUtils.MAX_IDS_PER_QUERY * 5 + 3;
+        final SyncMmsLoader loader = new RecordingLoader(true /* pipelined */);
+        for (long id = 0; id < count; id++) {
+            loader.add(makeMms(id));
+        }
+        loader.finish();
+
+        assertEquals(count, mLoadedIds.size());
+        assertEquals(6, mChunkSizes.size());
+        int loadedCount = 0;
+        for (final int chunkSize : mChunkSizes) {
+            assertTrue(chunkSize <= MmsUtils.MAX_IDS_PER_QUERY);
+            loadedCount += chunkSize;
+        }
+        // No message loaded twice
+        assertEquals(count, loadedCount);
+    }
+
+    public void testNotPipelinedLoadsOnFinish() {
+        final int count = MmsUtils.MAX_IDS_PER_QUERY * 2;
+        final SyncMmsLoader loader = new RecordingLoader(false /* pipelined */);
+        for (long id = 0; id < count; id++) {
+            loader.add(makeMms(id));
+        }
+        assertTrue(mLoadedIds.isEmpty());
+
+        loader.finish();
+        assertEquals(count, mLoadedIds.size());
+        assertEquals(1, mChunkSizes.size());
+    }
+
+    public void testChunkFailureRethrownOnFinish() {
+        final SyncMmsLoader loader = new SyncMmsLoader(new ThreadInfoCache(), true,
+                new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(1))) {
+            @Override
+            void loadChunk(final LongSparseArray<MmsMessage> mmses) {
+                if (mmses.size() > 0 && mmses.keyAt(0) == 0) {
+                    throw new SQLiteException("Can't query parts");
+                }
+            }
+        };
+        for (long id = 0; id < MmsUtils.MAX_IDS_PER_QUERY + 1; id++) {
+            loader.add(makeMms(id));
+        }
+        try {
+            loader.finish();
+            fail("Expected the failure loading the first chunk");
+        } catch (final SQLiteException e) {
+            // Expected
+        }
+    }
+}
@@ -15,15 +15,23 @@
  */
 package com.android.messaging.datamodel.data;
 
+import android.net.Uri;
+
 import androidx.test.filters.SmallTest;
 
 import com.android.messaging.BugleTestCase;
 import com.android.messaging.FakeFactory;
 import com.android.messaging.datamodel.FakeCursor;
 import com.android.messaging.datamodel.data.ConversationMessageData.ConversationMessageViewColumns;
+import com.android.messaging.util.LogUtil;
+
+import java.util.ArrayList;
+import java.util.List;
 
 @SmallTest
 public class ConversationMessageDataTest extends BugleTestCase {
+    private static final String TAG = LogUtil.BUGLE_TAG;
+
     @Override
     protected void setUp() throws Exception {
         super.setUp();
@@ -94,4 +102,148 @@ public class ConversationMessageDataTest extends BugleTestCase {
         assertTrue(data.getCanClusterWithPreviousMessage());  // 2 and 3 can be clustered
         assertFalse(data.getCanClusterWithNextMessage());
     }
+
+    public void testSplitQuotedString() {
+        assertEquals(0, ConversationMessageData.splitQuotedString("").length);
+        assertEquals(0, ConversationMessageData.splitQuotedString(null).length);
+
+        final String[] values = ConversationMessageData.splitQuotedString(
+                "'now is the time'|'I can''t do it'|''|'a|b'|''''|'ends with '''");
+        assertEquals(6, values.length);
+        assertEquals("now is the time", values[0]);
+        assertEquals("I can't do it", values[1]);
+        assertEquals("", values[2]);
+        assertEquals("a|b", values[3]);
+        assertEquals("'", values[4]);
+        assertEquals("ends with '", values[5]);
+    }
+
+    public void testSplitUnquotedString() {
+        assertEquals(0, ConversationMessageData.splitUnquotedString("").length);
+
+        final String[] values = ConversationMessageData.splitUnquotedString("12|-1|640");
+        assertEquals(3, values.length);
+        assertEquals("12", values[0]);
+        assertEquals("-1", values[1]);
+        assertEquals("640", values[2]);
+    }
+
+    public void testSplitStringsWithTrailingSeparator() {
+        final String[] unquoted = ConversationMessageData.splitUnquotedString("12|-1||");
+        assertEquals(2, unquoted.length);
+        assertEquals("12", unquoted[0]);
+        assertEquals("-1", unquoted[1]);
+        assertEquals(0, ConversationMessageData.splitUnquotedString("|").length);
+
+        final String[] quoted = ConversationMessageData.splitQuotedString("'a'|");
+        assertEquals(1, quoted.length);
+        assertEquals("a", quoted[0]);
+
+        final String[] quotedWithEmpty = ConversationMessageData.splitQuotedString("'a'|''");
+        assertEquals(2, quotedWithEmpty.length);
+        assertEquals("a", quotedWithEmpty[0]);
+        assertEquals("", quotedWithEmpty[1]);
+    }
+
+    public void testMakeMultipartParts() {
+        final List<MessagePartData> parts = ConversationMessageData.makeParts(
+                "7|8|9",
+                "'text/plain'|'image/jpeg'|'text/plain'",
+                "''|'content://mms/part/8'|''",
+                "-1|640|-1",
+                "-1|480|-1",
+                "'Look at this'|''|'Isn''t it | great?'",
+                3,
+                "42");
+        assertEquals(3, parts.size());
+
+        final MessagePartData text = parts.get(0);
+        assertEquals("7", text.getPartId());
+        assertEquals("42", text.getMessageId());
+        assertTrue(text.isText());
+        assertEquals("Look at this", text.getText());
+
+        final MessagePartData image = parts.get(1);
+        assertEquals("8", image.getPartId());
+        assertEquals("image/jpeg", image.getContentType());
+        assertEquals(Uri.parse("content://mms/part/8"), image.getContentUri());
+        assertEquals(640, image.getWidth());
+        assertEquals(480, image.getHeight());
+
+        final MessagePartData quotedText = parts.get(2);
+        assertEquals("9", quotedText.getPartId());
+        assertEquals("Isn't it | great?", quotedText.getText());
+    }
+
+    public void testMakePartsBenchmark() {
+        // A slideshow like row: alternating captions (with escaped quotes) and images
+        final int partsCount = 10;
+        final StringBuilder ids = new StringBuilder();
+        final StringBuilder contentTypes = new StringBuilder();
+        final StringBuilder contentUris = new StringBuilder();
+        final StringBuilder widths = new StringBuilder();
+        final StringBuilder heights = new StringBuilder();
+        final StringBuilder texts = new StringBuilder();
+        for (int i = 0; i < partsCount; i++) {
+            final String divider = (i == 0) ? "" : "|";
+            final boolean isText = (i % 2 == 0);
+            ids.append(divider).append(100 + i);
+            contentTypes.append(divider).append(isText ? "'text/plain'" : "'image/jpeg'");
+            contentUris.append(divider).append(isText ? "''" : "'content://mms/part/" + i + "'");
+            widths.append(divider).append(isText ? -1 : 640);
+            heights.append(divider).append(isText ? -1 : 480);
+            texts.append(divider).append(
+                    isText ? "'Slide " + i + ", isn''t it | great?'" : "''");
+        }
+        final String rawIds = ids.toString();
+        final String rawContentTypes = contentTypes.toString();
+        final String rawContentUris = contentUris.toString();
+        final String rawWidths = widths.toString();
+        final String rawHeights = heights.toString();
+        final String rawTexts = texts.toString();
+        final int iterations = 2000;
+
+        long start = System.nanoTime();
+        List<MessagePartData> expected = null;
+        for (int i = 0; i < iterations; i++) {
+            // Each column split in its own pass
+            expected = new ArrayList<MessagePartData>();
+            ConversationMessageData.unpackMessageParts(
+                    expected,
+                    ConversationMessageData.splitUnquotedString(rawIds),
+                    ConversationMessageData.splitQuotedString(rawContentTypes),
+                    ConversationMessageData.splitQuotedString(rawContentUris),
+                    ConversationMessageData.splitUnquotedString(rawWidths),
+                    ConversationMessageData.splitUnquotedString(rawHeights),
+                    ConversationMessageData.splitQuotedString(rawTexts),
+                    partsCount,
+                    "42");
+        }
+        final long perColumnNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<MessagePartData> actual = null;
+        for (int i = 0; i < iterations; i++) {
+            actual = ConversationMessageData.makeParts(rawIds, rawContentTypes, rawContentUris,
+                    rawWidths, rawHeights, rawTexts, partsCount, "42");
+        }
+        final long singlePassNanos = System.nanoTime() - start;
+
+        LogUtil.i(TAG, "ConversationMessageDataTest: making " + partsCount + " parts "
+                + iterations + " times took " + perColumnNanos / 1000
+                + "us splitting column by column, " + singlePassNanos / 1000
+                + "us splitting the row in one pass");
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < partsCount; i++) {
+            final MessagePartData expectedPart = expected.get(i);
+            final MessagePartData actualPart = actual.get(i);
+            assertEquals(expectedPart.getPartId(), actualPart.getPartId());
+            assertEquals(expectedPart.getContentType(), actualPart.getContentType());
+            assertEquals(expectedPart.getContentUri(), actualPart.getContentUri());
+            assertEquals(expectedPart.getWidth(), actualPart.getWidth());
+            assertEquals(expectedPart.getHeight(), actualPart.getHeight());
+            assertEquals(expectedPart.getText(), actualPart.getText());
+        }
+        assertEquals("Slide 2, isn't it | great?", actual.get(2).getText());
+    }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.data;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.FakeCursor;
+import com.android.messaging.datamodel.data.ConversationMessageData.ConversationMessageViewColumns;
+
+@SmallTest
+public class ConversationMessagesPagingCursorTest extends BugleTestCase {
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+    }
+
+    public void testSinglePage() {
+        final FakeCursor page = TestDataFactory.getConversationMessageCursor();
+        final ConversationMessagesPagingCursor cursor = new ConversationMessagesPagingCursor(page);
+        assertEquals(1, cursor.getPageCount());
+        assertEquals(page.getCount(), cursor.getCount());
+
+        final String[] keyArgs = cursor.getOldestMessageKeyArgs();
+        final int last = page.getCount() - 1;
+        assertEquals(String.valueOf(page.getAt(ConversationMessageViewColumns.RECEIVED_TIMESTAMP,
+                last)), keyArgs[0]);
+        assertEquals(keyArgs[0], keyArgs[1]);
+        assertEquals(String.valueOf(page.getAt(ConversationMessageViewColumns._ID, last)),
+                keyArgs[2]);
+    }
+
+    public void testAppendOlderPage() {
+        final FakeCursor newestPage = TestDataFactory.getConversationMessageCursor();
+        final FakeCursor olderPage = TestDataFactory.getConversationMessageCursor();
+        final ConversationMessagesPagingCursor window =
+                new ConversationMessagesPagingCursor(newestPage);
+        final ConversationMessagesPagingCursor cursor = window.appendOlderPage(olderPage);
+        assertEquals(2, cursor.getPageCount());
+        assertEquals(newestPage.getCount() + olderPage.getCount(), cursor.getCount());
+
+        // Rows of the older page follow the newest page
+        final int row = 1;
+        assertTrue(cursor.moveToPosition(newestPage.getCount() + row));
+        final ConversationMessageData data = new ConversationMessageData();
+        data.bind(cursor);
+        assertEquals(TestDataFactory.getMessageText(olderPage, row), data.getText());
+        assertEquals(olderPage.getAt(ConversationMessageViewColumns.RECEIVED_TIMESTAMP, row),
+                data.getReceivedTimeStamp());
+
+        assertTrue(cursor.moveToFirst());
+        data.bind(cursor);
+        assertEquals(TestDataFactory.getMessageText(newestPage, 0), data.getText());
+        assertFalse(cursor.moveToPosition(cursor.getCount()));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.media;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+@SmallTest
+public class MediaDiskCacheTest extends BugleTestCase {
+    private static final int KB = 1024;
+    private static final String SOURCE = "content://image/1";
+    private static final String OTHER_SOURCE = "content://image/2";
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "media_disk_cache_test");
+        deleteDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    private void deleteDirectory() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private static byte[] makeBytes(final int size, final int value) {
+        final byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    public void testPutAndGet() {
+        final MediaDiskCache cache = MediaDiskCache.open(mDirectory, 10 * KB);
+        assertNotNull(cache);
+        assertNull(cache.get(SOURCE, "content://image/1|100|100"));
+
+        final byte[] bytes = makeBytes(KB, 1);
+        cache.put(SOURCE, "content://image/1|100|100", bytes);
+        assertTrue(Arrays.equals(bytes, cache.get(SOURCE, "content://image/1|100|100")));
+        assertNull(cache.get(SOURCE, "content://image/1|200|200"));
+        assertEquals(KB, cache.getSizeBytes());
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        final MediaDiskCache cache = MediaDiskCache.open(mDirectory, 3 * KB);
+        cache.put(SOURCE, "image1", makeBytes(KB, 1));
+        cache.put(SOURCE, "image2", makeBytes(KB, 2));
+        cache.put(SOURCE, "image3", makeBytes(KB, 3));
+        // Makes image2 the least recently used
+        assertNotNull(cache.get(SOURCE, "image1"));
+
+        cache.put(SOURCE, "image4", makeBytes(KB, 4));
+        assertNull(cache.get(SOURCE, "image2"));
+        assertNotNull(cache.get(SOURCE, "image1"));
+        assertNotNull(cache.get(SOURCE, "image3"));
+        assertNotNull(cache.get(SOURCE, "image4"));
+        assertEquals(3 * KB, cache.getSizeBytes());
+    }
+
+    public void testReopenKeepsEntriesAndOrder() {
+        MediaDiskCache cache = MediaDiskCache.open(mDirectory, 3 * KB);
+        cache.put(SOURCE, "image1", makeBytes(KB, 1));
+        cache.put(SOURCE, "image2", makeBytes(KB, 2));
+        cache.put(SOURCE, "image3", makeBytes(KB, 3));
+        assertNotNull(cache.get(SOURCE, "image1"));
+
+        cache = MediaDiskCache.open(mDirectory, 3 * KB);
+        assertEquals(3 * KB, cache.getSizeBytes());
+        assertTrue(Arrays.equals(makeBytes(KB, 3), cache.get(SOURCE, "image3")));
+
+        // image2 is still the least recently used after replaying the journal
+        cache.put(SOURCE, "image4", makeBytes(KB, 4));
+        assertNull(cache.get(SOURCE, "image2"));
+        assertNotNull(cache.get(SOURCE, "image1"));
+    }
+
+    public void testRemovesEntriesOfSource() {
+        final MediaDiskCache cache = MediaDiskCache.open(mDirectory, 10 * KB);
+        cache.put(SOURCE, "image1|100|100", makeBytes(KB, 1));
+        cache.put(SOURCE, "image1|200|200", makeBytes(KB, 2));
+        cache.put(OTHER_SOURCE, "image2|100|100", makeBytes(KB, 3));
+
+        cache.remove(SOURCE);
+        assertNull(cache.get(SOURCE, "image1|100|100"));
+        assertNull(cache.get(SOURCE, "image1|200|200"));
+        assertNotNull(cache.get(OTHER_SOURCE, "image2|100|100"));
+        assertEquals(KB, cache.getSizeBytes());
+
+        // Stays removed after replaying the journal
+        final MediaDiskCache reopened = MediaDiskCache.open(mDirectory, 10 * KB);
+        assertNull(reopened.get(SOURCE, "image1|100|100"));
+        assertEquals(KB, reopened.getSizeBytes());
+    }
+
+    public void testRemovesEntriesOfSourceAfterReopenAndEviction() {
+        final MediaDiskCache cache = MediaDiskCache.open(mDirectory, 3 * KB);
+        cache.put(SOURCE, "image1|100|100", makeBytes(KB, 1));
+        cache.put(OTHER_SOURCE, "image2|100|100", makeBytes(KB, 2));
+
+        // The index of entries by source is rebuilt from the journal
+        final MediaDiskCache reopened = MediaDiskCache.open(mDirectory, 3 * KB);
+        reopened.put(SOURCE, "image1|200|200", makeBytes(KB, 3));
+        // Evicts image1|100|100
+        reopened.put(OTHER_SOURCE, "image2|200|200", makeBytes(KB, 4));
+        assertNull(reopened.get(SOURCE, "image1|100|100"));
+        assertEquals(3 * KB, reopened.getSizeBytes());
+
+        reopened.remove(SOURCE);
+        assertNull(reopened.get(SOURCE, "image1|200|200"));
+        assertNotNull(reopened.get(OTHER_SOURCE, "image2|100|100"));
+        assertEquals(2 * KB, reopened.getSizeBytes());
+
+        // Removing again, or a source without entries, changes nothing
+        reopened.remove(SOURCE);
+        reopened.remove("content://mms/part/none");
+        assertEquals(2 * KB, reopened.getSizeBytes());
+    }
+
+    public void testEncodedImageRoundTrip() {
+        final EncodedImageResource resource =
+                new EncodedImageResource("image1", makeBytes(KB, 7), 6 /* orientation */);
+        final EncodedImageResource restored = EncodedImageResource.fromDiskCacheBytes(
+                "image1", resource.getDiskCacheBytes());
+        assertEquals("image1", restored.getKey());
+        assertEquals(6, restored.getOrientation());
+        assertTrue(Arrays.equals(resource.getBytes(), restored.getBytes()));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.media;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class MediaLoadingExecutorTest extends BugleTestCase {
+    private static final int PREFETCH = MediaResourceManager.PRIORITY_PREFETCH;
+    private static final int VISIBLE = MediaResourceManager.PRIORITY_VISIBLE;
+
+    private final List<String> mRunOrder = new ArrayList<String>();
+    private final CountDownLatch mReleaseWorker = new CountDownLatch(1);
+    private MediaLoadingExecutor mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // A single thread, kept busy so that the following tasks have to wait in the queue
+        mExecutor = new MediaLoadingExecutor(1);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mReleaseWorker.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, VISIBLE, null /* owner */);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mReleaseWorker.countDown();
+        super.tearDown();
+    }
+
+    private static class FakeOwner implements MediaLoadingExecutor.TaskOwner {
+        volatile boolean mObsolete;
+        volatile boolean mDropped;
+
+        @Override
+        public boolean isObsolete() {
+            return mObsolete;
+        }
+
+        @Override
+        public void onDropped() {
+            mDropped = true;
+        }
+    }
+
+    private MediaLoadingExecutor.Task execute(final String name, final int priority,
+            final MediaLoadingExecutor.TaskOwner owner, final CountDownLatch done) {
+        return mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mRunOrder) {
+                    mRunOrder.add(name);
+                }
+                done.countDown();
+            }
+        }, priority, owner);
+    }
+
+    public void testRunsHigherPriorityThenNewestFirst() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(4);
+        execute("prefetch1", PREFETCH, null, done);
+        execute("visible1", VISIBLE, null, done);
+        execute("prefetch2", PREFETCH, null, done);
+        execute("visible2", VISIBLE, null, done);
+        mReleaseWorker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("visible2", "visible1", "prefetch2", "prefetch1"), mRunOrder);
+    }
+
+    public void testRaisePriority() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(3);
+        final MediaLoadingExecutor.Task prefetch = execute("prefetch", PREFETCH, null, done);
+        execute("visible1", VISIBLE, null, done);
+        execute("visible2", VISIBLE, null, done);
+        mExecutor.raisePriority(prefetch, VISIBLE);
+        mReleaseWorker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("prefetch", "visible2", "visible1"), mRunOrder);
+    }
+
+    public void testDropsObsoleteTasks() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final FakeOwner obsoleteOwner = new FakeOwner();
+        final FakeOwner neededOwner = new FakeOwner();
+        execute("obsolete", VISIBLE, obsoleteOwner, done);
+        execute("needed", PREFETCH, neededOwner, done);
+        assertEquals(2, mExecutor.getQueuedTaskCount());
+
+        obsoleteOwner.mObsolete = true;
+        mReleaseWorker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("needed"), mRunOrder);
+        assertTrue(obsoleteOwner.mDropped);
+        assertFalse(neededOwner.mDropped);
+    }
+
+    public void testCancelRemovesObsoleteTaskFromQueue() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final FakeOwner owner = new FakeOwner();
+        final MediaLoadingExecutor.Task task = execute("cancelled", VISIBLE, owner, done);
+        execute("needed", PREFETCH, null, done);
+
+        // Still needed, so it stays queued
+        assertFalse(mExecutor.cancelIfObsolete(task));
+        assertEquals(2, mExecutor.getQueuedTaskCount());
+
+        // The worker is still busy, so the task leaves the queue before any thread runs it
+        owner.mObsolete = true;
+        assertTrue(mExecutor.cancelIfObsolete(task));
+        assertTrue(owner.mDropped);
+        assertEquals(1, mExecutor.getQueuedTaskCount());
+        assertFalse(mExecutor.cancelIfObsolete(task));
+
+        mReleaseWorker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("needed"), mRunOrder);
+    }
+}
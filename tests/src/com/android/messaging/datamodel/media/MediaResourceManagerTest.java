@@ -22,7 +22,12 @@ import com.android.messaging.FakeFactory;
 import com.android.messaging.datamodel.MemoryCacheManager;
 import com.android.messaging.datamodel.media.MediaResourceManager.MediaResourceLoadListener;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SmallTest
 public class MediaResourceManagerTest extends BugleTestCase {
@@ -130,6 +135,115 @@ public class MediaResourceManagerTest extends BugleTestCase {
         assertNull(mediaResourceManager.requestMediaResourceSync(invalidRequest));
     }
 
+    public void testCoalesceIdenticalRequests() throws InterruptedException {
+        final MediaResourceManager mediaResourceManager =
+                new MediaResourceManager();
+        MediaCacheManager.get().reclaim();
+
+        final AtomicInteger loadCount = new AtomicInteger();
+        final CountDownLatch loadStarted = new CountDownLatch(1);
+        final CountDownLatch finishLoad = new CountDownLatch(1);
+        final FakeImageRequest request = new FakeImageRequest("image1", 1 * KB) {
+            @Override
+            public FakeImageResource loadMediaBlocking(
+                    final List<MediaRequest<FakeImageResource>> chainedTask) throws Exception {
+                loadCount.incrementAndGet();
+                loadStarted.countDown();
+                finishLoad.await();
+                return super.loadMediaBlocking(chainedTask);
+            }
+        };
+        final int coalescedCountBefore = request.getMediaCache().coalescedCount();
+
+        final int requestCount = 4;
+        final CountDownLatch loaded = new CountDownLatch(requestCount);
+        final List<FakeImageResource> loadedResources =
+                Collections.synchronizedList(new ArrayList<FakeImageResource>());
+        final MediaResourceLoadListener<FakeImageResource> listener =
+                new MediaResourceLoadListener<FakeImageResource>() {
+            @Override
+            public void onMediaResourceLoaded(final MediaRequest<FakeImageResource> request,
+                    final FakeImageResource resource, final boolean isCached) {
+                if (!resource.isClosed() && resource.getRefCount() > 0) {
+                    loadedResources.add(resource);
+                }
+                loaded.countDown();
+            }
+
+            @Override
+            public void onMediaResourceLoadError(
+                    final MediaRequest<FakeImageResource> request, final Exception exception) {
+                loaded.countDown();
+            }
+        };
+        for (int i = 0; i < requestCount; i++) {
+            final BindableMediaRequest<FakeImageResource> bindableRequest =
+                    AsyncMediaRequestWrapper.createWith(request, listener);
+            bindableRequest.bind("1");
+            mediaResourceManager.requestMediaResourceAsync(bindableRequest);
+            if (i == 0) {
+                // Make sure the others are requested while the first one is loading
+                loadStarted.await();
+            }
+        }
+        finishLoad.countDown();
+
+        assertTrue(loaded.await(5, TimeUnit.SECONDS));
+        assertEquals(1, loadCount.get());
+        assertEquals(requestCount, loadedResources.size());
+        for (final FakeImageResource resource : loadedResources) {
+            assertSame(loadedResources.get(0), resource);
+        }
+        assertEquals(requestCount - 1,
+                request.getMediaCache().coalescedCount() - coalescedCountBefore);
+    }
+
+    public void testUnboundRequestLeavesLoadingQueue() throws InterruptedException {
+        final MediaResourceManager mediaResourceManager =
+                new MediaResourceManager();
+        MediaCacheManager.get().reclaim();
+
+        // Keep every loading thread busy so that the next request has to wait in the queue
+        final int threadCount = MediaLoadingExecutor.getDefaultThreadCount();
+        final CountDownLatch loadsStarted = new CountDownLatch(threadCount);
+        final CountDownLatch finishLoads = new CountDownLatch(1);
+        for (int i = 0; i < threadCount; i++) {
+            mediaResourceManager.requestMediaResourceAsync(
+                    new FakeImageRequest("busy" + i, 1 * KB) {
+                @Override
+                public FakeImageResource loadMediaBlocking(
+                        final List<MediaRequest<FakeImageResource>> chainedTask)
+                        throws Exception {
+                    loadsStarted.countDown();
+                    finishLoads.await();
+                    return super.loadMediaBlocking(chainedTask);
+                }
+            });
+        }
+        assertTrue(loadsStarted.await(5, TimeUnit.SECONDS));
+
+        final AtomicInteger loadCount = new AtomicInteger();
+        final BindableMediaRequest<FakeImageResource> bindableRequest =
+                AsyncMediaRequestWrapper.createWith(new FakeImageRequest("unbound", 1 * KB) {
+            @Override
+            public FakeImageResource loadMediaBlocking(
+                    final List<MediaRequest<FakeImageResource>> chainedTask) throws Exception {
+                loadCount.incrementAndGet();
+                return super.loadMediaBlocking(chainedTask);
+            }
+        }, createAssertListener(false /* shouldBeCached */, false /* shouldFail */,
+                new CountDownLatch(1)));
+        bindableRequest.bind("1");
+        mediaResourceManager.requestMediaResourceAsync(bindableRequest);
+        assertEquals(1, MediaResourceManager.getQueuedLoadCount());
+
+        bindableRequest.unbind("1");
+        assertEquals(0, MediaResourceManager.getQueuedLoadCount());
+
+        finishLoads.countDown();
+        assertEquals(0, loadCount.get());
+    }
+
     private void loadImage(final MediaResourceManager manager, final String key,
             final int size, final boolean shouldBeCached, final boolean shouldFail) {
         try {
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.pdu;
+
+import android.net.Uri;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+@SmallTest
+public class PduComposerTest extends BugleTestCase {
+    private static final int ATTACHMENT_SIZE = 300 * 1024;
+
+    private File mAttachmentFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final byte[] attachment = new byte[ATTACHMENT_SIZE];
+        new Random(42).nextBytes(attachment);
+        mAttachmentFile = new File(getTestContext().getCacheDir(), "pdu_composer_test.jpg");
+        final FileOutputStream out = new FileOutputStream(mAttachmentFile);
+        try {
+            out.write(attachment);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mAttachmentFile.delete();
+        super.tearDown();
+    }
+
+    private SendReq createSendReq(final Uri attachmentUri) {
+        final SendReq sendReq = new SendReq();
+        sendReq.setTo(new EncodedStringValue[] { new EncodedStringValue("6505550100") });
+        final PduBody body = new PduBody();
+
+        final PduPart textPart = new PduPart();
+        textPart.setContentType("text/plain".getBytes());
+        textPart.setContentLocation("text.txt".getBytes());
+        textPart.setCharset(CharacterSets.UTF_8);
+        textPart.setData("Hello".getBytes());
+        body.addPart(textPart);
+
+        final PduPart imagePart = new PduPart();
+        imagePart.setContentType("image/jpeg".getBytes());
+        imagePart.setContentLocation("image.jpg".getBytes());
+        imagePart.setDataUri(attachmentUri);
+        body.addPart(imagePart);
+
+        sendReq.setBody(body);
+        return sendReq;
+    }
+
+    public void testStreamedPduMatchesPduMadeInMemory() throws IOException {
+        final SendReq sendReq = createSendReq(Uri.fromFile(mAttachmentFile));
+        final byte[] pdu = new PduComposer(getTestContext(), sendReq).make();
+        assertNotNull(pdu);
+        assertTrue(pdu.length > ATTACHMENT_SIZE);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long length = new PduComposer(getTestContext(), sendReq).make(out);
+        assertEquals(pdu.length, length);
+        assertTrue(Arrays.equals(pdu, out.toByteArray()));
+    }
+
+    public void testStreamingFailsForMissingAttachment() throws IOException {
+        final SendReq sendReq = createSendReq(
+                Uri.fromFile(new File(getTestContext().getCacheDir(), "missing.jpg")));
+        assertNull(new PduComposer(getTestContext(), sendReq).make());
+        assertEquals(-1, new PduComposer(getTestContext(), sendReq).make(
+                new ByteArrayOutputStream()));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.sms;
+
+import android.telephony.SmsMessage;
+
+import androidx.test.filters.MediumTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.util.LogUtil;
+
+import java.util.Arrays;
+import java.util.Random;
+
+@MediumTest
+public class SmsSegmentCounterTest extends BugleTestCase {
+    private static final String TAG = LogUtil.BUGLE_TAG;
+
+    // Default alphabet, extension table, and characters needing UCS-2 (including surrogates)
+    private static final String[] PIECES = new String[] {
+        "Hello there, see you at 5? ", "@£$¥èéΔΦ", "{}[]~|^\\€",
+        "你好世界", "😀👍🏽", "\u001b", "\n\r",
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+    }
+
+    private static void assertMatchesFramework(final SmsSegmentCounter counter,
+            final String text) {
+        final int[] expected = SmsMessage.calculateLength(text, false);
+        final int[] actual = counter.calculateLength(text);
+        if (!Arrays.equals(expected, actual)) {
+            fail("For \"" + text + "\" expected " + Arrays.toString(expected) + " but was "
+                    + Arrays.toString(actual));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SmsSegmentCounter.setHasShiftTablesForTesting(null);
+        super.tearDown();
+    }
+
+    public void testMatchesFrameworkWhileEditing() {
+        SmsSegmentCounter.setHasShiftTablesForTesting(false);
+        assertMatchesFrameworkWhileEditing();
+    }
+
+    public void testMatchesFrameworkWithShiftTables() {
+        SmsSegmentCounter.setHasShiftTablesForTesting(true);
+        assertMatchesFrameworkWhileEditing();
+
+        // Counted here, since no national language table sends one-septet characters any cheaper
+        final SmsSegmentCounter counter = new SmsSegmentCounter();
+        final String text = "Hello there, see you at 5?";
+        assertMatchesFramework(counter, text);
+        if (!SmsSegmentCounter.isCountedByFrameworkForTesting()) {
+            assertEquals(text.length(), counter.calculateLength(text)[1]);
+        }
+    }
+
+    private void assertMatchesFrameworkWhileEditing() {
+        final Random random = new Random(42);
+        final SmsSegmentCounter counter = new SmsSegmentCounter();
+        final StringBuilder text = new StringBuilder();
+        assertMatchesFramework(counter, text.toString());
+        for (int i = 0; i < 2000; i++) {
+            final int position = random.nextInt(text.length() + 1);
+            final int edit = random.nextInt(10);
+            if (edit < 6) {
+                // Type a character
+                final String piece = PIECES[random.nextInt(PIECES.length)];
+                text.insert(position, piece.charAt(random.nextInt(piece.length())));
+            } else if (edit < 8) {
+                // Paste
+                text.insert(position, PIECES[random.nextInt(PIECES.length)]);
+            } else if (text.length() > 0) {
+                // Delete a selection, sometimes everything
+                final int end = (random.nextInt(20) == 0) ? text.length() :
+                        Math.min(text.length(), position + 1 + random.nextInt(5));
+                text.delete((end == text.length() && random.nextBoolean()) ? 0 : position, end);
+            }
+            if (text.length() > 500) {
+                text.setLength(0);
+            }
+            assertMatchesFramework(counter, text.toString());
+        }
+    }
+
+    public void testMatchesFrameworkWithTextWatcherEdits() {
+        final Random random = new Random(7);
+        final SmsSegmentCounter counter = new SmsSegmentCounter();
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            final int start = random.nextInt(text.length() + 1);
+            final int before = random.nextInt(Math.min(5, text.length() - start) + 1);
+            final String piece = PIECES[random.nextInt(PIECES.length)];
+            final String inserted = (random.nextInt(10) < 3) ? "" :
+                    piece.substring(0, 1 + random.nextInt(piece.length()));
+            text.replace(start, start + before, inserted);
+            if (text.length() > 500) {
+                text.setLength(0);
+                counter.calculateLength(text.toString());
+                continue;
+            }
+            final String edited = text.toString();
+            final int[] expected = SmsMessage.calculateLength(edited, false);
+            final int[] actual =
+                    counter.calculateLength(edited, start, before, inserted.length());
+            if (!Arrays.equals(expected, actual)) {
+                fail("For \"" + edited + "\" expected " + Arrays.toString(expected)
+                        + " but was " + Arrays.toString(actual));
+            }
+        }
+    }
+
+    public void testTypingBenchmark() {
+        final String message = PIECES[0] + PIECES[2];
+        final int length = 1000;
+        final String[] typed = new String[length];
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            builder.append(message.charAt(i % message.length()));
+            typed[i] = builder.toString();
+        }
+
+        long start = System.nanoTime();
+        int[] expected = null;
+        for (final String text : typed) {
+            expected = SmsMessage.calculateLength(text, false);
+        }
+        final long frameworkNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        final SmsSegmentCounter counter = new SmsSegmentCounter();
+        int[] actual = null;
+        for (int i = 0; i < length; i++) {
+            // One character typed at the end, as reported by a TextWatcher
+            actual = counter.calculateLength(typed[i], i, 0, 1);
+        }
+        final long counterNanos = System.nanoTime() - start;
+
+        LogUtil.i(TAG, "SmsSegmentCounterTest: typing " + length + " characters took "
+                + frameworkNanos / 1000 + "us with SmsMessage.calculateLength, "
+                + counterNanos / 1000 + "us with SmsSegmentCounter");
+        assertTrue(Arrays.equals(expected, actual));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.sms;
+
+import android.app.Activity;
+import android.net.Uri;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.receiver.SendStatusReceiver;
+import com.android.messaging.sms.SmsSender.SendCallback;
+import com.android.messaging.sms.SmsSender.SendResult;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+public class SmsSenderTest extends BugleTestCase {
+    private static final Uri MESSAGE_URI = Uri.parse("content://sms/1234");
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+    }
+
+    private static class RecordingCallback implements SendCallback {
+        final List<SendResult> mResults = new ArrayList<SendResult>();
+        final List<Thread> mThreads = new ArrayList<Thread>();
+
+        @Override
+        public synchronized void onSendCompleted(final SendResult result) {
+            mResults.add(result);
+            mThreads.add(Thread.currentThread());
+        }
+    }
+
+    public void testReplacedMessageTimeoutOnlyCompletesReplacement() {
+        final RecordingCallback replaced = new RecordingCallback();
+        final RecordingCallback replacement = new RecordingCallback();
+
+        final int replacedSendId = SmsSender.addPendingMessageForTesting(MESSAGE_URI, 2, replaced);
+        final int replacementSendId =
+                SmsSender.addPendingMessageForTesting(MESSAGE_URI, 1, replacement);
+        assertTrue(replacedSendId != replacementSendId);
+
+        // Replacing completes the earlier message as timed out, on the replacing thread
+        assertEquals(1, replaced.mResults.size());
+        assertTrue(replaced.mResults.get(0).hasPending());
+        assertSame(Thread.currentThread(), replaced.mThreads.get(0));
+        assertTrue(replacement.mResults.isEmpty());
+
+        // An alarm that already went off for the replaced message is ignored
+        SmsSender.onSendTimedOut(MESSAGE_URI, replacedSendId);
+        SmsSender.onSendTimedOut(MESSAGE_URI, SendStatusReceiver.NO_SEND_ID);
+        assertEquals(1, replaced.mResults.size());
+        assertTrue(replacement.mResults.isEmpty());
+
+        // The replacement's own timeout completes it, exactly once
+        SmsSender.onSendTimedOut(MESSAGE_URI, replacementSendId);
+        SmsSender.onSendTimedOut(MESSAGE_URI, replacementSendId);
+        assertEquals(1, replaced.mResults.size());
+        assertEquals(1, replacement.mResults.size());
+        assertTrue(replacement.mResults.get(0).hasPending());
+
+        // A late sent status for the uri no longer reaches either callback
+        SmsSender.setResult(MESSAGE_URI, Activity.RESULT_OK, SendStatusReceiver.NO_ERROR_CODE,
+                0 /* partId */, -1 /* subId */);
+        assertEquals(1, replaced.mResults.size());
+        assertEquals(1, replacement.mResults.size());
+    }
+
+    public void testSentStatusCompletesReplacementNotReplaced() {
+        final RecordingCallback replaced = new RecordingCallback();
+        final RecordingCallback replacement = new RecordingCallback();
+
+        SmsSender.addPendingMessageForTesting(MESSAGE_URI, 1, replaced);
+        final int replacementSendId =
+                SmsSender.addPendingMessageForTesting(MESSAGE_URI, 1, replacement);
+
+        SmsSender.setResult(MESSAGE_URI, Activity.RESULT_OK, SendStatusReceiver.NO_ERROR_CODE,
+                0 /* partId */, -1 /* subId */);
+        assertEquals(1, replaced.mResults.size());
+        assertEquals(1, replacement.mResults.size());
+        assertFalse(replacement.mResults.get(0).hasPending());
+        assertEquals(SendResult.FAILURE_LEVEL_NONE,
+                replacement.mResults.get(0).getHighestFailureLevel());
+
+        // Its timeout going off afterwards is ignored
+        SmsSender.onSendTimedOut(MESSAGE_URI, replacementSendId);
+        assertEquals(1, replacement.mResults.size());
+    }
+}
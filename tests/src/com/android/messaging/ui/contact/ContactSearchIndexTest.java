@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.ui.contact;
+
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.util.ContactUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@SmallTest
+public class ContactSearchIndexTest extends BugleTestCase {
+    private ContactSearchIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = createIndex("Bob Jones");
+    }
+
+    private static ContactSearchIndex createIndex(final String fourthContactName) {
+        final MatrixCursor phones = new MatrixCursor(ContactUtil.PhoneQuery.PROJECTION);
+        addRow(phones, 1, "Anne Smith", "+1 555-123-4567");
+        addRow(phones, 2, "José Álvarez", "(650) 555-0100");
+        addRow(phones, 3, "Smithers", "555 9876");
+        final MatrixCursor emails = new MatrixCursor(ContactUtil.EmailQuery.PROJECTION);
+        addRow(emails, 1, "Anne Smith", "anne@example.com");
+        addRow(emails, 4, fourthContactName, "bobby.j@example.org");
+        return new ContactSearchIndex(phones, emails);
+    }
+
+    private static void addRow(final MatrixCursor cursor, final long contactId,
+            final String displayName, final String destination) {
+        cursor.addRow(new Object[] { contactId, displayName, null, destination,
+                Phone.TYPE_MOBILE, null, "lookup" + contactId, contactId, displayName });
+    }
+
+    private static List<Long> getContactIds(final ContactSearchIndex.Matches matches) {
+        final List<Long> contactIds = new ArrayList<Long>();
+        for (final ContactSearchIndex.Destination destination : matches.getDestinations()) {
+            contactIds.add(destination.getContactId());
+        }
+        return contactIds;
+    }
+
+    private List<Long> search(final String query) {
+        return getContactIds(mIndex.search(query, true /* includePhones */,
+                true /* includeEmails */, null /* previous */));
+    }
+
+    public void testMatchesNameWordPrefixes() {
+        assertEquals(Arrays.asList(1L, 1L, 3L), search("smi"));
+        assertEquals(Arrays.asList(1L, 1L), search("smith an"));
+        assertEquals(Arrays.asList(), search("mith"));
+    }
+
+    public void testIgnoresCaseAndAccents() {
+        assertEquals(Arrays.asList(2L), search("jose alv"));
+        assertEquals(Arrays.asList(2L), search("ÁLVAREZ"));
+    }
+
+    public void testMatchesPhoneDigitGroups() {
+        assertEquals(Arrays.asList(1L), search("555 12"));
+        assertEquals(Arrays.asList(1L), search("+1555"));
+        assertEquals(Arrays.asList(1L, 2L, 3L), search("555"));
+        assertEquals(Arrays.asList(2L), search("650555"));
+        assertEquals(Arrays.asList(), search("234"));
+    }
+
+    public void testMatchesEmailAddresses() {
+        assertEquals(Arrays.asList(4L), search("bobby.j@"));
+        assertEquals(Arrays.asList(4L), search("bobby"));
+        assertEquals(Arrays.asList(), getContactIds(mIndex.search("bob", true /* includePhones */,
+                false /* includeEmails */, null /* previous */)));
+    }
+
+    public void testRefinesPreviousMatches() {
+        final ContactSearchIndex.Matches first = mIndex.search("s", true /* includePhones */,
+                true /* includeEmails */, null /* previous */);
+        assertEquals(Arrays.asList(1L, 1L, 3L), getContactIds(first));
+        final ContactSearchIndex.Matches refined = mIndex.search("smithe",
+                true /* includePhones */, true /* includeEmails */, first);
+        assertEquals(Arrays.asList(3L), getContactIds(refined));
+
+        // A query that doesn't extend the previous one searches the whole index again
+        assertEquals(Arrays.asList(4L, 2L), getContactIds(mIndex.search("jo",
+                true /* includePhones */, true /* includeEmails */, refined)));
+    }
+
+    public void testDoesNotRefineQueryWithoutWordsOrDigits() {
+        final ContactSearchIndex.Matches first = mIndex.search("+", true /* includePhones */,
+                true /* includeEmails */, null /* previous */);
+        assertEquals(Arrays.asList(), getContactIds(first));
+        assertEquals(Arrays.asList(1L), getContactIds(mIndex.search("+1 555",
+                true /* includePhones */, true /* includeEmails */, first)));
+    }
+
+    public void testPrefixLookupMatchesRefinedMatches() {
+        // Refining checks each previous match directly, so it must agree with the index lookup
+        for (final String query : new String[] { "anne smith", "+1 555-123", "bobby.j@ex" }) {
+            ContactSearchIndex.Matches previous = null;
+            for (int length = 1; length <= query.length(); length++) {
+                final String prefix = query.substring(0, length);
+                final ContactSearchIndex.Matches refined = mIndex.search(prefix,
+                        true /* includePhones */, true /* includeEmails */, previous);
+                assertEquals(prefix, search(prefix), getContactIds(refined));
+                previous = refined;
+            }
+        }
+    }
+
+    public void testKeepsIndexOnlyForSameDestinations() {
+        assertTrue(mIndex.hasSameDestinations(createIndex("Bob Jones")));
+        assertFalse(mIndex.hasSameDestinations(createIndex("Robert Jones")));
+    }
+}
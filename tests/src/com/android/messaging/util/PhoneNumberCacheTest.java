@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+@SmallTest
+public class PhoneNumberCacheTest extends BugleTestCase {
+    public void testCountriesAreCachedSeparately() {
+        final PhoneNumberCache cache = new PhoneNumberCache("test", 10);
+        cache.put("US", "6505550100", "+16505550100");
+        cache.put("GB", "6505550100", "6505550100");
+        cache.put(null, "6505550100", "6505550100");
+
+        assertEquals("+16505550100", cache.get("US", "6505550100"));
+        assertEquals("6505550100", cache.get("GB", "6505550100"));
+        assertEquals("6505550100", cache.get(null, "6505550100"));
+        assertNull(cache.get("FR", "6505550100"));
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    public void testEvictsLeastRecentlyUsedNumbers() {
+        final PhoneNumberCache cache = new PhoneNumberCache("test", 2);
+        cache.put("US", "1", "+1");
+        cache.put("US", "2", "+2");
+        cache.get("US", "1");
+        cache.put("US", "3", "+3");
+        cache.put("GB", "4", "+4");
+
+        assertEquals(2, cache.size("US"));
+        assertEquals("+1", cache.get("US", "1"));
+        assertNull(cache.get("US", "2"));
+        assertEquals("+3", cache.get("US", "3"));
+        assertEquals(1, cache.size("GB"));
+    }
+}